@@ -0,0 +1,72 @@
+package com.fsck.k9.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Part;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.fsck.k9.mail.internet.MessageExtractor;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.MimeUtility;
+import org.apache.commons.io.IOUtils;
+
+
+/**
+ * Loads the recorded server responses and messages the benchmarks work on.
+ */
+public class BenchmarkResources {
+    public static final String[] MESSAGES = {
+            "messages/plain-reply.eml",
+            "messages/multipart-alternative.eml",
+            "messages/multipart-mixed-attachment.eml",
+            "messages/mailing-list.eml",
+    };
+
+
+    public static byte[] readBytes(String name) throws IOException {
+        InputStream in = BenchmarkResources.class.getClassLoader().getResourceAsStream(name);
+        if (in == null) {
+            throw new IOException("Resource not found: " + name);
+        }
+
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public static String readString(String name) throws IOException {
+        return new String(readBytes(name), "UTF-8");
+    }
+
+    /**
+     * Bodies that don't fit into memory are written to the temporary directory when parsing a
+     * message.
+     */
+    public static void setUpTempDirectory() {
+        BinaryTempFileBody.setTempDirectory(new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * @return The decoded text/plain parts of the messages in {@link #MESSAGES}.
+     */
+    public static List<String> readMessageTexts() throws IOException, MessagingException {
+        setUpTempDirectory();
+
+        List<String> texts = new ArrayList<String>(MESSAGES.length);
+        for (String name : MESSAGES) {
+            MimeMessage message = new MimeMessage(new ByteArrayInputStream(readBytes(name)), true);
+            Part part = MimeUtility.findFirstPartByMimeType(message, "text/plain");
+            if (part != null) {
+                texts.add(MessageExtractor.getTextFromPart(part));
+            }
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,59 @@
+package com.fsck.k9.helper;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.benchmark.BenchmarkResources;
+import com.fsck.k9.mail.MessagingException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Converts the text parts of the message corpus to HTML.
+ *
+ * <p>
+ * {@link HtmlConverter#htmlToText(String)} isn't covered because it relies on
+ * {@link android.text.Html} and {@link android.text.SpannableStringBuilder}, which need the
+ * native parts of the Android runtime.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HtmlConverterBenchmark {
+    private List<String> mTexts;
+
+
+    @Setup
+    public void setUp() throws IOException, MessagingException {
+        mTexts = BenchmarkResources.readMessageTexts();
+    }
+
+    @Benchmark
+    public void textToHtml(Blackhole blackhole) {
+        for (String text : mTexts) {
+            blackhole.consume(HtmlConverter.textToHtml(text));
+        }
+    }
+
+    @Benchmark
+    public void textToHtmlFragment(Blackhole blackhole) {
+        for (String text : mTexts) {
+            blackhole.consume(HtmlConverter.textToHtmlFragment(text));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.fsck.k9.mail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Parses, packs and unpacks an address list the size of a busy mailing list post.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AddressBenchmark {
+    private static final int ADDRESSES = 20;
+
+    private String mAddressList;
+    private Address[] mAddresses;
+    private String mPacked;
+
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ADDRESSES; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            if (i % 3 == 0) {
+                sb.append("developer").append(i).append("@example.com");
+            } else {
+                sb.append("\"Developer ").append(i).append("\" <developer").append(i)
+                        .append("@example.com>");
+            }
+        }
+
+        mAddressList = sb.toString();
+        mAddresses = Address.parse(mAddressList);
+        mPacked = Address.pack(mAddresses);
+    }
+
+    @Benchmark
+    public Address[] parse() {
+        return Address.parse(mAddressList);
+    }
+
+    @Benchmark
+    public String pack() {
+        return Address.pack(mAddresses);
+    }
+
+    @Benchmark
+    public Address[] unpack() {
+        return Address.unpack(mPacked);
+    }
+}
@@ -0,0 +1,45 @@
+package com.fsck.k9.mail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.benchmark.BenchmarkResources;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Calculates the previews of the text parts of the message corpus.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MessagePreviewBenchmark {
+    private List<String> mTexts;
+
+
+    @Setup
+    public void setUp() throws IOException, MessagingException {
+        mTexts = BenchmarkResources.readMessageTexts();
+    }
+
+    @Benchmark
+    public void calculateContentPreview(Blackhole blackhole) {
+        for (String text : mTexts) {
+            blackhole.consume(Message.calculateContentPreview(text));
+        }
+    }
+}
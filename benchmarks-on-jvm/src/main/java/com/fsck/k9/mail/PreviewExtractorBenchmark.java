@@ -0,0 +1,98 @@
+package com.fsck.k9.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Compares {@link PreviewExtractor} with the chain of regular expressions it replaced, using
+ * replies of different length with a quote header, quoted text, links, a horizontal rule and a
+ * signature.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PreviewExtractorBenchmark {
+    private static final int MESSAGES = 200;
+
+    private List<String> mTexts;
+    private PreviewExtractor mExtractor;
+
+
+    @Setup
+    public void setUp() {
+        mTexts = createMessageTexts();
+        mExtractor = new PreviewExtractor();
+    }
+
+    @Benchmark
+    public void extractor(Blackhole blackhole) {
+        for (String text : mTexts) {
+            blackhole.consume(mExtractor.extract(text));
+        }
+    }
+
+    @Benchmark
+    public void regularExpressions(Blackhole blackhole) {
+        for (String text : mTexts) {
+            blackhole.consume(regularExpressionPreview(text));
+        }
+    }
+
+    private static String regularExpressionPreview(String text) {
+        if (text.length() > PreviewExtractor.MAX_TEXT_LENGTH) {
+            text = text.substring(0, PreviewExtractor.MAX_TEXT_LENGTH);
+        }
+
+        text = text.replaceAll("(?ms)^-- [\\r\\n]+.*", "");
+        text = text.replaceAll("(?m)^----.*?$", "");
+        text = text.replaceAll("(?m)^[#>].*$", "");
+        text = text.replaceAll("(?m)^On .*wrote.?$", "");
+        text = text.replaceAll("(?m)^.*\\w+:$", "");
+        text = text.replaceAll("\\s*([-=_]{30,}+)\\s*", " ");
+        text = text.replaceAll("https?://\\S+", "...");
+        text = text.replaceAll("(\\r|\\n)+", " ");
+        text = text.replaceAll("\\s+", " ");
+        text = text.trim();
+
+        return (text.length() <= PreviewExtractor.MAX_PREVIEW_LENGTH) ?
+                text : text.substring(0, PreviewExtractor.MAX_PREVIEW_LENGTH);
+    }
+
+    private static List<String> createMessageTexts() {
+        List<String> texts = new ArrayList<String>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int paragraph = 0; paragraph <= i % 8; paragraph++) {
+                sb.append("Hi all,\r\n\r\nthe weekly report number ").append(i)
+                        .append(" is available at https://reports.example.com/weekly/").append(i)
+                        .append("?format=html\r\nPlease review it before the meeting on Thursday.\r\n\r\n");
+            }
+            sb.append("______________________________________________\r\n");
+            sb.append("On Mon, Sep ").append(i % 28 + 1)
+                    .append(", 2014 at 12:00 PM, John Doe <john@example.com> wrote:\r\n");
+            for (int line = 0; line < 20 + i % 40; line++) {
+                sb.append("> Quoted line ").append(line).append(" of the previous message.\r\n");
+            }
+            sb.append("\r\n-- \r\nJane Doe\r\nhttp://www.example.com/\r\n");
+            texts.add(sb.toString());
+        }
+        return texts;
+    }
+}
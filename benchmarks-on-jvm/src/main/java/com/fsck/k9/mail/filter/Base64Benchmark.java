@@ -0,0 +1,65 @@
+package com.fsck.k9.mail.filter;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Encodes and decodes an attachment sized block of binary data and a short header value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class Base64Benchmark {
+    private static final int DATA_SIZE = 48 * 1024;
+
+    private byte[] mData;
+    private byte[] mEncodedData;
+    private String mText;
+    private String mEncodedText;
+
+
+    @Setup
+    public void setUp() {
+        mData = new byte[DATA_SIZE];
+        new Random(42).nextBytes(mData);
+        mEncodedData = Base64.encodeBase64Chunked(mData);
+
+        mText = "user@example.com:secret password";
+        mEncodedText = Base64.encode(mText);
+    }
+
+    @Benchmark
+    public byte[] encodeData() {
+        return Base64.encodeBase64Chunked(mData);
+    }
+
+    @Benchmark
+    public byte[] decodeData() {
+        return Base64.decodeBase64(mEncodedData);
+    }
+
+    @Benchmark
+    public String encodeString() {
+        return Base64.encode(mText);
+    }
+
+    @Benchmark
+    public String decodeString() {
+        return Base64.decode(mEncodedText);
+    }
+}
@@ -0,0 +1,49 @@
+package com.fsck.k9.mail.internet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Decodes typical header values with and without RFC 2047 encoded words.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DecoderUtilBenchmark {
+    private String[] mHeaders;
+
+
+    @Setup
+    public void setUp() {
+        mHeaders = new String[] {
+                "Re: [k9mail] Weekly report number 42",
+                "=?UTF-8?Q?Newsletter_September:_Neuigkeiten_f=C3=BCr_Entwickler?=",
+                "=?UTF-8?B?SsO8cmdlbiBNw7xsbGVy?= <juergen@example.de>",
+                "=?ISO-8859-1?Q?Andr=E9?= <andre@example.fr>, \"Team\" <team@example.com>",
+                "=?UTF-8?Q?Re:_[k9mail]_Weekly_r=C3=A9port?= =?UTF-8?Q?_number_1?=",
+                "=?windows-1252?Q?Pr=E4sentation_f=FCr_Montag?=",
+        };
+    }
+
+    @Benchmark
+    public void decodeEncodedWords(Blackhole blackhole) {
+        for (String header : mHeaders) {
+            blackhole.consume(DecoderUtil.decodeEncodedWords(header, null));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.fsck.k9.mail.internet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.benchmark.BenchmarkResources;
+import com.fsck.k9.mail.MessagingException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Parses each message of the corpus into a {@link MimeMessage}, including all body parts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MimeMessageParseBenchmark {
+    @Param({
+            "messages/plain-reply.eml",
+            "messages/multipart-alternative.eml",
+            "messages/multipart-mixed-attachment.eml",
+            "messages/mailing-list.eml",
+    })
+    public String message;
+
+    private byte[] mData;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        BenchmarkResources.setUpTempDirectory();
+        mData = BenchmarkResources.readBytes(message);
+    }
+
+    @Benchmark
+    public MimeMessage parse() throws IOException, MessagingException {
+        return new MimeMessage(new ByteArrayInputStream(mData), true);
+    }
+}
@@ -0,0 +1,114 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.benchmark.BenchmarkResources;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Sends the recorded responses to a header FETCH of 250 messages through the
+ * {@code COMPRESS=DEFLATE} streams used by {@link ImapConnection}.
+ *
+ * <p>
+ * The stream is flushed after every response, like a server does.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ImapCompressionBenchmark {
+    @Param({ "1", "6", "9" })
+    public int level;
+
+    @Param({ "1024", "8192" })
+    public int bufferSize;
+
+    private List<byte[]> mResponses;
+    private int mUncompressedSize;
+    private byte[] mCompressed;
+    private byte[] mBuffer;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        mResponses = splitResponses(BenchmarkResources.readBytes("imap/fetch-headers.txt"));
+        mUncompressedSize = 0;
+        for (byte[] response : mResponses) {
+            mUncompressedSize += response.length;
+        }
+
+        mCompressed = deflate();
+        mBuffer = new byte[bufferSize];
+    }
+
+    @Benchmark
+    public byte[] deflate() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream(mUncompressedSize);
+        OutputStream out = ImapConnection.createDeflaterOutputStream(wire, level);
+        for (byte[] response : mResponses) {
+            out.write(response);
+            out.flush();
+        }
+        return wire.toByteArray();
+    }
+
+    @Benchmark
+    public int inflate() throws IOException {
+        InputStream in = ImapConnection.createInflaterInputStream(
+                new ByteArrayInputStream(mCompressed), bufferSize);
+
+        // The data doesn't end with the end of the deflate stream, so we can't read until EOF
+        int total = 0;
+        while (total < mUncompressedSize) {
+            int read = in.read(mBuffer);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Splits the recording at the start of every untagged response.
+     */
+    private static List<byte[]> splitResponses(byte[] data) {
+        List<byte[]> responses = new ArrayList<byte[]>();
+        int start = 0;
+        for (int i = 1; i < data.length - 1; i++) {
+            if (data[i - 1] == '\n' && data[i] == '*' && data[i + 1] == ' ') {
+                responses.add(copy(data, start, i));
+                start = i;
+            }
+        }
+        responses.add(copy(data, start, data.length));
+        return responses;
+    }
+
+    private static byte[] copy(byte[] data, int start, int end) {
+        byte[] copy = new byte[end - start];
+        System.arraycopy(data, start, copy, 0, copy.length);
+        return copy;
+    }
+}
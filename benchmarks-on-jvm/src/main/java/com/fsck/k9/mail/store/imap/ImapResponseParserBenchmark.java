@@ -0,0 +1,69 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.benchmark.BenchmarkResources;
+import com.fsck.k9.mail.filter.PeekableInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Parses recorded responses to a header FETCH of 250 messages and to a LIST command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ImapResponseParserBenchmark {
+    private byte[] mFetchResponses;
+    private byte[] mListResponses;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        mFetchResponses = BenchmarkResources.readBytes("imap/fetch-headers.txt");
+        mListResponses = BenchmarkResources.readBytes("imap/list.txt");
+    }
+
+    @Benchmark
+    public int parseFetchResponses() throws IOException {
+        return readResponses(mFetchResponses);
+    }
+
+    @Benchmark
+    public int parseListResponses() throws IOException {
+        return readResponses(mListResponses);
+    }
+
+    /**
+     * Reads responses until the tagged one that completes the command.
+     *
+     * @return The number of responses read.
+     */
+    private static int readResponses(byte[] data) throws IOException {
+        ImapResponseParser parser = new ImapResponseParser(
+                new PeekableInputStream(new ByteArrayInputStream(data)));
+
+        int count = 0;
+        ImapResponse response;
+        do {
+            response = parser.readResponse();
+            count++;
+        } while (response.getTag() == null);
+
+        return count;
+    }
+}
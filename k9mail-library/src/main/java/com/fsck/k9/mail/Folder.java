@@ -178,6 +178,51 @@ public abstract class Folder<T extends Message> {
         return true;
     }
 
+    /**
+     * @return True if this folder tracks modification sequences and
+     *         {@link #fetchChangedSince(long, List)} can be used instead of fetching the flags
+     *         of all messages. Only meaningful after the folder has been opened.
+     */
+    public boolean supportsChangedSince() {
+        return false;
+    }
+
+    /**
+     * @return The UIDVALIDITY reported when the folder was opened, or -1 if unknown.
+     */
+    public long getUidValidity() {
+        return -1L;
+    }
+
+    /**
+     * @return The UIDNEXT reported when the folder was opened, or -1 if unknown.
+     */
+    public long getUidNext() {
+        return -1L;
+    }
+
+    /**
+     * @return The HIGHESTMODSEQ reported when the folder was opened, or -1 if the folder doesn't
+     *         support modification sequences.
+     */
+    public long getHighestModSeq() {
+        return -1L;
+    }
+
+    /**
+     * Fetch the flags of all messages whose metadata changed after the given modification
+     * sequence.
+     *
+     * @param modSeq The highest modification sequence seen by the last successful sync.
+     * @param vanishedUids If not {@code null} and the server is able to report them, the UIDs
+     *                     of messages removed since {@code modSeq} are added to this list.
+     * @return The changed messages with their flags populated.
+     * @throws MessagingException
+     */
+    public List<T> fetchChangedSince(long modSeq, List<String> vanishedUids) throws MessagingException {
+        throw new MessagingException("Folder does not support fetching changes since a modification sequence");
+    }
+
     @Override
     public String toString() {
         return getName();
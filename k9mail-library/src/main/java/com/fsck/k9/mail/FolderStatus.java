@@ -0,0 +1,54 @@
+package com.fsck.k9.mail;
+
+
+/**
+ * The state of a remote folder as reported by the server without opening the folder, e.g. in
+ * response to an IMAP {@code STATUS} command.
+ *
+ * <p>
+ * Values the server didn't report are -1.
+ * </p>
+ */
+public class FolderStatus {
+    private final String mName;
+    private final int mMessageCount;
+    private final long mUidNext;
+    private final long mUidValidity;
+    private final long mHighestModSeq;
+
+
+    public FolderStatus(String name, int messageCount, long uidNext, long uidValidity,
+            long highestModSeq) {
+        mName = name;
+        mMessageCount = messageCount;
+        mUidNext = uidNext;
+        mUidValidity = uidValidity;
+        mHighestModSeq = highestModSeq;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getMessageCount() {
+        return mMessageCount;
+    }
+
+    public long getUidNext() {
+        return mUidNext;
+    }
+
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (MESSAGES " + mMessageCount + " UIDNEXT " + mUidNext + " UIDVALIDITY " +
+                mUidValidity + " HIGHESTMODSEQ " + mHighestModSeq + ")";
+    }
+}
@@ -138,41 +138,7 @@ public abstract class Message implements Part, CompositeBody {
      *
      */
     public static String calculateContentPreview(String text) {
-        if (text == null) {
-            return null;
-        }
-
-        // Only look at the first 8k of a message when calculating
-        // the preview.  This should avoid unnecessary
-        // memory usage on large messages
-        if (text.length() > 8192) {
-            text = text.substring(0, 8192);
-        }
-
-        // Remove (correctly delimited by '-- \n') signatures
-        text = text.replaceAll("(?ms)^-- [\\r\\n]+.*", "");
-        // try to remove lines of dashes in the preview
-        text = text.replaceAll("(?m)^----.*?$", "");
-        // remove quoted text from the preview
-        text = text.replaceAll("(?m)^[#>].*$", "");
-        // Remove a common quote header from the preview
-        text = text.replaceAll("(?m)^On .*wrote.?$", "");
-        // Remove a more generic quote header from the preview
-        text = text.replaceAll("(?m)^.*\\w+:$", "");
-        // Remove horizontal rules.
-        text = text.replaceAll("\\s*([-=_]{30,}+)\\s*", " ");
-
-        // URLs in the preview should just be shown as "..." - They're not
-        // clickable and they usually overwhelm the preview
-        text = text.replaceAll("https?://\\S+", "...");
-        // Don't show newlines in the preview
-        text = text.replaceAll("(\\r|\\n)+", " ");
-        // Collapse whitespace in the preview
-        text = text.replaceAll("\\s+", " ");
-        // Remove any whitespace at the beginning and end of the string.
-        text = text.trim();
-
-        return (text.length() <= 512) ? text : text.substring(0, 512);
+        return PreviewExtractor.getInstance().extract(text);
     }
 
     public void delete(String trashFolderName) throws MessagingException {}
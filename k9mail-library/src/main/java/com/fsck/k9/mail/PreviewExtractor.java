@@ -0,0 +1,326 @@
+package com.fsck.k9.mail;
+
+
+/**
+ * Calculates the preview text of a message.
+ *
+ * <p>
+ * The result is the same as applying the following regular expressions one after the other with
+ * Android's ICU based {@link java.util.regex.Pattern}, but the text is only scanned twice and no
+ * intermediate strings are created:
+ * </p>
+ * <pre>
+ * (?ms)^-- [\r\n]+.*          -&gt; ""      signatures
+ * (?m)^----.*?$               -&gt; ""      lines of dashes
+ * (?m)^[#&gt;].*$               -&gt; ""      quoted text
+ * (?m)^On .*wrote.?$          -&gt; ""      common quote header
+ * (?m)^.*\w+:$                -&gt; ""      generic quote header
+ * \s*([-=_]{30,}+)\s*         -&gt; " "     horizontal rules
+ * https?://\S+                -&gt; "..."   URLs
+ * \s+                         -&gt; " "     whitespace
+ * </pre>
+ * <p>
+ * followed by {@link String#trim()}.
+ * </p>
+ *
+ * <p>
+ * The first pass drops the signature and the removed lines. The second pass replaces horizontal
+ * rules, URLs and whitespace and stops as soon as the preview is long enough.
+ * </p>
+ *
+ * <p>
+ * Instances reuse their buffers and are not thread-safe.
+ * </p>
+ */
+class PreviewExtractor {
+    /**
+     * Only look at this many characters of a message when calculating the preview.
+     */
+    static final int MAX_TEXT_LENGTH = 8192;
+
+    static final int MAX_PREVIEW_LENGTH = 512;
+
+    private static final int MIN_RULE_LENGTH = 30;
+
+    private static final ThreadLocal<PreviewExtractor> sInstance = new ThreadLocal<PreviewExtractor>() {
+        @Override
+        protected PreviewExtractor initialValue() {
+            return new PreviewExtractor();
+        }
+    };
+
+    private final char[] mText = new char[MAX_TEXT_LENGTH];
+    private final StringBuilder mPreview = new StringBuilder(MAX_PREVIEW_LENGTH + 16);
+
+
+    static PreviewExtractor getInstance() {
+        return sInstance.get();
+    }
+
+    public String extract(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        int length = stripLines(text, Math.min(text.length(), MAX_TEXT_LENGTH));
+        return buildPreview(length);
+    }
+
+    /**
+     * Copies the lines of {@code text} to {@link #mText}, leaving out the signature as well as
+     * the content of lines of dashes, quoted text and quote headers. Line terminators are kept.
+     *
+     * @return The number of characters written to {@link #mText}.
+     */
+    private int stripLines(String text, int end) {
+        char[] out = mText;
+        int length = 0;
+        int i = 0;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (isLineTerminator(c)) {
+                out[length++] = c;
+                i++;
+                continue;
+            }
+
+            int lineEnd = i + 1;
+            while (lineEnd < end && !isLineTerminator(text.charAt(lineEnd))) {
+                lineEnd++;
+            }
+
+            if (isSignatureSeparator(text, i, lineEnd, end)) {
+                // Everything from here on is the signature
+                break;
+            }
+
+            if (!isRemovedLine(text, i, lineEnd)) {
+                text.getChars(i, lineEnd, out, length);
+                length += lineEnd - i;
+            }
+
+            i = lineEnd;
+        }
+
+        return length;
+    }
+
+    private static boolean isSignatureSeparator(String text, int start, int end, int textEnd) {
+        if (end - start != 3 || !text.startsWith("-- ", start) || end == textEnd) {
+            return false;
+        }
+
+        char next = text.charAt(end);
+        return next == '\r' || next == '\n';
+    }
+
+    private static boolean isRemovedLine(String text, int start, int end) {
+        int length = end - start;
+        char first = text.charAt(start);
+
+        // Lines of dashes and quoted text
+        if (first == '#' || first == '>' || text.startsWith("----", start)) {
+            return true;
+        }
+
+        // "On <date>, <sender> wrote:"
+        if (text.startsWith("On ", start)) {
+            if (length >= 8 && text.startsWith("wrote", end - 5)) {
+                return true;
+            }
+
+            // "wrote" followed by a single code point
+            int lastCharLength = (length >= 2 && Character.isLowSurrogate(text.charAt(end - 1)) &&
+                    Character.isHighSurrogate(text.charAt(end - 2))) ? 2 : 1;
+            if (length >= 8 + lastCharLength && text.startsWith("wrote", end - 5 - lastCharLength)) {
+                return true;
+            }
+        }
+
+        // Generic quote header, e.g. "John Doe <john@example.com> schrieb:"
+        return length >= 2 && text.charAt(end - 1) == ':' &&
+                isWordCharacter(text.codePointBefore(end - 1));
+    }
+
+    /**
+     * Replaces horizontal rules, URLs and whitespace in the first {@code length} characters of
+     * {@link #mText} and trims the result.
+     */
+    private String buildPreview(int length) {
+        char[] text = mText;
+        StringBuilder preview = mPreview;
+        preview.setLength(0);
+
+        int i = 0;
+        while (i < length && !isComplete(preview)) {
+            char c = text[i];
+            if (isWhitespace(c)) {
+                int next = skipWhitespace(text, i, length);
+                int ruleLength = getRuleLength(text, next, length);
+                i = (ruleLength >= MIN_RULE_LENGTH) ?
+                        skipWhitespace(text, next + ruleLength, length) : next;
+                appendSpace(preview);
+            } else if (isRuleCharacter(c)) {
+                int ruleLength = getRuleLength(text, i, length);
+                if (ruleLength >= MIN_RULE_LENGTH) {
+                    i = skipWhitespace(text, i + ruleLength, length);
+                    appendSpace(preview);
+                } else {
+                    preview.append(text, i, ruleLength);
+                    i += ruleLength;
+                }
+            } else {
+                int urlEnd = getUrlEnd(text, i, length);
+                if (urlEnd != -1) {
+                    preview.append("...");
+                    i = urlEnd;
+                } else {
+                    // Leading characters would be removed by trim()
+                    if (preview.length() > 0 || c > ' ') {
+                        preview.append(c);
+                    }
+                    i++;
+                }
+            }
+        }
+
+        int end = preview.length();
+        while (end > 0 && preview.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        return preview.substring(0, Math.min(end, MAX_PREVIEW_LENGTH));
+    }
+
+    /**
+     * Characters are only ever appended to the preview. So once there's a character that won't be
+     * trimmed beyond the maximum length, the rest of the text doesn't matter anymore.
+     */
+    private static boolean isComplete(StringBuilder preview) {
+        int length = preview.length();
+        return length > MAX_PREVIEW_LENGTH && preview.charAt(length - 1) > ' ';
+    }
+
+    private static void appendSpace(StringBuilder preview) {
+        int length = preview.length();
+        if (length > 0 && preview.charAt(length - 1) != ' ') {
+            preview.append(' ');
+        }
+    }
+
+    /**
+     * @return The index after the URL starting at {@code start} or {@code -1} if there's no URL.
+     */
+    private static int getUrlEnd(char[] text, int start, int length) {
+        int i = start;
+        if (!regionMatches(text, i, length, "http")) {
+            return -1;
+        }
+        i += 4;
+        if (i < length && text[i] == 's') {
+            i++;
+        }
+        if (!regionMatches(text, i, length, "://")) {
+            return -1;
+        }
+        i += 3;
+
+        int urlStart = i;
+        while (i < length) {
+            char c = text[i];
+            if (isWhitespace(c)) {
+                break;
+            } else if (isRuleCharacter(c)) {
+                // A horizontal rule has already been replaced by a space when looking for URLs
+                int ruleLength = getRuleLength(text, i, length);
+                if (ruleLength >= MIN_RULE_LENGTH) {
+                    break;
+                }
+                i += ruleLength;
+            } else {
+                i++;
+            }
+        }
+
+        return (i > urlStart) ? i : -1;
+    }
+
+    private static boolean regionMatches(char[] text, int start, int length, String s) {
+        if (start + s.length() > length) {
+            return false;
+        }
+        for (int i = 0, end = s.length(); i < end; i++) {
+            if (text[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getRuleLength(char[] text, int start, int length) {
+        int i = start;
+        while (i < length && isRuleCharacter(text[i])) {
+            i++;
+        }
+        return i - start;
+    }
+
+    private static int skipWhitespace(char[] text, int start, int length) {
+        int i = start;
+        while (i < length && isWhitespace(text[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Line terminators as recognized by the ICU based {@link java.util.regex.Pattern} on Android.
+     */
+    private static boolean isLineTerminator(char c) {
+        return (c >= '\n' && c <= '\r') || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Whitespace as matched by {@code \s} on Android, i.e. the Unicode {@code White_Space}
+     * property.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == '\t' || (c >= '\n' && c <= '\r') || c == '\u0085' || Character.isSpaceChar(c);
+    }
+
+    /**
+     * Word characters as matched by {@code \w} on Android: alphabetic characters, marks, decimal
+     * digits, connector punctuation and the zero width (non-)joiner.
+     *
+     * <p>
+     * {@code Character.isAlphabetic()} isn't available before API 19, so the alphabetic symbols
+     * that aren't letters (the circled letters) are listed here.
+     * </p>
+     */
+    private static boolean isWordCharacter(int codePoint) {
+        switch (Character.getType(codePoint)) {
+            case Character.UPPERCASE_LETTER:
+            case Character.LOWERCASE_LETTER:
+            case Character.TITLECASE_LETTER:
+            case Character.MODIFIER_LETTER:
+            case Character.OTHER_LETTER:
+            case Character.LETTER_NUMBER:
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.COMBINING_SPACING_MARK:
+            case Character.DECIMAL_DIGIT_NUMBER:
+            case Character.CONNECTOR_PUNCTUATION:
+                return true;
+        }
+
+        return codePoint == 0x200C || codePoint == 0x200D ||
+                (codePoint >= 0x24B6 && codePoint <= 0x24E9) ||
+                (codePoint >= 0x1F130 && codePoint <= 0x1F149) ||
+                (codePoint >= 0x1F150 && codePoint <= 0x1F169) ||
+                (codePoint >= 0x1F170 && codePoint <= 0x1F189);
+    }
+
+    private static boolean isRuleCharacter(char c) {
+        return c == '-' || c == '=' || c == '_';
+    }
+}
@@ -5,6 +5,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Store is the access point for an email message store. It's location can be
@@ -33,6 +34,13 @@ public abstract class Store {
         return false;
     }
 
+    /**
+     * @return {@code true} if multiple folders of this store can be synchronized at the same time.
+     */
+    public boolean isParallelSyncCapable() {
+        return false;
+    }
+
     public boolean isSendCapable() {
         return false;
     }
@@ -45,6 +53,21 @@ public abstract class Store {
         return true;
     }
 
+    /**
+     * Retrieves the status of multiple remote folders at once without opening them.
+     *
+     * <p>
+     * This lets callers find out cheaply which folders changed since they were last synchronized.
+     * </p>
+     *
+     * @param folderNames The names of the folders to get the status of.
+     * @return The status of the folders, keyed by folder name, or {@code null} if the store
+     *         doesn't support this. Folders the server didn't report on are missing from the map.
+     */
+    public Map<String, FolderStatus> getFolderStatus(List<String> folderNames) throws MessagingException {
+        return null;
+    }
+
     public void sendMessages(List<? extends Message> messages) throws MessagingException { }
 
     public Pusher getPusher(PushReceiver receiver) {
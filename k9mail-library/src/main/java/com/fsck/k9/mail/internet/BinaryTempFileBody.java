@@ -8,17 +8,36 @@ import org.apache.james.mime4j.codec.QuotedPrintableOutputStream;
 import org.apache.james.mime4j.util.MimeUtil;
 
 import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A Body that is backed by a temp file. The Body exposes a getOutputStream method that allows
  * the user to write to the temp file. After the write the body is available via getInputStream
  * and writeTo one time. After writeTo is called, or the InputStream returned from
  * getInputStream is closed the file is deleted and the Body should be considered disposed of.
+ * <p>
+ * Most parts of a message are small. So the data is first collected in memory and only written
+ * to a temp file once it exceeds the memory threshold (see {@link #setMemoryThreshold(int)}).
+ * </p>
  */
 public class BinaryTempFileBody implements Body {
+    public static final int DEFAULT_MEMORY_THRESHOLD = 16 * 1024;
+
+    /**
+     * Maximum number of unused staging buffers kept around for reuse.
+     */
+    private static final int MAX_POOLED_BUFFERS = 4;
+
     private static File mTempDirectory;
+    private static int sMemoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<byte[]>();
+    private static final AtomicLong sInMemoryBodyCount = new AtomicLong();
+    private static final AtomicLong sSpilledBodyCount = new AtomicLong();
 
     private File mFile;
+    private byte[] mData;
 
     String mEncoding = null;
 
@@ -26,6 +45,35 @@ public class BinaryTempFileBody implements Body {
         mTempDirectory = tempDirectory;
     }
 
+    /**
+     * Sets the size up to which bodies are kept in memory. Larger bodies are written to a temp
+     * file. A value of {@code 0} always uses a temp file.
+     */
+    public static synchronized void setMemoryThreshold(int threshold) {
+        sMemoryThreshold = Math.max(threshold, 0);
+        synchronized (sBufferPool) {
+            sBufferPool.clear();
+        }
+    }
+
+    public static synchronized int getMemoryThreshold() {
+        return sMemoryThreshold;
+    }
+
+    /**
+     * @return The number of bodies that were small enough to be kept in memory.
+     */
+    public static long getInMemoryBodyCount() {
+        return sInMemoryBodyCount.get();
+    }
+
+    /**
+     * @return The number of bodies that had to be written to a temp file.
+     */
+    public static long getSpilledBodyCount() {
+        return sSpilledBodyCount.get();
+    }
+
     public void setEncoding(String encoding) throws MessagingException {
         mEncoding  = encoding;
     }
@@ -38,12 +86,14 @@ public class BinaryTempFileBody implements Body {
     }
 
     public OutputStream getOutputStream() throws IOException {
-        mFile = File.createTempFile("body", null, mTempDirectory);
-        mFile.deleteOnExit();
-        return new FileOutputStream(mFile);
+        return new SpillOverOutputStream(acquireBuffer());
     }
 
     public InputStream getInputStream() throws MessagingException {
+        if (mData != null) {
+            return new BinaryTempFileBodyInputStream(new ByteArrayInputStream(mData));
+        }
+
         try {
             return new BinaryTempFileBodyInputStream(new FileInputStream(mFile));
         } catch (IOException ioe) {
@@ -75,6 +125,107 @@ public class BinaryTempFileBody implements Body {
         }
     }
 
+    private File createTempFile() throws IOException {
+        File file = File.createTempFile("body", null, mTempDirectory);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static byte[] acquireBuffer() {
+        int threshold = getMemoryThreshold();
+        synchronized (sBufferPool) {
+            byte[] buffer = sBufferPool.poll();
+            if (buffer != null && buffer.length == threshold) {
+                return buffer;
+            }
+        }
+        return new byte[threshold];
+    }
+
+    private static void releaseBuffer(byte[] buffer) {
+        if (buffer.length != getMemoryThreshold()) {
+            return;
+        }
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+                sBufferPool.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * Collects the data in a pooled buffer and switches to a temp file once the buffer is full.
+     */
+    private class SpillOverOutputStream extends OutputStream {
+        private byte[] mBuffer;
+        private int mCount;
+        private OutputStream mFileOut;
+
+        SpillOverOutputStream(byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mFileOut == null && mCount == mBuffer.length) {
+                spill();
+            }
+
+            if (mFileOut != null) {
+                mFileOut.write(oneByte);
+            } else {
+                mBuffer[mCount++] = (byte) oneByte;
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (mFileOut == null && mCount + length > mBuffer.length) {
+                spill();
+            }
+
+            if (mFileOut != null) {
+                mFileOut.write(buffer, offset, length);
+            } else {
+                System.arraycopy(buffer, offset, mBuffer, mCount, length);
+                mCount += length;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mFileOut != null) {
+                mFileOut.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mBuffer == null && mFileOut == null) {
+                return;
+            }
+
+            if (mFileOut != null) {
+                mFileOut.close();
+                mFileOut = null;
+            } else {
+                mData = Arrays.copyOf(mBuffer, mCount);
+                releaseBuffer(mBuffer);
+                mBuffer = null;
+                sInMemoryBodyCount.incrementAndGet();
+            }
+        }
+
+        private void spill() throws IOException {
+            mFile = createTempFile();
+            mFileOut = new FileOutputStream(mFile);
+            mFileOut.write(mBuffer, 0, mCount);
+            releaseBuffer(mBuffer);
+            mBuffer = null;
+            sSpilledBodyCount.incrementAndGet();
+        }
+    }
+
     class BinaryTempFileBodyInputStream extends FilterInputStream {
         public BinaryTempFileBodyInputStream(InputStream in) {
             super(in);
@@ -85,7 +236,9 @@ public class BinaryTempFileBody implements Body {
             try {
                 super.close();
             } finally {
-                mFile.delete();
+                if (mFile != null) {
+                    mFile.delete();
+                }
             }
         }
 
@@ -8,9 +8,19 @@ import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.*;
 
-public class MimeHeader {
-    private static final String[] EMPTY_STRING_ARRAY = new String[0];
+import com.fsck.k9.mail.Message;
 
+/**
+ * The header fields of a message or body part.
+ *
+ * <p>
+ * Fields are kept in insertion order for {@link #writeTo(OutputStream)}. In addition they are
+ * indexed by their lower case name, so lookups don't have to scan all fields. The value arrays
+ * returned by {@link #getHeader(String)} are cached until the fields with that name change, and
+ * unfolded/decoded values are computed on first access.
+ * </p>
+ */
+public class MimeHeader {
     /**
      * Application specific header that contains Store specific information about an attachment.
      * In IMAP this contains the IMAP BODYSTRUCTURE part id so that the ImapStore can later
@@ -33,24 +43,56 @@ public class MimeHeader {
 //        HEADER_ANDROID_ATTACHMENT_ID,
         HEADER_ANDROID_ATTACHMENT_STORE_DATA
     };
+    private static final Set<String> WRITE_OMIT_FIELDS = new HashSet<String>(Arrays.asList(writeOmitFields));
 
     private List<Field> mFields = new ArrayList<Field>();
+    private Map<String, IndexEntry> mIndex = new HashMap<String, IndexEntry>();
     private String mCharset = null;
 
     public void clear() {
         mFields.clear();
+        mIndex.clear();
     }
 
     public String getFirstHeader(String name) {
-        String[] header = getHeader(name);
-        if (header == null) {
+        IndexEntry entry = mIndex.get(normalize(name));
+        if (entry == null) {
+            return null;
+        }
+        return entry.fields.get(0).value;
+    }
+
+    /**
+     * Returns the value of the first field with the given name with line breaks removed.
+     *
+     * @see MimeUtility#unfold(String)
+     */
+    public String getFirstHeaderUnfolded(String name) {
+        IndexEntry entry = mIndex.get(normalize(name));
+        if (entry == null) {
+            return null;
+        }
+        return entry.fields.get(0).getUnfoldedValue();
+    }
+
+    /**
+     * Returns the value of the first field with the given name unfolded and with encoded words
+     * decoded.
+     *
+     * @see MimeUtility#unfoldAndDecode(String, Message)
+     */
+    public String getFirstHeaderDecoded(String name, Message message) {
+        IndexEntry entry = mIndex.get(normalize(name));
+        if (entry == null) {
             return null;
         }
-        return header[0];
+        return entry.fields.get(0).getDecodedValue(message);
     }
 
     public void addHeader(String name, String value) {
-        mFields.add(new Field(name, MimeUtility.foldAndEncode(value)));
+        Field field = new Field(name, MimeUtility.foldAndEncode(value));
+        mFields.add(field);
+        addToIndex(field);
     }
 
     public void setHeader(String name, String value) {
@@ -69,33 +111,38 @@ public class MimeHeader {
         return names;
     }
 
+    /**
+     * Returns the values of all fields with the given name.
+     *
+     * <p>
+     * The returned array is shared between calls and must not be modified.
+     * </p>
+     */
     public String[] getHeader(String name) {
-        List<String> values = new ArrayList<String>();
-        for (Field field : mFields) {
-            if (field.name.equalsIgnoreCase(name)) {
-                values.add(field.value);
-            }
-        }
-        if (values.isEmpty()) {
+        IndexEntry entry = mIndex.get(normalize(name));
+        if (entry == null) {
             return null;
         }
-        return values.toArray(EMPTY_STRING_ARRAY);
+        return entry.getValues();
     }
 
     public void removeHeader(String name) {
-        List<Field> removeFields = new ArrayList<Field>();
-        for (Field field : mFields) {
-            if (field.name.equalsIgnoreCase(name)) {
-                removeFields.add(field);
+        String normalizedName = normalize(name);
+        if (mIndex.remove(normalizedName) == null) {
+            return;
+        }
+
+        for (Iterator<Field> iterator = mFields.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().normalizedName.equals(normalizedName)) {
+                iterator.remove();
             }
         }
-        mFields.removeAll(removeFields);
     }
 
     public void writeTo(OutputStream out) throws IOException {
         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out), 1024);
         for (Field field : mFields) {
-            if (!Arrays.asList(writeOmitFields).contains(field.name)) {
+            if (!WRITE_OMIT_FIELDS.contains(field.name)) {
                 String v = field.value;
 
                 if (hasToBeEncoded(v)) {
@@ -129,16 +176,78 @@ public class MimeHeader {
         return false;
     }
 
+    private void addToIndex(Field field) {
+        IndexEntry entry = mIndex.get(field.normalizedName);
+        if (entry == null) {
+            entry = new IndexEntry();
+            mIndex.put(field.normalizedName, entry);
+        }
+        entry.add(field);
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.US);
+    }
+
+    /**
+     * The fields with the same (normalized) name.
+     */
+    private static class IndexEntry {
+        private final List<Field> fields = new ArrayList<Field>(1);
+        private String[] values;
+
+        void add(Field field) {
+            fields.add(field);
+            values = null;
+        }
+
+        String[] getValues() {
+            if (values == null) {
+                String[] newValues = new String[fields.size()];
+                for (int i = 0, count = fields.size(); i < count; i++) {
+                    newValues[i] = fields.get(i).value;
+                }
+                values = newValues;
+            }
+            return values;
+        }
+    }
+
     private static class Field {
         private final String name;
+        private final String normalizedName;
 
         private final String value;
 
+        private String unfoldedValue;
+        private String decodedValue;
+        private Message decodedFor;
+
         public Field(String name, String value) {
             this.name = name;
+            this.normalizedName = normalize(name);
             this.value = value;
         }
 
+        String getUnfoldedValue() {
+            if (unfoldedValue == null) {
+                unfoldedValue = MimeUtility.unfold(value);
+            }
+            return unfoldedValue;
+        }
+
+        /**
+         * The decoded value depends on the message (see {@link DecoderUtil}), so it's only reused
+         * when asked for the same message again.
+         */
+        String getDecodedValue(Message message) {
+            if (decodedValue == null || decodedFor != message) {
+                decodedValue = MimeUtility.unfoldAndDecode(value, message);
+                decodedFor = message;
+            }
+            return decodedValue;
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder("(");
@@ -157,6 +266,9 @@ public class MimeHeader {
         header.mCharset = mCharset;
 
         header.mFields = new ArrayList<Field>(mFields);
+        for (Field field : mFields) {
+            header.addToIndex(field);
+        }
 
         return header;
     }
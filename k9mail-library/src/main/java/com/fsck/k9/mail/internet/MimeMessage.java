@@ -119,7 +119,7 @@ public class MimeMessage extends Message {
         if (mSentDate == null) {
             try {
                 DateTimeField field = (DateTimeField)DefaultFieldParser.parse("Date: "
-                                      + MimeUtility.unfoldAndDecode(getFirstHeader("Date")));
+                                      + mHeader.getFirstHeaderDecoded("Date", null));
                 mSentDate = field.getDate();
             } catch (Exception e) {
 
@@ -196,17 +196,17 @@ public class MimeMessage extends Message {
     public Address[] getRecipients(RecipientType type) throws MessagingException {
         if (type == RecipientType.TO) {
             if (mTo == null) {
-                mTo = Address.parse(MimeUtility.unfold(getFirstHeader("To")));
+                mTo = Address.parse(mHeader.getFirstHeaderUnfolded("To"));
             }
             return mTo;
         } else if (type == RecipientType.CC) {
             if (mCc == null) {
-                mCc = Address.parse(MimeUtility.unfold(getFirstHeader("CC")));
+                mCc = Address.parse(mHeader.getFirstHeaderUnfolded("CC"));
             }
             return mCc;
         } else if (type == RecipientType.BCC) {
             if (mBcc == null) {
-                mBcc = Address.parse(MimeUtility.unfold(getFirstHeader("BCC")));
+                mBcc = Address.parse(mHeader.getFirstHeaderUnfolded("BCC"));
             }
             return mBcc;
         } else {
@@ -250,7 +250,7 @@ public class MimeMessage extends Message {
      */
     @Override
     public String getSubject() {
-        return MimeUtility.unfoldAndDecode(getFirstHeader("Subject"), this);
+        return mHeader.getFirstHeaderDecoded("Subject", this);
     }
 
     @Override
@@ -261,9 +261,9 @@ public class MimeMessage extends Message {
     @Override
     public Address[] getFrom() {
         if (mFrom == null) {
-            String list = MimeUtility.unfold(getFirstHeader("From"));
+            String list = mHeader.getFirstHeaderUnfolded("From");
             if (list == null || list.length() == 0) {
-                list = MimeUtility.unfold(getFirstHeader("Sender"));
+                list = mHeader.getFirstHeaderUnfolded("Sender");
             }
             mFrom = Address.parse(list);
         }
@@ -285,7 +285,7 @@ public class MimeMessage extends Message {
     @Override
     public Address[] getReplyTo() {
         if (mReplyTo == null) {
-            mReplyTo = Address.parse(MimeUtility.unfold(getFirstHeader("Reply-to")));
+            mReplyTo = Address.parse(mHeader.getFirstHeaderUnfolded("Reply-to"));
         }
         return mReplyTo;
     }
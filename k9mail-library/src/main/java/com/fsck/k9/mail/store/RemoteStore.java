@@ -52,7 +52,8 @@ public abstract class RemoteStore extends Store {
                         (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE));
             } else if (uri.startsWith("pop3")) {
                 store = new Pop3Store(storeConfig,
-                        new DefaultTrustedSocketFactory(context));
+                        new DefaultTrustedSocketFactory(context),
+                        context.getCacheDir());
             } else if (uri.startsWith("webdav")) {
                 store = new WebDavStore(storeConfig);
             }
@@ -83,6 +84,32 @@ public abstract class RemoteStore extends Store {
         sStores.remove(uri);
     }
 
+    /**
+     * Releases the remote mail store instance and deletes the data it keeps on disk.
+     *
+     * <p>
+     * Used when an account is removed.
+     * </p>
+     */
+    public synchronized static void deleteInstance(Context context, StoreConfig storeConfig)
+            throws MessagingException {
+        String uri = storeConfig.getStoreUri();
+        if (uri.startsWith("local")) {
+            throw new RuntimeException("Asked to delete non-local Store object but given " +
+                    "LocalStore URI");
+        }
+
+        Store store = sStores.remove(uri);
+        if (store == null && uri.startsWith("pop3")) {
+            // The store wasn't used since the app was started, but its data may still be there
+            store = new Pop3Store(storeConfig, null, context.getCacheDir());
+        }
+
+        if (store instanceof Pop3Store) {
+            ((Pop3Store) store).deleteUidlIndex();
+        }
+    }
+
     /**
      * Decodes the contents of store-specific URIs and puts them into a {@link com.fsck.k9.mail.ServerSettings}
      * object.
@@ -7,6 +7,8 @@ public interface StoreConfig {
 
     boolean subscribedFoldersOnly();
     boolean useCompression(int type);
+    int getCompressionLevel(int type);
+    int getCompressionBufferSize(int type);
 
     String getInboxFolderName();
     String getOutboxFolderName();
@@ -29,4 +31,12 @@ public interface StoreConfig {
     int getDisplayCount();
 
     int getIdleRefreshMinutes();
+
+    int getMaxConnections();
+
+    /**
+     * @return How many seconds to wait for a connection to become available when all
+     *         {@link #getMaxConnections()} connections are in use before opening another one.
+     */
+    int getConnectionAcquireTimeout();
 }
@@ -0,0 +1,66 @@
+package com.fsck.k9.mail.store.imap;
+
+/**
+ * Decides how many messages to put into one {@code UID FETCH} or {@code UID STORE} command.
+ *
+ * <p>
+ * After each batch the cost per message, in time and in bytes received, is used to estimate how
+ * many messages fit into {@code targetMillis} and {@code targetBytes}. The window moves towards
+ * that estimate, but at most doubles or halves per batch, so a single slow response doesn't
+ * throw it off completely.
+ * </p>
+ * <p>
+ * Fast servers and small responses thus lead to fewer, larger commands, while slow links or
+ * large messages keep individual responses short.
+ * </p>
+ */
+class AdaptiveWindow {
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final long mTargetMillis;
+    private final long mTargetBytes;
+    private int mSize;
+
+
+    AdaptiveWindow(int initialSize, int minSize, int maxSize, long targetMillis, long targetBytes) {
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mTargetMillis = targetMillis;
+        mTargetBytes = targetBytes;
+        mSize = initialSize;
+    }
+
+    /**
+     * @return The number of messages to put into the next command.
+     */
+    public synchronized int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Adjusts the window after a batch has been processed.
+     *
+     * @param batchSize
+     *         The number of messages in the batch.
+     * @param elapsedMillis
+     *         The time from sending the command until the tagged response was received.
+     * @param bytes
+     *         The number of bytes received in response to the command.
+     */
+    public synchronized void update(int batchSize, long elapsedMillis, long bytes) {
+        if (batchSize <= 0) {
+            return;
+        }
+
+        double millisPerMessage = Math.max(elapsedMillis, 1L) / (double) batchSize;
+        double bytesPerMessage = Math.max(bytes, 1L) / (double) batchSize;
+        double estimate = Math.min(mTargetMillis / millisPerMessage, mTargetBytes / bytesPerMessage);
+
+        // Only grow if the batch actually used the whole window
+        double upperBound = (batchSize < mSize) ? mSize : mSize * 2.0;
+        double lowerBound = mSize / 2.0;
+        int newSize = (int) Math.max(lowerBound, Math.min(upperBound, estimate));
+
+        mSize = Math.max(mMinSize, Math.min(mMaxSize, newSize));
+    }
+}
@@ -0,0 +1,77 @@
+package com.fsck.k9.mail.store.imap;
+
+/**
+ * A fixed table of tokens that show up in almost every IMAP response.
+ *
+ * <p>
+ * {@link ImapResponseParser} looks up atoms and quoted strings in this table straight from its
+ * character buffer. If a token is found the shared {@code String} instance is returned instead
+ * of allocating a new one for each occurrence.
+ * </p>
+ */
+class ImapAtomTable {
+    private static final String[] ATOMS = {
+            "OK", "NO", "BAD", "BYE", "PREAUTH", "NIL",
+            "FETCH", "UID", "FLAGS", "INTERNALDATE", "RFC822.SIZE", "BODY", "BODYSTRUCTURE",
+            "ENVELOPE", "MODSEQ", "HEADER", "HEADER.FIELDS", "TEXT", "MIME",
+            "EXISTS", "RECENT", "EXPUNGE", "VANISHED", "EARLIER", "SEARCH", "LIST", "LSUB",
+            "STATUS", "CAPABILITY", "NAMESPACE", "ENABLED",
+            "UIDNEXT", "UIDVALIDITY", "UNSEEN", "MESSAGES", "HIGHESTMODSEQ", "NOMODSEQ",
+            "PERMANENTFLAGS", "READ-WRITE", "READ-ONLY", "TRYCREATE", "ALERT", "COPYUID",
+            "APPENDUID",
+            "\\Seen", "\\Answered", "\\Flagged", "\\Deleted", "\\Draft", "\\Recent", "\\*",
+            "$Forwarded", "$MDNSent", "NonJunk", "Junk", "$Junk", "$NotJunk",
+            "\\Noselect", "\\NoInferiors", "\\HasChildren", "\\HasNoChildren", "\\Marked",
+            "\\Unmarked",
+            "ATTACHMENT", "INLINE", "CHARSET", "NAME", "FILENAME", "BOUNDARY",
+            "MULTIPART", "MIXED", "ALTERNATIVE", "RELATED", "PLAIN", "HTML", "MESSAGE",
+            "RFC822", "APPLICATION", "OCTET-STREAM", "IMAGE",
+            "7BIT", "8BIT", "BINARY", "BASE64", "QUOTED-PRINTABLE", "US-ASCII", "UTF-8",
+            "ISO-8859-1",
+    };
+
+    private static final int TABLE_SIZE = 512;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+    private static final String[] TABLE = new String[TABLE_SIZE];
+
+    static {
+        for (String atom : ATOMS) {
+            int index = atom.hashCode() & TABLE_MASK;
+            while (TABLE[index] != null) {
+                index = (index + 1) & TABLE_MASK;
+            }
+            TABLE[index] = atom;
+        }
+    }
+
+    private ImapAtomTable() {
+    }
+
+    /**
+     * Returns the shared instance of the token in {@code chars[0..length)}, or {@code null} if
+     * it's not a known token. The comparison is case-sensitive.
+     *
+     * @param hash
+     *         The hash of the token, computed the same way as {@link String#hashCode()}.
+     */
+    static String lookup(char[] chars, int length, int hash) {
+        int index = hash & TABLE_MASK;
+        String candidate;
+        while ((candidate = TABLE[index]) != null) {
+            if (candidate.length() == length && matches(candidate, chars, length)) {
+                return candidate;
+            }
+            index = (index + 1) & TABLE_MASK;
+        }
+        return null;
+    }
+
+    private static boolean matches(String candidate, char[] chars, int length) {
+        for (int i = 0; i < length; i++) {
+            if (candidate.charAt(i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
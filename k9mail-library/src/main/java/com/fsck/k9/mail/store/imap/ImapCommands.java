@@ -13,4 +13,10 @@ class ImapCommands {
     static final String COMMAND_CAPABILITY = "CAPABILITY";
     static final String CAPABILITY_COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
     static final String COMMAND_COMPRESS_DEFLATE = "COMPRESS DEFLATE";
+    static final String CAPABILITY_CONDSTORE = "CONDSTORE";
+    static final String CAPABILITY_QRESYNC = "QRESYNC";
+    static final String COMMAND_ENABLE_QRESYNC = "ENABLE QRESYNC";
+    static final String CAPABILITY_NOTIFY = "NOTIFY";
+    static final String CAPABILITY_LIST_STATUS = "LIST-STATUS";
+    static final String COMMAND_NOTIFY = "NOTIFY";
 }
@@ -12,6 +12,8 @@ import com.fsck.k9.mail.ConnectionSecurity;
 import com.fsck.k9.mail.K9MailLib;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.Base64;
+import com.fsck.k9.mail.filter.CountingInputStream;
+import com.fsck.k9.mail.filter.CountingOutputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
 import com.jcraft.jzlib.JZlib;
@@ -22,6 +24,7 @@ import org.apache.commons.io.IOUtils;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetAddress;
@@ -54,7 +57,9 @@ import static com.fsck.k9.mail.store.imap.ImapCommands.CAPABILITY_AUTH_PLAIN;
 import static com.fsck.k9.mail.store.imap.ImapCommands.CAPABILITY_CAPABILITY;
 import static com.fsck.k9.mail.store.imap.ImapCommands.CAPABILITY_COMPRESS_DEFLATE;
 import static com.fsck.k9.mail.store.imap.ImapCommands.CAPABILITY_LOGINDISABLED;
+import static com.fsck.k9.mail.store.imap.ImapCommands.CAPABILITY_QRESYNC;
 import static com.fsck.k9.mail.store.imap.ImapCommands.COMMAND_CAPABILITY;
+import static com.fsck.k9.mail.store.imap.ImapCommands.COMMAND_ENABLE_QRESYNC;
 import static com.fsck.k9.mail.store.imap.ImapResponseParser.equalsIgnoreCase;
 
 
@@ -67,9 +72,25 @@ class ImapConnection {
     private Socket mSocket;
     private PeekableInputStream mIn;
     private OutputStream mOut;
+
+    /*
+     * Byte counters. The "wire" streams count what goes over the socket, the "plain" streams
+     * what goes into the (de)compressor. The latter are only set up while compression is
+     * active. Counts of streams that have been replaced (e.g. by STARTTLS) are kept in the
+     * "previous" fields.
+     */
+    private CountingInputStream mWireIn;
+    private CountingOutputStream mWireOut;
+    private CountingInputStream mPlainIn;
+    private CountingOutputStream mPlainOut;
+    private long mPreviousWireBytesRead;
+    private long mPreviousWireBytesWritten;
+    private long mPreviousPlainBytesRead;
+    private long mPreviousPlainBytesWritten;
     private ImapResponseParser mParser;
     private int mNextCommandTag;
     private Set<String> capabilities = new HashSet<String>();
+    private boolean mQresyncEnabled;
     private ImapSettings mSettings;
     private ConnectivityManager mConnectivityManager;
     private final TrustedSocketFactory mSocketFactory;
@@ -101,15 +122,15 @@ class ImapConnection {
 
         boolean authSuccess = false;
         mNextCommandTag = 1;
+        mQresyncEnabled = false;
         adjustDNSCacheTTL();
+        resetByteCounts();
 
         try {
             mSocket = connect(mSettings, mSocketFactory);
             setReadTimeout(SOCKET_READ_TIMEOUT);
 
-            mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(), BUFFER_SIZE));
-            mParser = new ImapResponseParser(mIn);
-            mOut = new BufferedOutputStream(mSocket.getOutputStream(), BUFFER_SIZE);
+            setUpSocketStreams();
             capabilities.clear();
             ImapResponse nullResponse = mParser.readResponse();
             if (K9MailLib.isDebug() && DEBUG_PROTOCOL_IMAP)
@@ -152,6 +173,10 @@ class ImapConnection {
                 enableCompression();
             }
 
+            if (hasCapability(CAPABILITY_QRESYNC)) {
+                enableQresync();
+            }
+
             if (K9MailLib.isDebug()) {
                 Log.d(LOG_TAG, "NAMESPACE = " + hasCapability(ImapCommands.CAPABILITY_NAMESPACE)
                         + ", mPathPrefix = " + mSettings.getPathPrefix());
@@ -213,6 +238,11 @@ class ImapConnection {
 //
 //                }
 //            }
+        if (K9MailLib.isDebug() && mPlainIn != null) {
+            Log.d(LOG_TAG, "Closing compressed connection " + getLogId() + ": received " +
+                    getBytesRead() + " bytes (" + getUncompressedBytesRead() + " uncompressed), sent " +
+                    getBytesWritten() + " bytes (" + getUncompressedBytesWritten() + " uncompressed)");
+        }
         IOUtils.closeQuietly(mIn);
         IOUtils.closeQuietly(mOut);
         IOUtils.closeQuietly(mSocket);
@@ -238,6 +268,45 @@ class ImapConnection {
         }
     }
 
+    /**
+     * Pull-style variant of {@link #readResponse()}.
+     *
+     * @see ImapResponseParser#startPull(String)
+     */
+    public boolean startPull(String keyword) throws IOException {
+        try {
+            boolean pulling = mParser.startPull(keyword);
+            if (K9MailLib.isDebug() && DEBUG_PROTOCOL_IMAP) {
+                if (pulling) {
+                    Log.v(LOG_TAG, getLogId() + "<<<* " + mParser.getPullNumber() + " " + keyword + " ...");
+                } else {
+                    Log.v(LOG_TAG, getLogId() + "<<<" + mParser.getLastResponse());
+                }
+            }
+
+            return pulling;
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Gives pull-style readers access to the tokens of the response started by
+     * {@link #startPull(String)}. Callers have to close the connection if reading fails.
+     */
+    public ImapResponseParser getResponseParser() {
+        return mParser;
+    }
+
+    /**
+     * @return The response read by the last {@link #startPull(String)} that returned
+     *         {@code false}.
+     */
+    public ImapResponse getLastResponse() {
+        return mParser.getLastResponse();
+    }
+
     public void sendContinuation(String continuation) throws IOException {
         mOut.write(continuation.getBytes());
         mOut.write('\r');
@@ -303,6 +372,20 @@ class ImapConnection {
         return mParser.readStatusResponse(tag, commandToLog, getLogId(), untaggedHandler);
     }
 
+    /**
+     * Reads the responses to a command sent with {@link #sendCommand(String, boolean)}. Used to
+     * pipeline commands.
+     */
+    public List<ImapResponse> readStatusResponse(String tag, String commandToLog)
+            throws IOException, MessagingException {
+        try {
+            return mParser.readStatusResponse(tag, commandToLog, getLogId(), null);
+        } catch (IOException ioe) {
+            close();
+            throw ioe;
+        }
+    }
+
     protected void login() throws IOException, MessagingException {
         /*
          * Use quoted strings which permit spaces and quotes. (Using IMAP
@@ -400,6 +483,14 @@ class ImapConnection {
         return capabilities.contains(capability.toUpperCase(Locale.US));
     }
 
+    /**
+     * @return True if QRESYNC (RFC 7162) was successfully enabled on this connection, meaning
+     *         the server will report expunged messages as VANISHED responses.
+     */
+    protected boolean isQresyncEnabled() {
+        return mQresyncEnabled;
+    }
+
     private void saslAuthExternal() throws IOException, MessagingException {
         try {
             receiveCapabilities(executeSimpleCommand(
@@ -481,21 +572,134 @@ class ImapConnection {
 
     private void enableCompression() {
         try {
+            int level = JZlib.Z_BEST_SPEED;
+            int bufferSize = BUFFER_SIZE;
+            NetworkInfo netInfo = mConnectivityManager.getActiveNetworkInfo();
+            if (netInfo != null) {
+                level = mSettings.getCompressionLevel(netInfo.getType());
+                bufferSize = mSettings.getCompressionBufferSize(netInfo.getType());
+            }
+
             executeSimpleCommand(ImapCommands.COMMAND_COMPRESS_DEFLATE);
-            InflaterInputStream zInputStream = new InflaterInputStream(mSocket.getInputStream(), new Inflater(true));
-            mIn = new PeekableInputStream(new BufferedInputStream(zInputStream, BUFFER_SIZE));
+
+            mPreviousPlainBytesRead = getBytesRead();
+            mPreviousPlainBytesWritten = getBytesWritten();
+            mPlainIn = new CountingInputStream(createInflaterInputStream(mWireIn, bufferSize));
+            mIn = new PeekableInputStream(new BufferedInputStream(mPlainIn, bufferSize));
             mParser = new ImapResponseParser(mIn);
-            ZOutputStream zOutputStream = new ZOutputStream(mSocket.getOutputStream(), JZlib.Z_BEST_SPEED, true);
-            mOut = new BufferedOutputStream(zOutputStream, BUFFER_SIZE);
-            zOutputStream.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
+            mPlainOut = new CountingOutputStream(createDeflaterOutputStream(mWireOut, level));
+            mOut = new BufferedOutputStream(mPlainOut, bufferSize);
             if (K9MailLib.isDebug()) {
-                Log.i(LOG_TAG, "Compression enabled for " + getLogId());
+                Log.i(LOG_TAG, "Compression enabled for " + getLogId() + " (level " + level +
+                        ", buffer size " + bufferSize + ")");
             }
         } catch (Exception e) {
             Log.e(LOG_TAG, "Unable to negotiate compression", e);
         }
     }
 
+    /**
+     * Creates the stream used to decompress data received after {@code COMPRESS DEFLATE}.
+     */
+    static InputStream createInflaterInputStream(InputStream in, int bufferSize) {
+        return new InflaterInputStream(in, new Inflater(true), bufferSize);
+    }
+
+    /**
+     * Creates the stream used to compress data sent after {@code COMPRESS DEFLATE}.
+     *
+     * <p>
+     * Every flush ends the current deflate block, so a command is sent completely even though
+     * the compressor would like to wait for more data.
+     * </p>
+     */
+    static OutputStream createDeflaterOutputStream(OutputStream out, int level) {
+        ZOutputStream zOutputStream = new ZOutputStream(out, level, true);
+        zOutputStream.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
+        return zOutputStream;
+    }
+
+    private void setUpSocketStreams() throws IOException {
+        if (mWireIn != null) {
+            mPreviousWireBytesRead += mWireIn.getCount();
+            mPreviousWireBytesWritten += mWireOut.getCount();
+        }
+        mWireIn = new CountingInputStream(mSocket.getInputStream());
+        mWireOut = new CountingOutputStream(mSocket.getOutputStream());
+        mIn = new PeekableInputStream(new BufferedInputStream(mWireIn, BUFFER_SIZE));
+        mParser = new ImapResponseParser(mIn);
+        mOut = new BufferedOutputStream(mWireOut, BUFFER_SIZE);
+    }
+
+    private void resetByteCounts() {
+        mWireIn = null;
+        mWireOut = null;
+        mPlainIn = null;
+        mPlainOut = null;
+        mPreviousWireBytesRead = 0;
+        mPreviousWireBytesWritten = 0;
+        mPreviousPlainBytesRead = 0;
+        mPreviousPlainBytesWritten = 0;
+    }
+
+    /**
+     * @return The number of bytes received over the socket since the connection was opened.
+     */
+    public long getBytesRead() {
+        CountingInputStream wireIn = mWireIn;
+        return mPreviousWireBytesRead + ((wireIn != null) ? wireIn.getCount() : 0);
+    }
+
+    /**
+     * @return The number of bytes sent over the socket since the connection was opened.
+     */
+    public long getBytesWritten() {
+        CountingOutputStream wireOut = mWireOut;
+        return mPreviousWireBytesWritten + ((wireOut != null) ? wireOut.getCount() : 0);
+    }
+
+    /**
+     * @return The number of bytes received since the connection was opened, counting data
+     *         received while compression was active after decompression.
+     */
+    public long getUncompressedBytesRead() {
+        CountingInputStream plainIn = mPlainIn;
+        return (plainIn != null) ? mPreviousPlainBytesRead + plainIn.getCount() : getBytesRead();
+    }
+
+    /**
+     * @return The number of bytes sent since the connection was opened, counting data sent while
+     *         compression was active before compression.
+     */
+    public long getUncompressedBytesWritten() {
+        CountingOutputStream plainOut = mPlainOut;
+        return (plainOut != null) ? mPreviousPlainBytesWritten + plainOut.getCount() : getBytesWritten();
+    }
+
+    public boolean isCompressionEnabled() {
+        return mPlainIn != null;
+    }
+
+    private void enableQresync() {
+        try {
+            List<ImapResponse> responses = executeSimpleCommand(COMMAND_ENABLE_QRESYNC);
+            for (ImapResponse response : responses) {
+                if (response.getTag() == null && equalsIgnoreCase(response.get(0), "ENABLED")) {
+                    for (Object extension : response) {
+                        if (equalsIgnoreCase(extension, CAPABILITY_QRESYNC)) {
+                            mQresyncEnabled = true;
+                        }
+                    }
+                }
+            }
+            if (K9MailLib.isDebug()) {
+                Log.i(LOG_TAG, "QRESYNC enabled = " + mQresyncEnabled + " for " + getLogId());
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Unable to enable QRESYNC", e);
+        }
+    }
+
     private void authenticate(AuthType authType) throws MessagingException, IOException {
         switch (authType) {
             case CRAM_MD5:
@@ -538,9 +742,7 @@ class ImapConnection {
                 mSettings.getClientCertificateAlias());
 
         mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-        mIn = new PeekableInputStream(new BufferedInputStream(mSocket.getInputStream(), BUFFER_SIZE));
-        mParser = new ImapResponseParser(mIn);
-        mOut = new BufferedOutputStream(mSocket.getOutputStream(), BUFFER_SIZE);
+        setUpSocketStreams();
         // Per RFC 2595 (3.1):  Once TLS has been started, reissue CAPABILITY command
         if (K9MailLib.isDebug()) {
             Log.i(LOG_TAG, "Updating capabilities after STARTTLS for " + getLogId());
@@ -0,0 +1,245 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+import com.fsck.k9.mail.K9MailLib;
+import com.fsck.k9.mail.MessagingException;
+
+import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
+
+
+/**
+ * A bounded pool of {@link ImapConnection}s shared by all folders of an {@link ImapStore}.
+ *
+ * <p>
+ * At most {@link #getMaxConnections()} connections are leased out at any time. Callers asking
+ * for a connection while the pool is exhausted wait until one is released. Idle connections are
+ * handed out most recently used first and are only checked with a {@code NOOP} if they've been
+ * sitting in the pool for longer than {@link #IDLE_VALIDATION_THRESHOLD}.
+ * </p>
+ * <p>
+ * Callers only wait for {@link #getAcquireTimeout()}. After that a new connection is created
+ * past the limit. This keeps a caller that forgot to release a connection from blocking
+ * everybody else forever.
+ * </p>
+ * <p>
+ * Connections returned by {@link #acquire()} may not be open yet. It's up to the caller to call
+ * {@link ImapConnection#open()}.
+ * </p>
+ */
+abstract class ImapConnectionPool {
+    /**
+     * Idle connections that have been used more recently than this (in milliseconds) are handed
+     * out without sending a {@code NOOP} first.
+     */
+    static final long IDLE_VALIDATION_THRESHOLD = 60 * 1000;
+
+    /**
+     * Default for {@link #getAcquireTimeout()}.
+     */
+    static final long DEFAULT_ACQUIRE_TIMEOUT = 30 * 1000;
+
+    private final Deque<ImapConnection> mIdle = new LinkedList<ImapConnection>();
+    private final Map<ImapConnection, Long> mIdleSince = new IdentityHashMap<ImapConnection, Long>();
+    private final Set<ImapConnection> mLeased =
+            Collections.newSetFromMap(new IdentityHashMap<ImapConnection, Boolean>());
+
+
+    /**
+     * Creates a new, unopened connection.
+     */
+    protected abstract ImapConnection createConnection();
+
+    /**
+     * @return The maximum number of connections that may be leased at the same time.
+     */
+    protected abstract int getMaxConnections();
+
+    /**
+     * @return How long (in milliseconds) {@link #acquire()} waits for a connection to be released
+     *         before creating one past the limit. {@code 0} means not to wait at all.
+     */
+    protected long getAcquireTimeout() {
+        return DEFAULT_ACQUIRE_TIMEOUT;
+    }
+
+    /**
+     * Returns a connection from the pool, or a new one if no idle connection is available.
+     *
+     * @throws MessagingException
+     *         If the thread was interrupted while waiting for a connection.
+     */
+    public ImapConnection acquire() throws MessagingException {
+        while (true) {
+            ImapConnection connection;
+            long idleSince;
+            synchronized (this) {
+                connection = mIdle.pollFirst();
+                if (connection == null) {
+                    connection = waitForConnection();
+                    if (connection == null) {
+                        connection = createConnection();
+                        mLeased.add(connection);
+                        return connection;
+                    }
+                }
+
+                idleSince = mIdleSince.remove(connection);
+                mLeased.add(connection);
+            }
+
+            if (isUsable(connection, idleSince)) {
+                return connection;
+            }
+
+            discard(connection);
+        }
+    }
+
+    /**
+     * Blocks until either a connection has been put back into the pool or there's room for a
+     * new one.
+     *
+     * @return An idle connection, or {@code null} if the caller should create a new connection.
+     */
+    private ImapConnection waitForConnection() throws MessagingException {
+        long deadline = now() + getAcquireTimeout();
+        while (mLeased.size() >= getMaxConnections()) {
+            long remaining = deadline - now();
+            if (remaining <= 0) {
+                if (K9MailLib.isDebug()) {
+                    Log.d(LOG_TAG, "No IMAP connection released in time; exceeding limit of " +
+                            getMaxConnections() + " connections");
+                }
+                return null;
+            }
+
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting for an IMAP connection", e);
+            }
+
+            ImapConnection connection = mIdle.pollFirst();
+            if (connection != null) {
+                return connection;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isUsable(ImapConnection connection, long idleSince) {
+        if (!connection.isOpen()) {
+            return false;
+        }
+
+        if (now() - idleSince < IDLE_VALIDATION_THRESHOLD) {
+            return true;
+        }
+
+        try {
+            connection.executeSimpleCommand("NOOP");
+            return true;
+        } catch (IOException e) {
+            if (K9MailLib.isDebug()) {
+                Log.d(LOG_TAG, "Pooled IMAP connection " + connection.getLogId() + " went stale", e);
+            }
+        } catch (MessagingException e) {
+            if (K9MailLib.isDebug()) {
+                Log.d(LOG_TAG, "Pooled IMAP connection " + connection.getLogId() + " went stale", e);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns a connection to the pool.
+     *
+     * <p>
+     * Closed connections are dropped. Connections that weren't obtained via {@link #acquire()}
+     * are added to the pool if there's room for them and closed otherwise.
+     * </p>
+     */
+    public void release(ImapConnection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        ImapConnection surplus = null;
+        synchronized (this) {
+            mLeased.remove(connection);
+
+            if (connection.isOpen() && !mIdleSince.containsKey(connection)) {
+                mIdle.offerFirst(connection);
+                mIdleSince.put(connection, now());
+
+                if (mIdle.size() + mLeased.size() > getMaxConnections()) {
+                    surplus = mIdle.pollLast();
+                    mIdleSince.remove(surplus);
+                }
+            }
+
+            notifyAll();
+        }
+
+        if (surplus != null) {
+            surplus.close();
+        }
+    }
+
+    /**
+     * Closes a connection and makes room for a new one.
+     */
+    public void discard(ImapConnection connection) {
+        if (connection == null) {
+            return;
+        }
+
+        connection.close();
+
+        synchronized (this) {
+            mLeased.remove(connection);
+            if (mIdleSince.remove(connection) != null) {
+                mIdle.remove(connection);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Removes a connection from the pool's accounting without closing it.
+     *
+     * <p>
+     * This is used for long-lived connections, e.g. those used for IMAP IDLE, that would
+     * otherwise permanently take up room in the pool.
+     * </p>
+     */
+    public synchronized void detach(ImapConnection connection) {
+        if (mLeased.remove(connection)) {
+            notifyAll();
+        }
+    }
+
+    synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    synchronized int getLeasedCount() {
+        return mLeased.size();
+    }
+
+    long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
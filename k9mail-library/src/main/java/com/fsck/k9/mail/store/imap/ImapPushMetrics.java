@@ -0,0 +1,66 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters describing how well push works for one account.
+ *
+ * <p>
+ * The latency of a push event is the time between receiving the server's notification and
+ * having handed the change to the {@link com.fsck.k9.mail.PushReceiver}.
+ * </p>
+ */
+public class ImapPushMetrics {
+    private final AtomicLong mEventCount = new AtomicLong();
+    private final AtomicLong mTotalLatency = new AtomicLong();
+    private final AtomicLong mMaxLatency = new AtomicLong();
+    private final AtomicLong mReconnectCount = new AtomicLong();
+
+
+    void recordEvent(long latencyMillis) {
+        mEventCount.incrementAndGet();
+        mTotalLatency.addAndGet(latencyMillis);
+
+        long max;
+        do {
+            max = mMaxLatency.get();
+        } while (latencyMillis > max && !mMaxLatency.compareAndSet(max, latencyMillis));
+    }
+
+    void recordReconnect() {
+        mReconnectCount.incrementAndGet();
+    }
+
+    public long getEventCount() {
+        return mEventCount.get();
+    }
+
+    /**
+     * @return The average latency of push events in milliseconds.
+     */
+    public long getAverageLatency() {
+        long count = mEventCount.get();
+        return (count == 0) ? 0 : mTotalLatency.get() / count;
+    }
+
+    /**
+     * @return The highest latency of a push event in milliseconds.
+     */
+    public long getMaxLatency() {
+        return mMaxLatency.get();
+    }
+
+    /**
+     * @return How often a push connection had to be re-established after an error.
+     */
+    public long getReconnectCount() {
+        return mReconnectCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "events=" + getEventCount() + ", averageLatency=" + getAverageLatency() +
+                "ms, maxLatency=" + getMaxLatency() + "ms, reconnects=" + getReconnectCount();
+    }
+}
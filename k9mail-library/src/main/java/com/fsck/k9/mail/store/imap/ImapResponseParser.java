@@ -8,6 +8,7 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -20,10 +21,50 @@ import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
 import static com.fsck.k9.mail.store.imap.ImapCommands.CAPABILITY_CAPABILITY;
 
 class ImapResponseParser {
+    /** End of the pulled response. The line terminator has been consumed. */
+    static final int TOKEN_END = 0;
+    /** An atom, number or NIL. */
+    static final int TOKEN_ATOM = 1;
+    static final int TOKEN_QUOTED = 2;
+    static final int TOKEN_LITERAL = 3;
+    static final int TOKEN_LIST_START = 4;
+    static final int TOKEN_LIST_END = 5;
+    static final int TOKEN_SEQUENCE_START = 6;
+    static final int TOKEN_SEQUENCE_END = 7;
+
+    private static final int BUFFER_SIZE = 4096;
+
     private PeekableInputStream mIn;
     private ImapResponse mResponse;
     private Exception mException;
 
+    /*
+     * We do our own buffering so the tokenizer can work on a plain byte array instead of making
+     * a method call (and on the platform's BufferedInputStream, taking a lock) for every byte.
+     * Nothing else reads from mIn; literals are handed to callbacks through mLiteralStream which
+     * drains this buffer first.
+     */
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+    private final InputStream mLiteralStream = new BufferedLiteralInputStream();
+    private long mBytesRead;
+
+    /*
+     * Characters of the current atom or quoted string. Shared between tokens so that tokens
+     * found in ImapAtomTable or only compared against never need a String allocation.
+     */
+    private char[] mChars = new char[128];
+    private int mCharCount;
+    private int mCharHash;
+
+    // State of the pull-style API
+    private boolean mPulling;
+    private long mPullNumber;
+    private int mTokenType;
+    private String mTokenString;
+    private ImapResponse mLastResponse;
+
     public ImapResponseParser(PeekableInputStream in) {
         this.mIn = in;
     }
@@ -38,7 +79,7 @@ class ImapResponseParser {
      */
     public ImapResponse readResponse(ImapResponseCallback callback) throws IOException {
         try {
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '*') {
                 parseUntaggedResponse();
                 mResponse = new ImapResponse(callback, false, null);
@@ -136,12 +177,209 @@ class ImapResponseParser {
         return capabilities;
     }
 
+    /**
+     * Pull-style alternative to {@link #readResponse()} for hot paths that don't need an
+     * {@link ImapList} tree.
+     *
+     * <p>
+     * If the next response is an untagged response of the form {@code * <number> <keyword> ...}
+     * (e.g. {@code * 12 FETCH (UID 1234 FLAGS (\Seen))}) this returns {@code true} after
+     * consuming the keyword. The number is available via {@link #getPullNumber()} and the rest
+     * of the response has to be consumed with {@link #nextToken()} until it returns
+     * {@link #TOKEN_END} (or {@link #skipPulledResponse()} has been called).
+     * </p>
+     * <p>
+     * Any other response is read completely as {@link #readResponse()} would and is made
+     * available via {@link #getLastResponse()}.
+     * </p>
+     */
+    public boolean startPull(String keyword) throws IOException {
+        mPulling = false;
+        mLastResponse = null;
+
+        if (peek() != '*') {
+            mLastResponse = readResponse(null);
+            return false;
+        }
+
+        try {
+            parseUntaggedResponse();
+            mResponse = new ImapResponse(null, false, null);
+
+            String firstToken = (String) readToken(mResponse);
+            mResponse.add(firstToken);
+
+            if (isNumber(firstToken) && peek() == ' ') {
+                expect(' ');
+                if (isAtomChar(peek())) {
+                    readAtomChars();
+                    if (charsEqualIgnoreCase(keyword)) {
+                        mPullNumber = Long.parseLong(firstToken);
+                        mPulling = true;
+                        return true;
+                    }
+                    mResponse.add(charsToString());
+                }
+            }
+
+            readRemainingTokens(mResponse, firstToken);
+
+            if (mException != null) {
+                throw new RuntimeException("startPull(): Exception in callback method", mException);
+            }
+
+            mLastResponse = mResponse;
+            return false;
+        } finally {
+            mResponse = null;
+            mException = null;
+        }
+    }
+
+    /**
+     * @return The number preceding the keyword of the response being pulled.
+     */
+    public long getPullNumber() {
+        return mPullNumber;
+    }
+
+    /**
+     * @return The response read by the last call to {@link #startPull(String)} if it returned
+     *         {@code false}.
+     */
+    public ImapResponse getLastResponse() {
+        return mLastResponse;
+    }
+
+    /**
+     * Reads the next token of the response being pulled.
+     *
+     * @return One of the {@code TOKEN_*} constants.
+     */
+    public int nextToken() throws IOException {
+        if (!mPulling) {
+            return TOKEN_END;
+        }
+
+        mTokenString = null;
+        while (true) {
+            int ch = peek();
+            switch (ch) {
+                case '(':
+                    mPosition++;
+                    return mTokenType = TOKEN_LIST_START;
+                case ')':
+                    mPosition++;
+                    return mTokenType = TOKEN_LIST_END;
+                case '[':
+                    mPosition++;
+                    return mTokenType = TOKEN_SEQUENCE_START;
+                case ']':
+                    mPosition++;
+                    return mTokenType = TOKEN_SEQUENCE_END;
+                case '"':
+                    readQuotedChars();
+                    return mTokenType = TOKEN_QUOTED;
+                case '{':
+                    mTokenString = (String) parseLiteral();
+                    return mTokenType = TOKEN_LITERAL;
+                case ' ':
+                case '\t':
+                    mPosition++;
+                    break;
+                case '\r':
+                    expect('\r');
+                    expect('\n');
+                    mPulling = false;
+                    return mTokenType = TOKEN_END;
+                case '\n':
+                    expect('\n');
+                    mPulling = false;
+                    return mTokenType = TOKEN_END;
+                default:
+                    readAtomChars();
+                    return mTokenType = TOKEN_ATOM;
+            }
+        }
+    }
+
+    /**
+     * @return The value of the current {@link #TOKEN_ATOM}, {@link #TOKEN_QUOTED} or
+     *         {@link #TOKEN_LITERAL} token.
+     */
+    public String getTokenString() {
+        if (mTokenString == null &&
+                (mTokenType == TOKEN_ATOM || mTokenType == TOKEN_QUOTED)) {
+            mTokenString = charsToString();
+        }
+        return mTokenString;
+    }
+
+    /**
+     * Compares the current token to {@code value} without creating a {@code String}.
+     */
+    public boolean tokenEqualsIgnoreCase(String value) {
+        if (mTokenType == TOKEN_LITERAL) {
+            return value.equalsIgnoreCase(mTokenString);
+        }
+        return (mTokenType == TOKEN_ATOM || mTokenType == TOKEN_QUOTED) &&
+                charsEqualIgnoreCase(value);
+    }
+
+    /**
+     * Parses the current atom as a non-negative number without creating a {@code String}.
+     */
+    public long getTokenNumber() throws IOException {
+        if (mTokenType != TOKEN_ATOM || mCharCount == 0 || mCharCount > 18) {
+            throw new IOException("Expected number but got " + getTokenString());
+        }
+        long value = 0;
+        for (int i = 0; i < mCharCount; i++) {
+            char c = mChars[i];
+            if (c < '0' || c > '9') {
+                throw new IOException("Expected number but got " + getTokenString());
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Skips the value following a key of the response being pulled, including nested lists.
+     */
+    public void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            int token = nextToken();
+            if (token == TOKEN_END) {
+                return;
+            } else if (token == TOKEN_LIST_START || token == TOKEN_SEQUENCE_START) {
+                depth++;
+            } else if (token == TOKEN_LIST_END || token == TOKEN_SEQUENCE_END) {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+    /**
+     * Consumes the remaining tokens of the response being pulled.
+     */
+    public void skipPulledResponse() throws IOException {
+        while (nextToken() != TOKEN_END) {
+            // Skip
+        }
+    }
+
     private void readTokens(ImapResponse response) throws IOException {
         response.clear();
 
         String firstToken = (String) readToken(response);
         response.add(firstToken);
 
+        readRemainingTokens(response, firstToken);
+    }
+
+    private void readRemainingTokens(ImapResponse response, String firstToken) throws IOException {
         if (isStatusResponse(firstToken)) {
             parseResponseText(response);
         } else {
@@ -182,7 +420,7 @@ class ImapResponseParser {
     private void parseResponseText(ImapResponse parent) throws IOException {
         skipIfSpace();
 
-        int next = mIn.peek();
+        int next = peek();
         if (next == '[') {
             parseSequence(parent);
             skipIfSpace();
@@ -198,7 +436,7 @@ class ImapResponseParser {
     }
 
     private void skipIfSpace() throws IOException {
-        if (mIn.peek() == ' ') {
+        if (peek() == ' ') {
             expect(' ');
         }
     }
@@ -223,7 +461,7 @@ class ImapResponseParser {
 
     private Object parseToken(ImapList parent) throws IOException {
         while (true) {
-            int ch = mIn.peek();
+            int ch = peek();
             if (ch == '(') {
                 return parseList(parent);
             } else if (ch == '[') {
@@ -312,31 +550,93 @@ class ImapResponseParser {
     }
 
     private String parseAtom() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
+        readAtomChars();
+        return charsToString();
+    }
+
+    /**
+     * Reads an atom into {@link #mChars}.
+     */
+    private void readAtomChars() throws IOException {
+        mCharCount = 0;
+        int hash = 0;
         while (true) {
-            ch = mIn.peek();
-            if (ch == -1) {
+            if (mPosition == mLimit && !fill()) {
                 throw new IOException("parseAtom(): end of stream reached");
-            } else if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                       ch == '[' || ch == ']' ||
-                       // docs claim that flags are \ atom but atom isn't supposed to
-                       // contain
-                       // * and some flags contain *
-                       // ch == '%' || ch == '*' ||
-//                    ch == '%' ||
-                       // TODO probably should not allow \ and should recognize
-                       // it as a flag instead
-                       // ch == '"' || ch == '\' ||
-                       ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f) {
-                if (sb.length() == 0) {
+            }
+
+            int ch = mBuffer[mPosition] & 0xff;
+            if (!isAtomChar(ch)) {
+                if (mCharCount == 0) {
                     throw new IOException(String.format("parseAtom(): (%04x %c)", ch, ch));
                 }
-                return sb.toString();
-            } else {
-                sb.append((char)mIn.read());
+                mCharHash = hash;
+                return;
+            }
+
+            mPosition++;
+            appendChar((char) ch);
+            hash = 31 * hash + ch;
+        }
+    }
+
+    private static boolean isAtomChar(int ch) {
+        return !(ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
+                ch == '[' || ch == ']' ||
+                // docs claim that flags are \ atom but atom isn't supposed to
+                // contain
+                // * and some flags contain *
+                // ch == '%' || ch == '*' ||
+                // ch == '%' ||
+                // TODO probably should not allow \ and should recognize
+                // it as a flag instead
+                // ch == '"' || ch == '\' ||
+                ch == '"' || (ch >= 0x00 && ch <= 0x1f) || ch == 0x7f || ch == -1);
+    }
+
+    private static boolean isNumber(String token) {
+        int length = token.length();
+        if (length == 0) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = token.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
             }
         }
+        return true;
+    }
+
+    private void appendChar(char c) {
+        if (mCharCount == mChars.length) {
+            char[] chars = new char[mChars.length * 2];
+            System.arraycopy(mChars, 0, chars, 0, mCharCount);
+            mChars = chars;
+        }
+        mChars[mCharCount++] = c;
+    }
+
+    /**
+     * @return The token in {@link #mChars}, using the shared instance if it's a common token.
+     */
+    private String charsToString() {
+        String atom = ImapAtomTable.lookup(mChars, mCharCount, mCharHash);
+        return (atom != null) ? atom : new String(mChars, 0, mCharCount);
+    }
+
+    private boolean charsEqualIgnoreCase(String value) {
+        if (value.length() != mCharCount) {
+            return false;
+        }
+        for (int i = 0; i < mCharCount; i++) {
+            char c1 = mChars[i];
+            char c2 = value.charAt(i);
+            if (c1 != c2 && Character.toUpperCase(c1) != Character.toUpperCase(c2)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -353,8 +653,8 @@ class ImapResponseParser {
             return "";
         }
 
-        if (mResponse.getCallback() != null) {
-            FixedLengthInputStream fixed = new FixedLengthInputStream(mIn, size);
+        if (mResponse != null && mResponse.getCallback() != null) {
+            FixedLengthInputStream fixed = new FixedLengthInputStream(mLiteralStream, size);
 
             Object result = null;
             try {
@@ -368,9 +668,10 @@ class ImapResponseParser {
                 //Log.e(LOG_TAG, "parseLiteral(): Exception in callback method", e);
             }
 
-            // Check if only some of the literal data was read
+            // Check if only some of the literal data was read, or if the callback consumed the
+            // literal without reading it
             int available = fixed.available();
-            if ((available > 0) && (available != size)) {
+            if ((available > 0) && (available != size || result != null)) {
                 // If so, skip the rest
                 while (fixed.available() > 0) {
                     fixed.skip(fixed.available());
@@ -385,7 +686,7 @@ class ImapResponseParser {
         byte[] data = new byte[size];
         int read = 0;
         while (read != size) {
-            int count = mIn.read(data, read, size - read);
+            int count = mLiteralStream.read(data, read, size - read);
             if (count == -1) {
                 throw new IOException("parseLiteral(): end of stream reached");
             }
@@ -396,19 +697,30 @@ class ImapResponseParser {
     }
 
     private String parseQuoted() throws IOException {
+        readQuotedChars();
+        return charsToString();
+    }
+
+    /**
+     * Reads a quoted string into {@link #mChars}.
+     */
+    private void readQuotedChars() throws IOException {
         expect('"');
 
-        StringBuilder sb = new StringBuilder();
+        mCharCount = 0;
+        int hash = 0;
         int ch;
         boolean escape = false;
-        while ((ch = mIn.read()) != -1) {
+        while ((ch = read()) != -1) {
             if (!escape && (ch == '\\')) {
                 // Found the escape character
                 escape = true;
             } else if (!escape && (ch == '"')) {
-                return sb.toString();
+                mCharHash = hash;
+                return;
             } else {
-                sb.append((char)ch);
+                appendChar((char) ch);
+                hash = 31 * hash + ch;
                 escape = false;
             }
         }
@@ -416,13 +728,13 @@ class ImapResponseParser {
     }
 
     private String readStringUntil(char end) throws IOException {
-        StringBuilder sb = new StringBuilder();
+        mCharCount = 0;
         int ch;
-        while ((ch = mIn.read()) != -1) {
+        while ((ch = read()) != -1) {
             if (ch == end) {
-                return sb.toString();
+                return new String(mChars, 0, mCharCount);
             } else {
-                sb.append((char)ch);
+                appendChar((char) ch);
             }
         }
         throw new IOException("readStringUntil(): end of stream reached");
@@ -430,13 +742,113 @@ class ImapResponseParser {
 
     private int expect(char ch) throws IOException {
         int d;
-        if ((d = mIn.read()) != ch) {
+        if ((d = read()) != ch) {
             throw new IOException(String.format("Expected %04x (%c) but got %04x (%c)", (int)ch,
                                                 ch, d, (char)d));
         }
         return d;
     }
 
+    private int peek() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition] & 0xff;
+    }
+
+    private int read() throws IOException {
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition++] & 0xff;
+    }
+
+    /**
+     * Refills the buffer. Only blocks until at least one byte is available.
+     *
+     * @return {@code false} if the end of the stream has been reached.
+     */
+    private boolean fill() throws IOException {
+        int count = mIn.read(mBuffer, 0, mBuffer.length);
+        if (count <= 0) {
+            mPosition = 0;
+            mLimit = 0;
+            return false;
+        }
+        mPosition = 0;
+        mLimit = count;
+        mBytesRead += count;
+        return true;
+    }
+
+    /**
+     * @return The number of bytes read from the underlying stream so far.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Exposes the parser's buffer followed by the underlying stream, so literals can be read
+     * without losing data that has already been buffered.
+     */
+    private class BufferedLiteralInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            return ImapResponseParser.this.read();
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            int buffered = mLimit - mPosition;
+            if (buffered == 0) {
+                if (length >= mBuffer.length) {
+                    // Large read, don't bother copying through our buffer
+                    int count = mIn.read(b, offset, length);
+                    if (count > 0) {
+                        mBytesRead += count;
+                    }
+                    return count;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                buffered = mLimit;
+            }
+
+            int count = Math.min(buffered, length);
+            System.arraycopy(mBuffer, mPosition, b, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+
+            int buffered = mLimit - mPosition;
+            if (buffered > 0) {
+                int count = (int) Math.min(buffered, n);
+                mPosition += count;
+                return count;
+            }
+            long skipped = mIn.skip(n);
+            mBytesRead += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (mLimit - mPosition) + mIn.available();
+        }
+    }
+
     public boolean isStatusResponse(String symbol) {
         return symbol.equalsIgnoreCase("OK") ||
                symbol.equalsIgnoreCase("NO") ||
@@ -23,6 +23,18 @@ interface ImapSettings {
 
     boolean useCompression(int type);
 
+    /**
+     * @return The deflate level (0-9) to use for {@code COMPRESS=DEFLATE} on the given network
+     *         type (see {@link android.net.ConnectivityManager}).
+     */
+    int getCompressionLevel(int type);
+
+    /**
+     * @return The size of the buffers around the (de)compression streams on the given network
+     *         type.
+     */
+    int getCompressionBufferSize(int type);
+
     String getPathPrefix();
 
     void setPathPrefix(String prefix);
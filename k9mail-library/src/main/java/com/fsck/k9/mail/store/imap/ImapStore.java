@@ -4,6 +4,7 @@ package com.fsck.k9.mail.store.imap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
@@ -14,13 +15,14 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -31,9 +33,11 @@ import java.util.StringTokenizer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.net.ConnectivityManager;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -45,6 +49,7 @@ import com.fsck.k9.mail.ConnectionSecurity;
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.FolderStatus;
 import com.fsck.k9.mail.K9MailLib;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessageRetrievalListener;
@@ -55,6 +60,7 @@ import com.fsck.k9.mail.Pusher;
 import com.fsck.k9.mail.ServerSettings;
 import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
 import com.fsck.k9.mail.filter.FixedLengthInputStream;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeMessage;
@@ -65,6 +71,7 @@ import com.fsck.k9.mail.store.RemoteStore;
 import com.fsck.k9.mail.store.StoreConfig;
 
 import com.beetstra.jutf7.CharsetProvider;
+import org.apache.commons.io.IOUtils;
 
 import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
 import static com.fsck.k9.mail.K9MailLib.PUSH_WAKE_LOCK_TIMEOUT;
@@ -85,6 +92,17 @@ public class ImapStore extends RemoteStore {
     private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
     private static final int FETCH_WINDOW_SIZE = 100;
+    private static final int MIN_FETCH_WINDOW_SIZE = 10;
+    private static final int MAX_FETCH_WINDOW_SIZE = 1000;
+    private static final int MAX_FLAGS_WINDOW_SIZE = 5000;
+    private static final long WINDOW_TARGET_MILLIS = 2000;
+    private static final long WINDOW_TARGET_BYTES = 256 * 1024;
+
+    /**
+     * The number of {@code STATUS} commands sent before reading the responses when the server
+     * doesn't support {@code LIST-STATUS}.
+     */
+    private static final int STATUS_PIPELINE_SIZE = 20;
     private Set<Flag> mPermanentFlagsIndex = EnumSet.noneOf(Flag.class);
     private ConnectivityManager mConnectivityManager;
 
@@ -307,8 +325,24 @@ public class ImapStore extends RemoteStore {
 
     protected static final SimpleDateFormat RFC3501_DATE = new SimpleDateFormat("dd-MMM-yyyy", Locale.US);
 
-    private final Deque<ImapConnection> mConnections =
-        new LinkedList<ImapConnection>();
+    private final ImapConnectionPool mConnectionPool = new ImapConnectionPool() {
+        @Override
+        protected ImapConnection createConnection() {
+            return new ImapConnection(new StoreImapSettings(),
+                    mTrustedSocketFactory,
+                    mConnectivityManager);
+        }
+
+        @Override
+        protected int getMaxConnections() {
+            return Math.max(1, mStoreConfig.getMaxConnections());
+        }
+
+        @Override
+        protected long getAcquireTimeout() {
+            return Math.max(0, mStoreConfig.getConnectionAcquireTimeout()) * 1000L;
+        }
+    };
 
     /**
      * Charset used for converting folder names to and from UTF-7 as defined by RFC 3501.
@@ -323,6 +357,14 @@ public class ImapStore extends RemoteStore {
      */
     private final Map<String, ImapFolder> mFolderCache = new HashMap<String, ImapFolder>();
 
+    private final ImapPushMetrics mPushMetrics = new ImapPushMetrics();
+
+    /**
+     * Set once the server turned out not to support {@code NOTIFY}, so later pushers go straight to
+     * per-folder {@code IDLE}.
+     */
+    private volatile boolean mNotifyUnsupported = false;
+
     public ImapStore(StoreConfig storeConfig,
                      TrustedSocketFactory trustedSocketFactory,
                      ConnectivityManager connectivityManager)
@@ -497,6 +539,93 @@ public class ImapStore extends RemoteStore {
 
     }
 
+    /**
+     * Gets the status of the folders using a single {@code LIST ... RETURN (STATUS ...)} command
+     * (RFC 5819) if the server supports it. Otherwise {@code STATUS} commands are pipelined,
+     * {@link #STATUS_PIPELINE_SIZE} at a time.
+     *
+     * <p>
+     * {@code HIGHESTMODSEQ} is only requested if the server supports {@code CONDSTORE}.
+     * </p>
+     */
+    @Override
+    public Map<String, FolderStatus> getFolderStatus(List<String> folderNames) throws MessagingException {
+        ImapConnection connection = getConnection();
+        try {
+            connection.open();
+
+            // Maps the encoded mailbox names used in the responses to our folder names
+            Map<String, String> mailboxes = new LinkedHashMap<String, String>();
+            for (String folderName : folderNames) {
+                String prefixedName = mStoreConfig.getInboxFolderName().equalsIgnoreCase(folderName) ?
+                        folderName : getCombinedPrefix() + folderName;
+                mailboxes.put(encodeFolderName(prefixedName), folderName);
+            }
+
+            String statusItems = connection.hasCapability(ImapCommands.CAPABILITY_CONDSTORE) ?
+                    "MESSAGES UIDNEXT UIDVALIDITY HIGHESTMODSEQ" : "MESSAGES UIDNEXT UIDVALIDITY";
+
+            Map<String, FolderStatus> statusMap = new HashMap<String, FolderStatus>();
+            if (connection.hasCapability(ImapCommands.CAPABILITY_LIST_STATUS)) {
+                try {
+                    List<ImapResponse> responses = connection.executeSimpleCommand(
+                            String.format("LIST \"\" %s RETURN (STATUS (%s))",
+                                    encodeString(getCombinedPrefix() + "*"), statusItems));
+                    addFolderStatus(statusMap, mailboxes, responses);
+                    return statusMap;
+                } catch (ImapException e) {
+                    Log.w(LOG_TAG, "LIST-STATUS failed, falling back to STATUS for " +
+                            connection.getLogId(), e);
+                }
+            }
+
+            List<String> encodedNames = new ArrayList<String>(mailboxes.keySet());
+            for (int start = 0, count = encodedNames.size(); start < count; start += STATUS_PIPELINE_SIZE) {
+                int end = Math.min(start + STATUS_PIPELINE_SIZE, count);
+
+                List<String> tags = new ArrayList<String>(end - start);
+                for (int i = start; i < end; i++) {
+                    tags.add(connection.sendCommand(String.format("STATUS %s (%s)",
+                            encodeString(encodedNames.get(i)), statusItems), false));
+                }
+
+                for (int i = 0; i < tags.size(); i++) {
+                    try {
+                        addFolderStatus(statusMap, mailboxes, connection.readStatusResponse(tags.get(i), "STATUS"));
+                    } catch (ImapException e) {
+                        // The folder doesn't exist (anymore) or can't be selected
+                        if (K9MailLib.isDebug())
+                            Log.d(LOG_TAG, "No status for " + encodedNames.get(start + i) + ": " + e.getMessage());
+                    }
+                }
+            }
+
+            return statusMap;
+        } catch (IOException ioe) {
+            connection.close();
+            throw new MessagingException("Unable to get folder status.", ioe);
+        } catch (MessagingException me) {
+            connection.close();
+            throw me;
+        } finally {
+            releaseConnection(connection);
+        }
+    }
+
+    private static void addFolderStatus(Map<String, FolderStatus> statusMap, Map<String, String> mailboxes,
+            List<ImapResponse> responses) {
+        for (ImapResponse response : responses) {
+            if (response.getTag() == null && response.size() > 2 &&
+                    ImapResponseParser.equalsIgnoreCase(response.get(0), "STATUS") &&
+                    response.get(1) instanceof String && response.get(2) instanceof ImapList) {
+                String folderName = mailboxes.get(response.getString(1));
+                if (folderName != null) {
+                    statusMap.put(folderName, ImapUtility.getFolderStatus(folderName, response.getList(2)));
+                }
+            }
+        }
+    }
+
     /**
      * Attempt to auto-configure folders by attributes if the server advertises that capability.
      *
@@ -584,31 +713,11 @@ public class ImapStore extends RemoteStore {
     }
 
     private ImapConnection getConnection() throws MessagingException {
-        synchronized (mConnections) {
-            ImapConnection connection;
-            while ((connection = mConnections.poll()) != null) {
-                try {
-                    connection.executeSimpleCommand("NOOP");
-                    break;
-                } catch (IOException ioe) {
-                    connection.close();
-                }
-            }
-            if (connection == null) {
-                connection = new ImapConnection(new StoreImapSettings(),
-                        mTrustedSocketFactory,
-                        mConnectivityManager);
-            }
-            return connection;
-        }
+        return mConnectionPool.acquire();
     }
 
     private void releaseConnection(ImapConnection connection) {
-        if (connection != null && connection.isOpen()) {
-            synchronized (mConnections) {
-                mConnections.offer(connection);
-            }
-        }
+        mConnectionPool.release(connection);
     }
 
     /**
@@ -662,15 +771,28 @@ public class ImapStore extends RemoteStore {
         return true;
     }
     @Override
+    public boolean isParallelSyncCapable() {
+        return true;
+    }
+    @Override
     public boolean isExpungeCapable() {
         return true;
     }
 
+    /**
+     * @return Push latency and reconnect counters for this account.
+     */
+    public ImapPushMetrics getPushMetrics() {
+        return mPushMetrics;
+    }
+
 
     protected class ImapFolder extends Folder<ImapMessage> {
         private String mName;
         protected volatile int mMessageCount = -1;
         protected volatile long uidNext = -1L;
+        protected volatile long uidValidity = -1L;
+        protected volatile long highestModSeq = -1L;
         protected volatile ImapConnection mConnection;
         private int mMode;
         private volatile boolean mExists;
@@ -678,6 +800,17 @@ public class ImapStore extends RemoteStore {
         Map<Long, String> msgSeqUidMap = new ConcurrentHashMap<Long, String>();
         private boolean mInSearch = false;
 
+        /*
+         * Number of messages per UID FETCH/UID STORE command. Kept per folder because the cost
+         * per message depends on the folder's contents as much as on the server.
+         */
+        private final AdaptiveWindow mFetchWindow = new AdaptiveWindow(FETCH_WINDOW_SIZE,
+                MIN_FETCH_WINDOW_SIZE, MAX_FETCH_WINDOW_SIZE, WINDOW_TARGET_MILLIS, WINDOW_TARGET_BYTES);
+        private final AdaptiveWindow mFlagsWindow = new AdaptiveWindow(FETCH_WINDOW_SIZE,
+                FETCH_WINDOW_SIZE, MAX_FLAGS_WINDOW_SIZE, WINDOW_TARGET_MILLIS, WINDOW_TARGET_BYTES);
+        private final AdaptiveWindow mStoreWindow = new AdaptiveWindow(FETCH_WINDOW_SIZE,
+                FETCH_WINDOW_SIZE, MAX_FLAGS_WINDOW_SIZE, WINDOW_TARGET_MILLIS, WINDOW_TARGET_BYTES);
+
         public ImapFolder(ImapStore nStore, String name) {
             super();
             store = nStore;
@@ -752,12 +885,27 @@ public class ImapStore extends RemoteStore {
             // * 0 RECENT
             // * OK [UIDVALIDITY 1125022061] UIDs valid
             // * OK [UIDNEXT 57576] Predicted next UID
+            // * OK [HIGHESTMODSEQ 715194045007] Highest
             // 2 OK [READ-WRITE] Select completed.
             try {
                 msgSeqUidMap.clear();
+                uidNext = -1L;
+                uidValidity = -1L;
+                highestModSeq = -1L;
                 String command = String.format("%s %s", mode == OPEN_MODE_RW ? "SELECT"
                         : "EXAMINE", encodeString(encodeFolderName(getPrefixedName())));
 
+                /*
+                 * Ask for CONDSTORE so the server reports HIGHESTMODSEQ and we can later only
+                 * fetch the flags that changed since the last sync. Enabling QRESYNC implicitly
+                 * enables CONDSTORE.
+                 */
+                mConnection.open();
+                if (mConnection.hasCapability(ImapCommands.CAPABILITY_CONDSTORE) &&
+                        !mConnection.isQresyncEnabled()) {
+                    command += " (CONDSTORE)";
+                }
+
                 List<ImapResponse> responses = executeSimpleCommand(command);
 
                 /*
@@ -786,6 +934,14 @@ public class ImapStore extends RemoteStore {
                             Object keyObj = bracketed.get(0);
                             if (keyObj instanceof String) {
                                 String key = (String) keyObj;
+                                if ("UIDVALIDITY".equalsIgnoreCase(key) && bracketed.size() > 1) {
+                                    uidValidity = bracketed.getLong(1);
+                                } else if ("HIGHESTMODSEQ".equalsIgnoreCase(key)) {
+                                    highestModSeq = ImapUtility.getHighestModSeq(bracketed);
+                                } else if ("NOMODSEQ".equalsIgnoreCase(key)) {
+                                    highestModSeq = -1L;
+                                }
+
                                 if (response.getTag() != null) {
 
                                     if ("READ-ONLY".equalsIgnoreCase(key)) {
@@ -798,6 +954,10 @@ public class ImapStore extends RemoteStore {
                         }
                     }
                 }
+                if (K9MailLib.isDebug()) {
+                    Log.d(LOG_TAG, "Got UIDVALIDITY = " + uidValidity + ", HIGHESTMODSEQ = " +
+                            highestModSeq + " for " + getLogId());
+                }
                 mExists = true;
                 return responses;
             } catch (IOException ioe) {
@@ -858,7 +1018,7 @@ public class ImapStore extends RemoteStore {
                 // If we are mid-search and we get a close request, we gotta trash the connection.
                 if (mInSearch && mConnection != null) {
                     Log.i(LOG_TAG, "IMAP search was aborted, shutting down connection.");
-                    mConnection.close();
+                    mConnectionPool.discard(mConnection);
                 } else {
                     releaseConnection(mConnection);
                 }
@@ -1016,7 +1176,7 @@ public class ImapStore extends RemoteStore {
 
                 //TODO: Split this into multiple commands if the command exceeds a certain length.
                 List<ImapResponse> responses = executeSimpleCommand(String.format("UID COPY %s %s",
-                                                      combine(uids, ','),
+                                                      ImapUtility.createSequenceSet(Arrays.asList(uids)),
                                                       remoteDestName));
 
                 // Get the tagged response for the UID COPY command
@@ -1371,83 +1531,244 @@ public class ImapStore extends RemoteStore {
 
 
 
-            for (int windowStart = 0; windowStart < messages.size(); windowStart += (FETCH_WINDOW_SIZE)) {
-                List<String> uidWindow = uids.subList(windowStart, Math.min((windowStart + FETCH_WINDOW_SIZE), messages.size()));
+            boolean flagsOnly = (fetchFields.size() == 2 && fetchFields.contains("FLAGS"));
+            AdaptiveWindow window = flagsOnly ? mFlagsWindow : mFetchWindow;
 
-                try {
-                    mConnection.sendCommand(String.format("UID FETCH %s (%s)",
-                                                          combine(uidWindow.toArray(new String[uidWindow.size()]), ','),
-                                                          combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                                                         ), false);
-                    ImapResponse response;
-                    int messageNumber = 0;
+            // Sorted UIDs mostly end up in ranges, keeping the commands short
+            ImapUtility.sortUids(uids);
 
-                    ImapResponseCallback callback = null;
-                    if (fp.contains(FetchProfile.Item.BODY) || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        callback = new FetchBodyCallback(messageMap);
-                    }
+            int windowStart = 0;
+            while (windowStart < uids.size()) {
+                int windowEnd = Math.min(windowStart + window.getSize(), uids.size());
+                List<String> uidWindow = uids.subList(windowStart, windowEnd);
+                windowStart = windowEnd;
 
-                    do {
-                        response = mConnection.readResponse(callback);
+                long startTime = SystemClock.elapsedRealtime();
+                long startBytes = getBytesRead();
 
-                        if (response.getTag() == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
-                            ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
-                            String uid = fetchList.getKeyedString("UID");
-                            long msgSeq = response.getLong(0);
-                            if (uid != null) {
-                                try {
-                                    msgSeqUidMap.put(msgSeq, uid);
-                                    if (K9MailLib.isDebug()) {
-                                        Log.v(LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
-                                    }
-                                } catch (Exception e) {
-                                    Log.e(LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
+                if (flagsOnly) {
+                    fetchFlags(uidWindow, messageMap, listener);
+                } else {
+                    fetchWindow(uidWindow, fetchFields, messageMap, listener);
+                }
+
+                window.update(uidWindow.size(), SystemClock.elapsedRealtime() - startTime,
+                        getBytesRead() - startBytes);
+            }
+        }
+
+        private void fetchWindow(List<String> uidWindow, Set<String> fetchFields,
+                Map<String, Message> messageMap, MessageRetrievalListener<ImapMessage> listener)
+                throws MessagingException {
+            try {
+                mConnection.sendCommand(String.format("UID FETCH %s (%s)",
+                                                      ImapUtility.createSequenceSet(uidWindow),
+                                                      combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
+                                                     ), false);
+                ImapResponse response;
+                int messageNumber = 0;
+
+                // Header fields and bodies are parsed straight off the connection
+                ImapResponseCallback callback = new FetchBodyCallback(messageMap);
+
+                do {
+                    response = mConnection.readResponse(callback);
+
+                    if (response.getTag() == null && ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+                        String uid = fetchList.getKeyedString("UID");
+                        long msgSeq = response.getLong(0);
+                        if (uid != null) {
+                            try {
+                                msgSeqUidMap.put(msgSeq, uid);
+                                if (K9MailLib.isDebug()) {
+                                    Log.v(LOG_TAG, "Stored uid '" + uid + "' for msgSeq " + msgSeq + " into map " /*+ msgSeqUidMap.toString() */);
                                 }
+                            } catch (Exception e) {
+                                Log.e(LOG_TAG, "Unable to store uid '" + uid + "' for msgSeq " + msgSeq);
                             }
+                        }
 
-                            Message message = messageMap.get(uid);
-                            if (message == null) {
-                                if (K9MailLib.isDebug())
-                                    Log.d(LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
+                        Message message = messageMap.get(uid);
+                        if (message == null) {
+                            if (K9MailLib.isDebug())
+                                Log.d(LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
 
-                                handleUntaggedResponse(response);
-                                continue;
-                            }
-                            if (listener != null) {
-                                listener.messageStarted(uid, messageNumber++, messageMap.size());
-                            }
+                            discardSpooledLiterals(fetchList);
+                            handleUntaggedResponse(response);
+                            continue;
+                        }
+                        if (listener != null) {
+                            listener.messageStarted(uid, messageNumber++, messageMap.size());
+                        }
 
-                            ImapMessage imapMessage = (ImapMessage) message;
+                        ImapMessage imapMessage = (ImapMessage) message;
 
-                            Object literal = handleFetchResponse(imapMessage, fetchList);
+                        Object literal = handleFetchResponse(imapMessage, fetchList);
 
-                            if (literal != null) {
-                                if (literal instanceof String) {
-                                    String bodyString = (String)literal;
-                                    InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
+                        if (literal != null) {
+                            if (literal instanceof String) {
+                                String bodyString = (String)literal;
+                                InputStream bodyStream = new ByteArrayInputStream(bodyString.getBytes());
+                                imapMessage.parse(bodyStream);
+                            } else if (literal instanceof Integer) {
+                                // All the work was done in FetchBodyCallback.foundLiteral()
+                            } else if (literal instanceof BinaryTempFileBody) {
+                                // The server sent the body before the UID, so
+                                // FetchBodyCallback.foundLiteral() spooled it to a temp file
+                                InputStream bodyStream = ((Body) literal).getInputStream();
+                                try {
                                     imapMessage.parse(bodyStream);
-                                } else if (literal instanceof Integer) {
-                                    // All the work was done in FetchBodyCallback.foundLiteral()
-                                } else {
-                                    // This shouldn't happen
-                                    throw new MessagingException("Got FETCH response with bogus parameters");
+                                } finally {
+                                    IOUtils.closeQuietly(bodyStream);
                                 }
+                            } else {
+                                // This shouldn't happen
+                                throw new MessagingException("Got FETCH response with bogus parameters");
                             }
+                        }
+
+                        if (listener != null) {
+                            listener.messageFinished(imapMessage, messageNumber, messageMap.size());
+                        }
+                    } else {
+                        handleUntaggedResponse(response);
+                    }
 
-                            if (listener != null) {
-                                listener.messageFinished(imapMessage, messageNumber, messageMap.size());
+                } while (response.getTag() == null);
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+        }
+
+        /**
+         * @return The number of bytes received on the folder's connection so far.
+         */
+        private long getBytesRead() {
+            ImapConnection connection = mConnection;
+            ImapResponseParser parser = (connection != null) ? connection.getResponseParser() : null;
+            return (parser != null) ? parser.getBytesRead() : 0;
+        }
+
+
+        /**
+         * Deletes the temp files of body literals that {@link FetchBodyCallback} spooled for a
+         * FETCH response nobody asked for.
+         */
+        private void discardSpooledLiterals(ImapList fetchList) {
+            for (Object value : fetchList) {
+                if (value instanceof BinaryTempFileBody) {
+                    try {
+                        ((Body) value).getInputStream().close();
+                    } catch (Exception e) {
+                        Log.w(LOG_TAG, "Unable to delete spooled literal for " + getLogId(), e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Fetches only the flags of the given messages.
+         *
+         * <p>
+         * Flag syncs fetch the flags of every message in the folder, so this reads the FETCH
+         * responses token by token instead of building an {@link ImapResponse} for each of them.
+         * </p>
+         */
+        private void fetchFlags(List<String> uidWindow, Map<String, Message> messageMap,
+                MessageRetrievalListener<ImapMessage> listener) throws MessagingException {
+            List<String> flags = new ArrayList<String>();
+            try {
+                mConnection.sendCommand(String.format("UID FETCH %s (UID FLAGS)",
+                        ImapUtility.createSequenceSet(uidWindow)), false);
+
+                ImapResponseParser parser = mConnection.getResponseParser();
+                int messageNumber = 0;
+                while (true) {
+                    if (!mConnection.startPull("FETCH")) {
+                        ImapResponse response = mConnection.getLastResponse();
+                        if (response.getTag() != null) {
+                            break;
+                        }
+                        handleUntaggedResponse(response);
+                        continue;
+                    }
+
+                    // * 12 FETCH (UID 1234 FLAGS (\Seen \Flagged))
+                    long msgSeq = parser.getPullNumber();
+                    String uid = null;
+                    flags.clear();
+                    if (parser.nextToken() == ImapResponseParser.TOKEN_LIST_START) {
+                        while (parser.nextToken() == ImapResponseParser.TOKEN_ATOM) {
+                            if (parser.tokenEqualsIgnoreCase("UID")) {
+                                parser.nextToken();
+                                uid = parser.getTokenString();
+                            } else if (parser.tokenEqualsIgnoreCase("FLAGS")) {
+                                if (parser.nextToken() == ImapResponseParser.TOKEN_LIST_START) {
+                                    while (parser.nextToken() == ImapResponseParser.TOKEN_ATOM) {
+                                        flags.add(parser.getTokenString());
+                                    }
+                                }
+                            } else {
+                                parser.skipValue();
                             }
-                        } else {
-                            handleUntaggedResponse(response);
                         }
+                    }
+                    parser.skipPulledResponse();
 
-                    } while (response.getTag() == null);
-                } catch (IOException ioe) {
-                    throw ioExceptionHandler(mConnection, ioe);
+                    if (uid != null) {
+                        msgSeqUidMap.put(msgSeq, uid);
+                    }
+
+                    Message message = (uid != null) ? messageMap.get(uid) : null;
+                    if (message == null) {
+                        if (K9MailLib.isDebug())
+                            Log.d(LOG_TAG, "Do not have message in messageMap for UID " + uid + " for " + getLogId());
+
+                        handleUntaggedResponse(createFetchResponse(msgSeq, uid, flags));
+                        continue;
+                    }
+
+                    if (listener != null) {
+                        listener.messageStarted(uid, messageNumber++, messageMap.size());
+                    }
+
+                    ImapMessage imapMessage = (ImapMessage) message;
+                    for (String flag : flags) {
+                        setFlagFromImap(imapMessage, flag);
+                    }
+
+                    if (listener != null) {
+                        listener.messageFinished(imapMessage, messageNumber, messageMap.size());
+                    }
                 }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
             }
         }
 
+        /**
+         * Rebuilds the relevant parts of a pulled FETCH response for
+         * {@link #handleUntaggedResponse(ImapResponse)}.
+         */
+        private ImapResponse createFetchResponse(long msgSeq, String uid, List<String> flags) {
+            ImapList flagList = new ImapList();
+            flagList.addAll(flags);
+
+            ImapList fetchList = new ImapList();
+            if (uid != null) {
+                fetchList.add("UID");
+                fetchList.add(uid);
+            }
+            fetchList.add("FLAGS");
+            fetchList.add(flagList);
+
+            ImapResponse response = new ImapResponse(null, false, null);
+            response.add(Long.toString(msgSeq));
+            response.add("FETCH");
+            response.add(fetchList);
+            return response;
+        }
 
         @Override
         public void fetchPart(Message message, Part part, MessageRetrievalListener<Message> listener)
@@ -1541,20 +1862,7 @@ public class ImapStore extends RemoteStore {
                 ImapList flags = fetchList.getKeyedList("FLAGS");
                 if (flags != null) {
                     for (int i = 0, count = flags.size(); i < count; i++) {
-                        String flag = flags.getString(i);
-                        if (flag.equalsIgnoreCase("\\Deleted")) {
-                            message.setFlagInternal(Flag.DELETED, true);
-                        } else if (flag.equalsIgnoreCase("\\Answered")) {
-                            message.setFlagInternal(Flag.ANSWERED, true);
-                        } else if (flag.equalsIgnoreCase("\\Seen")) {
-                            message.setFlagInternal(Flag.SEEN, true);
-                        } else if (flag.equalsIgnoreCase("\\Flagged")) {
-                            message.setFlagInternal(Flag.FLAGGED, true);
-                        } else if (flag.equalsIgnoreCase("$Forwarded")) {
-                            message.setFlagInternal(Flag.FORWARDED, true);
-                            /* a message contains FORWARDED FLAG -> so we can also create them */
-                            mPermanentFlagsIndex.add(Flag.FORWARDED);
-                        }
+                        setFlagFromImap(message, flags.getString(i));
                     }
                 }
             }
@@ -1601,6 +1909,22 @@ public class ImapStore extends RemoteStore {
             return result;
         }
 
+        private void setFlagFromImap(ImapMessage message, String flag) throws MessagingException {
+            if (flag.equalsIgnoreCase("\\Deleted")) {
+                message.setFlagInternal(Flag.DELETED, true);
+            } else if (flag.equalsIgnoreCase("\\Answered")) {
+                message.setFlagInternal(Flag.ANSWERED, true);
+            } else if (flag.equalsIgnoreCase("\\Seen")) {
+                message.setFlagInternal(Flag.SEEN, true);
+            } else if (flag.equalsIgnoreCase("\\Flagged")) {
+                message.setFlagInternal(Flag.FLAGGED, true);
+            } else if (flag.equalsIgnoreCase("$Forwarded")) {
+                message.setFlagInternal(Flag.FORWARDED, true);
+                /* a message contains FORWARDED FLAG -> so we can also create them */
+                mPermanentFlagsIndex.add(Flag.FORWARDED);
+            }
+        }
+
         /**
          * Handle any untagged responses that the caller doesn't care to handle themselves.
          */
@@ -1651,6 +1975,12 @@ public class ImapStore extends RemoteStore {
                     if (K9MailLib.isDebug())
                         Log.d(LOG_TAG, "Got untagged EXPUNGE with mMessageCount " + mMessageCount + " for " + getLogId());
                 }
+
+                if (ImapUtility.isVanishedResponse(response) && !ImapUtility.isEarlierVanishedResponse(response) && mMessageCount > 0) {
+                    mMessageCount = Math.max(0, mMessageCount - ImapUtility.getVanishedUids(response).size());
+                    if (K9MailLib.isDebug())
+                        Log.d(LOG_TAG, "Got untagged VANISHED with mMessageCount " + mMessageCount + " for " + getLogId());
+                }
 //            if (response.size() > 1) {
 //                Object bracketedObj = response.get(1);
 //                if (bracketedObj instanceof ImapList)
@@ -1683,6 +2013,77 @@ public class ImapStore extends RemoteStore {
             //Log.i(LOG_TAG, "mMessageCount = " + mMessageCount + " for " + getLogId());
         }
 
+        @Override
+        public boolean supportsChangedSince() {
+            return highestModSeq > 0 && uidValidity != -1L;
+        }
+
+        @Override
+        public long getUidNext() {
+            return uidNext;
+        }
+
+        @Override
+        public long getUidValidity() {
+            return uidValidity;
+        }
+
+        @Override
+        public long getHighestModSeq() {
+            return highestModSeq;
+        }
+
+        /**
+         * Uses CONDSTORE (RFC 7162) to only fetch the flags of messages modified after
+         * {@code modSeq}. If QRESYNC is enabled the VANISHED modifier is added so the server also
+         * reports the UIDs of messages expunged since then.
+         */
+        @Override
+        public List<ImapMessage> fetchChangedSince(long modSeq, List<String> vanishedUids)
+        throws MessagingException {
+            checkOpen(); //only need READ access
+            if (!supportsChangedSince()) {
+                throw new MessagingException("Folder " + getLogId() + " does not support CHANGEDSINCE");
+            }
+
+            boolean vanished = vanishedUids != null && mConnection.isQresyncEnabled();
+            String command = String.format(Locale.US, "UID FETCH 1:* (UID FLAGS) (CHANGEDSINCE %d%s)",
+                    modSeq, vanished ? " VANISHED" : "");
+
+            List<ImapMessage> messages = new ArrayList<ImapMessage>();
+            try {
+                List<ImapResponse> responses = executeSimpleCommand(command);
+                for (ImapResponse response : responses) {
+                    if (response.getTag() != null || response.size() < 2) {
+                        continue;
+                    }
+
+                    if (ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+                        String uid = fetchList.getKeyedString("UID");
+                        if (uid == null) {
+                            continue;
+                        }
+
+                        ImapMessage message = new ImapMessage(uid, this);
+                        handleFetchResponse(message, fetchList);
+                        messages.add(message);
+                    } else if (vanished && ImapUtility.isVanishedResponse(response)) {
+                        vanishedUids.addAll(ImapUtility.getVanishedUids(response));
+                    }
+                }
+            } catch (IOException ioe) {
+                throw ioExceptionHandler(mConnection, ioe);
+            }
+
+            if (K9MailLib.isDebug()) {
+                Log.d(LOG_TAG, "Got " + messages.size() + " changed messages since modseq " + modSeq +
+                        (vanished ? " and " + vanishedUids.size() + " vanished UIDs" : "") + " for " + getLogId());
+            }
+
+            return messages;
+        }
+
         private void parseBodyStructure(ImapList bs, Part part, String id)
         throws MessagingException {
             if (bs.get(0) instanceof ImapList) {
@@ -2036,15 +2437,30 @@ public class ImapStore extends RemoteStore {
         throws MessagingException {
             open(OPEN_MODE_RW);
             checkOpen();
-            String[] uids = new String[messages.size()];
-            for (int i = 0, count = messages.size(); i < count; i++) {
-                uids[i] = messages.get(i).getUid();
+            List<String> uids = new ArrayList<String>(messages.size());
+            for (Message message : messages) {
+                uids.add(message.getUid());
             }
+            ImapUtility.sortUids(uids);
+
             try {
-                executeSimpleCommand(String.format("UID STORE %s %sFLAGS.SILENT (%s)",
-                                                   combine(uids, ','),
-                                                   value ? "+" : "-",
-                                                   combineFlags(flags)));
+                int windowStart = 0;
+                while (windowStart < uids.size()) {
+                    int windowEnd = Math.min(windowStart + mStoreWindow.getSize(), uids.size());
+                    List<String> uidWindow = uids.subList(windowStart, windowEnd);
+                    windowStart = windowEnd;
+
+                    long startTime = SystemClock.elapsedRealtime();
+                    long startBytes = getBytesRead();
+
+                    executeSimpleCommand(String.format("UID STORE %s %sFLAGS.SILENT (%s)",
+                                                       ImapUtility.createSequenceSet(uidWindow),
+                                                       value ? "+" : "-",
+                                                       combineFlags(flags)));
+
+                    mStoreWindow.update(uidWindow.size(), SystemClock.elapsedRealtime() - startTime,
+                            getBytesRead() - startBytes);
+                }
             } catch (IOException ioe) {
                 throw ioExceptionHandler(mConnection, ioe);
             }
@@ -2236,6 +2652,7 @@ public class ImapStore extends RemoteStore {
         private final AtomicInteger delayTime = new AtomicInteger(NORMAL_DELAY_TIME);
         private final AtomicInteger idleFailureCount = new AtomicInteger(0);
         private final AtomicBoolean needsPoll = new AtomicBoolean(false);
+        private final AtomicLong pendingEventTime = new AtomicLong(0);
         private List<ImapResponse> storedUntaggedResponses = new ArrayList<ImapResponse>();
         private TracingWakeLock wakeLock = null;
 
@@ -2314,6 +2731,8 @@ public class ImapStore extends RemoteStore {
                                 throw new MessagingException("Could not establish connection for IDLE");
 
                             }
+                            // Don't let the IDLE connection take up room in the connection pool
+                            mConnectionPool.detach(conn);
                             if (!conn.isIdleCapable()) {
                                 stop.set(true);
                                 receiver.pushError("IMAP server is not IDLE capable: " + conn.toString(), null);
@@ -2382,6 +2801,11 @@ public class ImapStore extends RemoteStore {
                                     processUntaggedResponses(untaggedResponses);
                                 }
 
+                                long eventTime = pendingEventTime.getAndSet(0);
+                                if (eventTime != 0) {
+                                    mPushMetrics.recordEvent(SystemClock.elapsedRealtime() - eventTime);
+                                }
+
                                 if (K9MailLib.isDebug())
                                     Log.i(LOG_TAG, "About to IDLE for " + getLogId());
 
@@ -2398,6 +2822,7 @@ public class ImapStore extends RemoteStore {
                         } catch (Exception e) {
                             wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
                             storedUntaggedResponses.clear();
+                            pendingEventTime.set(0);
                             idling.set(false);
                             receiver.setPushActive(getName(), false);
                             try {
@@ -2408,6 +2833,7 @@ public class ImapStore extends RemoteStore {
                             if (stop.get()) {
                                 Log.i(LOG_TAG, "Got exception while idling, but stop is set for " + getLogId());
                             } else {
+                                mPushMetrics.recordReconnect();
                                 receiver.pushError("Push error for " + getName(), e);
                                 Log.e(LOG_TAG, "Got exception while idling for " + getLogId(), e);
                                 int delayTimeInt = delayTime.get();
@@ -2448,7 +2874,8 @@ public class ImapStore extends RemoteStore {
                 Object responseType = response.get(1);
                 if (ImapResponseParser.equalsIgnoreCase(responseType, "FETCH")
                         || ImapResponseParser.equalsIgnoreCase(responseType, "EXPUNGE")
-                        || ImapResponseParser.equalsIgnoreCase(responseType, "EXISTS")) {
+                        || ImapResponseParser.equalsIgnoreCase(responseType, "EXISTS")
+                        || (ImapUtility.isVanishedResponse(response) && !ImapUtility.isEarlierVanishedResponse(response))) {
                     if (K9MailLib.isDebug())
                         Log.d(LOG_TAG, "Storing response " + response + " for later processing");
 
@@ -2633,6 +3060,19 @@ public class ImapStore extends RemoteStore {
                             }
                         }
                     }
+                    if (ImapUtility.isVanishedResponse(response) && !ImapUtility.isEarlierVanishedResponse(response)) {
+                        // With QRESYNC enabled expunged messages are reported by UID. We can't
+                        // tell which message sequence numbers are gone, so start over.
+                        List<String> vanishedUids = ImapUtility.getVanishedUids(response);
+                        if (K9MailLib.isDebug())
+                            Log.d(LOG_TAG, "Got untagged VANISHED for UIDs " + vanishedUids + " for " + getLogId());
+
+                        messageCountDelta = -vanishedUids.size();
+                        removeMsgUids.addAll(vanishedUids);
+                        flagSyncMsgSeqs.clear();
+                        msgSeqUidMap.clear();
+                        needsPoll.set(true);
+                    }
                 } catch (Exception e) {
                     Log.e(LOG_TAG, "Could not handle untagged FETCH for " + getLogId(), e);
                 }
@@ -2698,6 +3138,7 @@ public class ImapStore extends RemoteStore {
                                 wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
                                 started = true;
                             }
+                            pendingEventTime.compareAndSet(0, SystemClock.elapsedRealtime());
 
                             if (K9MailLib.isDebug())
                                 Log.d(LOG_TAG, "Got useful async untagged response: " + response + " for " + getLogId());
@@ -2718,6 +3159,300 @@ public class ImapStore extends RemoteStore {
             }
         }
     }
+    /**
+     * Pushes a whole set of folders over a single connection using {@code NOTIFY} (RFC 5465).
+     *
+     * <p>
+     * The server reports changes to any of the folders with untagged {@code STATUS} responses
+     * while the connection is idling, so one thread and one connection serve all pushed folders
+     * of the account. If the server doesn't support {@code NOTIFY} the pusher hands the folders
+     * back to {@link ImapPusher}, which then falls back to an {@link ImapFolderPusher} per folder.
+     * </p>
+     */
+    private class ImapNotifyPusher implements UntaggedHandler {
+        private final ImapPusher pusher;
+        private final PushReceiver receiver;
+        private final List<String> folderNames;
+        private Thread listeningThread = null;
+        private volatile ImapConnection mConnection;
+        private final AtomicBoolean stop = new AtomicBoolean(false);
+        private final AtomicBoolean idling = new AtomicBoolean(false);
+        private final AtomicBoolean doneSent = new AtomicBoolean(false);
+        private final AtomicInteger delayTime = new AtomicInteger(NORMAL_DELAY_TIME);
+        private final AtomicInteger idleFailureCount = new AtomicInteger(0);
+
+        /**
+         * Maps the encoded mailbox names used in {@code STATUS} responses to our folder names.
+         */
+        private final Map<String, String> mailboxes = new HashMap<String, String>();
+
+        /**
+         * Folders that need to be synchronized, mapped to the time the change was reported or
+         * {@code 0} if the sync wasn't triggered by the server.
+         */
+        private final Map<String, Long> changedFolders = new LinkedHashMap<String, Long>();
+        private TracingWakeLock wakeLock = null;
+
+        public ImapNotifyPusher(ImapPusher pusher, PushReceiver receiver, List<String> folderNames) {
+            this.pusher = pusher;
+            this.receiver = receiver;
+            this.folderNames = new ArrayList<String>(folderNames);
+            TracingPowerManager pm = TracingPowerManager.getPowerManager(receiver.getContext());
+            wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "ImapNotifyPusher " + mStoreConfig.toString());
+            wakeLock.setReferenceCounted(false);
+        }
+
+        public void refresh() throws IOException, MessagingException {
+            if (idling.get()) {
+                wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+                sendDone();
+            }
+        }
+
+        private void sendDone() throws IOException, MessagingException {
+            if (doneSent.compareAndSet(false, true)) {
+                ImapConnection conn = mConnection;
+                if (conn != null) {
+                    conn.setReadTimeout(SOCKET_READ_TIMEOUT);
+                    conn.sendContinuation("DONE");
+                }
+            }
+        }
+
+        public void start() {
+            Runnable runner = new Runnable() {
+                @Override
+                public void run() {
+                    wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+                    if (K9MailLib.isDebug())
+                        Log.i(LOG_TAG, "NOTIFY pusher starting for " + getLogId());
+
+                    boolean fallBack = false;
+                    while (!stop.get() && !fallBack) {
+                        try {
+                            ImapConnection conn = mConnectionPool.acquire();
+                            // Don't let the push connection take up room in the connection pool
+                            mConnectionPool.detach(conn);
+                            mConnection = conn;
+                            conn.open();
+
+                            if (!conn.hasCapability(ImapCommands.CAPABILITY_NOTIFY) || !conn.isIdleCapable()) {
+                                if (K9MailLib.isDebug())
+                                    Log.i(LOG_TAG, "Server doesn't support NOTIFY and IDLE for " + getLogId());
+                                fallBack = true;
+                                continue;
+                            }
+
+                            try {
+                                conn.executeSimpleCommand(createNotifyCommand());
+                            } catch (ImapException e) {
+                                Log.w(LOG_TAG, "NOTIFY SET rejected for " + getLogId(), e);
+                                fallBack = true;
+                                continue;
+                            }
+
+                            if (mStoreConfig.isPushPollOnConnect()) {
+                                synchronized (changedFolders) {
+                                    for (String folderName : folderNames) {
+                                        if (!changedFolders.containsKey(folderName)) {
+                                            changedFolders.put(folderName, 0L);
+                                        }
+                                    }
+                                }
+                            }
+
+                            for (String folderName : folderNames) {
+                                receiver.setPushActive(folderName, true);
+                            }
+
+                            while (!stop.get()) {
+                                syncChangedFolders();
+                                if (stop.get()) {
+                                    break;
+                                }
+
+                                if (K9MailLib.isDebug())
+                                    Log.i(LOG_TAG, "About to IDLE for " + getLogId());
+
+                                idling.set(true);
+                                doneSent.set(false);
+
+                                conn.setReadTimeout((mStoreConfig.getIdleRefreshMinutes() * 60 * 1000) + IDLE_READ_TIMEOUT_INCREMENT);
+                                conn.executeSimpleCommand(ImapCommands.COMMAND_IDLE, false, ImapNotifyPusher.this);
+                                idling.set(false);
+                                delayTime.set(NORMAL_DELAY_TIME);
+                                idleFailureCount.set(0);
+                            }
+                        } catch (Exception e) {
+                            wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+                            idling.set(false);
+                            for (String folderName : folderNames) {
+                                receiver.setPushActive(folderName, false);
+                            }
+                            closeConnection();
+                            if (stop.get()) {
+                                Log.i(LOG_TAG, "Got exception while idling, but stop is set for " + getLogId());
+                            } else {
+                                mPushMetrics.recordReconnect();
+                                receiver.pushError("Push error for " + mStoreConfig.toString(), e);
+                                Log.e(LOG_TAG, "Got exception while idling for " + getLogId(), e);
+                                int delayTimeInt = delayTime.get();
+                                receiver.sleep(wakeLock, delayTimeInt);
+                                delayTimeInt *= 2;
+                                if (delayTimeInt > MAX_DELAY_TIME) {
+                                    delayTimeInt = MAX_DELAY_TIME;
+                                }
+                                delayTime.set(delayTimeInt);
+                                if (idleFailureCount.incrementAndGet() > IDLE_FAILURE_COUNT_LIMIT) {
+                                    Log.e(LOG_TAG, "Disabling pusher for " + getLogId() + " after " + idleFailureCount.get() + " consecutive errors");
+                                    receiver.pushError("Push disabled for " + mStoreConfig.toString() + " after " + idleFailureCount.get() + " consecutive errors", e);
+                                    stop.set(true);
+                                }
+                            }
+                        }
+                    }
+
+                    for (String folderName : folderNames) {
+                        receiver.setPushActive(folderName, false);
+                    }
+                    if (K9MailLib.isDebug())
+                        Log.i(LOG_TAG, "NOTIFY pusher for " + getLogId() + " is exiting");
+                    closeConnection();
+
+                    try {
+                        if (fallBack && !stop.get()) {
+                            mNotifyUnsupported = true;
+                            pusher.fallBackToFolderPushers(ImapNotifyPusher.this, folderNames);
+                        }
+                    } finally {
+                        wakeLock.release();
+                    }
+                }
+            };
+            listeningThread = new Thread(runner);
+            listeningThread.start();
+        }
+
+        private String createNotifyCommand() throws MessagingException {
+            mailboxes.clear();
+            StringBuilder sb = new StringBuilder();
+            for (String folderName : folderNames) {
+                ImapFolder folder = new ImapFolder(ImapStore.this, folderName);
+                String encodedName = encodeFolderName(folder.getPrefixedName());
+                mailboxes.put(encodedName, folderName);
+
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(encodeString(encodedName));
+            }
+
+            return String.format("%s SET (mailboxes (%s) (MessageNew MessageExpunge FlagChange))",
+                    ImapCommands.COMMAND_NOTIFY, sb);
+        }
+
+        private void syncChangedFolders() throws MessagingException {
+            while (!stop.get()) {
+                String folderName;
+                long eventTime;
+                synchronized (changedFolders) {
+                    Iterator<Map.Entry<String, Long>> iterator = changedFolders.entrySet().iterator();
+                    if (!iterator.hasNext()) {
+                        return;
+                    }
+                    Map.Entry<String, Long> entry = iterator.next();
+                    folderName = entry.getKey();
+                    eventTime = entry.getValue();
+                    iterator.remove();
+                }
+
+                if (K9MailLib.isDebug())
+                    Log.i(LOG_TAG, "Synchronizing " + folderName + " for " + getLogId());
+
+                // Use a folder of our own so the sync doesn't hold on to the push connection
+                ImapFolder folder = new ImapFolder(ImapStore.this, folderName);
+                try {
+                    receiver.syncFolder(folder);
+                } finally {
+                    folder.close();
+                }
+
+                if (eventTime != 0) {
+                    mPushMetrics.recordEvent(SystemClock.elapsedRealtime() - eventTime);
+                }
+            }
+        }
+
+        private void closeConnection() {
+            ImapConnection conn = mConnection;
+            mConnection = null;
+            if (conn != null) {
+                conn.close();
+            }
+        }
+
+        public void stop() {
+            stop.set(true);
+            if (listeningThread != null) {
+                listeningThread.interrupt();
+            }
+            ImapConnection conn = mConnection;
+            if (conn != null) {
+                if (K9MailLib.isDebug())
+                    Log.v(LOG_TAG, "Closing connection to stop pushing for " + getLogId());
+                conn.close();
+            }
+        }
+
+        private String getLogId() {
+            ImapConnection conn = mConnection;
+            return "NOTIFY " + mStoreConfig.toString() + ((conn != null) ? ":" + conn.getLogId() : "");
+        }
+
+        @Override
+        public void handleAsyncUntaggedResponse(ImapResponse response) {
+            if (K9MailLib.isDebug())
+                Log.v(LOG_TAG, "Got async response: " + response);
+
+            if (stop.get()) {
+                try {
+                    sendDone();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Exception while sending DONE for " + getLogId(), e);
+                }
+            } else if (response.getTag() == null) {
+                if (response.size() > 1 && ImapResponseParser.equalsIgnoreCase(response.get(0), "STATUS")) {
+                    String folderName = mailboxes.get(response.getString(1));
+                    if (folderName == null) {
+                        return;
+                    }
+
+                    wakeLock.acquire(PUSH_WAKE_LOCK_TIMEOUT);
+                    if (K9MailLib.isDebug())
+                        Log.d(LOG_TAG, "Got change notification for " + folderName + " for " + getLogId());
+
+                    synchronized (changedFolders) {
+                        Long eventTime = changedFolders.get(folderName);
+                        if (eventTime == null || eventTime == 0) {
+                            changedFolders.put(folderName, SystemClock.elapsedRealtime());
+                        }
+                    }
+
+                    try {
+                        sendDone();
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Exception while sending DONE for " + getLogId(), e);
+                    }
+                } else if (response.isContinuationRequested()) {
+                    if (K9MailLib.isDebug())
+                        Log.d(LOG_TAG, "Idling " + getLogId());
+
+                    wakeLock.release();
+                }
+            }
+        }
+    }
+
     @Override
     public Pusher getPusher(PushReceiver receiver) {
         return new ImapPusher(this, receiver);
@@ -2729,6 +3464,7 @@ public class ImapStore extends RemoteStore {
         private long lastRefresh = -1;
 
         final Map<String, ImapFolderPusher> folderPushers = new HashMap<String, ImapFolderPusher>();
+        private ImapNotifyPusher notifyPusher = null;
 
         public ImapPusher(ImapStore store, PushReceiver receiver) {
             mStore = store;
@@ -2740,20 +3476,55 @@ public class ImapStore extends RemoteStore {
             stop();
             synchronized (folderPushers) {
                 setLastRefresh(System.currentTimeMillis());
-                for (String folderName : folderNames) {
-                    ImapFolderPusher pusher = folderPushers.get(folderName);
-                    if (pusher == null) {
-                        pusher = new ImapFolderPusher(mStore, folderName, mReceiver);
-                        folderPushers.put(folderName, pusher);
-                        pusher.start();
-                    }
+                if (!mNotifyUnsupported && !folderNames.isEmpty()) {
+                    notifyPusher = new ImapNotifyPusher(this, mReceiver, folderNames);
+                    notifyPusher.start();
+                } else {
+                    startFolderPushers(folderNames);
+                }
+            }
+        }
+
+        private void startFolderPushers(List<String> folderNames) {
+            for (String folderName : folderNames) {
+                ImapFolderPusher pusher = folderPushers.get(folderName);
+                if (pusher == null) {
+                    pusher = new ImapFolderPusher(mStore, folderName, mReceiver);
+                    folderPushers.put(folderName, pusher);
+                    pusher.start();
                 }
             }
         }
 
+        /**
+         * Called by an {@link ImapNotifyPusher} that found the server doesn't support
+         * {@code NOTIFY}. Starts a pusher per folder unless the NOTIFY pusher has been replaced or
+         * stopped in the meantime.
+         */
+        void fallBackToFolderPushers(ImapNotifyPusher pusher, List<String> folderNames) {
+            synchronized (folderPushers) {
+                if (notifyPusher != pusher) {
+                    return;
+                }
+                notifyPusher = null;
+
+                if (K9MailLib.isDebug())
+                    Log.i(LOG_TAG, "Falling back to IDLE per folder for " + mStoreConfig.toString());
+
+                startFolderPushers(folderNames);
+            }
+        }
+
         @Override
         public void refresh() {
             synchronized (folderPushers) {
+                if (notifyPusher != null) {
+                    try {
+                        notifyPusher.refresh();
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Got exception while refreshing NOTIFY pusher", e);
+                    }
+                }
                 for (ImapFolderPusher folderPusher : folderPushers.values()) {
                     try {
                         folderPusher.refresh();
@@ -2770,6 +3541,14 @@ public class ImapStore extends RemoteStore {
                 Log.i(LOG_TAG, "Requested stop of IMAP pusher");
 
             synchronized (folderPushers) {
+                if (notifyPusher != null) {
+                    try {
+                        notifyPusher.stop();
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "Got exception while stopping NOTIFY pusher", e);
+                    }
+                    notifyPusher = null;
+                }
                 for (ImapFolderPusher folderPusher : folderPushers.values()) {
                     try {
                         if (K9MailLib.isDebug())
@@ -2837,6 +3616,29 @@ public class ImapStore extends RemoteStore {
         List<ImapResponse> search() throws IOException, MessagingException;
     }
 
+    /**
+     * Checks whether the literal the parser is about to read is the value of a
+     * {@code BODY[<section>]<<origin>>} item of a FETCH response, as opposed to e.g. a string
+     * inside a {@code BODYSTRUCTURE} or {@code ENVELOPE}.
+     *
+     * @param fetchList
+     *         The (partially parsed) data items of the FETCH response.
+     */
+    private static boolean isBodyLiteral(ImapList fetchList) {
+        int index = fetchList.size() - 1;
+        if (index >= 0 && fetchList.get(index) instanceof String &&
+                ((String) fetchList.get(index)).startsWith("<")) {
+            // Skip origin octet
+            index--;
+        }
+        return index >= 1 && fetchList.get(index) instanceof ImapList &&
+                ImapResponseParser.equalsIgnoreCase(fetchList.get(index - 1), "BODY");
+    }
+
+    /**
+     * Parses header and body literals of FETCH responses straight from the connection, so a
+     * message never has to be held in memory in its entirety.
+     */
     private static class FetchBodyCallback implements ImapResponseCallback {
         private Map<String, Message> mMessageMap;
 
@@ -2850,10 +3652,29 @@ public class ImapStore extends RemoteStore {
             if (response.getTag() == null &&
                     ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
                 ImapList fetchList = (ImapList)response.getKeyedValue("FETCH");
+                if (!isBodyLiteral(fetchList)) {
+                    // Small literal that is part of another data item
+                    return null;
+                }
+
                 String uid = fetchList.getKeyedString("UID");
+                if (uid == null) {
+                    // The UID is sent after the body. Spool the literal to a temp file and let
+                    // fetch() parse it once the whole response has been read.
+                    BinaryTempFileBody body = new BinaryTempFileBody();
+                    OutputStream out = body.getOutputStream();
+                    try {
+                        IOUtils.copy(literal, out);
+                    } finally {
+                        out.close();
+                    }
+                    return body;
+                }
 
                 ImapMessage message = (ImapMessage) mMessageMap.get(uid);
-                message.parse(literal);
+                if (message != null) {
+                    message.parse(literal);
+                }
 
                 // Return placeholder object
                 return 1;
@@ -2873,7 +3694,8 @@ public class ImapStore extends RemoteStore {
         public Object foundLiteral(ImapResponse response,
                                    FixedLengthInputStream literal) throws MessagingException, IOException {
             if (response.getTag() == null &&
-                    ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH")) {
+                    ImapResponseParser.equalsIgnoreCase(response.get(1), "FETCH") &&
+                    isBodyLiteral((ImapList) response.getKeyedValue("FETCH"))) {
                 //TODO: check for correct UID
 
                 String contentTransferEncoding = mPart
@@ -2936,6 +3758,16 @@ public class ImapStore extends RemoteStore {
             return mStoreConfig.useCompression(type);
         }
 
+        @Override
+        public int getCompressionLevel(final int type) {
+            return mStoreConfig.getCompressionLevel(type);
+        }
+
+        @Override
+        public int getCompressionBufferSize(final int type) {
+            return mStoreConfig.getCompressionBufferSize(type);
+        }
+
         @Override
         public String getPathPrefix() {
             return mPathPrefix;
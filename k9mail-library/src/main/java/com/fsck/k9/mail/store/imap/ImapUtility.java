@@ -20,8 +20,14 @@ package com.fsck.k9.mail.store.imap;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
+import com.fsck.k9.mail.FolderStatus;
+
 import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
 
 /**
@@ -112,6 +118,195 @@ class ImapUtility {
         return list;
     }
 
+    /**
+     * Creates a sequence set from a collection of UIDs or message sequence numbers.
+     *
+     * <p>
+     * The numbers are sorted and consecutive numbers are collapsed into ranges, e.g.
+     * {@code [7, 1, 2, 3, 9, 10]} becomes {@code "1:3,7,9:10"}. Duplicates are removed. Values that
+     * aren't valid numbers are appended unchanged.
+     * </p>
+     *
+     * @param ids
+     *         The UIDs or message sequence numbers.
+     *
+     * @return The sequence set as used in IMAP commands.
+     */
+    public static String createSequenceSet(Collection<String> ids) {
+        long[] numbers = new long[ids.size()];
+        int count = 0;
+        List<String> others = null;
+        for (String id : ids) {
+            long value = parseNumber(id);
+            if (value != -1L) {
+                numbers[count++] = value;
+            } else {
+                if (others == null) {
+                    others = new ArrayList<String>();
+                }
+                others.add(id);
+            }
+        }
+
+        Arrays.sort(numbers, 0, count);
+
+        StringBuilder sequenceSet = new StringBuilder();
+        int i = 0;
+        while (i < count) {
+            long start = numbers[i++];
+            long end = start;
+            while (i < count && numbers[i] <= end + 1) {
+                end = numbers[i++];
+            }
+
+            if (sequenceSet.length() > 0) {
+                sequenceSet.append(',');
+            }
+            sequenceSet.append(start);
+            if (end != start) {
+                sequenceSet.append(':').append(end);
+            }
+        }
+
+        if (others != null) {
+            for (String other : others) {
+                if (sequenceSet.length() > 0) {
+                    sequenceSet.append(',');
+                }
+                sequenceSet.append(other);
+            }
+        }
+
+        return sequenceSet.toString();
+    }
+
+    /**
+     * Sorts UIDs in ascending numerical order so that consecutive UIDs end up next to each other.
+     * Values that aren't valid numbers are moved to the end.
+     */
+    public static void sortUids(List<String> uids) {
+        Collections.sort(uids, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                long lhsValue = parseNumber(lhs);
+                long rhsValue = parseNumber(rhs);
+                if (lhsValue == -1L || rhsValue == -1L) {
+                    // Invalid values go last
+                    return (lhsValue == -1L ? 1 : 0) - (rhsValue == -1L ? 1 : 0);
+                }
+                return (lhsValue < rhsValue) ? -1 : ((lhsValue == rhsValue) ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Creates a {@link FolderStatus} from the attributes of a {@code STATUS} response, e.g.
+     * {@code (MESSAGES 231 UIDNEXT 44292 UIDVALIDITY 1 HIGHESTMODSEQ 7011231777)}.
+     */
+    public static FolderStatus getFolderStatus(String folderName, ImapList attributes) {
+        int messageCount = -1;
+        long uidNext = -1L;
+        long uidValidity = -1L;
+        long highestModSeq = -1L;
+
+        for (int i = 0, count = attributes.size() - 1; i < count; i += 2) {
+            Object key = attributes.get(i);
+            Object value = attributes.get(i + 1);
+            if (!(key instanceof String) || !(value instanceof String)) {
+                continue;
+            }
+
+            long number;
+            try {
+                number = Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                Log.d(LOG_TAG, "Invalid " + key + " value in STATUS response: " + value);
+                continue;
+            }
+
+            if ("MESSAGES".equalsIgnoreCase((String) key)) {
+                messageCount = (int) number;
+            } else if ("UIDNEXT".equalsIgnoreCase((String) key)) {
+                uidNext = number;
+            } else if ("UIDVALIDITY".equalsIgnoreCase((String) key)) {
+                uidValidity = number;
+            } else if ("HIGHESTMODSEQ".equalsIgnoreCase((String) key)) {
+                highestModSeq = number;
+            }
+        }
+
+        return new FolderStatus(folderName, messageCount, uidNext, uidValidity, highestModSeq);
+    }
+
+    /**
+     * @return The mod-sequence of a {@code HIGHESTMODSEQ} response code (RFC 7162), e.g.
+     *         {@code [HIGHESTMODSEQ 715194045007]}, or -1 for other response codes and invalid
+     *         values.
+     */
+    public static long getHighestModSeq(ImapList responseCode) {
+        if (responseCode.size() < 2 ||
+                !ImapResponseParser.equalsIgnoreCase(responseCode.get(0), "HIGHESTMODSEQ") ||
+                !(responseCode.get(1) instanceof String)) {
+            return -1L;
+        }
+
+        String value = (String) responseCode.get(1);
+        try {
+            long modSeq = Long.parseLong(value);
+            return (modSeq > 0) ? modSeq : -1L;
+        } catch (NumberFormatException e) {
+            Log.d(LOG_TAG, "Invalid HIGHESTMODSEQ value: " + value);
+            return -1L;
+        }
+    }
+
+    /**
+     * @return {@code true} if the response is an untagged {@code VANISHED} response (RFC 7162).
+     *         Once QRESYNC is enabled these are sent instead of {@code EXPUNGE} responses.
+     */
+    public static boolean isVanishedResponse(ImapResponse response) {
+        return response.getTag() == null && response.size() > 1 &&
+                ImapResponseParser.equalsIgnoreCase(response.get(0), "VANISHED");
+    }
+
+    /**
+     * @return {@code true} if the {@code VANISHED} response is a reply to a {@code FETCH} with the
+     *         {@code VANISHED} modifier, e.g. {@code * VANISHED (EARLIER) 41,43:116}, rather than
+     *         a report of a new expunge.
+     */
+    public static boolean isEarlierVanishedResponse(ImapResponse response) {
+        Object earlier = response.get(1);
+        return earlier instanceof ImapList && !((ImapList) earlier).isEmpty() &&
+                ImapResponseParser.equalsIgnoreCase(((ImapList) earlier).get(0), "EARLIER");
+    }
+
+    /**
+     * @return The UIDs of a {@code VANISHED} response.
+     */
+    public static List<String> getVanishedUids(ImapResponse response) {
+        return getImapSequenceValues(response.getString(response.size() - 1));
+    }
+
+    /**
+     * @return The value of a non-zero 32-bit number, or -1 if {@code number} isn't one.
+     */
+    private static long parseNumber(String number) {
+        if (number == null || number.length() == 0 || number.length() > 10) {
+            return -1L;
+        }
+
+        long value = 0;
+        for (int i = 0, length = number.length(); i < length; i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1L;
+            }
+            value = value * 10 + (c - '0');
+        }
+
+        return (value != 0 && is32bitValue(value)) ? value : -1L;
+    }
+
     private static boolean isNumberValid(String number) {
         try {
             long value = Long.parseLong(number);
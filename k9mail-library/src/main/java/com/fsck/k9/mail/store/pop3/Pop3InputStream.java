@@ -0,0 +1,133 @@
+package com.fsck.k9.mail.store.pop3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+
+/**
+ * Buffered input stream that can also read protocol lines.
+ *
+ * <p>
+ * {@link #readLine()} scans the internal buffer for the end of the line instead of reading the
+ * socket stream one byte at a time. Bytes are mapped to characters as ISO-8859-1, so any 8-bit
+ * data in a response line survives unchanged.
+ * </p>
+ */
+class Pop3InputStream extends InputStream {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final InputStream mIn;
+    private final byte[] mBuffer;
+    private int mPosition;
+    private int mCount;
+    private byte[] mLine = new byte[256];
+
+
+    Pop3InputStream(InputStream in, int bufferSize) {
+        mIn = in;
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Reads a line terminated by LF. CR characters are dropped.
+     *
+     * @return The line without the line terminator. If the end of the stream is reached in the
+     *         middle of a line, the partial line is returned.
+     *
+     * @throws IOException
+     *         If the end of the stream was reached before any data could be read.
+     */
+    public String readLine() throws IOException {
+        if (!fill()) {
+            throw new IOException("End of stream reached while trying to read line.");
+        }
+
+        int length = 0;
+        do {
+            int end = mPosition + mCount;
+            int i = mPosition;
+            while (i < end && mBuffer[i] != '\n') {
+                i++;
+            }
+            boolean foundEnd = (i < end);
+
+            for (int j = mPosition; j < i; j++) {
+                byte b = mBuffer[j];
+                if (b != '\r') {
+                    if (length == mLine.length) {
+                        byte[] line = new byte[mLine.length * 2];
+                        System.arraycopy(mLine, 0, line, 0, length);
+                        mLine = line;
+                    }
+                    mLine[length++] = b;
+                }
+            }
+
+            int consumed = (foundEnd ? i + 1 : i) - mPosition;
+            mPosition += consumed;
+            mCount -= consumed;
+
+            if (foundEnd) {
+                break;
+            }
+        } while (fill());
+
+        return new String(mLine, 0, length, ISO_8859_1);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        mCount--;
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+
+        int count = Math.min(length, mCount);
+        System.arraycopy(mBuffer, mPosition, buffer, offset, count);
+        mPosition += count;
+        mCount -= count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mCount + mIn.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Makes sure there's buffered data, blocking if necessary.
+     *
+     * @return {@code false} if the end of the stream was reached.
+     */
+    private boolean fill() throws IOException {
+        if (mCount > 0) {
+            return true;
+        }
+
+        int read = mIn.read(mBuffer, 0, mBuffer.length);
+        if (read <= 0) {
+            return false;
+        }
+
+        mPosition = 0;
+        mCount = read;
+        return true;
+    }
+}
@@ -59,6 +59,13 @@ public class Pop3Store extends RemoteStore {
     private static final String AUTH_PLAIN_CAPABILITY = "PLAIN";
     private static final String AUTH_CRAM_MD5_CAPABILITY = "CRAM-MD5";
     private static final String AUTH_EXTERNAL_CAPABILITY = "EXTERNAL";
+    private static final String PIPELINING_CAPABILITY = "PIPELINING";
+
+    /**
+     * Maximum number of commands sent before reading the responses if the server supports
+     * PIPELINING (RFC 2449).
+     */
+    private static final int PIPELINE_WINDOW = 20;
 
     /**
      * Decodes a Pop3Store URI.
@@ -201,6 +208,7 @@ public class Pop3Store extends RemoteStore {
     private ConnectionSecurity mConnectionSecurity;
     private Map<String, Folder> mFolders = new HashMap<String, Folder>();
     private Pop3Capabilities mCapabilities;
+    private final Pop3UidlIndex mUidlIndex;
 
     /**
      * This value is {@code true} if the server supports the CAPA command but doesn't advertise
@@ -211,6 +219,16 @@ public class Pop3Store extends RemoteStore {
 
 
     public Pop3Store(StoreConfig storeConfig, TrustedSocketFactory socketFactory) throws MessagingException {
+        this(storeConfig, socketFactory, null);
+    }
+
+    /**
+     * @param cacheDir
+     *         Directory used to remember the unique-id listing between sessions. May be
+     *         {@code null}, in which case the listing is only kept in memory.
+     */
+    public Pop3Store(StoreConfig storeConfig, TrustedSocketFactory socketFactory, File cacheDir)
+            throws MessagingException {
         super(storeConfig, socketFactory);
 
         ServerSettings settings;
@@ -229,6 +247,34 @@ public class Pop3Store extends RemoteStore {
         mPassword = settings.password;
         mClientCertificateAlias = settings.clientCertificateAlias;
         mAuthType = settings.authenticationType;
+
+        mUidlIndex = new Pop3UidlIndex(getUidlIndexFile(cacheDir));
+    }
+
+    /**
+     * Forgets the unique-id listing and deletes the file it was kept in.
+     *
+     * <p>
+     * Used when the account is removed, so the file doesn't stay behind in the cache directory.
+     * </p>
+     */
+    public void deleteUidlIndex() {
+        mUidlIndex.delete();
+    }
+
+    private File getUidlIndexFile(File cacheDir) {
+        if (cacheDir == null) {
+            return null;
+        }
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest((mUsername + "@" + mHost + ":" + mPort).getBytes());
+            return new File(cacheDir, "pop3_uidl_" + new String(Hex.encodeHex(digest)));
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(LOG_TAG, "Unable to create name for the UIDL index", e);
+            return null;
+        }
     }
 
     @Override
@@ -275,13 +321,15 @@ public class Pop3Store extends RemoteStore {
 
     class Pop3Folder extends Folder<Pop3Message> {
         private Socket mSocket;
-        private InputStream mIn;
+        private Pop3InputStream mIn;
         private OutputStream mOut;
         private Map<String, Pop3Message> mUidToMsgMap = new HashMap<String, Pop3Message>();
         private Map<Integer, Pop3Message> mMsgNumToMsgMap = new HashMap<Integer, Pop3Message>();
         private Map<String, Integer> mUidToMsgNumMap = new HashMap<String, Integer>();
         private String mName;
         private int mMessageCount;
+        private boolean mUidlIndexChecked;
+        private int mFirstDeletedMsgNum;
 
         public Pop3Folder(String name) {
             super();
@@ -311,7 +359,7 @@ public class Pop3Store extends RemoteStore {
                 }
 
                 mSocket.connect(socketAddress, SOCKET_CONNECT_TIMEOUT);
-                mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
+                mIn = new Pop3InputStream(mSocket.getInputStream(), 8192);
                 mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
 
                 mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
@@ -333,7 +381,7 @@ public class Pop3Store extends RemoteStore {
                                 mPort,
                                 mClientCertificateAlias);
                         mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-                        mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
+                        mIn = new Pop3InputStream(mSocket.getInputStream(), 8192);
                         mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
                         if (!isOpen()) {
                             throw new MessagingException("Unable to connect socket");
@@ -398,6 +446,8 @@ public class Pop3Store extends RemoteStore {
             mUidToMsgMap.clear();
             mMsgNumToMsgMap.clear();
             mUidToMsgNumMap.clear();
+            mUidlIndexChecked = false;
+            mFirstDeletedMsgNum = Integer.MAX_VALUE;
         }
 
         private void login() throws MessagingException {
@@ -618,6 +668,8 @@ public class Pop3Store extends RemoteStore {
          */
         private void indexMsgNums(int start, int end)
         throws MessagingException, IOException {
+            restoreUidlIndex();
+
             int unindexedMessageCount = 0;
             for (int msgNum = start; msgNum <= end; msgNum++) {
                 if (mMsgNumToMsgMap.get(msgNum) == null) {
@@ -627,73 +679,158 @@ public class Pop3Store extends RemoteStore {
             if (unindexedMessageCount == 0) {
                 return;
             }
-            if (unindexedMessageCount < 50 && mMessageCount > 5000) {
+            if (unindexedMessageCount < 50 && (mMessageCount > 5000 || mCapabilities.pipelining)) {
                 /*
                  * In extreme cases we'll do a UIDL command per message instead of a bulk
-                 * download.
+                 * download. The same goes for servers that allow us to pipeline the commands.
                  */
+                List<String> commands = new ArrayList<String>();
+                List<Integer> msgNums = new ArrayList<Integer>();
                 for (int msgNum = start; msgNum <= end; msgNum++) {
-                    Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                    if (message == null) {
-                        String response = executeSimpleCommand(UIDL_COMMAND + " " + msgNum);
-                        // response = "+OK msgNum msgUid"
-                        String[] uidParts = response.split(" +");
-                        if (uidParts.length < 3 || !"+OK".equals(uidParts[0])) {
-                            Log.e(LOG_TAG, "ERR response: " + response);
-                            return;
-                        }
-                        String msgUid = uidParts[2];
-                        message = new Pop3Message(msgUid, this);
-                        indexMessage(msgNum, message);
+                    if (mMsgNumToMsgMap.get(msgNum) == null) {
+                        commands.add(UIDL_COMMAND + " " + msgNum);
+                        msgNums.add(msgNum);
                     }
                 }
-            } else {
-                String response = executeSimpleCommand(UIDL_COMMAND);
-                while ((response = readLine()) != null) {
-                    if (response.equals(".")) {
+
+                List<String> responses = executeCommands(commands);
+                for (int i = 0, count = responses.size(); i < count; i++) {
+                    String response = responses.get(i);
+                    // response = "+OK msgNum msgUid"
+                    String[] uidParts = response.split(" +");
+                    if (uidParts.length < 3 || !"+OK".equals(uidParts[0])) {
+                        Log.e(LOG_TAG, "ERR response: " + response);
                         break;
                     }
+                    String msgUid = uidParts[2];
+                    Pop3Message message = new Pop3Message(msgUid, this);
+                    indexMessage(msgNums.get(i), message);
+                }
+            } else {
+                readUidlListing();
+            }
+
+            saveUidlIndex();
+        }
+
+        /**
+         * Reads the complete unique-id listing and indexes all messages that aren't indexed yet.
+         */
+        private void readUidlListing() throws MessagingException, IOException {
+            String response = executeSimpleCommand(UIDL_COMMAND);
+            while ((response = readLine()) != null) {
+                if (response.equals(".")) {
+                    break;
+                }
+
+                /*
+                 * Yet another work-around for buggy server software:
+                 * split the response into message number and unique identifier, no matter how many spaces it has
+                 *
+                 * Example for a malformed response:
+                 * 1   2011071307115510400ae3e9e00bmu9
+                 *
+                 * Note the three spaces between message number and unique identifier.
+                 * See issue 3546
+                 */
 
+                String[] uidParts = response.split(" +");
+                if ((uidParts.length >= 3) && "+OK".equals(uidParts[0])) {
                     /*
-                     * Yet another work-around for buggy server software:
-                     * split the response into message number and unique identifier, no matter how many spaces it has
-                     *
-                     * Example for a malformed response:
-                     * 1   2011071307115510400ae3e9e00bmu9
+                     * At least one server software places a "+OK" in
+                     * front of every line in the unique-id listing.
                      *
-                     * Note the three spaces between message number and unique identifier.
-                     * See issue 3546
+                     * Fix up the array if we detected this behavior.
+                     * See Issue 1237
                      */
+                    uidParts[0] = uidParts[1];
+                    uidParts[1] = uidParts[2];
+                }
 
-                    String[] uidParts = response.split(" +");
-                    if ((uidParts.length >= 3) && "+OK".equals(uidParts[0])) {
-                        /*
-                         * At least one server software places a "+OK" in
-                         * front of every line in the unique-id listing.
-                         *
-                         * Fix up the array if we detected this behavior.
-                         * See Issue 1237
-                         */
-                        uidParts[0] = uidParts[1];
-                        uidParts[1] = uidParts[2];
-                    }
-                    if (uidParts.length >= 2) {
-                        Integer msgNum = Integer.valueOf(uidParts[0]);
-                        String msgUid = uidParts[1];
-                        if (msgNum >= start && msgNum <= end) {
-                            Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                            if (message == null) {
-                                message = new Pop3Message(msgUid, this);
-                                indexMessage(msgNum, message);
-                            }
+                // Ignore messages without a unique-id
+                if (uidParts.length >= 2) {
+                    Integer msgNum = Integer.valueOf(uidParts[0]);
+                    String msgUid = uidParts[1];
+                    if (mMsgNumToMsgMap.get(msgNum) == null) {
+                        Pop3Message message = mUidToMsgMap.get(msgUid);
+                        if (message == null) {
+                            message = new Pop3Message(msgUid, this);
                         }
+                        indexMessage(msgNum, message);
                     }
                 }
             }
         }
 
+        /**
+         * Reuses the unique-id listing of a previous session if none of the messages it covers
+         * have been deleted since. See {@link Pop3UidlIndex}.
+         */
+        private void restoreUidlIndex() throws MessagingException {
+            if (mUidlIndexChecked) {
+                return;
+            }
+            mUidlIndexChecked = true;
+
+            List<String> uids = mUidlIndex.getUids();
+            int count = uids.size();
+            if (count == 0) {
+                return;
+            }
+
+            String response = null;
+            if (count <= mMessageCount) {
+                try {
+                    response = executeSimpleCommand(UIDL_COMMAND + " " + count);
+                } catch (Pop3ErrorResponse e) {
+                    // Treat like an outdated index
+                }
+            }
+
+            // response = "+OK msgNum msgUid"
+            String[] uidParts = (response != null) ? response.split(" +") : new String[0];
+            if (uidParts.length < 3 || !uids.get(count - 1).equals(uidParts[2])) {
+                if (K9MailLib.isDebug()) {
+                    Log.d(LOG_TAG, "UIDL index for " + mName + " is outdated");
+                }
+                mUidlIndex.clear();
+                return;
+            }
+
+            for (int msgNum = 1; msgNum <= count; msgNum++) {
+                if (mMsgNumToMsgMap.get(msgNum) == null) {
+                    String msgUid = uids.get(msgNum - 1);
+                    Pop3Message message = mUidToMsgMap.get(msgUid);
+                    if (message == null) {
+                        message = new Pop3Message(msgUid, this);
+                    }
+                    indexMessage(msgNum, message);
+                }
+            }
+
+            if (K9MailLib.isDebug()) {
+                Log.d(LOG_TAG, "Restored UIDL index for " + mName + " with " + count + " entries");
+            }
+        }
+
+        /**
+         * Remembers the unique-ids of the messages {@code 1..n} that are indexed without gaps. Message
+         * numbers from the first deleted message on won't be valid in the next session.
+         */
+        private void saveUidlIndex() {
+            List<String> uids = new ArrayList<String>();
+            Pop3Message message;
+            while (uids.size() + 1 < mFirstDeletedMsgNum &&
+                    (message = mMsgNumToMsgMap.get(uids.size() + 1)) != null) {
+                uids.add(message.getUid());
+            }
+            mUidlIndex.setUids(uids);
+        }
+
         private void indexUids(List<String> uids)
         throws MessagingException, IOException {
+            restoreUidlIndex();
+
             Set<String> unindexedUids = new HashSet<String>();
             for (String uid : uids) {
                 if (mUidToMsgMap.get(uid) == null) {
@@ -711,30 +848,8 @@ public class Pop3Store extends RemoteStore {
              * get them is to do a full UIDL list. A possible optimization
              * would be trying UIDL for the latest X messages and praying.
              */
-            String response = executeSimpleCommand(UIDL_COMMAND);
-            while ((response = readLine()) != null) {
-                if (response.equals(".")) {
-                    break;
-                }
-                String[] uidParts = response.split(" +");
-
-                // Ignore messages without a unique-id
-                if (uidParts.length >= 2) {
-                    Integer msgNum = Integer.valueOf(uidParts[0]);
-                    String msgUid = uidParts[1];
-                    if (unindexedUids.contains(msgUid)) {
-                        if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
-                            Log.d(LOG_TAG, "Got msgNum " + msgNum + " for UID " + msgUid);
-                        }
-
-                        Pop3Message message = mUidToMsgMap.get(msgUid);
-                        if (message == null) {
-                            message = new Pop3Message(msgUid, this);
-                        }
-                        indexMessage(msgNum, message);
-                    }
-                }
-            }
+            readUidlListing();
+            saveUidlIndex();
         }
 
         private void indexMessage(int msgNum, Pop3Message message) {
@@ -792,25 +907,38 @@ public class Pop3Store extends RemoteStore {
             } catch (IOException ioe) {
                 throw new MessagingException("fetch", ioe);
             }
+
+            boolean fetchBody = fp.contains(FetchProfile.Item.BODY) ||
+                    fp.contains(FetchProfile.Item.BODY_SANE);
+            int lines = -1;
+            if (!fp.contains(FetchProfile.Item.BODY) && fp.contains(FetchProfile.Item.BODY_SANE) &&
+                    mStoreConfig.getMaximumAutoDownloadMessageSize() > 0) {
+                /*
+                 * To convert the suggested download size we take the size
+                 * divided by the maximum line size (76).
+                 */
+                lines = mStoreConfig.getMaximumAutoDownloadMessageSize() / 76;
+            }
+            boolean pipelineBodies = fetchBody && canPipelineBodyCommands(lines);
+            int commandsSent = 0;
+            int responsesRead = 0;
+
             for (int i = 0, count = messages.size(); i < count; i++) {
                 Pop3Message pop3Message = messages.get(i);
+                boolean success = false;
                 try {
                     if (listener != null && !fp.contains(FetchProfile.Item.ENVELOPE)) {
                         listener.messageStarted(pop3Message.getUid(), i, count);
                     }
-                    if (fp.contains(FetchProfile.Item.BODY)) {
-                        fetchBody(pop3Message, -1);
-                    } else if (fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        /*
-                         * To convert the suggested download size we take the size
-                         * divided by the maximum line size (76).
-                         */
-                        if (mStoreConfig.getMaximumAutoDownloadMessageSize() > 0) {
-                            fetchBody(pop3Message,
-                                      (mStoreConfig.getMaximumAutoDownloadMessageSize() / 76));
-                        } else {
-                            fetchBody(pop3Message, -1);
+                    if (pipelineBodies) {
+                        if (i == commandsSent) {
+                            commandsSent = sendBodyCommands(messages, i, lines);
                         }
+                        readResponse();
+                        parseBody(pop3Message, lines);
+                        responsesRead++;
+                    } else if (fetchBody) {
+                        fetchBody(pop3Message, lines);
                     } else if (fp.contains(FetchProfile.Item.STRUCTURE)) {
                         /*
                          * If the user is requesting STRUCTURE we are required to set the body
@@ -821,8 +949,18 @@ public class Pop3Store extends RemoteStore {
                     if (listener != null && !(fp.contains(FetchProfile.Item.ENVELOPE) && fp.size() == 1)) {
                         listener.messageFinished(pop3Message, i, count);
                     }
+                    success = true;
                 } catch (IOException ioe) {
                     throw new MessagingException("Unable to fetch message", ioe);
+                } finally {
+                    if (!success && responsesRead < commandsSent) {
+                        /*
+                         * Reading a response or one of the listeners failed while the responses
+                         * to the remaining commands of the window are still on their way. The
+                         * connection can't be used for anything else, so drop it.
+                         */
+                        closeIO();
+                    }
                 }
             }
         }
@@ -843,13 +981,22 @@ public class Pop3Store extends RemoteStore {
                  * In extreme cases we'll do a command per message instead of a bulk request
                  * to hopefully save some time and bandwidth.
                  */
+                List<String> commands = new ArrayList<String>();
+                for (Pop3Message message : messages) {
+                    commands.add(String.format(Locale.US, LIST_COMMAND + " %d",
+                            mUidToMsgNumMap.get(message.getUid())));
+                }
+                List<String> responses = executeCommands(commands);
+
                 for (int i = 0, count = messages.size(); i < count; i++) {
                     Pop3Message message = messages.get(i);
                     if (listener != null) {
                         listener.messageStarted(message.getUid(), i, count);
                     }
-                    String response = executeSimpleCommand(String.format(Locale.US, LIST_COMMAND + " %d",
-                                                           mUidToMsgNumMap.get(message.getUid())));
+                    String response = responses.get(i);
+                    if (!isPositiveResponse(response)) {
+                        throw new Pop3ErrorResponse(response);
+                    }
                     String[] listParts = response.split(" ");
                     //int msgNum = Integer.parseInt(listParts[1]);
                     int msgSize = Integer.parseInt(listParts[2]);
@@ -933,6 +1080,44 @@ public class Pop3Store extends RemoteStore {
                                      mUidToMsgNumMap.get(message.getUid())));
             }
 
+            parseBody(message, lines);
+        }
+
+        /**
+         * Returns {@code true} if TOP/RETR commands can be pipelined, i.e. the server supports
+         * PIPELINING and we already know whether it supports the TOP command.
+         */
+        private boolean canPipelineBodyCommands(int lines) {
+            return mCapabilities.pipelining && (lines == -1 || mCapabilities.top || mTopNotSupported);
+        }
+
+        /**
+         * Sends the TOP or RETR commands for the next window of messages without waiting for the
+         * responses.
+         *
+         * @return The index of the first message whose command hasn't been sent yet.
+         */
+        private int sendBodyCommands(List<Pop3Message> messages, int start, int lines)
+        throws IOException, MessagingException {
+            open(Folder.OPEN_MODE_RW);
+
+            int end = Math.min(start + PIPELINE_WINDOW, messages.size());
+            List<String> commands = new ArrayList<String>(end - start);
+            for (int i = start; i < end; i++) {
+                Integer msgNum = mUidToMsgNumMap.get(messages.get(i).getUid());
+                if (lines != -1 && mCapabilities.top) {
+                    commands.add(String.format(Locale.US, TOP_COMMAND + " %d %d", msgNum, lines));
+                } else {
+                    commands.add(String.format(Locale.US, RETR_COMMAND + " %d", msgNum));
+                }
+            }
+
+            sendCommands(commands);
+            return end;
+        }
+
+        private void parseBody(Pop3Message message, int lines)
+        throws IOException, MessagingException {
             try {
                 message.parse(new Pop3ResponseInputStream(mIn));
 
@@ -996,6 +1181,7 @@ public class Pop3Store extends RemoteStore {
             } catch (IOException ioe) {
                 throw new MessagingException("Could not get message number for uid " + uids, ioe);
             }
+            List<String> commands = new ArrayList<String>();
             for (Message message : messages) {
 
                 Integer msgNum = mUidToMsgNumMap.get(message.getUid());
@@ -1005,26 +1191,22 @@ public class Pop3Store extends RemoteStore {
                     me.setPermanentFailure(true);
                     throw me;
                 }
-                executeSimpleCommand(String.format(DELE_COMMAND + " %s", msgNum));
+                commands.add(String.format(DELE_COMMAND + " %s", msgNum));
+                mFirstDeletedMsgNum = Math.min(mFirstDeletedMsgNum, msgNum);
+            }
+
+            // Message numbers following the first deleted message will change
+            mUidlIndex.truncate(mFirstDeletedMsgNum - 1);
+
+            for (String response : executeCommands(commands)) {
+                if (!isPositiveResponse(response)) {
+                    throw new Pop3ErrorResponse(response);
+                }
             }
         }
 
         private String readLine() throws IOException {
-            StringBuilder sb = new StringBuilder();
-            int d = mIn.read();
-            if (d == -1) {
-                throw new IOException("End of stream reached while trying to read line.");
-            }
-            do {
-                if (((char)d) == '\r') {
-                    continue;
-                } else if (((char)d) == '\n') {
-                    break;
-                } else {
-                    sb.append((char)d);
-                }
-            } while ((d = mIn.read()) != -1);
-            String ret = sb.toString();
+            String ret = mIn.readLine();
             if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
                 Log.d(LOG_TAG, "<<< " + ret);
             }
@@ -1032,9 +1214,28 @@ public class Pop3Store extends RemoteStore {
         }
 
         private void writeLine(String s) throws IOException {
+            writeLine(s, true);
+        }
+
+        private void writeLine(String s, boolean flush) throws IOException {
             mOut.write(s.getBytes());
             mOut.write('\r');
             mOut.write('\n');
+            if (flush) {
+                mOut.flush();
+            }
+        }
+
+        /**
+         * Writes all commands before flushing the output stream.
+         */
+        private void sendCommands(List<String> commands) throws IOException {
+            for (String command : commands) {
+                if (K9MailLib.isDebug() && DEBUG_PROTOCOL_POP3) {
+                    Log.d(LOG_TAG, ">>> " + command);
+                }
+                writeLine(command, false);
+            }
             mOut.flush();
         }
 
@@ -1082,6 +1283,8 @@ public class Pop3Store extends RemoteStore {
                         capabilities.uidl = true;
                     } else if (response.equals(TOP_CAPABILITY)) {
                         capabilities.top = true;
+                    } else if (response.equals(PIPELINING_CAPABILITY)) {
+                        capabilities.pipelining = true;
                     } else if (response.startsWith(SASL_CAPABILITY)) {
                         List<String> saslAuthMechanisms = Arrays.asList(response.split(" "));
                         if (saslAuthMechanisms.contains(AUTH_PLAIN_CAPABILITY)) {
@@ -1130,12 +1333,7 @@ public class Pop3Store extends RemoteStore {
                     writeLine(command);
                 }
 
-                String response = readLine();
-                if (response.length() == 0 || response.charAt(0) != '+') {
-                    throw new Pop3ErrorResponse(response);
-                }
-
-                return response;
+                return readResponse();
             } catch (MessagingException me) {
                 throw me;
             } catch (Exception e) {
@@ -1144,6 +1342,50 @@ public class Pop3Store extends RemoteStore {
             }
         }
 
+        /**
+         * Executes commands that have a single-line response.
+         *
+         * <p>
+         * If the server supports PIPELINING, up to {@link #PIPELINE_WINDOW} commands are sent
+         * before the responses are read. Otherwise the commands are sent one by one.
+         * </p>
+         *
+         * @return The responses to the commands, including error responses.
+         */
+        private List<String> executeCommands(List<String> commands) throws MessagingException {
+            List<String> responses = new ArrayList<String>(commands.size());
+            try {
+                open(Folder.OPEN_MODE_RW);
+
+                int window = mCapabilities.pipelining ? PIPELINE_WINDOW : 1;
+                for (int start = 0, count = commands.size(); start < count; start += window) {
+                    int end = Math.min(start + window, count);
+                    sendCommands(commands.subList(start, end));
+                    for (int i = start; i < end; i++) {
+                        responses.add(readLine());
+                    }
+                }
+
+                return responses;
+            } catch (IOException e) {
+                closeIO();
+                throw new MessagingException("Unable to execute POP3 command", e);
+            }
+        }
+
+        private String readResponse() throws IOException, Pop3ErrorResponse {
+            String response = readLine();
+            if (!isPositiveResponse(response)) {
+                throw new Pop3ErrorResponse(response);
+            }
+
+            return response;
+        }
+
+        private boolean isPositiveResponse(String response) {
+            return response.length() > 0 && response.charAt(0) == '+';
+        }
+
         @Override
         public boolean isFlagSupported(Flag flag) {
             return (flag == Flag.DELETED);
@@ -1207,16 +1449,18 @@ public class Pop3Store extends RemoteStore {
         public boolean top;
         public boolean uidl;
         public boolean external;
+        public boolean pipelining;
 
         @Override
         public String toString() {
-            return String.format("CRAM-MD5 %b, PLAIN %b, STLS %b, TOP %b, UIDL %b, EXTERNAL %b",
+            return String.format("CRAM-MD5 %b, PLAIN %b, STLS %b, TOP %b, UIDL %b, EXTERNAL %b, PIPELINING %b",
                                  cramMD5,
                                  authPlain,
                                  stls,
                                  top,
                                  uidl,
-                                 external);
+                                 external,
+                                 pipelining);
         }
     }
 
@@ -0,0 +1,173 @@
+package com.fsck.k9.mail.store.pop3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+import com.fsck.k9.mail.K9MailLib;
+
+import org.apache.commons.io.IOUtils;
+
+import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
+
+
+/**
+ * Remembers the unique-id listing of a maildrop between sessions.
+ *
+ * <p>
+ * Message numbers only change when messages are deleted. Since a deletion moves every following
+ * message to a lower number, the listing is still valid for message numbers {@code 1..n} if the
+ * message number {@code n} still has the unique-id it had before. So a single {@code UIDL n}
+ * command is enough to reuse the listing, and only new messages need to be looked up.
+ * </p>
+ */
+class Pop3UidlIndex {
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final List<String> mUids = new ArrayList<String>();
+    private boolean mLoaded;
+
+
+    /**
+     * @param file
+     *         The file the listing is stored in. If this is {@code null} the listing is only kept
+     *         in memory.
+     */
+    Pop3UidlIndex(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return The number of messages in the listing.
+     */
+    public synchronized int size() {
+        load();
+        return mUids.size();
+    }
+
+    /**
+     * @return The unique-ids of the messages with the numbers {@code 1..size()}.
+     */
+    public synchronized List<String> getUids() {
+        load();
+        return new ArrayList<String>(mUids);
+    }
+
+    /**
+     * Replaces the listing.
+     *
+     * @param uids
+     *         The unique-ids of the messages with the numbers {@code 1..uids.size()}.
+     */
+    public synchronized void setUids(List<String> uids) {
+        load();
+        if (mUids.equals(uids)) {
+            return;
+        }
+
+        mUids.clear();
+        mUids.addAll(uids);
+        save();
+    }
+
+    /**
+     * Drops all entries with a message number greater than {@code size}.
+     */
+    public synchronized void truncate(int size) {
+        load();
+        if (size >= mUids.size()) {
+            return;
+        }
+
+        mUids.subList(Math.max(size, 0), mUids.size()).clear();
+        save();
+    }
+
+    public synchronized void clear() {
+        truncate(0);
+    }
+
+    /**
+     * Clears the listing and deletes the file it is stored in.
+     */
+    public synchronized void delete() {
+        mUids.clear();
+        mLoaded = true;
+
+        if (mFile != null && mFile.exists() && !mFile.delete()) {
+            Log.w(LOG_TAG, "Unable to delete POP3 UIDL index " + mFile);
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+
+            int count = in.readInt();
+            List<String> uids = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                uids.add(in.readUTF());
+            }
+            mUids.addAll(uids);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to read POP3 UIDL index " + mFile, e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void save() {
+        if (mFile == null) {
+            return;
+        }
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(VERSION);
+            out.writeInt(mUids.size());
+            for (String uid : mUids) {
+                out.writeUTF(uid);
+            }
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + tempFile);
+            }
+
+            if (K9MailLib.isDebug()) {
+                Log.d(LOG_TAG, "Saved POP3 UIDL index with " + mUids.size() + " entries");
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to write POP3 UIDL index " + mFile, e);
+            tempFile.delete();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+}
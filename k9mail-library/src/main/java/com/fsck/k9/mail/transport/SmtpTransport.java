@@ -1,6 +1,7 @@
 
 package com.fsck.k9.mail.transport;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.fsck.k9.mail.*;
@@ -30,6 +31,11 @@ import static com.fsck.k9.mail.K9MailLib.LOG_TAG;
 import static com.fsck.k9.mail.CertificateValidationException.Reason.MissingCapability;
 
 public class SmtpTransport extends Transport {
+    /**
+     * Size of the chunks sent with {@code BDAT}.
+     */
+    private static final int BDAT_CHUNK_SIZE = 64 * 1024;
+
     private TrustedSocketFactory mTrustedSocketFactory;
 
     public static final String TRANSPORT_TYPE = "SMTP";
@@ -184,6 +190,9 @@ public class SmtpTransport extends Transport {
     private PeekableInputStream mIn;
     private OutputStream mOut;
     private boolean m8bitEncodingAllowed;
+    private boolean mPipeliningSupported;
+    private boolean mChunkingSupported;
+    private boolean mBinaryMimeSupported;
     private int mLargestAcceptableMessage;
 
     public SmtpTransport(StoreConfig storeConfig, TrustedSocketFactory trustedSocketFactory)
@@ -263,9 +272,6 @@ public class SmtpTransport extends Transport {
 
             Map<String,String> extensions = sendHello(localHost);
 
-            m8bitEncodingAllowed = extensions.containsKey("8BITMIME");
-
-
             if (mConnectionSecurity == ConnectionSecurity.STARTTLS_REQUIRED) {
                 if (extensions.containsKey("STARTTLS")) {
                     executeSimpleCommand("STARTTLS");
@@ -298,6 +304,15 @@ public class SmtpTransport extends Transport {
                 }
             }
 
+            /*
+             * Only use the extensions announced after STARTTLS. The ones announced over the
+             * plaintext connection might have been tampered with (RFC 3207, section 4.2).
+             */
+            m8bitEncodingAllowed = extensions.containsKey("8BITMIME");
+            mPipeliningSupported = extensions.containsKey("PIPELINING");
+            mChunkingSupported = extensions.containsKey("CHUNKING");
+            mBinaryMimeSupported = mChunkingSupported && extensions.containsKey("BINARYMIME");
+
             boolean authLoginSupported = false;
             boolean authPlainSupported = false;
             boolean authCramMD5Supported = false;
@@ -495,10 +510,14 @@ public class SmtpTransport extends Transport {
     throws MessagingException {
         boolean possibleSend = false;
 
-        close();
-        open();
+        long start = SystemClock.elapsedRealtime();
+        boolean reused = resetSession();
+        if (!reused) {
+            open();
+        }
+        long sessionReady = SystemClock.elapsedRealtime();
 
-        if (!m8bitEncodingAllowed) {
+        if (!m8bitEncodingAllowed && !mBinaryMimeSupported) {
             message.setUsing7bitTransport();
         }
         // If the message has attachments and our server has told us about a limit on
@@ -513,24 +532,78 @@ public class SmtpTransport extends Transport {
         }
 
         Address[] from = message.getFrom();
+        boolean success = false;
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from[0].getAddress() + ">"
-                    + (m8bitEncodingAllowed ? " BODY=8BITMIME" : ""));
+            String body = "";
+            if (mBinaryMimeSupported) {
+                body = " BODY=BINARYMIME";
+            } else if (m8bitEncodingAllowed) {
+                body = " BODY=8BITMIME";
+            }
+
+            List<String> envelope = new ArrayList<String>();
+            envelope.add("MAIL FROM:" + "<" + from[0].getAddress() + ">" + body);
             for (String address : addresses) {
-                executeSimpleCommand("RCPT TO:" + "<" + address + ">");
+                envelope.add("RCPT TO:" + "<" + address + ">");
+            }
+            if (!mChunkingSupported) {
+                envelope.add("DATA");
             }
-            executeSimpleCommand("DATA");
 
-            EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
-                    new LineWrapOutputStream(new SmtpDataStuffing(mOut), 1000));
+            if (mPipeliningSupported) {
+                executePipelinedCommands(envelope);
+            } else {
+                for (String command : envelope) {
+                    executeSimpleCommand(command);
+                }
+            }
+            long envelopeSent = SystemClock.elapsedRealtime();
 
-            message.writeTo(msgOut);
+            if (mChunkingSupported) {
+                /*
+                 * With BDAT the message size is announced up front, so there's no need for
+                 * dot-stuffing. With BODY=BINARYMIME the server takes the message as it is, so
+                 * it's written straight into the chunks. Otherwise the message still has to
+                 * follow the rules for 7bit/8bit data (RFC 5321, RFC 6152): CRLF line endings
+                 * and lines of at most 1000 octets. Text bodies may contain bare LFs or longer
+                 * lines, so it has to go through the same conversion as with DATA.
+                 */
+                BdatOutputStream bdatOut = new BdatOutputStream();
+                OutputStream msgOut = mBinaryMimeSupported ? bdatOut :
+                        new EOLConvertingOutputStream(new LineWrapOutputStream(bdatOut, 1000));
 
-            // We use BufferedOutputStream. So make sure to call flush() !
-            msgOut.flush();
+                try {
+                    message.writeTo(msgOut);
+                    msgOut.flush();
+                } catch (IOException e) {
+                    bdatOut.checkRejected();
+                    throw e;
+                }
+
+                possibleSend = true; // After the last chunk is attempted, we may have sent the message
+                bdatOut.finish();
+            } else {
+                EOLConvertingOutputStream msgOut = new EOLConvertingOutputStream(
+                        new LineWrapOutputStream(new SmtpDataStuffing(mOut), 1000));
 
-            possibleSend = true; // After the "\r\n." is attempted, we may have sent the message
-            executeSimpleCommand("\r\n.");
+                message.writeTo(msgOut);
+
+                // We use BufferedOutputStream. So make sure to call flush() !
+                msgOut.flush();
+
+                possibleSend = true; // After the "\r\n." is attempted, we may have sent the message
+                executeSimpleCommand("\r\n.");
+            }
+            success = true;
+
+            if (K9MailLib.isDebug()) {
+                long end = SystemClock.elapsedRealtime();
+                Log.d(LOG_TAG, "Sent message to " + addresses.size() + " recipient(s) in " +
+                        (end - start) + "ms: " + (reused ? "session reused" : "connected") + " in " +
+                        (sessionReady - start) + "ms, envelope " +
+                        (mPipeliningSupported ? "(pipelined) " : "") + (envelopeSent - sessionReady) +
+                        "ms, " + (mChunkingSupported ? "BDAT " : "data ") + (end - envelopeSent) + "ms");
+            }
         } catch (Exception e) {
             MessagingException me = new MessagingException("Unable to send message", e);
 
@@ -545,9 +618,178 @@ public class SmtpTransport extends Transport {
             me.setPermanentFailure(possibleSend);
             throw me;
         } finally {
+            // Keep the session for the next message, unless we don't know what state it's in
+            if (!success) {
+                close();
+            }
+        }
+
+    }
+
+    /**
+     * Prepares an existing session for the next message.
+     *
+     * @return {@code true} if the session was successfully reset with {@code RSET}.
+     *         {@code false} if there is no session or it couldn't be reused. In that case it
+     *         has been closed and the caller needs to {@link #open()} a new one.
+     */
+    private boolean resetSession() {
+        if (mSocket == null || mSocket.isClosed() || !mSocket.isConnected()) {
+            close();
+            return false;
+        }
+
+        try {
+            executeSimpleCommand("RSET");
+            return true;
+        } catch (Exception e) {
+            if (K9MailLib.isDebug()) {
+                Log.d(LOG_TAG, "Couldn't reuse SMTP session, reconnecting", e);
+            }
             close();
+            return false;
+        }
+    }
+
+    /**
+     * Sends a group of commands in one go and then reads the replies (RFC 2920).
+     *
+     * <p>
+     * All replies are read even if one of them is negative, so the session stays in sync. If the
+     * last command is {@code DATA} and the server accepted it even though one of the other
+     * commands failed, the connection is dropped because the transaction can't be aborted
+     * otherwise. When the message is sent with {@code BDAT} the group ends with the last
+     * {@code RCPT TO}; no data has been sent yet, so the first failure is simply reported.
+     * </p>
+     */
+    private void executePipelinedCommands(List<String> commands) throws IOException, MessagingException {
+        for (String command : commands) {
+            writeLine(command, false, false);
+        }
+        mOut.flush();
+
+        NegativeSmtpReplyException firstFailure = null;
+        boolean lastCommandAccepted = false;
+        for (String command : commands) {
+            try {
+                readResponse();
+                lastCommandAccepted = true;
+            } catch (NegativeSmtpReplyException e) {
+                if (firstFailure == null) {
+                    firstFailure = e;
+                }
+                lastCommandAccepted = false;
+            }
         }
 
+        if (firstFailure != null) {
+            if (lastCommandAccepted && "DATA".equals(commands.get(commands.size() - 1))) {
+                closeConnection();
+            }
+            throw firstFailure;
+        }
+    }
+
+    /**
+     * Sends everything written to it as {@code BDAT} chunks (RFC 3030).
+     *
+     * <p>
+     * Data is collected until a chunk is full. {@link #finish()} sends the remaining data as the
+     * {@code LAST} chunk. If the server supports pipelining, the replies to the chunks are only
+     * read at the end. Otherwise each chunk waits for its reply.
+     * </p>
+     */
+    private class BdatOutputStream extends OutputStream {
+        private final byte[] mBuffer = new byte[BDAT_CHUNK_SIZE];
+        private int mCount;
+        private int mPendingReplies;
+        private NegativeSmtpReplyException mRejection;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mCount == mBuffer.length) {
+                sendChunk(false);
+            }
+            mBuffer[mCount++] = (byte) oneByte;
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mCount == mBuffer.length) {
+                    sendChunk(false);
+                }
+                int count = Math.min(length, mBuffer.length - mCount);
+                System.arraycopy(b, offset, mBuffer, mCount, count);
+                mCount += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Chunks are only sent once they are full or by finish()
+        }
+
+        /**
+         * Sends the remaining data as the last chunk and checks all outstanding replies.
+         */
+        public void finish() throws IOException, MessagingException {
+            sendChunk(true);
+            readPendingReplies();
+        }
+
+        /**
+         * Rethrows the server's reply if writing failed because a chunk was rejected.
+         *
+         * <p>
+         * {@link OutputStream#write(int)} can only throw an {@link IOException}, so that's what
+         * the caller sees first.
+         * </p>
+         */
+        public void checkRejected() throws NegativeSmtpReplyException {
+            if (mRejection != null) {
+                throw mRejection;
+            }
+        }
+
+        private void sendChunk(boolean last) throws IOException {
+            writeLine("BDAT " + mCount + (last ? " LAST" : ""), false, false);
+            mOut.write(mBuffer, 0, mCount);
+            mOut.flush();
+            mCount = 0;
+            mPendingReplies++;
+
+            if (!last && !mPipeliningSupported) {
+                try {
+                    readPendingReplies();
+                } catch (NegativeSmtpReplyException e) {
+                    mRejection = e;
+                    throw new IOException("BDAT chunk rejected: " + e.getMessage());
+                } catch (MessagingException e) {
+                    throw new IOException("BDAT chunk rejected: " + e.getMessage());
+                }
+            }
+        }
+
+        private void readPendingReplies() throws IOException, MessagingException {
+            NegativeSmtpReplyException firstFailure = null;
+            while (mPendingReplies > 0) {
+                mPendingReplies--;
+                try {
+                    readResponse();
+                } catch (NegativeSmtpReplyException e) {
+                    if (firstFailure == null) {
+                        firstFailure = e;
+                    }
+                }
+            }
+
+            if (firstFailure != null) {
+                throw firstFailure;
+            }
+        }
     }
 
     @Override
@@ -557,6 +799,10 @@ public class SmtpTransport extends Transport {
         } catch (Exception e) {
 
         }
+        closeConnection();
+    }
+
+    private void closeConnection() {
         try {
             mIn.close();
         } catch (Exception e) {
@@ -597,6 +843,10 @@ public class SmtpTransport extends Transport {
     }
 
     private void writeLine(String s, boolean sensitive) throws IOException {
+        writeLine(s, sensitive, true);
+    }
+
+    private void writeLine(String s, boolean sensitive, boolean flush) throws IOException {
         if (K9MailLib.isDebug() && DEBUG_PROTOCOL_SMTP) {
             final String commandToLog;
             if (sensitive && !K9MailLib.isDebugSensitive()) {
@@ -616,7 +866,9 @@ public class SmtpTransport extends Transport {
          * See issue 799.
          */
         mOut.write(data);
-        mOut.flush();
+        if (flush) {
+            mOut.flush();
+        }
     }
 
     private void checkLine(String line) throws MessagingException {
@@ -651,11 +903,16 @@ public class SmtpTransport extends Transport {
 
     private List<String> executeSimpleCommand(String command, boolean sensitive)
     throws IOException, MessagingException {
-        List<String> results = new ArrayList<String>();
         if (command != null) {
             writeLine(command, sensitive);
         }
 
+        return readResponse();
+    }
+
+    private List<String> readResponse() throws IOException, MessagingException {
+        List<String> results = new ArrayList<String>();
+
         /*
          * Read lines as long as the length is 4 or larger, e.g. "220-banner text here".
          * Shorter lines are either errors of contain only a reply code. Those cases will
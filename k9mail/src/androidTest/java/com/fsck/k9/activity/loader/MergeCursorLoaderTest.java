@@ -0,0 +1,210 @@
+package com.fsck.k9.activity.loader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import com.fsck.k9.activity.loader.MergeCursorLoader.Page;
+import com.fsck.k9.activity.loader.MergeCursorLoader.PagedCursor;
+import com.fsck.k9.provider.EmailProvider;
+
+
+public class MergeCursorLoaderTest extends AndroidTestCase {
+    private static final String[] COLUMNS = { "_id", "key" };
+    private static final Uri ACCOUNT_A = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/a/messages");
+    private static final Uri ACCOUNT_B = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/b/messages");
+
+    private static final Comparator<Cursor> KEY_COMPARATOR = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor cursor1, Cursor cursor2) {
+            int key1 = cursor1.getInt(1);
+            int key2 = cursor2.getInt(1);
+            return (key1 < key2) ? -1 : ((key1 == key2) ? 0 : 1);
+        }
+    };
+
+    private FakeEmailProvider mProvider;
+    private MergeCursorLoader mLoader;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mProvider = new FakeEmailProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(EmailProvider.AUTHORITY, mProvider);
+
+        Context context = new ContextWrapper(getContext()) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+
+        mLoader = new MergeCursorLoader(context, new Uri[] { ACCOUNT_A, ACCOUNT_B },
+                COLUMNS, new String[] { "", "" }, new String[][] { {}, {} }, "key", KEY_COMPARATOR,
+                3, 3);
+    }
+
+    public void testFirstPage() {
+        mProvider.addAccount("a", 1, 3, 5, 7, 9);
+        mProvider.addAccount("b", 2, 4, 6);
+
+        Page page = mLoader.loadPage(null, 3);
+
+        assertEquals(Arrays.asList(1, 2, 3), getKeys(page));
+        assertTrue(page.hasMoreRows());
+        assertEquals(Arrays.asList("a?limit=4", "b?limit=4"), mProvider.takeQueries());
+    }
+
+    public void testNextPageSkipsRowsOfPreviousPages() {
+        mProvider.addAccount("a", 1, 3, 5, 7, 9);
+        mProvider.addAccount("b", 2, 4, 6);
+        Page first = mLoader.loadPage(null, 3);
+        mProvider.takeQueries();
+
+        Page second = mLoader.loadPage(first, 3);
+
+        assertEquals(Arrays.asList(4, 5, 6), getKeys(second));
+        assertTrue(second.hasMoreRows());
+        assertEquals(Arrays.asList("a?limit=4&offset=2", "b?limit=4&offset=1"),
+                mProvider.takeQueries());
+    }
+
+    public void testExhaustedAccountIsNotQueriedAgain() {
+        mProvider.addAccount("a", 1, 3, 5, 7, 9, 11);
+        mProvider.addAccount("b", 2);
+        Page first = mLoader.loadPage(null, 3);
+        mProvider.takeQueries();
+
+        Page second = mLoader.loadPage(first, 3);
+
+        assertEquals(Arrays.asList(5, 7, 9), getKeys(second));
+        assertTrue(second.hasMoreRows());
+        assertEquals(Arrays.asList("a?limit=4&offset=2"), mProvider.takeQueries());
+    }
+
+    public void testLastPage() {
+        mProvider.addAccount("a", 1, 3, 5);
+        mProvider.addAccount("b", 2, 4);
+        Page first = mLoader.loadPage(null, 3);
+
+        Page second = mLoader.loadPage(first, 3);
+
+        assertEquals(Arrays.asList(4, 5), getKeys(second));
+        assertFalse(second.hasMoreRows());
+    }
+
+    public void testWithoutLimit() {
+        mProvider.addAccount("a", 1, 3, 5, 7);
+        mProvider.addAccount("b", 2, 4, 6);
+
+        Page page = mLoader.loadPage(null, -1);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7), getKeys(page));
+        assertFalse(page.hasMoreRows());
+        assertEquals(Arrays.asList("a", "b"), mProvider.takeQueries());
+    }
+
+    public void testPagedCursorConcatenatesPages() {
+        mProvider.addAccount("a", 1, 3, 5, 7, 9);
+        mProvider.addAccount("b", 2, 4, 6);
+        Page first = mLoader.loadPage(null, 3);
+        PagedCursor firstCursor = new PagedCursor(new Page[] { first });
+        assertTrue(firstCursor.hasMoreRows());
+
+        Page second = mLoader.loadPage(first, 3);
+        PagedCursor cursor = firstCursor.append(second);
+
+        assertSame(second, cursor.getLastPage());
+        assertEquals(6, cursor.getCount());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), getKeys(cursor));
+        assertTrue(cursor.hasMoreRows());
+
+        Set<Long> uniqueIds = new HashSet<Long>();
+        for (boolean hasRow = cursor.moveToFirst(); hasRow; hasRow = cursor.moveToNext()) {
+            uniqueIds.add(cursor.getLong(cursor.getColumnIndex("_id")));
+        }
+        assertEquals(6, uniqueIds.size());
+    }
+
+
+    private static List<Integer> getKeys(Cursor cursor) {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (boolean hasRow = cursor.moveToFirst(); hasRow; hasRow = cursor.moveToNext()) {
+            keys.add(cursor.getInt(1));
+        }
+        return keys;
+    }
+
+
+    /**
+     * Returns the messages of each account sorted by key, honoring the limit and offset query
+     * parameters, and records the queries.
+     */
+    static class FakeEmailProvider extends MockContentProvider {
+        private final Map<String, int[]> mAccounts = new HashMap<String, int[]>();
+        private final List<String> mQueries = Collections.synchronizedList(new ArrayList<String>());
+
+
+        void addAccount(String accountUuid, int... keys) {
+            mAccounts.put(accountUuid, keys);
+        }
+
+        /**
+         * @return The queries since the last call sorted by account, e.g.
+         *         {@code "a?limit=4&offset=2"}.
+         */
+        List<String> takeQueries() {
+            synchronized (mQueries) {
+                List<String> queries = new ArrayList<String>(mQueries);
+                mQueries.clear();
+                Collections.sort(queries);
+                return queries;
+            }
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                String sortOrder) {
+            String accountUuid = uri.getPathSegments().get(1);
+            String query = uri.getEncodedQuery();
+            mQueries.add((query != null) ? accountUuid + "?" + query : accountUuid);
+
+            String limitParameter = uri.getQueryParameter(EmailProvider.QUERY_PARAMETER_LIMIT);
+            String offsetParameter = uri.getQueryParameter(EmailProvider.QUERY_PARAMETER_OFFSET);
+            int[] keys = mAccounts.get(accountUuid);
+            int offset = (offsetParameter != null) ? Integer.parseInt(offsetParameter) : 0;
+            int end = (limitParameter != null) ?
+                    Math.min(keys.length, offset + Integer.parseInt(limitParameter)) : keys.length;
+
+            MatrixCursor cursor = new MatrixCursor(COLUMNS);
+            for (int i = offset; i < end; i++) {
+                cursor.addRow(new Object[] { (long) keys[i], keys[i] });
+            }
+            return cursor;
+        }
+    }
+}
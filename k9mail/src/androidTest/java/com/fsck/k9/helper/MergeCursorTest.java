@@ -0,0 +1,222 @@
+package com.fsck.k9.helper;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.fragment.MessageListFragment.SenderComparator;
+import com.fsck.k9.mail.Address;
+
+public class MergeCursorTest extends AndroidTestCase {
+    private static final String[] COLUMNS = { "_id", "key" };
+    private static final String[] SENDER_COLUMNS = { "_id", "uid", "internal_date", "subject", "date",
+            "sender_list" };
+
+    private static final Comparator<Cursor> KEY_COMPARATOR = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor cursor1, Cursor cursor2) {
+            int key1 = cursor1.getInt(1);
+            int key2 = cursor2.getInt(1);
+            return (key1 < key2) ? -1 : ((key1 == key2) ? 0 : 1);
+        }
+    };
+
+
+    public void testMoveForward() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 1, 4, 4, 6, 6),
+                createCursor(2, 2, 3, 3, 7, 7) }, KEY_COMPARATOR);
+
+        assertEquals(6, cursor.getCount());
+        assertTrue(cursor.isBeforeFirst());
+        List<Long> ids = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+
+        assertEquals(asList(1, 2, 3, 4, 6, 7), ids);
+        assertTrue(cursor.isAfterLast());
+    }
+
+    public void testMoveBackward() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 1, 4, 4, 6, 6),
+                createCursor(2, 2, 3, 3, 7, 7) }, KEY_COMPARATOR);
+
+        assertTrue(cursor.moveToLast());
+        assertTrue(cursor.isLast());
+        List<Long> ids = new ArrayList<Long>();
+        do {
+            ids.add(cursor.getLong(0));
+        } while (cursor.moveToPrevious());
+
+        assertEquals(asList(7, 6, 4, 3, 2, 1), ids);
+        assertTrue(cursor.isBeforeFirst());
+    }
+
+    public void testJumps() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 1, 4, 4, 6, 6),
+                createCursor(2, 2, 3, 3, 7, 7) }, KEY_COMPARATOR);
+
+        assertTrue(cursor.moveToPosition(4));
+        assertEquals(6, cursor.getLong(0));
+        assertTrue(cursor.moveToPosition(1));
+        assertEquals(2, cursor.getLong(0));
+        assertTrue(cursor.move(2));
+        assertEquals(4, cursor.getLong(0));
+        assertEquals(3, cursor.getPosition());
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isFirst());
+        assertEquals(1, cursor.getLong(0));
+
+        assertFalse(cursor.moveToPosition(6));
+        assertTrue(cursor.isAfterLast());
+        assertFalse(cursor.moveToPosition(-1));
+        assertTrue(cursor.isBeforeFirst());
+    }
+
+    public void testEqualKeysKeepCursorOrder() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(10, 5, 11, 5),
+                createCursor(20, 5, 21, 6) }, KEY_COMPARATOR);
+
+        assertEquals(asList(10, 11, 20, 21), getIds(cursor));
+    }
+
+    public void testNullAndEmptyCursors() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                null,
+                createCursor(),
+                createCursor(1, 1, 3, 3),
+                null,
+                createCursor(2, 2) }, KEY_COMPARATOR);
+
+        assertEquals(3, cursor.getCount());
+        assertEquals(asList(1, 2, 3), getIds(cursor));
+    }
+
+    public void testOnlyEmptyCursors() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] { createCursor(), createCursor() },
+                KEY_COMPARATOR);
+
+        assertEquals(0, cursor.getCount());
+        assertFalse(cursor.moveToFirst());
+        assertTrue(cursor.isBeforeFirst());
+        assertTrue(cursor.isAfterLast());
+    }
+
+    public void testRequeryRecalculatesOrder() {
+        MatrixCursor second = createCursor(2, 2);
+        MergeCursor cursor = new MergeCursor(new Cursor[] { createCursor(1, 1, 3, 3), second },
+                KEY_COMPARATOR);
+        assertEquals(asList(1, 2, 3), getIds(cursor));
+
+        second.addRow(new Object[] { 4L, 4 });
+        cursor.requery();
+
+        assertEquals(-1, cursor.getPosition());
+        assertEquals(4, cursor.getCount());
+        assertEquals(asList(1, 2, 3, 4), getIds(cursor));
+    }
+
+    public void testLimit() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 1, 4, 4, 6, 6),
+                createCursor(2, 2, 3, 3) }, KEY_COMPARATOR, 3);
+
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.hasMoreRows());
+        assertEquals(asList(1, 2, 3), getIds(cursor));
+        assertTrue(cursor.moveToLast());
+        assertEquals(3, cursor.getLong(0));
+        assertFalse(cursor.moveToPosition(3));
+    }
+
+    public void testLimitNotReached() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 1),
+                createCursor(2, 2) }, KEY_COMPARATOR, 2);
+
+        assertEquals(2, cursor.getCount());
+        assertFalse(cursor.hasMoreRows());
+    }
+
+    public void testNoLimit() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] { createCursor(1, 1, 2, 2) }, KEY_COMPARATOR);
+
+        assertFalse(cursor.hasMoreRows());
+    }
+
+    public void testRowCounts() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 1, 4, 4, 6, 6),
+                null,
+                createCursor(2, 2, 3, 3, 7, 7) }, KEY_COMPARATOR, 4);
+
+        assertTrue(Arrays.equals(new int[] { 2, 0, 2 }, cursor.getRowCounts()));
+    }
+
+    public void testRowCountsWithoutLimit() {
+        MergeCursor cursor = new MergeCursor(new Cursor[] {
+                createCursor(1, 1, 4, 4),
+                createCursor(2, 2) }, KEY_COMPARATOR);
+
+        assertTrue(Arrays.equals(new int[] { 2, 1 }, cursor.getRowCounts()));
+    }
+
+    public void testRequeryWithSenderComparator() {
+        MatrixCursor first = createSenderCursor(1, "b@example.org");
+        MatrixCursor second = createSenderCursor(2, "c@example.org");
+        MergeCursor cursor = new MergeCursor(new Cursor[] { first, second }, new SenderComparator());
+        assertEquals(asList(1, 2), getIds(cursor));
+
+        addSenderRow(first, 3, "e@example.org");
+        addSenderRow(second, 4, "d@example.org");
+        cursor.requery();
+
+        assertEquals(asList(1, 2, 4, 3), getIds(cursor));
+    }
+
+
+    private static MatrixCursor createCursor(int... idsAndKeys) {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < idsAndKeys.length; i += 2) {
+            cursor.addRow(new Object[] { (long) idsAndKeys[i], idsAndKeys[i + 1] });
+        }
+        return cursor;
+    }
+
+    private static MatrixCursor createSenderCursor(long id, String sender) {
+        MatrixCursor cursor = new MatrixCursor(SENDER_COLUMNS);
+        addSenderRow(cursor, id, sender);
+        return cursor;
+    }
+
+    private static void addSenderRow(MatrixCursor cursor, long id, String sender) {
+        cursor.addRow(new Object[] { id, null, null, null, null,
+                Address.pack(new Address[] { new Address(sender) }) });
+    }
+
+    private static List<Long> getIds(Cursor cursor) {
+        List<Long> ids = new ArrayList<Long>();
+        for (boolean hasRow = cursor.moveToFirst(); hasRow; hasRow = cursor.moveToNext()) {
+            ids.add(cursor.getLong(0));
+        }
+        return ids;
+    }
+
+    private static List<Long> asList(long... ids) {
+        List<Long> list = new ArrayList<Long>(ids.length);
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+}
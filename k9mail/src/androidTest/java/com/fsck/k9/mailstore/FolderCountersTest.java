@@ -0,0 +1,237 @@
+package com.fsck.k9.mailstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
+
+
+/**
+ * Checks that the message counters the triggers maintain in the {@code folders} table match the
+ * messages table after every kind of change.
+ */
+public class FolderCountersTest extends AndroidTestCase {
+    private Account mAccount;
+    private LocalStore mLocalStore;
+    private LocalFolder mInbox;
+    private LocalFolder mArchive;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mLocalStore = mAccount.getLocalStore();
+        mInbox = createFolder("counters-inbox");
+        mArchive = createFolder("counters-archive");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testInsert() throws MessagingException {
+        appendMessages();
+
+        assertCounters(mInbox, 4, 3, 1);
+        assertCounters(mArchive, 0, 0, 0);
+    }
+
+    public void testReplace() throws MessagingException {
+        appendMessages();
+
+        MimeMessage replacement = createMessage("uid-2", "<2@example.com>", null);
+        replacement.setFlag(Flag.SEEN, true);
+        mInbox.appendMessages(Collections.singletonList(replacement));
+
+        assertCounters(mInbox, 4, 2, 0);
+    }
+
+    public void testFlagChanges() throws MessagingException {
+        appendMessages();
+
+        mInbox.setFlags(getMessages(mInbox, "uid-1", "uid-3"), Collections.singleton(Flag.SEEN), true);
+        assertCounters(mInbox, 4, 2, 1);
+
+        mInbox.setFlags(getMessages(mInbox, "uid-1"), Collections.singleton(Flag.SEEN), false);
+        mInbox.setFlags(getMessages(mInbox, "uid-3", "uid-4"), Collections.singleton(Flag.FLAGGED), true);
+        assertCounters(mInbox, 4, 3, 3);
+    }
+
+    public void testSaveFlags() throws MessagingException {
+        appendMessages();
+
+        List<LocalMessage> messages = getMessages(mInbox, "uid-1", "uid-2");
+        for (LocalMessage message : messages) {
+            message.setFlagInternal(Flag.SEEN, true);
+            message.setFlagInternal(Flag.FLAGGED, false);
+        }
+        mInbox.saveFlags(messages);
+
+        assertCounters(mInbox, 4, 1, 0);
+    }
+
+    public void testMove() throws MessagingException {
+        appendMessages();
+
+        mInbox.moveMessages(getMessages(mInbox, "uid-1", "uid-2"), mArchive);
+
+        assertCounters(mInbox, 2, 1, 0);
+        assertCounters(mArchive, 2, 2, 1);
+    }
+
+    public void testMarkDeleted() throws MessagingException {
+        appendMessages();
+
+        mInbox.markMessagesDeleted(getMessages(mInbox, "uid-1"));
+        assertCounters(mInbox, 3, 2, 1);
+
+        mInbox.setFlags(getMessages(mInbox, "uid-2"), Collections.singleton(Flag.DELETED), true);
+        assertCounters(mInbox, 2, 1, 0);
+    }
+
+    public void testDestroyMessageWithoutReplies() throws MessagingException {
+        appendMessages();
+
+        mInbox.getMessage("uid-4").destroy();
+
+        assertCounters(mInbox, 3, 2, 1);
+    }
+
+    public void testDestroyMessageWithReplies() throws MessagingException {
+        appendMessages();
+
+        // uid-1 has a reply, so destroy() deletes its row and inserts an empty one
+        mInbox.getMessage("uid-1").destroy();
+
+        assertCounters(mInbox, 3, 2, 1);
+    }
+
+    public void testDestroyMessages() throws MessagingException {
+        appendMessages();
+
+        mInbox.destroyMessages(getMessages(mInbox, "uid-1", "uid-2", "uid-3"));
+
+        assertCounters(mInbox, 1, 1, 0);
+    }
+
+    public void testRepairFolderCounters() throws MessagingException {
+        appendMessages();
+        assertEquals(0, mLocalStore.repairFolderCounters());
+
+        execSql("UPDATE folders SET total_count = 17, unread_count = NULL");
+
+        assertEquals(2, mLocalStore.repairFolderCounters());
+        assertCounters(mInbox, 4, 3, 1);
+    }
+
+
+    /**
+     * Stores four messages in the inbox. uid-2 is the only flagged one, uid-3 the only read one
+     * and uid-2 is a reply to uid-1.
+     */
+    private void appendMessages() throws MessagingException {
+        MimeMessage first = createMessage("uid-1", "<1@example.com>", null);
+        MimeMessage reply = createMessage("uid-2", "<2@example.com>", "<1@example.com>");
+        reply.setFlag(Flag.FLAGGED, true);
+        MimeMessage read = createMessage("uid-3", "<3@example.com>", null);
+        read.setFlag(Flag.SEEN, true);
+        MimeMessage other = createMessage("uid-4", "<4@example.com>", null);
+
+        mInbox.appendMessages(Arrays.asList(first, reply, read, other));
+    }
+
+    /**
+     * Asserts the counters of the folder and that they match the messages table.
+     */
+    private void assertCounters(LocalFolder folder, int total, int unread, int flagged)
+            throws MessagingException {
+        final String folderId = Long.toString(folder.getId());
+        int[] counters = mLocalStore.database.execute(false, new DbCallback<int[]>() {
+            @Override
+            public int[] doDbWork(SQLiteDatabase db) {
+                String visibleMessages = StoreSchemaDefinition.FOLDER_MESSAGES;
+                Cursor cursor = db.rawQuery("SELECT total_count, unread_count, flagged_count, " +
+                        "(SELECT COUNT(*) " + visibleMessages + "), " +
+                        "(SELECT COUNT(*) " + visibleMessages + " AND read = 0), " +
+                        "(SELECT COUNT(*) " + visibleMessages + " AND flagged = 1) " +
+                        "FROM folders WHERE id = ?", new String[] { folderId });
+                try {
+                    assertTrue(cursor.moveToFirst());
+                    int[] values = new int[6];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = cursor.getInt(i);
+                    }
+                    return values;
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+
+        assertEquals("total_count", counters[3], counters[0]);
+        assertEquals("unread_count", counters[4], counters[1]);
+        assertEquals("flagged_count", counters[5], counters[2]);
+        assertEquals("total_count", total, counters[0]);
+        assertEquals("unread_count", unread, counters[1]);
+        assertEquals("flagged_count", flagged, counters[2]);
+    }
+
+    private void execSql(final String sql) throws MessagingException {
+        mLocalStore.database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(SQLiteDatabase db) {
+                db.execSQL(sql);
+                return null;
+            }
+        });
+    }
+
+    private LocalFolder createFolder(String name) throws MessagingException {
+        LocalFolder folder = mLocalStore.getFolder(name);
+        folder.create(FolderType.HOLDS_MESSAGES);
+        folder.open(LocalFolder.OPEN_MODE_RW);
+        return folder;
+    }
+
+    private static List<LocalMessage> getMessages(LocalFolder folder, String... uids)
+            throws MessagingException {
+        List<LocalMessage> messages = new ArrayList<LocalMessage>(uids.length);
+        for (String uid : uids) {
+            messages.add(folder.getMessage(uid));
+        }
+        return messages;
+    }
+
+    private static MimeMessage createMessage(String uid, String messageId, String inReplyTo)
+            throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setUid(uid);
+        message.setSubject("Subject of " + uid);
+        message.setSentDate(new Date(1400000000000L), false);
+        message.setMessageId(messageId);
+        if (inReplyTo != null) {
+            message.setInReplyTo(inReplyTo);
+            message.setReferences(inReplyTo);
+        }
+        message.setBody(new TextBody("Body of " + uid));
+        return message;
+    }
+}
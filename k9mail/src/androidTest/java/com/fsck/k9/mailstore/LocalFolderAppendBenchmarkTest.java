@@ -0,0 +1,115 @@
+package com.fsck.k9.mailstore;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.K9;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.Message.RecipientType;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+
+/**
+ * Stores header batches the size used by the synchronization code and logs the number of
+ * messages per second {@link LocalFolder#appendMessages(List)} manages to store.
+ */
+public class LocalFolderAppendBenchmarkTest extends AndroidTestCase {
+    private static final int BATCH_SIZE = 500;
+    private static final int BATCHES = 4;
+
+    private Account mAccount;
+    private LocalFolder mFolder;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mFolder = mAccount.getLocalStore().getFolder("benchmark");
+        mFolder.create(FolderType.HOLDS_MESSAGES);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAccount.getLocalStore().delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testAppendNewMessages() throws MessagingException {
+        long time = 0;
+        for (int batch = 0; batch < BATCHES; batch++) {
+            List<Message> messages = createMessages(batch * BATCH_SIZE, BATCH_SIZE);
+
+            long start = SystemClock.elapsedRealtime();
+            mFolder.appendMessages(messages);
+            time += SystemClock.elapsedRealtime() - start;
+        }
+
+        int count = BATCHES * BATCH_SIZE;
+        assertEquals(count, mFolder.getMessageCount());
+        logThroughput("new", count, time);
+    }
+
+    public void testReplaceExistingMessages() throws MessagingException {
+        mFolder.appendMessages(createMessages(0, BATCH_SIZE));
+
+        long start = SystemClock.elapsedRealtime();
+        mFolder.appendMessages(createMessages(0, BATCH_SIZE));
+        long time = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(BATCH_SIZE, mFolder.getMessageCount());
+        logThroughput("replaced", BATCH_SIZE, time);
+    }
+
+    public void testThreadingWithinBatch() throws MessagingException {
+        mFolder.appendMessages(createMessages(0, BATCH_SIZE));
+
+        LocalMessage first = mFolder.getMessage("uid-10");
+        LocalMessage last = mFolder.getMessage("uid-19");
+        LocalMessage other = mFolder.getMessage("uid-20");
+        assertEquals(first.getRootId(), last.getRootId());
+        assertFalse(first.getRootId() == other.getRootId());
+    }
+
+    private void logThroughput(String type, int count, long time) {
+        Log.i(K9.LOG_TAG, String.format(Locale.US, "Stored %d %s messages in %d ms (%.0f messages/sec)",
+                count, type, time, (time > 0) ? count * 1000.0 / time : 0.0));
+    }
+
+    /**
+     * Creates messages that look like the result of a header fetch. Every tenth message starts a
+     * new thread, the others reply to the previous message.
+     */
+    private static List<Message> createMessages(int first, int count) throws MessagingException {
+        List<Message> messages = new ArrayList<Message>(count);
+        for (int i = first; i < first + count; i++) {
+            MimeMessage message = new MimeMessage();
+            message.setUid("uid-" + i);
+            message.setSubject("Weekly report number " + (i / 10));
+            message.setFrom(new Address("sender" + (i % 7) + "@example.com", "Sender " + (i % 7)));
+            message.setRecipients(RecipientType.TO, new Address[] { new Address("k9mail@example.com") });
+            message.setSentDate(new Date(1400000000000L + i * 60000L), false);
+            message.setMessageId("<" + i + ".benchmark@example.com>");
+            if (i % 10 != 0) {
+                String parent = "<" + (i - 1) + ".benchmark@example.com>";
+                message.setInReplyTo(parent);
+                message.setReferences(parent);
+            }
+            message.setBody(new TextBody("Message body number " + i));
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,139 @@
+package com.fsck.k9.mailstore;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+
+
+public class LocalFolderThreadIndexTest extends AndroidTestCase {
+    private Account mAccount;
+    private LocalStore mLocalStore;
+    private LocalFolder mFolder;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mLocalStore = mAccount.getLocalStore();
+        mFolder = mLocalStore.getFolder("threads");
+        mFolder.create(FolderType.HOLDS_MESSAGES);
+        mFolder.open(LocalFolder.OPEN_MODE_RW);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testPlaceholderIsIndexed() throws MessagingException {
+        mFolder.appendMessages(Collections.singletonList(
+                createMessage("uid-1", "<reply@example.com>", "<missing@example.com>")));
+
+        ThreadIndex.Entry entry = mLocalStore.getThreadIndex().get(mFolder.getId(), "<missing@example.com>");
+        assertNotNull(entry);
+        assertTrue(entry.empty);
+    }
+
+    public void testFailedBatchClearsIndex() throws MessagingException {
+        mFolder.appendMessages(Collections.singletonList(
+                createMessage("uid-0", "<first@example.com>", null)));
+        mLocalStore.getThreadIndex().put(mFolder.getId(),
+                new ThreadInfo(1, 1, "<committed@example.com>", 1, -1), false);
+
+        try {
+            mFolder.appendMessages(Arrays.asList(
+                    createMessage("uid-1", "<reply@example.com>", "<missing@example.com>"),
+                    new FailingMessage("uid-2", "<failing@example.com>")));
+            fail("Expected MessagingException");
+        } catch (MessagingException e) {
+            // expected
+        }
+
+        assertNull(mLocalStore.getThreadIndex().get(mFolder.getId(), "<missing@example.com>"));
+        assertEquals(0, mLocalStore.getThreadIndex().size());
+        assertNull(mFolder.getMessage("uid-1"));
+        assertEquals(1, mFolder.getMessageCount());
+    }
+
+    public void testBatchCanBeStoredAfterFailure() throws MessagingException {
+        try {
+            mFolder.appendMessages(Arrays.asList(
+                    createMessage("uid-1", "<reply@example.com>", "<missing@example.com>"),
+                    new FailingMessage("uid-2", "<failing@example.com>")));
+            fail("Expected MessagingException");
+        } catch (MessagingException e) {
+            // expected
+        }
+
+        mFolder.appendMessages(Arrays.asList(
+                createMessage("uid-1", "<reply@example.com>", "<missing@example.com>"),
+                createMessage("uid-3", "<other@example.com>", "<missing@example.com>")));
+
+        LocalMessage reply = mFolder.getMessage("uid-1");
+        LocalMessage other = mFolder.getMessage("uid-3");
+        assertEquals(reply.getRootId(), other.getRootId());
+        assertTrue(threadExists(reply.getRootId()));
+    }
+
+
+    private boolean threadExists(final long threadId) throws MessagingException {
+        return mLocalStore.database.execute(false, new LockableDatabase.DbCallback<Boolean>() {
+            @Override
+            public Boolean doDbWork(SQLiteDatabase db) {
+                Cursor cursor = db.rawQuery("SELECT 1 FROM threads WHERE id = ?",
+                        new String[] { Long.toString(threadId) });
+                try {
+                    return cursor.moveToFirst();
+                } finally {
+                    cursor.close();
+                }
+            }
+        });
+    }
+
+    private static MimeMessage createMessage(String uid, String messageId, String inReplyTo)
+            throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setUid(uid);
+        message.setSubject("Subject of " + uid);
+        message.setSentDate(new Date(1400000000000L), false);
+        message.setMessageId(messageId);
+        if (inReplyTo != null) {
+            message.setInReplyTo(inReplyTo);
+            message.setReferences(inReplyTo);
+        }
+        message.setBody(new TextBody("Body of " + uid));
+        return message;
+    }
+
+
+    /**
+     * A message that can be threaded but makes storing it fail.
+     */
+    static class FailingMessage extends MimeMessage {
+        FailingMessage(String uid, String messageId) throws MessagingException {
+            setUid(uid);
+            setMessageId(messageId);
+            setBody(new TextBody("Never stored"));
+        }
+
+        @Override
+        public Date getInternalDate() {
+            throw new IllegalStateException("Storing the message failed");
+        }
+    }
+}
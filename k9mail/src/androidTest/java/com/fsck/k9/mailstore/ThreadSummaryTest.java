@@ -0,0 +1,240 @@
+package com.fsck.k9.mailstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.fsck.k9.Account;
+import com.fsck.k9.Preferences;
+import com.fsck.k9.mail.Flag;
+import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.internet.TextBody;
+import com.fsck.k9.mailstore.LockableDatabase.DbCallback;
+import com.fsck.k9.provider.EmailProvider;
+import com.fsck.k9.provider.EmailProvider.MessageColumns;
+import com.fsck.k9.provider.EmailProvider.SpecialColumns;
+
+
+/**
+ * Checks that the triggers keep the {@code thread_summary} table up to date and that threaded
+ * message lists read from it only aggregate the messages of the selected folders.
+ */
+public class ThreadSummaryTest extends AndroidTestCase {
+    private static final String[] PROJECTION = {
+        MessageColumns.ID,
+        SpecialColumns.THREAD_COUNT,
+        MessageColumns.DATE,
+        MessageColumns.READ,
+        MessageColumns.FOLDER_ID
+    };
+    private static final String SORT_ORDER = MessageColumns.DATE + " DESC, " +
+            MessageColumns.ID + " DESC";
+
+    private static final long ORIGINAL_DATE = 1400000000000L;
+    private static final long REPLY_DATE = 1400000600000L;
+
+    private Account mAccount;
+    private LocalStore mLocalStore;
+    private LocalFolder mInbox;
+    private LocalFolder mSent;
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = Preferences.getPreferences(getContext()).newAccount();
+        mLocalStore = mAccount.getLocalStore();
+        mInbox = createFolder("summary-inbox");
+        mSent = createFolder("summary-sent");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mLocalStore.delete();
+        Preferences.getPreferences(getContext()).deleteAccount(mAccount);
+        super.tearDown();
+    }
+
+    public void testThreadSpanningFoldersIsListedInEveryFolder() throws MessagingException {
+        createThreadSpanningFolders();
+        assertSummaryUpToDate();
+
+        List<long[]> inbox = queryThreads(mInbox);
+        assertEquals(1, inbox.size());
+        assertThread(inbox.get(0), mInbox.getMessage("uid-1"), 1, ORIGINAL_DATE, false);
+
+        List<long[]> sent = queryThreads(mSent);
+        assertEquals(1, sent.size());
+        assertThread(sent.get(0), mSent.getMessage("uid-2"), 1, REPLY_DATE, true);
+    }
+
+    public void testSelectionOfSeveralFoldersCombinesThread() throws MessagingException {
+        createThreadSpanningFolders();
+
+        List<long[]> threads = queryThreads("(" + MessageColumns.FOLDER_ID + " = ?) OR (" +
+                MessageColumns.FOLDER_ID + " = ?)",
+                Long.toString(mInbox.getId()), Long.toString(mSent.getId()));
+
+        assertEquals(1, threads.size());
+        assertThread(threads.get(0), mSent.getMessage("uid-2"), 2, REPLY_DATE, false);
+    }
+
+    public void testFlagChangeUpdatesSummary() throws MessagingException {
+        createThreadSpanningFolders();
+
+        mInbox.setFlags(Collections.singletonList(mInbox.getMessage("uid-1")),
+                Collections.singleton(Flag.SEEN), true);
+
+        assertSummaryUpToDate();
+        assertThread(queryThreads(mInbox).get(0), mInbox.getMessage("uid-1"), 1, ORIGINAL_DATE,
+                true);
+    }
+
+    public void testMoveUpdatesSummary() throws MessagingException {
+        createThreadSpanningFolders();
+
+        mSent.moveMessages(Collections.singletonList(mSent.getMessage("uid-2")), mInbox);
+
+        assertSummaryUpToDate();
+        assertEquals(0, queryThreads(mSent).size());
+        List<long[]> inbox = queryThreads(mInbox);
+        assertEquals(1, inbox.size());
+        assertEquals(2, inbox.get(0)[1]);
+        assertEquals(REPLY_DATE, inbox.get(0)[2]);
+    }
+
+    public void testDeletionUpdatesSummary() throws MessagingException {
+        createThreadSpanningFolders();
+
+        mSent.getMessage("uid-2").destroy();
+
+        assertSummaryUpToDate();
+        assertEquals(0, queryThreads(mSent).size());
+        assertThread(queryThreads(mInbox).get(0), mInbox.getMessage("uid-1"), 1, ORIGINAL_DATE,
+                false);
+    }
+
+
+    /**
+     * Stores an unread message in the inbox and a newer, read reply in the sent folder that
+     * belong to the same thread.
+     */
+    private void createThreadSpanningFolders() throws MessagingException {
+        mInbox.appendMessages(Collections.singletonList(
+                createMessage("uid-1", "<1@example.com>", null, ORIGINAL_DATE)));
+        MimeMessage reply = createMessage("uid-2", "<2@example.com>", "<1@example.com>", REPLY_DATE);
+        reply.setFlag(Flag.SEEN, true);
+        mSent.appendMessages(Collections.singletonList(reply));
+
+        // LocalFolder only threads the messages of one folder. Attach the thread of the reply
+        // (its placeholder for the original and the reply) to the thread in the inbox.
+        final String inboxRoot = Long.toString(mInbox.getMessage("uid-1").getRootId());
+        final String sentRoot = Long.toString(mSent.getMessage("uid-2").getRootId());
+        mLocalStore.database.execute(false, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(SQLiteDatabase db) {
+                db.execSQL("UPDATE threads SET root = ? WHERE root = ?",
+                        new Object[] { inboxRoot, sentRoot });
+                return null;
+            }
+        });
+    }
+
+    private static void assertThread(long[] thread, LocalMessage latestMessage, int count,
+            long date, boolean read) {
+        assertEquals("id", latestMessage.getId(), thread[0]);
+        assertEquals("thread_count", count, thread[1]);
+        assertEquals("date", date, thread[2]);
+        assertEquals("read", read ? 1 : 0, thread[3]);
+    }
+
+    /**
+     * Asserts that the rows the triggers maintained match a recalculation of the table.
+     */
+    private void assertSummaryUpToDate() throws MessagingException {
+        List<String> rows = mLocalStore.database.execute(false, new DbCallback<List<String>>() {
+            @Override
+            public List<String> doDbWork(SQLiteDatabase db) {
+                List<String> maintained = readThreadSummary(db);
+                StoreSchemaDefinition.recalculateThreadSummary(db);
+                List<String> recalculated = readThreadSummary(db);
+
+                assertEquals(recalculated, maintained);
+                return maintained;
+            }
+        });
+        assertFalse(rows.isEmpty());
+    }
+
+    private static List<String> readThreadSummary(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT * FROM thread_summary ORDER BY root, folder_id", null);
+        try {
+            List<String> rows = new ArrayList<String>();
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    row.append(cursor.getColumnName(i)).append('=').append(cursor.getString(i));
+                    row.append(' ');
+                }
+                rows.add(row.toString());
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<long[]> queryThreads(LocalFolder folder) {
+        return queryThreads(MessageColumns.FOLDER_ID + " = ?", Long.toString(folder.getId()));
+    }
+
+    /**
+     * @return The ID, thread count, date and read state of the listed threads.
+     */
+    private List<long[]> queryThreads(String selection, String... selectionArgs) {
+        Uri uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI,
+                "account/" + mAccount.getUuid() + "/messages/threaded");
+        Cursor cursor = getContext().getContentResolver().query(uri, PROJECTION, selection,
+                selectionArgs, SORT_ORDER);
+        try {
+            List<long[]> threads = new ArrayList<long[]>();
+            while (cursor.moveToNext()) {
+                threads.add(new long[] { cursor.getLong(0), cursor.getLong(1), cursor.getLong(2),
+                        cursor.getLong(3) });
+            }
+            return threads;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private LocalFolder createFolder(String name) throws MessagingException {
+        LocalFolder folder = mLocalStore.getFolder(name);
+        folder.create(FolderType.HOLDS_MESSAGES);
+        folder.open(LocalFolder.OPEN_MODE_RW);
+        return folder;
+    }
+
+    private static MimeMessage createMessage(String uid, String messageId, String inReplyTo,
+            long date) throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setUid(uid);
+        message.setSubject("Subject of " + uid);
+        message.setSentDate(new Date(date), false);
+        message.setMessageId(messageId);
+        if (inReplyTo != null) {
+            message.setInReplyTo(inReplyTo);
+            message.setReferences(inReplyTo);
+        }
+        message.setBody(new TextBody("Body of " + uid));
+        return message;
+    }
+}
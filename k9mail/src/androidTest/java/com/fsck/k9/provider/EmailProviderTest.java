@@ -0,0 +1,68 @@
+package com.fsck.k9.provider;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+
+public class EmailProviderTest extends AndroidTestCase {
+    private static final Uri MESSAGES_URI =
+            Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/uuid/messages");
+
+
+    public void testGetLimitWithoutParameters() {
+        assertNull(EmailProvider.getLimit(MESSAGES_URI));
+    }
+
+    public void testGetLimit() {
+        assertEquals("101", EmailProvider.getLimit(createUri("101", null)));
+    }
+
+    public void testGetLimitWithOffset() {
+        assertEquals("200,101", EmailProvider.getLimit(createUri("101", "200")));
+    }
+
+    public void testGetLimitWithZeroOffset() {
+        assertEquals("0,101", EmailProvider.getLimit(createUri("101", "0")));
+    }
+
+    public void testGetLimitRejectsNegativeLimit() {
+        assertInvalid(createUri("-1", null));
+    }
+
+    public void testGetLimitRejectsInvalidLimit() {
+        assertInvalid(createUri("10; DROP TABLE messages", null));
+    }
+
+    public void testGetLimitRejectsNegativeOffset() {
+        assertInvalid(createUri("101", "-100"));
+    }
+
+    public void testGetLimitRejectsInvalidOffset() {
+        assertInvalid(createUri("101", "1,2"));
+    }
+
+    public void testGetLimitRejectsOffsetWithoutLimit() {
+        assertInvalid(createUri(null, "100"));
+    }
+
+
+    private static Uri createUri(String limit, String offset) {
+        Uri.Builder builder = MESSAGES_URI.buildUpon();
+        if (limit != null) {
+            builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_LIMIT, limit);
+        }
+        if (offset != null) {
+            builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_OFFSET, offset);
+        }
+        return builder.build();
+    }
+
+    private static void assertInvalid(Uri uri) {
+        try {
+            EmailProvider.getLimit(uri);
+            fail("Expected IllegalArgumentException for " + uri);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -85,6 +85,17 @@ public class Account implements BaseAccount, StoreConfig {
     public static final boolean DEFAULT_REPLY_AFTER_QUOTE = false;
     public static final boolean DEFAULT_STRIP_SIGNATURE = true;
     public static final int DEFAULT_REMOTE_SEARCH_NUM_RESULTS = 25;
+    public static final int DEFAULT_MAX_CONNECTIONS = 3;
+    public static final int DEFAULT_CONNECTION_ACQUIRE_TIMEOUT = 30;
+
+    /*
+     * Mobile links are slow and metered, so spending more CPU on better compression pays off
+     * there. On other networks the CPU time is better spent elsewhere.
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL_MOBILE = 6;
+    public static final int DEFAULT_COMPRESSION_LEVEL = 1;
+    private static final int COMPRESSION_BUFFER_SIZE_MOBILE = 1024;
+    private static final int COMPRESSION_BUFFER_SIZE = 8192;
 
     public static final String ACCOUNT_DESCRIPTION_KEY = "description";
     public static final String STORE_URI_KEY = "storeUri";
@@ -188,9 +199,12 @@ public class Account implements BaseAccount, StoreConfig {
     private boolean mIsSignatureBeforeQuotedText;
     private String mExpungePolicy = EXPUNGE_IMMEDIATELY;
     private int mMaxPushFolders;
+    private int mMaxConnections;
+    private int mConnectionAcquireTimeout;
     private int mIdleRefreshMinutes;
     private boolean goToUnreadMessageSearch;
     private final Map<String, Boolean> compressionMap = new ConcurrentHashMap<String, Boolean>();
+    private final Map<String, Integer> compressionLevelMap = new ConcurrentHashMap<String, Integer>();
     private Searchable searchableFolders;
     private boolean subscribedFoldersOnly;
     private int maximumPolledMessageAge;
@@ -287,6 +301,8 @@ public class Account implements BaseAccount, StoreConfig {
         mAutoExpandFolderName = INBOX;
         mInboxFolderName = INBOX;
         mMaxPushFolders = 10;
+        mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+        mConnectionAcquireTimeout = DEFAULT_CONNECTION_ACQUIRE_TIMEOUT;
         mChipColor = pickColor(context);
         goToUnreadMessageSearch = false;
         subscribedFoldersOnly = false;
@@ -398,6 +414,9 @@ public class Account implements BaseAccount, StoreConfig {
         mSyncRemoteDeletions = prefs.getBoolean(mUuid  + ".syncRemoteDeletions", true);
 
         mMaxPushFolders = prefs.getInt(mUuid + ".maxPushFolders", 10);
+        mMaxConnections = prefs.getInt(mUuid + ".maxConnections", DEFAULT_MAX_CONNECTIONS);
+        mConnectionAcquireTimeout = prefs.getInt(mUuid + ".connectionAcquireTimeout",
+                DEFAULT_CONNECTION_ACQUIRE_TIMEOUT);
         goToUnreadMessageSearch = prefs.getBoolean(mUuid + ".goToUnreadMessageSearch", false);
         subscribedFoldersOnly = prefs.getBoolean(mUuid + ".subscribedFoldersOnly", false);
         maximumPolledMessageAge = prefs.getInt(mUuid + ".maximumPolledMessageAge", -1);
@@ -417,6 +436,10 @@ public class Account implements BaseAccount, StoreConfig {
             Boolean useCompression = prefs.getBoolean(mUuid + ".useCompression." + type,
                                      true);
             compressionMap.put(type, useCompression);
+
+            int compressionLevel = prefs.getInt(mUuid + ".compressionLevel." + type,
+                    getDefaultCompressionLevel(type));
+            compressionLevelMap.put(type, compressionLevel);
         }
 
         mAutoExpandFolderName = prefs.getString(mUuid  + ".autoExpandFolderName", INBOX);
@@ -559,6 +582,8 @@ public class Account implements BaseAccount, StoreConfig {
         editor.remove(mUuid + ".expungePolicy");
         editor.remove(mUuid + ".syncRemoteDeletions");
         editor.remove(mUuid + ".maxPushFolders");
+        editor.remove(mUuid + ".maxConnections");
+        editor.remove(mUuid + ".connectionAcquireTimeout");
         editor.remove(mUuid + ".searchableFolders");
         editor.remove(mUuid + ".chipColor");
         editor.remove(mUuid + ".led");
@@ -593,6 +618,7 @@ public class Account implements BaseAccount, StoreConfig {
         editor.remove(mUuid + ".notifyMailCheck");
         for (String type : networkTypes) {
             editor.remove(mUuid + ".useCompression." + type);
+            editor.remove(mUuid + ".compressionLevel." + type);
         }
         deleteIdentities(preferences.getPreferences(), editor);
         // TODO: Remove preference settings that may exist for individual
@@ -727,6 +753,8 @@ public class Account implements BaseAccount, StoreConfig {
         editor.putString(mUuid + ".expungePolicy", mExpungePolicy);
         editor.putBoolean(mUuid + ".syncRemoteDeletions", mSyncRemoteDeletions);
         editor.putInt(mUuid + ".maxPushFolders", mMaxPushFolders);
+        editor.putInt(mUuid + ".maxConnections", mMaxConnections);
+        editor.putInt(mUuid + ".connectionAcquireTimeout", mConnectionAcquireTimeout);
         editor.putString(mUuid + ".searchableFolders", searchableFolders.name());
         editor.putInt(mUuid + ".chipColor", mChipColor);
         editor.putBoolean(mUuid + ".goToUnreadMessageSearch", goToUnreadMessageSearch);
@@ -770,6 +798,11 @@ public class Account implements BaseAccount, StoreConfig {
             if (useCompression != null) {
                 editor.putBoolean(mUuid + ".useCompression." + type, useCompression);
             }
+
+            Integer compressionLevel = compressionLevelMap.get(type);
+            if (compressionLevel != null) {
+                editor.putInt(mUuid + ".compressionLevel." + type, compressionLevel);
+            }
         }
         saveIdentities(preferences.getPreferences(), editor);
 
@@ -1291,6 +1324,31 @@ public class Account implements BaseAccount, StoreConfig {
         return oldMaxPushFolders != maxPushFolders;
     }
 
+    /**
+     * @return The maximum number of connections to the incoming server that are used at the
+     *         same time. This also limits how many folders are synchronized in parallel.
+     */
+    public synchronized int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = maxConnections;
+    }
+
+    /**
+     * @return How many seconds to wait for one of the {@link #getMaxConnections()} connections
+     *         to become available before opening another one. {@code 0} opens a new connection
+     *         right away.
+     */
+    public synchronized int getConnectionAcquireTimeout() {
+        return mConnectionAcquireTimeout;
+    }
+
+    public synchronized void setConnectionAcquireTimeout(int connectionAcquireTimeout) {
+        mConnectionAcquireTimeout = connectionAcquireTimeout;
+    }
+
     public LocalStore getLocalStore() throws MessagingException {
         return LocalStore.getInstance(this, K9.app);
     }
@@ -1326,16 +1384,47 @@ public class Account implements BaseAccount, StoreConfig {
     }
 
     public boolean useCompression(int type) {
-        String networkType = TYPE_OTHER;
+        return useCompression(getNetworkType(type));
+    }
+
+    public synchronized void setCompressionLevel(String networkType, int compressionLevel) {
+        compressionLevelMap.put(networkType, compressionLevel);
+    }
+
+    public synchronized int getCompressionLevel(String networkType) {
+        Integer compressionLevel = compressionLevelMap.get(networkType);
+        if (compressionLevel == null) {
+            return getDefaultCompressionLevel(networkType);
+        }
+
+        return compressionLevel;
+    }
+
+    @Override
+    public int getCompressionLevel(int type) {
+        return getCompressionLevel(getNetworkType(type));
+    }
+
+    @Override
+    public int getCompressionBufferSize(int type) {
+        return TYPE_MOBILE.equals(getNetworkType(type)) ?
+                COMPRESSION_BUFFER_SIZE_MOBILE : COMPRESSION_BUFFER_SIZE;
+    }
+
+    private static int getDefaultCompressionLevel(String networkType) {
+        return TYPE_MOBILE.equals(networkType) ?
+                DEFAULT_COMPRESSION_LEVEL_MOBILE : DEFAULT_COMPRESSION_LEVEL;
+    }
+
+    private static String getNetworkType(int type) {
         switch (type) {
         case ConnectivityManager.TYPE_MOBILE:
-            networkType = TYPE_MOBILE;
-            break;
+            return TYPE_MOBILE;
         case ConnectivityManager.TYPE_WIFI:
-            networkType = TYPE_WIFI;
-            break;
+            return TYPE_WIFI;
+        default:
+            return TYPE_OTHER;
         }
-        return useCompression(networkType);
     }
 
     @Override
@@ -123,7 +123,7 @@ public class Preferences {
         }
 
         try {
-            RemoteStore.removeInstance(account);
+            RemoteStore.deleteInstance(mContext, account);
         } catch (Exception e) {
             Log.e(K9.LOG_TAG, "Failed to reset remote store for account " + account.getUuid(), e);
         }
@@ -640,6 +640,9 @@ public class FolderList extends K9ListActivity {
         case R.id.refresh_folder:
             checkMail(folder);
             break;
+        case R.id.rethread_folder:
+            MessagingController.getInstance(getApplication()).rethreadFolder(mAccount, folder.name, null);
+            break;
         case R.id.folder_settings:
             FolderSettings.actionSettings(this, mAccount, folder.name);
             break;
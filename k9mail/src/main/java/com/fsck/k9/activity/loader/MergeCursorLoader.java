@@ -0,0 +1,386 @@
+package com.fsck.k9.activity.loader;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.fsck.k9.helper.MergeCursor;
+import com.fsck.k9.helper.MergeCursorWithUniqueId;
+import com.fsck.k9.provider.EmailProvider;
+
+/**
+ * Loader that queries the message lists of several accounts and merges them into one cursor.
+ *
+ * <p>
+ * The accounts are queried in parallel. The first load only returns the first {@code limit} rows
+ * of the merged list, so every account only has to return that many rows, too.
+ * {@link #loadNextPage()} then queries the following {@code pageSize} rows of every account,
+ * skipping the rows the account already contributed, and appends the merged page. Use
+ * {@link MergeCursor#hasMoreRows()} to find out whether there are more rows.
+ * </p>
+ * <p>
+ * When the content changes, all rows shown so far are loaded again as a single page.
+ * </p>
+ */
+public class MergeCursorLoader extends AsyncTaskLoader<Cursor> {
+    /**
+     * Maximum number of accounts queried at the same time.
+     */
+    private static final int QUERY_THREADS = 4;
+
+    private static final ExecutorService sQueryExecutor = Executors.newFixedThreadPool(QUERY_THREADS);
+
+    /**
+     * Keeps the pages in the order they were loaded, i.e. concatenates them.
+     */
+    private static final Comparator<Cursor> PAGE_ORDER = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor cursor1, Cursor cursor2) {
+            return 0;
+        }
+    };
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private final Uri[] mUris;
+    private final String[] mProjection;
+    private final String[] mSelections;
+    private final String[][] mSelectionArgs;
+    private final String mSortOrder;
+    private final Comparator<Cursor> mComparator;
+    private final int mLimit;
+    private final int mPageSize;
+
+    /**
+     * The cursor delivered last. Only changed on the main thread, but read by
+     * {@link #loadInBackground()}, so access is synchronized.
+     */
+    private PagedCursor mCursor;
+
+    /**
+     * The number of rows of {@link #mCursor}.
+     */
+    private int mRowCount;
+
+    /**
+     * {@code true} if the next load only has to query the page following {@link #mCursor}.
+     */
+    private boolean mNextPageRequested;
+
+
+    /**
+     * @param uris
+     *         The message list URIs of the accounts.
+     * @param selections
+     *         The selection for each of the URIs.
+     * @param selectionArgs
+     *         The selection arguments for each of the URIs.
+     * @param comparator
+     *         Compares the rows the same way {@code sortOrder} sorts them.
+     * @param limit
+     *         The number of rows to load initially. {@code -1} to load all rows at once.
+     * @param pageSize
+     *         The number of rows added by {@link #loadNextPage()}.
+     */
+    public MergeCursorLoader(Context context, Uri[] uris, String[] projection, String[] selections,
+            String[][] selectionArgs, String sortOrder, Comparator<Cursor> comparator, int limit,
+            int pageSize) {
+        super(context);
+        mUris = uris;
+        mProjection = projection;
+        mSelections = selections;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+        mComparator = comparator;
+        mLimit = limit;
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Loads the next page and delivers a cursor with the rows loaded so far and the new page.
+     *
+     * <p>
+     * Does nothing if there is no cursor yet or all rows have been loaded.
+     * </p>
+     */
+    public void loadNextPage() {
+        synchronized (this) {
+            if (mCursor == null || !mCursor.hasMoreRows()) {
+                return;
+            }
+            mNextPageRequested = true;
+        }
+
+        forceLoad();
+    }
+
+    @Override
+    public void onContentChanged() {
+        // The pages loaded so far are outdated, so the next load has to start from the beginning
+        synchronized (this) {
+            mNextPageRequested = false;
+        }
+
+        super.onContentChanged();
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Page lastPage = null;
+        int limit = mLimit;
+        synchronized (this) {
+            if (mCursor != null) {
+                if (mNextPageRequested) {
+                    lastPage = mCursor.getLastPage();
+                } else if (mLimit >= 0) {
+                    // Reload all rows shown so far
+                    limit = Math.max(mLimit, mRowCount);
+                }
+            }
+            mNextPageRequested = false;
+        }
+
+        return (lastPage != null) ? loadPage(lastPage, mPageSize) : loadPage(null, limit);
+    }
+
+    /**
+     * Queries the accounts for the rows following {@code previous}.
+     *
+     * @param previous
+     *         The page the new page follows. {@code null} to query the first rows.
+     * @param limit
+     *         The maximum number of rows of the new page. {@code -1} for all rows.
+     */
+    Page loadPage(Page previous, int limit) {
+        final ContentResolver contentResolver = getContext().getContentResolver();
+
+        // One more row than needed tells whether there are more rows than the limit
+        String queryLimit = Integer.toString(limit + 1);
+
+        int len = mUris.length;
+        List<Future<Cursor>> futures = new ArrayList<Future<Cursor>>(len);
+        for (int i = 0; i < len; i++) {
+            if (previous != null && previous.mExhausted[i]) {
+                // The previous pages contain all rows of this account
+                futures.add(null);
+                continue;
+            }
+
+            Uri.Builder builder = mUris[i].buildUpon();
+            if (limit >= 0) {
+                builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_LIMIT, queryLimit);
+                if (previous != null) {
+                    builder.appendQueryParameter(EmailProvider.QUERY_PARAMETER_OFFSET,
+                            Integer.toString(previous.mOffsets[i]));
+                }
+            }
+            final Uri uri = builder.build();
+            final String selection = mSelections[i];
+            final String[] selectionArgs = mSelectionArgs[i];
+
+            futures.add(sQueryExecutor.submit(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    Cursor cursor = contentResolver.query(uri, mProjection, selection,
+                            selectionArgs, mSortOrder);
+
+                    // Run the query on this thread rather than when the cursor is first used
+                    cursor.getCount();
+                    return cursor;
+                }
+            }));
+        }
+
+        Cursor[] cursors = new Cursor[len];
+        try {
+            for (int i = 0; i < len; i++) {
+                Future<Cursor> future = futures.get(i);
+                cursors[i] = (future != null) ? future.get() : null;
+            }
+        } catch (InterruptedException e) {
+            closeCursors(futures);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while querying the message lists", e);
+        } catch (ExecutionException e) {
+            closeCursors(futures);
+            throw new RuntimeException("Error querying the message lists", e.getCause());
+        }
+
+        Page page = new Page(cursors, mComparator, limit, previous);
+        page.registerContentObserver(mObserver);
+        return page;
+    }
+
+    private static void closeCursors(List<Future<Cursor>> futures) {
+        for (Future<Cursor> future : futures) {
+            if (future == null) {
+                continue;
+            }
+
+            try {
+                Cursor cursor = future.get();
+                if (cursor != null) {
+                    cursor.close();
+                }
+            } catch (Exception e) {
+                // The query failed, so there's no cursor to close
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        Page page = (Page) cursor;
+        if (isReset()) {
+            if (page != null) {
+                page.close();
+            }
+            return;
+        }
+
+        PagedCursor oldCursor = mCursor;
+        PagedCursor newCursor;
+        if (page.mPrevious == null) {
+            newCursor = new PagedCursor(new Page[] { page });
+        } else if (oldCursor != null && oldCursor.getLastPage() == page.mPrevious) {
+            newCursor = oldCursor.append(page);
+
+            // The new cursor uses the pages of the old one, so they must not be closed
+            oldCursor = null;
+        } else {
+            // The page doesn't follow the current cursor, e.g. because the list was reloaded
+            page.close();
+            return;
+        }
+
+        int rowCount = newCursor.getCount();
+        synchronized (this) {
+            mCursor = newCursor;
+            mRowCount = rowCount;
+        }
+
+        if (isStarted()) {
+            super.deliverResult(newCursor);
+        }
+
+        if (oldCursor != null && !oldCursor.isClosed()) {
+            oldCursor.close();
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mCursor != null) {
+            super.deliverResult(mCursor);
+        }
+
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        onStopLoading();
+
+        if (mCursor != null && !mCursor.isClosed()) {
+            mCursor.close();
+        }
+        synchronized (this) {
+            mCursor = null;
+            mRowCount = 0;
+            mNextPageRequested = false;
+        }
+    }
+
+
+    /**
+     * The rows of all accounts returned by one load, in merged order.
+     */
+    static class Page extends MergeCursorWithUniqueId {
+        final Page mPrevious;
+
+        /**
+         * The number of rows of each account in this and the previous pages.
+         */
+        final int[] mOffsets;
+
+        /**
+         * {@code true} for the accounts that don't have rows after the ones in this and the
+         * previous pages.
+         */
+        final boolean[] mExhausted;
+
+
+        Page(Cursor[] cursors, Comparator<Cursor> comparator, int limit, Page previous) {
+            super(cursors, comparator, limit);
+            mPrevious = previous;
+
+            // Also calculates the merged order, so this doesn't happen on the main thread
+            int[] rowCounts = getRowCounts();
+
+            int len = cursors.length;
+            mOffsets = new int[len];
+            mExhausted = new boolean[len];
+            for (int i = 0; i < len; i++) {
+                Cursor cursor = cursors[i];
+                mOffsets[i] = ((previous != null) ? previous.mOffsets[i] : 0) + rowCounts[i];
+                mExhausted[i] = (cursor == null || limit < 0 ||
+                        (cursor.getCount() <= limit && rowCounts[i] == cursor.getCount()));
+            }
+        }
+    }
+
+    /**
+     * Concatenates the pages loaded so far.
+     */
+    static class PagedCursor extends MergeCursor {
+        private final Page[] mPages;
+
+
+        PagedCursor(Page[] pages) {
+            super(pages, PAGE_ORDER);
+            mPages = pages;
+        }
+
+        Page getLastPage() {
+            return mPages[mPages.length - 1];
+        }
+
+        PagedCursor append(Page page) {
+            Page[] pages = new Page[mPages.length + 1];
+            System.arraycopy(mPages, 0, pages, 0, mPages.length);
+            pages[mPages.length] = page;
+            return new PagedCursor(pages);
+        }
+
+        @Override
+        public boolean hasMoreRows() {
+            return getLastPage().hasMoreRows();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.fsck.k9.controller;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fsck.k9.K9;
+
+
+/**
+ * Runs the commands of one account one at a time, foreground commands first.
+ *
+ * <p>
+ * Every account gets its own queue so a slow server only holds up the commands of the
+ * account it belongs to. The queue only occupies a thread of the executor while there are
+ * commands to run.
+ * </p>
+ */
+class CommandQueue implements Runnable {
+    /**
+     * Runs a single command taken from a {@link CommandQueue}.
+     */
+    interface CommandRunner {
+        void runCommand(CommandQueue queue, Command command);
+    }
+
+
+    private static final AtomicInteger sequencing = new AtomicInteger(0);
+
+    final String mName;
+    private final Executor mExecutor;
+    private final CommandRunner mRunner;
+    private final BlockingQueue<Command> mCommands = new PriorityBlockingQueue<Command>();
+    private volatile boolean mBusy;
+
+    // Guarded by "this"
+    private boolean mScheduled;
+    private long mExecutedCommands;
+    private long mTotalWaitTime;
+    private long mMaxWaitTime;
+
+
+    CommandQueue(String name, Executor executor, CommandRunner runner) {
+        mName = name;
+        mExecutor = executor;
+        mRunner = runner;
+    }
+
+    /**
+     * Adds a command to the queue and makes sure a thread is draining the queue.
+     *
+     * @throws RejectedExecutionException
+     *         if the executor doesn't accept the queue, e.g. because it has been shut down. The
+     *         command is dropped in that case.
+     */
+    void put(Command command) {
+        command.enqueueTime = SystemClock.elapsedRealtime();
+        mCommands.offer(command);
+
+        synchronized (this) {
+            if (!mScheduled) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    mCommands.remove(command);
+                    throw e;
+                }
+                mScheduled = true;
+            }
+        }
+    }
+
+    boolean isBusy() {
+        return mBusy;
+    }
+
+    boolean hasPendingCommands() {
+        return !mCommands.isEmpty();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        Thread.currentThread().setName("MessagingController " + mName);
+
+        while (true) {
+            Command command;
+            synchronized (this) {
+                command = mCommands.poll();
+                if (command == null) {
+                    mScheduled = false;
+                    return;
+                }
+            }
+
+            mBusy = true;
+            try {
+                mRunner.runCommand(this, command);
+            } catch (Exception e) {
+                Log.e(K9.LOG_TAG, "Error running command '" + command.description + "'", e);
+            } finally {
+                mBusy = false;
+            }
+        }
+    }
+
+    synchronized long recordWaitTime(Command command) {
+        long waitTime = SystemClock.elapsedRealtime() - command.enqueueTime;
+        mExecutedCommands++;
+        mTotalWaitTime += waitTime;
+        if (waitTime > mMaxWaitTime) {
+            mMaxWaitTime = waitTime;
+        }
+        return waitTime;
+    }
+
+    synchronized CommandQueueStats getStats() {
+        long averageWaitTime = (mExecutedCommands == 0) ? 0 : mTotalWaitTime / mExecutedCommands;
+        return new CommandQueueStats(mCommands.size(), mBusy, mExecutedCommands,
+                averageWaitTime, mMaxWaitTime);
+    }
+
+
+    static class Command implements Comparable<Command> {
+        public Runnable runnable;
+
+        public MessagingListener listener;
+
+        public String description;
+
+        boolean isForeground;
+
+        int sequence = sequencing.getAndIncrement();
+
+        long enqueueTime;
+
+        @Override
+        public int compareTo(Command other) {
+            if (other.isForeground && !isForeground) {
+                return 1;
+            } else if (!other.isForeground && isForeground) {
+                return -1;
+            } else {
+                return (sequence - other.sequence);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.fsck.k9.controller;
+
+/**
+ * Snapshot of the command queue of one account.
+ *
+ * @see MessagingController#getCommandQueueStats(com.fsck.k9.Account)
+ */
+public class CommandQueueStats {
+    /** Number of commands waiting to be run. */
+    public final int pendingCommands;
+    /** Whether a command is running right now. */
+    public final boolean busy;
+    /** Number of commands run so far. */
+    public final long executedCommands;
+    /** Average time (in milliseconds) a command spent in the queue before it was run. */
+    public final long averageWaitTime;
+    /** Longest time (in milliseconds) a command spent in the queue before it was run. */
+    public final long maxWaitTime;
+
+    CommandQueueStats(int pendingCommands, boolean busy, long executedCommands,
+            long averageWaitTime, long maxWaitTime) {
+        this.pendingCommands = pendingCommands;
+        this.busy = busy;
+        this.executedCommands = executedCommands;
+        this.averageWaitTime = averageWaitTime;
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    @Override
+    public String toString() {
+        return "pending=" + pendingCommands + ", busy=" + busy + ", executed=" + executedCommands +
+                ", averageWait=" + averageWaitTime + "ms, maxWait=" + maxWaitTime + "ms";
+    }
+}
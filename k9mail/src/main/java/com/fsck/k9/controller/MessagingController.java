@@ -12,11 +12,13 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -33,7 +35,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.PowerManager;
-import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
 import android.text.SpannableStringBuilder;
@@ -59,6 +61,7 @@ import com.fsck.k9.activity.setup.AccountSetupCheckSettings.CheckDirection;
 import com.fsck.k9.activity.setup.AccountSetupIncoming;
 import com.fsck.k9.activity.setup.AccountSetupOutgoing;
 import com.fsck.k9.cache.EmailProviderCache;
+import com.fsck.k9.controller.CommandQueue.Command;
 import com.fsck.k9.helper.Contacts;
 import com.fsck.k9.helper.MessageHelper;
 import com.fsck.k9.mail.power.TracingPowerManager;
@@ -68,6 +71,7 @@ import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.FolderStatus;
 
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.Message.RecipientType;
@@ -112,7 +116,7 @@ import com.fsck.k9.service.NotificationActionService;
  * it removes itself. Thus, any commands that that activity submitted are
  * removed from the queue once the activity is no longer active.
  */
-public class MessagingController implements Runnable {
+public class MessagingController {
     public static final long INVALID_MESSAGE_ID = -1;
 
     /**
@@ -176,14 +180,40 @@ public class MessagingController implements Runnable {
      */
     private static final int UNSYNC_CHUNK_SIZE = 5;
 
+    /**
+     * Minimum time (in milliseconds) between two checks of the message counters of the folders
+     * of an account during the periodic mail check.
+     */
+    private static final long FOLDER_COUNTER_CHECK_INTERVAL = 24 * 60 * 60 * 1000L;
+
     private static MessagingController inst = null;
-    private BlockingQueue<Command> mCommands = new PriorityBlockingQueue<Command>();
+    /**
+     * Command queues indexed by account UUID. Commands that don't belong to an account use the
+     * queue stored under {@link #GLOBAL_QUEUE_KEY}.
+     */
+    private final ConcurrentHashMap<String, CommandQueue> mCommandQueues = new ConcurrentHashMap<String, CommandQueue>();
+
+    private static final String GLOBAL_QUEUE_KEY = "";
+
+    private final ExecutorService mCommandExecutor = Executors.newCachedThreadPool();
+
+    private final CommandQueue.CommandRunner mCommandRunner = new CommandQueue.CommandRunner() {
+        @Override
+        public void runCommand(CommandQueue queue, Command command) {
+            MessagingController.this.runCommand(queue, command);
+        }
+    };
 
-    private Thread mThread;
     private Set<MessagingListener> mListeners = new CopyOnWriteArraySet<MessagingListener>();
 
     private final ConcurrentHashMap<String, AtomicInteger> sendCount = new ConcurrentHashMap<String, AtomicInteger>();
 
+    /**
+     * Time of the last check of the folder counters, see {@link #repairFolderCountersIfDue(Account)}.
+     * Indexed by account UUID.
+     */
+    private final ConcurrentHashMap<String, Long> mLastFolderCounterCheck = new ConcurrentHashMap<String, Long>();
+
     ConcurrentHashMap<Account, Pusher> pushers = new ConcurrentHashMap<Account, Pusher>();
 
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
@@ -192,8 +222,6 @@ public class MessagingController implements Runnable {
 
     private MemorizingListener memorizingListener = new MemorizingListener();
 
-    private boolean mBusy;
-
     private Context context;
 
     /**
@@ -366,9 +394,6 @@ public class MessagingController implements Runnable {
 
     private MessagingController(Context context) {
         this.context = context;
-        mThread = new Thread(this);
-        mThread.setName("MessagingController");
-        mThread.start();
         if (memorizingListener != null) {
             addListener(memorizingListener);
         }
@@ -382,89 +407,99 @@ public class MessagingController implements Runnable {
     }
 
     public boolean isBusy() {
-        return mBusy;
+        for (CommandQueue queue : mCommandQueues.values()) {
+            if (queue.isBusy()) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    @Override
-    public void run() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        while (true) {
-            String commandDescription = null;
-            try {
-                final Command command = mCommands.take();
+    private boolean hasPendingCommands() {
+        for (CommandQueue queue : mCommandQueues.values()) {
+            if (queue.hasPendingCommands()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                if (command != null) {
-                    commandDescription = command.description;
+    /**
+     * Returns queue depth and wait time statistics for the commands of an account.
+     *
+     * @param account
+     *         The account, or {@code null} for commands that don't belong to an account.
+     */
+    public CommandQueueStats getCommandQueueStats(Account account) {
+        return getCommandQueue(account).getStats();
+    }
 
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") + " command '" + command.description + "', seq = " + command.sequence);
+    private CommandQueue getCommandQueue(Account account) {
+        String key = (account == null) ? GLOBAL_QUEUE_KEY : account.getUuid();
+        CommandQueue queue = mCommandQueues.get(key);
+        if (queue == null) {
+            String name = (account == null) ? "global" : account.getDescription();
+            CommandQueue newQueue = new CommandQueue(name, mCommandExecutor, mCommandRunner);
+            queue = mCommandQueues.putIfAbsent(key, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
 
-                    mBusy = true;
-                    try {
-                        command.runnable.run();
-                    } catch (UnavailableAccountException e) {
-                        // retry later
-                        new Thread() {
-                            @Override
-                            public void run() {
-                                try {
-                                    sleep(30 * 1000);
-                                    mCommands.put(command);
-                                } catch (InterruptedException e) {
-                                    Log.e(K9.LOG_TAG, "interrupted while putting a pending command for"
-                                          + " an unavailable account back into the queue."
-                                          + " THIS SHOULD NEVER HAPPEN.");
-                                }
-                            }
-                        } .start();
-                    }
+    private void runCommand(final CommandQueue queue, final Command command) {
+        long waitTime = queue.recordWaitTime(command);
 
-                    if (K9.DEBUG)
-                        Log.i(K9.LOG_TAG, (command.isForeground ? "Foreground" : "Background") +
-                              " Command '" + command.description + "' completed");
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, "Running " + (command.isForeground ? "Foreground" : "Background") +
+                  " command '" + command.description + "', seq = " + command.sequence +
+                  ", queue = " + queue.mName + ", waited " + waitTime + "ms");
 
-                    for (MessagingListener l : getListeners(command.listener)) {
-                        l.controllerCommandCompleted(!mCommands.isEmpty());
+        try {
+            command.runnable.run();
+        } catch (UnavailableAccountException e) {
+            // retry later
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        sleep(30 * 1000);
+                        queue.put(command);
+                    } catch (InterruptedException e) {
+                        Log.e(K9.LOG_TAG, "interrupted while putting a pending command for"
+                              + " an unavailable account back into the queue."
+                              + " THIS SHOULD NEVER HAPPEN.");
                     }
                 }
-            } catch (Exception e) {
-                Log.e(K9.LOG_TAG, "Error running command '" + commandDescription + "'", e);
-            }
-            mBusy = false;
+            } .start();
         }
-    }
 
-    private void put(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, true);
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, (command.isForeground ? "Foreground" : "Background") +
+                  " Command '" + command.description + "' completed");
+
+        for (MessagingListener l : getListeners(command.listener)) {
+            l.controllerCommandCompleted(hasPendingCommands());
+        }
     }
 
-    private void putBackground(String description, MessagingListener listener, Runnable runnable) {
-        putCommand(mCommands, description, listener, runnable, false);
+    private void put(Account account, String description, MessagingListener listener, Runnable runnable) {
+        putCommand(getCommandQueue(account), description, listener, runnable, true);
     }
 
-    private void putCommand(BlockingQueue<Command> queue, String description, MessagingListener listener, Runnable runnable, boolean isForeground) {
-        int retries = 10;
-        Exception e = null;
-        while (retries-- > 0) {
-            try {
-                Command command = new Command();
-                command.listener = listener;
-                command.runnable = runnable;
-                command.description = description;
-                command.isForeground = isForeground;
-                queue.put(command);
-                return;
-            } catch (InterruptedException ie) {
-                try {
-                    Thread.sleep(200);
-                } catch (InterruptedException ne) {
-                }
-                e = ie;
-            }
-        }
-        throw new Error(e);
+    private void putBackground(Account account, String description, MessagingListener listener, Runnable runnable) {
+        putCommand(getCommandQueue(account), description, listener, runnable, false);
     }
 
+    private void putCommand(CommandQueue queue, String description, MessagingListener listener, Runnable runnable, boolean isForeground) {
+        Command command = new Command();
+        command.listener = listener;
+        command.runnable = runnable;
+        command.description = description;
+        command.isForeground = isForeground;
+        queue.put(command);
+    }
 
     public void addListener(MessagingListener listener) {
         mListeners.add(listener);
@@ -573,7 +608,7 @@ public class MessagingController implements Runnable {
     }
 
     private void doRefreshRemote(final Account account, final MessagingListener listener) {
-        put("doRefreshRemote", listener, new Runnable() {
+        put(account, "doRefreshRemote", listener, new Runnable() {
             @Override
             public void run() {
                 List <? extends Folder > localFolders = null;
@@ -895,7 +930,7 @@ public class MessagingController implements Runnable {
      * @param providedRemoteFolder TODO
      */
     public void synchronizeMailbox(final Account account, final String folder, final MessagingListener listener, final Folder providedRemoteFolder) {
-        putBackground("synchronizeMailbox", listener, new Runnable() {
+        putBackground(account, "synchronizeMailbox", listener, new Runnable() {
             @Override
             public void run() {
                 synchronizeMailboxSynchronous(account, folder, listener, providedRemoteFolder);
@@ -913,6 +948,17 @@ public class MessagingController implements Runnable {
      * @param providedRemoteFolder TODO
      */
     private void synchronizeMailboxSynchronous(final Account account, final String folder, final MessagingListener listener, Folder providedRemoteFolder) {
+        synchronizeMailboxSynchronous(account, folder, listener, providedRemoteFolder, true);
+    }
+
+    /**
+     * @param processPendingCommands
+     *         {@code false} if the caller already processed the account's pending commands. Used
+     *         when multiple folders are synchronized at the same time.
+     */
+    private void synchronizeMailboxSynchronous(final Account account, final String folder,
+            final MessagingListener listener, Folder providedRemoteFolder,
+            boolean processPendingCommands) {
         Folder remoteFolder = null;
         LocalFolder tLocalFolder = null;
 
@@ -938,13 +984,15 @@ public class MessagingController implements Runnable {
             if (K9.DEBUG)
                 Log.d(K9.LOG_TAG, "SYNC: About to process pending commands for account " + account.getDescription());
 
-            try {
-                processPendingCommandsSynchronous(account);
-            } catch (Exception e) {
-                addErrorMessage(account, null, e);
+            if (processPendingCommands) {
+                try {
+                    processPendingCommandsSynchronous(account);
+                } catch (Exception e) {
+                    addErrorMessage(account, null, e);
 
-                Log.e(K9.LOG_TAG, "Failure processing command, but allow message sync attempt", e);
-                commandException = e;
+                    Log.e(K9.LOG_TAG, "Failure processing command, but allow message sync attempt", e);
+                    commandException = e;
+                }
             }
 
             /*
@@ -959,11 +1007,6 @@ public class MessagingController implements Runnable {
             final LocalFolder localFolder = tLocalFolder;
             localFolder.open(Folder.OPEN_MODE_RW);
             localFolder.updateLastUid();
-            List<? extends Message> localMessages = localFolder.getMessages(null);
-            Map<String, Message> localUidMap = new HashMap<String, Message>();
-            for (Message message : localMessages) {
-                localUidMap.put(message.getUid(), message);
-            }
 
             if (providedRemoteFolder != null) {
                 if (K9.DEBUG)
@@ -1014,6 +1057,15 @@ public class MessagingController implements Runnable {
 
             }
 
+            /*
+             * Remember the modification sequence as of opening the folder. Changes made after
+             * this point will be picked up by the next sync.
+             */
+            final long remoteUidNext = remoteFolder.getUidNext();
+            final long remoteUidValidity = remoteFolder.getUidValidity();
+            final long remoteHighestModSeq = remoteFolder.supportsChangedSince() ?
+                    remoteFolder.getHighestModSeq() : -1L;
+
             /*
              * Get the remote message count.
              */
@@ -1026,13 +1078,14 @@ public class MessagingController implements Runnable {
             }
 
             final List<Message> remoteMessages = new ArrayList<Message>();
-            Map<String, Message> remoteUidMap = new HashMap<String, Message>();
+            final Map<String, Message> remoteUidMap = new HashMap<String, Message>();
 
             if (K9.DEBUG)
                 Log.v(K9.LOG_TAG, "SYNC: Remote message count for folder " + folder + " is " + remoteMessageCount);
             final Date earliestDate = account.getEarliestPollDate();
 
-
+            final AtomicInteger headerProgress = new AtomicInteger(0);
+            List<? extends Message> remoteMessageArray = Collections.emptyList();
             if (remoteMessageCount > 0) {
                 /* Message numbers start at 1.  */
                 int remoteStart;
@@ -1046,13 +1099,12 @@ public class MessagingController implements Runnable {
                 if (K9.DEBUG)
                     Log.v(K9.LOG_TAG, "SYNC: About to get messages " + remoteStart + " through " + remoteEnd + " for folder " + folder);
 
-                final AtomicInteger headerProgress = new AtomicInteger(0);
                 for (MessagingListener l : getListeners(listener)) {
                     l.synchronizeMailboxHeadersStarted(account, folder);
                 }
 
 
-                List<? extends Message> remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteEnd, earliestDate, null);
+                remoteMessageArray = remoteFolder.getMessages(remoteStart, remoteEnd, earliestDate, null);
 
                 int messageCount = remoteMessageArray.size();
 
@@ -1061,34 +1113,56 @@ public class MessagingController implements Runnable {
                     for (MessagingListener l : getListeners(listener)) {
                         l.synchronizeMailboxHeadersProgress(account, folder, headerProgress.get(), messageCount);
                     }
-                    Message localMessage = localUidMap.get(thisMess.getUid());
-                    if (localMessage == null || !localMessage.olderThan(earliestDate)) {
-                        remoteMessages.add(thisMess);
-                        remoteUidMap.put(thisMess.getUid(), thisMess);
+                    remoteUidMap.put(thisMess.getUid(), thisMess);
+                }
+            } else if (remoteMessageCount < 0) {
+                throw new Exception("Message count " + remoteMessageCount + " for folder " + folder);
+            }
+
+            /*
+             * Walk the UIDs of the local messages without loading the messages themselves. Local
+             * messages that are too old are dropped from the remote list, and local messages that
+             * are no longer on the server (or too old) are remembered for removal. This way memory
+             * use depends on the size of the sync window and the number of changes, not on the
+             * size of the folder.
+             */
+            final boolean syncRemoteDeletions = account.syncRemoteDeletions();
+            final List<String> destroyUids = new ArrayList<String>();
+            localFolder.visitMessageUids(new LocalFolder.MessageUidVisitor() {
+                @Override
+                public void visit(String uid, long date) {
+                    Message remoteMessage = remoteUidMap.get(uid);
+                    if (remoteMessage != null && earliestDate != null && date < earliestDate.getTime()) {
+                        remoteUidMap.remove(uid);
+                        remoteMessage = null;
+                    }
+                    if (remoteMessage == null && syncRemoteDeletions) {
+                        destroyUids.add(uid);
                     }
                 }
+            });
+
+            for (Message message : remoteMessageArray) {
+                if (remoteUidMap.containsKey(message.getUid())) {
+                    remoteMessages.add(message);
+                }
+            }
+
+            if (remoteMessageCount > 0) {
                 if (K9.DEBUG)
                     Log.v(K9.LOG_TAG, "SYNC: Got " + remoteUidMap.size() + " messages for folder " + folder);
 
                 for (MessagingListener l : getListeners(listener)) {
                     l.synchronizeMailboxHeadersFinished(account, folder, headerProgress.get(), remoteUidMap.size());
                 }
-
-            } else if (remoteMessageCount < 0) {
-                throw new Exception("Message count " + remoteMessageCount + " for folder " + folder);
             }
 
             /*
              * Remove any messages that are in the local store but no longer on the remote store or are too old
              */
-            if (account.syncRemoteDeletions()) {
-                List<Message> destroyMessages = new ArrayList<Message>();
-                for (Message localMessage : localMessages) {
-                    if (remoteUidMap.get(localMessage.getUid()) == null) {
-                        destroyMessages.add(localMessage);
-                    }
-                }
-
+            if (!destroyUids.isEmpty()) {
+                List<LocalMessage> destroyMessages = new ArrayList<LocalMessage>(
+                        localFolder.getMessagesByUid(destroyUids).values());
 
                 localFolder.destroyMessages(destroyMessages);
 
@@ -1098,13 +1172,20 @@ public class MessagingController implements Runnable {
                     }
                 }
             }
-            localMessages = null;
 
             /*
              * Now we download the actual content of messages.
              */
             int newMessages = downloadMessages(account, remoteFolder, localFolder, remoteMessages, false);
 
+            if (localFolder.getRemoteMessageCount() != remoteMessageCount ||
+                    localFolder.getUidNext() != remoteUidNext ||
+                    localFolder.getUidValidity() != remoteUidValidity ||
+                    localFolder.getHighestModSeq() != remoteHighestModSeq) {
+                localFolder.setRemoteState(remoteMessageCount, remoteUidNext, remoteUidValidity,
+                        remoteHighestModSeq);
+            }
+
             int unreadMessageCount = localFolder.getUnreadMessageCount();
             for (MessagingListener l : getListeners()) {
                 l.folderStatusChanged(account, folder, unreadMessageCount);
@@ -1251,8 +1332,21 @@ public class MessagingController implements Runnable {
 
         List<Message> messages = new ArrayList<Message>(inputMessages);
 
+        /*
+         * Look up the local copies of all remote messages with one query per batch instead of one
+         * query per message.
+         */
+        List<String> uids = new ArrayList<String>(messages.size());
+        for (Message message : messages) {
+            if (!message.isSet(Flag.DELETED)) {
+                uids.add(message.getUid());
+            }
+        }
+        Map<String, LocalMessage> localMessages = localFolder.getMessagesByUid(uids);
+
         for (Message message : messages) {
-            evaluateMessageForDownload(message, folder, localFolder, remoteFolder, account, unsyncedMessages, syncFlagMessages , flagSyncOnly);
+            evaluateMessageForDownload(message, localMessages.get(message.getUid()), folder, localFolder,
+                    remoteFolder, account, unsyncedMessages, syncFlagMessages, flagSyncOnly);
         }
 
         final AtomicInteger progress = new AtomicInteger(0);
@@ -1342,7 +1436,8 @@ public class MessagingController implements Runnable {
          * download.
          */
 
-        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, progress, todo);
+        refreshLocalMessageFlags(account, remoteFolder, localFolder, syncFlagMessages, !flagSyncOnly,
+                progress, todo);
 
         if (K9.DEBUG)
             Log.d(K9.LOG_TAG, "SYNC: Synced remote messages for folder " + folder + ", " + newMessages.get() + " new messages");
@@ -1376,7 +1471,13 @@ public class MessagingController implements Runnable {
         }
         return newMessages.get();
     }
-    private void evaluateMessageForDownload(final Message message, final String folder,
+
+    /**
+     * @param localMessage
+     *         The local copy of {@code message}, or {@code null} if there is none.
+     */
+    private void evaluateMessageForDownload(final Message message, LocalMessage localMessage,
+                                            final String folder,
                                             final LocalFolder localFolder,
                                             final Folder remoteFolder,
                                             final Account account,
@@ -1388,8 +1489,6 @@ public class MessagingController implements Runnable {
             return;
         }
 
-        Message localMessage = localFolder.getMessage(message.getUid());
-
         if (localMessage == null) {
             if (!flagSyncOnly) {
                 if (!message.isSet(Flag.X_DOWNLOADED_FULL) && !message.isSet(Flag.X_DOWNLOADED_PARTIAL)) {
@@ -1545,9 +1644,35 @@ public class MessagingController implements Runnable {
             // Store the new message locally
             localFolder.appendMessages(messages);
 
+            List<String> uids = new ArrayList<String>(messages.size());
+            for (Message message : messages) {
+                uids.add(message.getUid());
+            }
+            Map<String, LocalMessage> localMessages = localFolder.getMessagesByUid(uids);
+
+            List<LocalMessage> changedMessages = new ArrayList<LocalMessage>();
+            List<LocalMessage> deletedMessages = new ArrayList<LocalMessage>();
+            for (Message message : messages) {
+                LocalMessage localMessage = localMessages.get(message.getUid());
+                if (localMessage == null || localMessage.isSet(Flag.DELETED)) {
+                    continue;
+                }
+                if (message.isSet(Flag.DELETED)) {
+                    if (localFolder.syncRemoteDeletions()) {
+                        deletedMessages.add(localMessage);
+                    }
+                } else if (syncFlags(localMessage, message)) {
+                    changedMessages.add(localMessage);
+                }
+            }
+            localFolder.saveFlags(changedMessages);
+            localFolder.markMessagesDeleted(deletedMessages);
+
             for (final Message message : messages) {
-                final LocalMessage localMessage = localFolder.getMessage(message.getUid());
-                syncFlags(localMessage, message);
+                final LocalMessage localMessage = localMessages.get(message.getUid());
+                if (localMessage == null) {
+                    continue;
+                }
                 if (K9.DEBUG)
                     Log.v(K9.LOG_TAG, "About to notify listeners that we got a new unsynced message "
                           + account + ":" + folder + ":" + message.getUid());
@@ -1778,9 +1903,22 @@ public class MessagingController implements Runnable {
 
     }
 
+    /**
+     * Returns {@code true} if the flags of the messages in the local folder are known to be in
+     * sync with the remote folder as of the stored HIGHESTMODSEQ, i.e. only the changes since
+     * then need to be fetched.
+     */
+    private boolean canFetchChangedSince(Folder remoteFolder, LocalFolder localFolder) {
+        return remoteFolder.supportsChangedSince() &&
+                localFolder.getHighestModSeq() > 0 &&
+                localFolder.getUidValidity() == remoteFolder.getUidValidity() &&
+                localFolder.getHighestModSeq() <= remoteFolder.getHighestModSeq();
+    }
+
     private void refreshLocalMessageFlags(final Account account, final Folder remoteFolder,
                                           final LocalFolder localFolder,
                                           List<Message> syncFlagMessages,
+                                          boolean allowChangedSince,
                                           final AtomicInteger progress,
                                           final int todo
                                          ) throws MessagingException {
@@ -1791,76 +1929,169 @@ public class MessagingController implements Runnable {
                 Log.d(K9.LOG_TAG, "SYNC: About to sync flags for "
                       + syncFlagMessages.size() + " remote messages for folder " + folder);
 
-            FetchProfile fp = new FetchProfile();
-            fp.add(FetchProfile.Item.FLAGS);
+            Map<String, Message> changedRemoteMessages = null;
+            Set<String> vanishedUids = Collections.emptySet();
+            if (allowChangedSince && canFetchChangedSince(remoteFolder, localFolder)) {
+                /*
+                 * The server supports CONDSTORE and nothing happened to invalidate our state, so
+                 * only ask for the flags that changed since the last sync.
+                 */
+                List<String> vanished = new ArrayList<String>();
+                List<? extends Message> changed = remoteFolder.fetchChangedSince(
+                        localFolder.getHighestModSeq(), vanished);
 
-            List<Message> undeletedMessages = new LinkedList<Message>();
-            for (Message message : syncFlagMessages) {
-                if (!message.isSet(Flag.DELETED)) {
-                    undeletedMessages.add(message);
+                changedRemoteMessages = new HashMap<String, Message>();
+                for (Message message : changed) {
+                    changedRemoteMessages.put(message.getUid(), message);
                 }
-            }
+                vanishedUids = new HashSet<String>(vanished);
 
-            remoteFolder.fetch(undeletedMessages, fp, null);
-            for (Message remoteMessage : syncFlagMessages) {
-                LocalMessage localMessage = localFolder.getMessage(remoteMessage.getUid());
-                boolean messageChanged = syncFlags(localMessage, remoteMessage);
-                if (messageChanged) {
-                    boolean shouldBeNotifiedOf = false;
-                    if (localMessage.isSet(Flag.DELETED) || isMessageSuppressed(localMessage)) {
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxRemovedMessage(account, folder, localMessage);
-                        }
-                    } else {
-                        for (MessagingListener l : getListeners()) {
-                            l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
-                        }
-                        if (shouldNotifyForMessage(account, localFolder, localMessage)) {
-                            shouldBeNotifiedOf = true;
-                        }
+                if (K9.DEBUG)
+                    Log.d(K9.LOG_TAG, "SYNC: " + changedRemoteMessages.size() + " messages changed and " +
+                            vanishedUids.size() + " messages vanished since modseq " +
+                            localFolder.getHighestModSeq() + " for folder " + folder);
+            } else {
+                FetchProfile fp = new FetchProfile();
+                fp.add(FetchProfile.Item.FLAGS);
+
+                List<Message> undeletedMessages = new LinkedList<Message>();
+                for (Message message : syncFlagMessages) {
+                    if (!message.isSet(Flag.DELETED)) {
+                        undeletedMessages.add(message);
                     }
+                }
 
-                    // we're only interested in messages that need removing
-                    if (!shouldBeNotifiedOf) {
-                        NotificationData data = getNotificationData(account, null);
-                        if (data != null) {
-                            synchronized (data) {
-                                MessageReference ref = localMessage.makeMessageReference();
-                                if (data.removeMatchingMessage(context, ref)) {
-                                    notifyAccountWithDataLocked(context, account, null, data);
-                                }
-                            }
-                        }
+                remoteFolder.fetch(undeletedMessages, fp, null);
+            }
+
+            Map<String, Message> syncFlagMessagesByUid =
+                    new LinkedHashMap<String, Message>(syncFlagMessages.size());
+            for (Message message : syncFlagMessages) {
+                syncFlagMessagesByUid.put(message.getUid(), message);
+            }
+
+            /*
+             * The next sync only asks for changes after the HIGHESTMODSEQ we store at the end of
+             * this one. So changes to messages we know locally but that are outside of the sync
+             * window have to be applied now, or they would never be seen again.
+             */
+            Set<String> uids = new LinkedHashSet<String>(syncFlagMessagesByUid.keySet());
+            if (changedRemoteMessages != null) {
+                uids.addAll(changedRemoteMessages.keySet());
+                uids.addAll(vanishedUids);
+            }
+
+            /*
+             * Look up all local messages with one query per batch instead of one per message, then
+             * work out the changes in memory and write them back in a single transaction.
+             */
+            Map<String, LocalMessage> localMessages =
+                    localFolder.getMessagesByUid(new ArrayList<String>(uids));
+
+            List<LocalMessage> changedMessages = new ArrayList<LocalMessage>();
+            List<LocalMessage> deletedMessages = new ArrayList<LocalMessage>();
+            for (String uid : uids) {
+                Message message = syncFlagMessagesByUid.get(uid);
+                Message remoteMessage = message;
+                if (changedRemoteMessages != null && (message == null || !message.isSet(Flag.DELETED))) {
+                    // Flags of messages not reported by CHANGEDSINCE are unchanged
+                    remoteMessage = changedRemoteMessages.get(uid);
+                }
+
+                LocalMessage localMessage = localMessages.get(uid);
+                if (localMessage == null || localMessage.isSet(Flag.DELETED)) {
+                    continue;
+                }
+
+                if (vanishedUids.contains(uid) || (remoteMessage != null && remoteMessage.isSet(Flag.DELETED))) {
+                    if (localFolder.syncRemoteDeletions()) {
+                        deletedMessages.add(localMessage);
                     }
+                } else if (remoteMessage != null && syncFlags(localMessage, remoteMessage)) {
+                    changedMessages.add(localMessage);
                 }
-                progress.incrementAndGet();
+            }
+
+            localFolder.saveFlags(changedMessages);
+            localFolder.markMessagesDeleted(deletedMessages);
+
+            for (LocalMessage localMessage : deletedMessages) {
                 for (MessagingListener l : getListeners()) {
-                    l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+                    l.synchronizeMailboxRemovedMessage(account, folder, localMessage);
+                }
+            }
+            removeNotificationsForMessages(account, deletedMessages);
+
+            List<LocalMessage> notNotifiedMessages = new ArrayList<LocalMessage>();
+            for (LocalMessage localMessage : changedMessages) {
+                if (isMessageSuppressed(localMessage)) {
+                    for (MessagingListener l : getListeners()) {
+                        l.synchronizeMailboxRemovedMessage(account, folder, localMessage);
+                    }
+                    notNotifiedMessages.add(localMessage);
+                } else {
+                    for (MessagingListener l : getListeners()) {
+                        l.synchronizeMailboxAddOrUpdateMessage(account, folder, localMessage);
+                    }
+                    if (!shouldNotifyForMessage(account, localFolder, localMessage)) {
+                        notNotifiedMessages.add(localMessage);
+                    }
+                }
+            }
+            // we're only interested in messages that need removing
+            removeNotificationsForMessages(account, notNotifiedMessages);
+
+            progress.addAndGet(syncFlagMessages.size());
+            for (MessagingListener l : getListeners()) {
+                l.synchronizeMailboxProgress(account, folder, progress.get(), todo);
+            }
+        }
+    }
+
+    /**
+     * Removes the given messages from the new mail notification of the account, if they are
+     * part of it.
+     */
+    private void removeNotificationsForMessages(Account account, List<LocalMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        NotificationData data = getNotificationData(account, null);
+        if (data == null) {
+            return;
+        }
+
+        synchronized (data) {
+            boolean changed = false;
+            for (LocalMessage message : messages) {
+                MessageReference ref = message.makeMessageReference();
+                if (data.removeMatchingMessage(context, ref)) {
+                    changed = true;
                 }
             }
+            if (changed) {
+                notifyAccountWithDataLocked(context, account, null, data);
+            }
         }
     }
 
+    /**
+     * Applies the flags of {@code remoteMessage} to {@code localMessage} in memory only.
+     *
+     * @return {@code true} if any of the flags changed.
+     */
     private boolean syncFlags(LocalMessage localMessage, Message remoteMessage) throws MessagingException {
         boolean messageChanged = false;
-        if (localMessage == null || localMessage.isSet(Flag.DELETED)) {
-            return false;
-        }
-        if (remoteMessage.isSet(Flag.DELETED)) {
-            if (localMessage.getFolder().syncRemoteDeletions()) {
-                localMessage.setFlag(Flag.DELETED, true);
+        for (Flag flag : MessagingController.SYNC_FLAGS) {
+            if (remoteMessage.isSet(flag) != localMessage.isSet(flag)) {
+                localMessage.setFlagInternal(flag, remoteMessage.isSet(flag));
                 messageChanged = true;
             }
-        } else {
-            for (Flag flag : MessagingController.SYNC_FLAGS) {
-                if (remoteMessage.isSet(flag) != localMessage.isSet(flag)) {
-                    localMessage.setFlag(flag, remoteMessage.isSet(flag));
-                    messageChanged = true;
-                }
-            }
         }
         return messageChanged;
     }
+
     private String getRootCauseMessage(Throwable t) {
         Throwable rootCause = t;
         Throwable nextCause = rootCause;
@@ -1893,7 +2124,7 @@ public class MessagingController implements Runnable {
     }
 
     private void processPendingCommands(final Account account) {
-        putBackground("processPendingCommands", null, new Runnable() {
+        putBackground(account, "processPendingCommands", null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -2334,7 +2565,7 @@ public class MessagingController implements Runnable {
     }
 
     private void queueSetFlag(final Account account, final String folderName, final String newState, final String flag, final String[] uids) {
-        putBackground("queueSetFlag " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground(account, "queueSetFlag " + account.getDescription() + ":" + folderName, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = new PendingCommand();
@@ -2436,7 +2667,7 @@ public class MessagingController implements Runnable {
         }
     }
     private void queueExpunge(final Account account, final String folderName) {
-        putBackground("queueExpunge " + account.getDescription() + ":" + folderName, null, new Runnable() {
+        putBackground(account, "queueExpunge " + account.getDescription() + ":" + folderName, null, new Runnable() {
             @Override
             public void run() {
                 PendingCommand command = new PendingCommand();
@@ -2941,7 +3172,7 @@ public class MessagingController implements Runnable {
 
     public void loadMessageForViewRemote(final Account account, final String folder,
                                          final String uid, final MessagingListener listener) {
-        put("loadMessageForViewRemote", listener, new Runnable() {
+        put(account, "loadMessageForViewRemote", listener, new Runnable() {
             @Override
             public void run() {
                 loadMessageForViewRemoteSynchronous(account, folder, uid, listener, false, false);
@@ -3171,7 +3402,7 @@ public class MessagingController implements Runnable {
             l.loadAttachmentStarted(account, message, part, tag, true);
         }
 
-        put("loadAttachment", listener, new Runnable() {
+        put(account, "loadAttachment", listener, new Runnable() {
             @Override
             public void run() {
                 Folder remoteFolder = null;
@@ -3262,7 +3493,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessages(final Account account,
                                     MessagingListener listener) {
-        putBackground("sendPendingMessages", listener, new Runnable() {
+        putBackground(account, "sendPendingMessages", listener, new Runnable() {
             @Override
             public void run() {
                 if (!account.isAvailable(context)) {
@@ -3459,6 +3690,7 @@ public class MessagingController implements Runnable {
      */
     public void sendPendingMessagesSynchronous(final Account account) {
         Folder localFolder = null;
+        Transport transport = null;
         Exception lastFailure = null;
         try {
             Store localStore = account.getLocalStore();
@@ -3489,7 +3721,11 @@ public class MessagingController implements Runnable {
             if (K9.DEBUG)
                 Log.i(K9.LOG_TAG, "Scanning folder '" + account.getOutboxFolderName() + "' (" + ((LocalFolder)localFolder).getId() + ") for messages to send");
 
-            Transport transport = Transport.getInstance(K9.app, account);
+            /*
+             * The transport keeps its connection open between messages, so the whole outbox is
+             * sent using a single session. It's closed in the finally block below.
+             */
+            transport = Transport.getInstance(K9.app, account);
             for (Message message : localMessages) {
                 if (message.isSet(Flag.DELETED)) {
                     message.destroy();
@@ -3528,7 +3764,11 @@ public class MessagingController implements Runnable {
                         message.setFlag(Flag.X_SEND_IN_PROGRESS, true);
                         if (K9.DEBUG)
                             Log.i(K9.LOG_TAG, "Sending message with UID " + message.getUid());
+                        long sendStart = SystemClock.elapsedRealtime();
                         transport.sendMessage(message);
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Sent message with UID " + message.getUid() + " in " +
+                                    (SystemClock.elapsedRealtime() - sendStart) + "ms");
                         message.setFlag(Flag.X_SEND_IN_PROGRESS, false);
                         message.setFlag(Flag.SEEN, true);
                         progress++;
@@ -3603,6 +3843,9 @@ public class MessagingController implements Runnable {
             addErrorMessage(account, null, e);
 
         } finally {
+            if (transport != null) {
+                transport.close();
+            }
             if (lastFailure == null) {
                 cancelNotification(K9.SEND_FAILED_NOTIFICATION - account.getAccountNumber());
             }
@@ -3723,7 +3966,7 @@ public class MessagingController implements Runnable {
         };
 
 
-        put("getFolderUnread:" + account.getDescription() + ":" + folderName, l, unreadRunnable);
+        put(account, "getFolderUnread:" + account.getDescription() + ":" + folderName, l, unreadRunnable);
     }
 
 
@@ -3762,7 +4005,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessages", null, new Runnable() {
+        putBackground(account, "moveMessages", null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, false,
@@ -3776,7 +4019,7 @@ public class MessagingController implements Runnable {
 
         suppressMessages(account, messages);
 
-        putBackground("moveMessagesInThread", null, new Runnable() {
+        putBackground(account, "moveMessagesInThread", null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3800,7 +4043,7 @@ public class MessagingController implements Runnable {
             final List<? extends Message> messages, final String destFolder,
             final MessagingListener listener) {
 
-        putBackground("copyMessages", null, new Runnable() {
+        putBackground(account, "copyMessages", null, new Runnable() {
             @Override
             public void run() {
                 moveOrCopyMessageSynchronous(account, srcFolder, messages, destFolder, true,
@@ -3812,7 +4055,7 @@ public class MessagingController implements Runnable {
     public void copyMessagesInThread(final Account account, final String srcFolder,
             final List<? extends Message> messages, final String destFolder) {
 
-        putBackground("copyMessagesInThread", null, new Runnable() {
+        putBackground(account, "copyMessagesInThread", null, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -3928,7 +4171,7 @@ public class MessagingController implements Runnable {
     }
 
     public void expunge(final Account account, final String folder, final MessagingListener listener) {
-        putBackground("expunge", null, new Runnable() {
+        putBackground(account, "expunge", null, new Runnable() {
             @Override
             public void run() {
                 queueExpunge(account, folder);
@@ -3965,7 +4208,7 @@ public class MessagingController implements Runnable {
 
                 suppressMessages(account, messages);
 
-                putBackground("deleteThreads", null, new Runnable() {
+                putBackground(account, "deleteThreads", null, new Runnable() {
                     @Override
                     public void run() {
                         deleteThreadsSynchronous(account, folder.getName(), accountMessages);
@@ -4015,7 +4258,7 @@ public class MessagingController implements Runnable {
             final List<Message> accountMessages) {
                 suppressMessages(account, messages);
 
-                putBackground("deleteMessages", null, new Runnable() {
+                putBackground(account, "deleteMessages", null, new Runnable() {
                     @Override
                     public void run() {
                         deleteMessagesSynchronous(account, folder.getName(),
@@ -4149,7 +4392,7 @@ public class MessagingController implements Runnable {
     }
 
     public void emptyTrash(final Account account, MessagingListener listener) {
-        putBackground("emptyTrash", listener, new Runnable() {
+        putBackground(account, "emptyTrash", listener, new Runnable() {
             @Override
             public void run() {
                 LocalFolder localFolder = null;
@@ -4295,48 +4538,77 @@ public class MessagingController implements Runnable {
         for (MessagingListener l : getListeners()) {
             l.checkMailStarted(context, account);
         }
-        putBackground("checkMail", listener, new Runnable() {
+        putBackground(null, "checkMail", listener, new Runnable() {
             @Override
             public void run() {
+                final Runnable finalizeSync = new Runnable() {
+                    @Override
+                    public void run() {
+
+                        if (K9.DEBUG)
+                            Log.i(K9.LOG_TAG, "Finished mail sync");
+
+                        if (wakeLock != null) {
+                            wakeLock.release();
+                        }
+                        for (MessagingListener l : getListeners()) {
+                            l.checkMailFinished(context, account);
+                        }
+
+                    }
+                };
 
+                Collection<Account> accounts;
+                final Preferences prefs;
                 try {
                     if (K9.DEBUG)
                         Log.i(K9.LOG_TAG, "Starting mail check");
-                    Preferences prefs = Preferences.getPreferences(context);
+                    prefs = Preferences.getPreferences(context);
 
-                    Collection<Account> accounts;
                     if (account != null) {
                         accounts = new ArrayList<Account>(1);
                         accounts.add(account);
                     } else {
                         accounts = prefs.getAvailableAccounts();
                     }
-
-                    for (final Account account : accounts) {
-                        checkMailForAccount(context, account, ignoreLastCheckedTime, prefs, listener);
-                    }
-
                 } catch (Exception e) {
                     Log.e(K9.LOG_TAG, "Unable to synchronize mail", e);
                     addErrorMessage(account, null, e);
+                    finalizeSync.run();
+                    return;
                 }
-                putBackground("finalize sync", null, new Runnable() {
-                    @Override
-                    public void run() {
 
-                        if (K9.DEBUG)
-                            Log.i(K9.LOG_TAG, "Finished mail sync");
+                if (accounts.isEmpty()) {
+                    finalizeSync.run();
+                    return;
+                }
 
-                        if (wakeLock != null) {
-                            wakeLock.release();
-                        }
-                        for (MessagingListener l : getListeners()) {
-                            l.checkMailFinished(context, account);
-                        }
+                // Accounts are checked in parallel, each on its own queue. The mail check is
+                // finished once the last account's queue reaches its "finalize sync" command.
+                final AtomicInteger remainingAccounts = new AtomicInteger(accounts.size());
+                for (final Account account : accounts) {
+                    putBackground(account, "checkMail:" + account.getDescription(), listener, new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                checkMailForAccount(context, account, ignoreLastCheckedTime, prefs, listener);
+                            } catch (Exception e) {
+                                Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
+                                addErrorMessage(account, null, e);
+                            }
 
-                    }
+                            // Enqueued after the folder syncs checkMailForAccount() just enqueued
+                            putBackground(account, "finalize sync", null, new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (remainingAccounts.decrementAndGet() == 0) {
+                                        finalizeSync.run();
+                                    }
+                                }
+                            });
+                        }
+                    });
                 }
-                             );
             }
         });
     }
@@ -4372,6 +4644,7 @@ public class MessagingController implements Runnable {
             Account.FolderMode aSyncMode = account.getFolderSyncMode();
 
             Store localStore = account.getLocalStore();
+            List<Folder> foldersToSync = new ArrayList<Folder>();
             for (final Folder folder : localStore.getPersonalNamespaces(false)) {
                 folder.open(Folder.OPEN_MODE_RW);
 
@@ -4399,13 +4672,28 @@ public class MessagingController implements Runnable {
 
                     continue;
                 }
-                synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                foldersToSync.add(folder);
+            }
+
+            foldersToSync = skipUnchangedFolders(account, foldersToSync, ignoreLastCheckedTime,
+                    accountInterval);
+
+            int maxConcurrentSyncs = getMaxConcurrentFolderSyncs(account);
+            if (maxConcurrentSyncs > 1 && foldersToSync.size() > 1) {
+                synchronizeFoldersConcurrently(account, foldersToSync, maxConcurrentSyncs,
+                        ignoreLastCheckedTime, accountInterval, listener);
+            } else {
+                for (Folder folder : foldersToSync) {
+                    synchronizeFolder(account, folder, ignoreLastCheckedTime, accountInterval, listener);
+                }
             }
+
+            repairFolderCountersIfDue(account);
         } catch (MessagingException e) {
             Log.e(K9.LOG_TAG, "Unable to synchronize account " + account.getName(), e);
             addErrorMessage(account, null, e);
         } finally {
-            putBackground("clear notification flag for " + account.getDescription(), null, new Runnable() {
+            putBackground(account, "clear notification flag for " + account.getDescription(), null, new Runnable() {
                 @Override
                 public void run() {
                     if (K9.DEBUG)
@@ -4428,6 +4716,110 @@ public class MessagingController implements Runnable {
     }
 
 
+    /**
+     * Queues a check of the folder message counters if the last one for this account was at least
+     * {@link #FOLDER_COUNTER_CHECK_INTERVAL} ago.
+     *
+     * <p>
+     * The counters are maintained by database triggers. This repairs them should they ever get
+     * out of sync, without waiting for the user to compact the account.
+     * </p>
+     */
+    private void repairFolderCountersIfDue(final Account account) {
+        long now = SystemClock.elapsedRealtime();
+        Long lastCheck = mLastFolderCounterCheck.get(account.getUuid());
+        if (lastCheck != null && now - lastCheck < FOLDER_COUNTER_CHECK_INTERVAL) {
+            return;
+        }
+        mLastFolderCounterCheck.put(account.getUuid(), now);
+
+        putBackground(account, "repairFolderCounters:" + account.getDescription(), null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    account.getLocalStore().repairFolderCounters();
+                } catch (UnavailableStorageException e) {
+                    Log.i(K9.LOG_TAG, "Failed to check folder counters because storage is not available - trying again later.");
+                    throw new UnavailableAccountException(e);
+                } catch (MessagingException e) {
+                    Log.e(K9.LOG_TAG, "Failed to check folder counters of account " + account.getDescription(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the server for the status of the folders that are due to be synchronized, and leaves
+     * out those that didn't change since their last successful sync.
+     *
+     * <p>
+     * Depending on the server this takes a single {@code LIST-STATUS} command or a few pipelined
+     * {@code STATUS} commands instead of opening every folder. Only folders whose last sync
+     * recorded a HIGHESTMODSEQ can be skipped, see {@link LocalFolder#isUpToDate(FolderStatus)}.
+     * If the status can't be retrieved all folders are synchronized.
+     * </p>
+     *
+     * @return The folders that still need to be synchronized.
+     */
+    private List<Folder> skipUnchangedFolders(Account account, List<Folder> folders,
+            boolean ignoreLastCheckedTime, long accountInterval) {
+        long now = System.currentTimeMillis();
+        List<String> candidates = new ArrayList<String>();
+        for (Folder folder : folders) {
+            boolean due = ignoreLastCheckedTime || folder.getLastChecked() <= now - accountInterval;
+            if (due && folder.getHighestModSeq() > 0) {
+                candidates.add(folder.getName());
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return folders;
+        }
+
+        Map<String, FolderStatus> statusMap;
+        try {
+            statusMap = account.getRemoteStore().getFolderStatus(candidates);
+        } catch (MessagingException e) {
+            Log.w(K9.LOG_TAG, "Unable to get folder status for " + account.getDescription(), e);
+            return folders;
+        }
+
+        if (statusMap == null) {
+            return folders;
+        }
+
+        List<Folder> changedFolders = new ArrayList<Folder>(folders.size());
+        for (Folder folder : folders) {
+            FolderStatus status = statusMap.get(folder.getName());
+            LocalFolder localFolder = (LocalFolder) folder;
+            if (status == null || !localFolder.isUpToDate(status)) {
+                changedFolders.add(folder);
+                continue;
+            }
+
+            if (K9.DEBUG)
+                Log.v(K9.LOG_TAG, "Not syncing folder " + folder.getName() + ", unchanged since last sync");
+
+            try {
+                localFolder.setLastChecked(now);
+            } catch (MessagingException e) {
+                Log.e(K9.LOG_TAG, "Could not set last checked on folder " + account.getDescription() +
+                      ":" + folder.getName(), e);
+            }
+        }
+
+        int skipped = folders.size() - changedFolders.size();
+        if (K9.DEBUG)
+            Log.i(K9.LOG_TAG, "Skipping " + skipped + " unchanged folders of " + account.getDescription());
+
+        if (changedFolders.isEmpty() && skipped > 0) {
+            // Otherwise the folder syncs would have taken care of this
+            processPendingCommands(account);
+        }
+
+        return changedFolders;
+    }
+
     private void synchronizeFolder(
         final Account account,
         final Folder folder,
@@ -4449,55 +4841,151 @@ public class MessagingController implements Runnable {
 
             return;
         }
-        putBackground("sync" + folder.getName(), null, new Runnable() {
+        putBackground(account, "sync" + folder.getName(), null, new Runnable() {
+            @Override
+            public void run() {
+                synchronizeFolderSynchronous(account, folder, ignoreLastCheckedTime,
+                        accountInterval, listener, false);
+            }
+        }
+                     );
+
+
+    }
+
+    /**
+     * Returns how many folders of the account may be synchronized at the same time.
+     *
+     * <p>
+     * This is bounded by the number of connections the account may open to the incoming
+     * server, since each folder sync holds on to one connection.
+     * </p>
+     */
+    private int getMaxConcurrentFolderSyncs(Account account) throws MessagingException {
+        Store remoteStore = account.getRemoteStore();
+        if (!remoteStore.isParallelSyncCapable()) {
+            return 1;
+        }
+
+        return account.getMaxConnections();
+    }
+
+    /**
+     * Synchronizes multiple folders using up to {@code maxConcurrentSyncs} threads.
+     *
+     * <p>
+     * This is enqueued as one background command that only completes after all folders have been
+     * synchronized. That way commands enqueued after it, e.g. the one finalizing a mail check,
+     * still run after the folders have been synced.
+     * </p>
+     */
+    private void synchronizeFoldersConcurrently(final Account account, final List<Folder> folders,
+            final int maxConcurrentSyncs, final boolean ignoreLastCheckedTime,
+            final long accountInterval, final MessagingListener listener) {
+
+        putBackground(account, "sync folders of " + account.getDescription(), null, new Runnable() {
             @Override
             public void run() {
-                LocalFolder tLocalFolder = null;
+                // Process pending commands once up front instead of once per folder. Otherwise
+                // the folder syncs would run the same commands concurrently.
                 try {
-                    // In case multiple Commands get enqueued, don't run more than
-                    // once
-                    final LocalStore localStore = account.getLocalStore();
-                    tLocalFolder = localStore.getFolder(folder.getName());
-                    tLocalFolder.open(Folder.OPEN_MODE_RW);
-
-                    if (!ignoreLastCheckedTime && tLocalFolder.getLastChecked() >
-                    (System.currentTimeMillis() - accountInterval)) {
-                        if (K9.DEBUG)
-                            Log.v(K9.LOG_TAG, "Not running Command for folder " + folder.getName()
-                                  + ", previously synced @ " + new Date(folder.getLastChecked())
-                                  + " which would be too recent for the account period");
-                        return;
-                    }
-                    notifyFetchingMail(account, folder);
-                    try {
-                        synchronizeMailboxSynchronous(account, folder.getName(), listener, null);
-                    } finally {
-                        notifyFetchingMailCancel(account);
-                    }
+                    processPendingCommandsSynchronous(account);
                 } catch (Exception e) {
-
-                    Log.e(K9.LOG_TAG, "Exception while processing folder " +
-                          account.getDescription() + ":" + folder.getName(), e);
                     addErrorMessage(account, null, e);
+
+                    Log.e(K9.LOG_TAG, "Failure processing command, but allow message sync attempt", e);
+                }
+
+                final Queue<Folder> remainingFolders = new ConcurrentLinkedQueue<Folder>(folders);
+                int workerCount = Math.min(maxConcurrentSyncs, folders.size());
+                final CountDownLatch workersDone = new CountDownLatch(workerCount);
+
+                if (K9.DEBUG)
+                    Log.i(K9.LOG_TAG, "Synchronizing " + folders.size() + " folders of " +
+                          account.getDescription() + " using " + workerCount + " connections");
+
+                for (int i = 0; i < workerCount; i++) {
+                    threadPool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                Folder folder;
+                                while ((folder = remainingFolders.poll()) != null) {
+                                    synchronizeFolderSynchronous(account, folder,
+                                            ignoreLastCheckedTime, accountInterval, listener, true);
+                                }
+                            } finally {
+                                workersDone.countDown();
+                            }
+                        }
+                    });
+                }
+
+                try {
+                    workersDone.await();
+                } catch (InterruptedException e) {
+                    Log.w(K9.LOG_TAG, "Interrupted while waiting for folders of " +
+                          account.getDescription() + " to be synchronized", e);
                 } finally {
-                    closeFolder(tLocalFolder);
+                    notifyFetchingMailCancel(account);
                 }
             }
-        }
-                     );
+        });
+    }
 
+    /**
+     * @param concurrent
+     *         {@code true} if this is one of multiple folder syncs running at the same time. In
+     *         that case the caller is responsible for processing pending commands and for
+     *         cancelling the "fetching mail" notification.
+     */
+    private void synchronizeFolderSynchronous(Account account, Folder folder,
+            boolean ignoreLastCheckedTime, long accountInterval, MessagingListener listener,
+            boolean concurrent) {
+        LocalFolder tLocalFolder = null;
+        try {
+            // In case multiple Commands get enqueued, don't run more than
+            // once
+            final LocalStore localStore = account.getLocalStore();
+            tLocalFolder = localStore.getFolder(folder.getName());
+            tLocalFolder.open(Folder.OPEN_MODE_RW);
 
+            if (!ignoreLastCheckedTime && tLocalFolder.getLastChecked() >
+            (System.currentTimeMillis() - accountInterval)) {
+                if (K9.DEBUG)
+                    Log.v(K9.LOG_TAG, "Not running Command for folder " + folder.getName()
+                          + ", previously synced @ " + new Date(folder.getLastChecked())
+                          + " which would be too recent for the account period");
+                return;
+            }
+            notifyFetchingMail(account, folder);
+            try {
+                synchronizeMailboxSynchronous(account, folder.getName(), listener, null, !concurrent);
+            } finally {
+                if (!concurrent) {
+                    notifyFetchingMailCancel(account);
+                }
+            }
+        } catch (Exception e) {
+
+            Log.e(K9.LOG_TAG, "Exception while processing folder " +
+                  account.getDescription() + ":" + folder.getName(), e);
+            addErrorMessage(account, null, e);
+        } finally {
+            closeFolder(tLocalFolder);
+        }
     }
 
 
 
     public void compact(final Account account, final MessagingListener ml) {
-        putBackground("compact:" + account.getDescription(), ml, new Runnable() {
+        putBackground(account, "compact:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
                     LocalStore localStore = account.getLocalStore();
                     long oldSize = localStore.getSize();
+                    localStore.repairFolderCounters();
                     localStore.compact();
                     long newSize = localStore.getSize();
                     for (MessagingListener l : getListeners(ml)) {
@@ -4513,8 +5001,34 @@ public class MessagingController implements Runnable {
         });
     }
 
+    /**
+     * Rebuilds the thread structure of a local folder from the headers of the stored messages.
+     *
+     * @see LocalFolder#rethreadMessages()
+     */
+    public void rethreadFolder(final Account account, final String folderName, final MessagingListener ml) {
+        putBackground(account, "rethreadFolder:" + account.getDescription() + ":" + folderName, ml,
+                new Runnable() {
+            @Override
+            public void run() {
+                LocalFolder localFolder = null;
+                try {
+                    localFolder = account.getLocalStore().getFolder(folderName);
+                    localFolder.rethreadMessages();
+                } catch (UnavailableStorageException e) {
+                    Log.i(K9.LOG_TAG, "Failed to rethread folder because storage is not available - trying again later.");
+                    throw new UnavailableAccountException(e);
+                } catch (Exception e) {
+                    Log.e(K9.LOG_TAG, "Failed to rethread folder " + folderName, e);
+                } finally {
+                    closeFolder(localFolder);
+                }
+            }
+        });
+    }
+
     public void clear(final Account account, final MessagingListener ml) {
-        putBackground("clear:" + account.getDescription(), ml, new Runnable() {
+        putBackground(account, "clear:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4542,7 +5056,7 @@ public class MessagingController implements Runnable {
     }
 
     public void recreate(final Account account, final MessagingListener ml) {
-        putBackground("recreate:" + account.getDescription(), ml, new Runnable() {
+        putBackground(account, "recreate:" + account.getDescription(), ml, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -5218,30 +5732,6 @@ public class MessagingController implements Runnable {
         }
     }
 
-    static AtomicInteger sequencing = new AtomicInteger(0);
-    static class Command implements Comparable<Command> {
-        public Runnable runnable;
-
-        public MessagingListener listener;
-
-        public String description;
-
-        boolean isForeground;
-
-        int sequence = sequencing.getAndIncrement();
-
-        @Override
-        public int compareTo(Command other) {
-            if (other.isForeground && !isForeground) {
-                return 1;
-            } else if (!other.isForeground && isForeground) {
-                return -1;
-            } else {
-                return (sequence - other.sequence);
-            }
-        }
-    }
-
     public MessagingListener getCheckMailListener() {
         return checkMailListener;
     }
@@ -5380,7 +5870,7 @@ public class MessagingController implements Runnable {
                   + ", folder " + remoteFolder.getName());
 
         final CountDownLatch latch = new CountDownLatch(1);
-        putBackground("Push messageArrived of account " + account.getDescription()
+        putBackground(account, "Push messageArrived of account " + account.getDescription()
         + ", folder " + remoteFolder.getName(), null, new Runnable() {
             @Override
             public void run() {
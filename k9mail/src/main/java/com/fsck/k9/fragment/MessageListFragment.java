@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.Future;
 
 import android.app.Activity;
@@ -27,6 +28,7 @@ import android.content.IntentFilter;
 import android.content.Loader;
 import android.content.SharedPreferences.Editor;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.graphics.Typeface;
@@ -75,12 +77,13 @@ import com.fsck.k9.activity.ActivityListener;
 import com.fsck.k9.activity.ChooseFolder;
 import com.fsck.k9.activity.FolderInfoHolder;
 import com.fsck.k9.activity.MessageReference;
+import com.fsck.k9.activity.loader.MergeCursorLoader;
 import com.fsck.k9.activity.misc.ContactPictureLoader;
 import com.fsck.k9.cache.EmailProviderCache;
 import com.fsck.k9.controller.MessagingController;
 import com.fsck.k9.fragment.ConfirmationDialogFragment.ConfirmationDialogFragmentListener;
 import com.fsck.k9.helper.ContactPicture;
-import com.fsck.k9.helper.MergeCursorWithUniqueId;
+import com.fsck.k9.helper.MergeCursor;
 import com.fsck.k9.helper.MessageHelper;
 import com.fsck.k9.helper.Utility;
 import com.fsck.k9.mail.Address;
@@ -313,12 +316,27 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         }
     }
 
+    /**
+     * Compares the sender addresses of messages.
+     *
+     * <p>
+     * The address lists of the rows are only unpacked once per cursor. The cached addresses of a
+     * cursor are dropped when the cursor notifies its {@link DataSetObserver}s, e.g. after
+     * {@link Cursor#requery()}.
+     * </p>
+     */
     public static class SenderComparator implements Comparator<Cursor> {
+        /**
+         * Marks rows without a sender address in {@link #mSenders}.
+         */
+        private static final String NO_SENDER = new String();
+
+        private final Map<Cursor, String[]> mSenders = new WeakHashMap<Cursor, String[]>();
 
         @Override
         public int compare(Cursor cursor1, Cursor cursor2) {
-            String sender1 = getSenderAddressFromCursor(cursor1);
-            String sender2 = getSenderAddressFromCursor(cursor2);
+            String sender1 = getSenderAddress(cursor1);
+            String sender2 = getSenderAddress(cursor2);
 
             if (sender1 == null && sender2 == null) {
                 return 0;
@@ -330,9 +348,53 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
                 return sender1.compareToIgnoreCase(sender2);
             }
         }
+
+        private String getSenderAddress(final Cursor cursor) {
+            String[] senders;
+            synchronized (mSenders) {
+                senders = mSenders.get(cursor);
+                if (senders == null) {
+                    senders = new String[cursor.getCount()];
+                    mSenders.put(cursor, senders);
+                    cursor.registerDataSetObserver(new DataSetObserver() {
+                        @Override
+                        public void onChanged() {
+                            forget(cursor, this);
+                        }
+
+                        @Override
+                        public void onInvalidated() {
+                            forget(cursor, this);
+                        }
+                    });
+                }
+            }
+
+            int position = cursor.getPosition();
+            String sender = senders[position];
+            if (sender == null) {
+                sender = getSenderAddressFromCursor(cursor);
+                senders[position] = (sender != null) ? sender : NO_SENDER;
+            }
+
+            return (sender == NO_SENDER) ? null : sender;
+        }
+
+        private void forget(Cursor cursor, DataSetObserver observer) {
+            synchronized (mSenders) {
+                mSenders.remove(cursor);
+            }
+            cursor.unregisterDataSetObserver(observer);
+        }
     }
 
 
+    /**
+     * Number of messages added to the message list at a time when showing messages of several
+     * accounts.
+     */
+    private static final int MESSAGES_PER_PAGE = 100;
+
     private static final int ACTIVITY_CHOOSE_FOLDER_MOVE = 1;
     private static final int ACTIVITY_CHOOSE_FOLDER_COPY = 2;
 
@@ -360,7 +422,6 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         map.put(SortType.SORT_ARRIVAL, new ArrivalComparator());
         map.put(SortType.SORT_FLAGGED, new FlaggedComparator());
         map.put(SortType.SORT_SUBJECT, new SubjectComparator());
-        map.put(SortType.SORT_SENDER, new SenderComparator());
         map.put(SortType.SORT_UNREAD, new UnreadComparator());
 
         // make it immutable to prevent accidental alteration (content is immutable already)
@@ -391,6 +452,16 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
     private boolean[] mCursorValid;
     private int mUniqueIdColumn;
 
+    /**
+     * The number of messages shown when the messages of several accounts are merged.
+     */
+    private int mMessageLimit = MESSAGES_PER_PAGE;
+
+    /**
+     * {@code true} if there are more messages than {@link #mMessageLimit}.
+     */
+    private boolean mHasMoreMessages;
+
     /**
      * Stores the name of the folder that we want to open as soon as possible after load.
      */
@@ -616,8 +687,9 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         final List<Comparator<Cursor>> chain =
                 new ArrayList<Comparator<Cursor>>(3 /* we add 3 comparators at most */);
 
-        // Add the specified comparator
-        final Comparator<Cursor> comparator = SORT_COMPARATORS.get(mSortType);
+        // Add the specified comparator. SenderComparator keeps state for the merged cursors.
+        final Comparator<Cursor> comparator = (mSortType == SortType.SORT_SENDER) ?
+                new SenderComparator() : SORT_COMPARATORS.get(mSortType);
         if (mSortAscending) {
             chain.add(comparator);
         } else {
@@ -851,7 +923,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         mLoaderJustInitialized = true;
         LoaderManager loaderManager = getLoaderManager();
-        int len = mAccountUuids.length;
+        int len = getLoaderCount();
         mCursors = new Cursor[len];
         mCursorValid = new boolean[len];
         for (int i = 0; i < len; i++) {
@@ -1113,12 +1185,33 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         // Refresh the message list
         LoaderManager loaderManager = getLoaderManager();
-        for (int i = 0; i < mAccountUuids.length; i++) {
+        for (int i = 0, len = getLoaderCount(); i < len; i++) {
             loaderManager.restartLoader(i, null, this);
             mCursorValid[i] = false;
         }
     }
 
+    /**
+     * The messages of several accounts are loaded and merged by a single loader.
+     */
+    private int getLoaderCount() {
+        return Math.min(mAccountUuids.length, 1);
+    }
+
+    /**
+     * Adds the next page of messages to the merged message list.
+     */
+    private void loadMoreMessages() {
+        Loader<Cursor> loader = getLoaderManager().getLoader(0);
+        if (!(loader instanceof MergeCursorLoader)) {
+            return;
+        }
+
+        mHasMoreMessages = false;
+        mMessageLimit += MESSAGES_PER_PAGE;
+        ((MergeCursorLoader) loader).loadNextPage();
+    }
+
     private void initializePullToRefresh(LayoutInflater inflater, View layout) {
         mPullToRefreshView = (PullToRefreshListView) layout.findViewById(R.id.message_list);
 
@@ -1152,6 +1245,17 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             });
         }
 
+        // Load the next page of the merged message list when the user scrolled to its end
+        mPullToRefreshView.setOnLastItemVisibleListener(
+                new PullToRefreshBase.OnLastItemVisibleListener() {
+                    @Override
+                    public void onLastItemVisible() {
+                        if (mHasMoreMessages) {
+                            loadMoreMessages();
+                        }
+                    }
+                });
+
         // Disable pull-to-refresh until the message list has been loaded
         setPullToRefreshEnabled(false);
     }
@@ -1285,7 +1389,7 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         toast.show();
 
         LoaderManager loaderManager = getLoaderManager();
-        for (int i = 0, len = mAccountUuids.length; i < len; i++) {
+        for (int i = 0, len = getLoaderCount(); i < len; i++) {
             loaderManager.restartLoader(i, null, this);
         }
     }
@@ -3308,9 +3412,11 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String accountUuid = mAccountUuids[id];
-        Account account = mPreferences.getAccount(accountUuid);
+        if (mAccountUuids.length > 1) {
+            return createMergeCursorLoader();
+        }
 
+        String accountUuid = mAccountUuids[id];
         String threadId = getThreadId(mSearch);
 
         Uri uri;
@@ -3320,41 +3426,78 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
             uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/thread/" + threadId);
             projection = PROJECTION;
             needConditions = false;
-        } else if (mThreadedList) {
-            uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/messages/threaded");
-            projection = THREADED_PROJECTION;
-            needConditions = true;
         } else {
-            uri = Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/messages");
-            projection = PROJECTION;
+            uri = getMessageListUri(accountUuid);
+            projection = getMessageListProjection();
             needConditions = true;
         }
 
-        StringBuilder query = new StringBuilder();
         List<String> queryArgs = new ArrayList<String>();
-        if (needConditions) {
-            boolean selectActive = mActiveMessage != null && mActiveMessage.accountUuid.equals(accountUuid);
+        String selection = (needConditions) ? buildSelection(accountUuid, queryArgs) : "";
+        String[] selectionArgs = queryArgs.toArray(new String[0]);
 
-            if (selectActive) {
-                query.append("(" + MessageColumns.UID + " = ? AND " + SpecialColumns.FOLDER_NAME + " = ?) OR (");
-                queryArgs.add(mActiveMessage.uid);
-                queryArgs.add(mActiveMessage.folderName);
-            }
+        String sortOrder = buildSortOrder();
 
-            SqlQueryBuilder.buildWhereClause(account, mSearch.getConditions(), query, queryArgs);
+        return new CursorLoader(getActivity(), uri, projection, selection, selectionArgs,
+                sortOrder);
+    }
 
-            if (selectActive) {
-                query.append(')');
-            }
+    /**
+     * Creates a loader that queries the message lists of all accounts and merges them.
+     */
+    private Loader<Cursor> createMergeCursorLoader() {
+        int len = mAccountUuids.length;
+        Uri[] uris = new Uri[len];
+        String[] selections = new String[len];
+        String[][] selectionArgs = new String[len][];
+        for (int i = 0; i < len; i++) {
+            String accountUuid = mAccountUuids[i];
+            List<String> queryArgs = new ArrayList<String>();
+
+            uris[i] = getMessageListUri(accountUuid);
+            selections[i] = buildSelection(accountUuid, queryArgs);
+            selectionArgs[i] = queryArgs.toArray(new String[0]);
         }
 
-        String selection = query.toString();
-        String[] selectionArgs = queryArgs.toArray(new String[0]);
+        // The SQL sort order for senders doesn't match SenderComparator, so the first rows of an
+        // account aren't necessarily the ones the merged list starts with
+        int limit = (mSortType == SortType.SORT_SENDER) ? -1 : mMessageLimit;
 
-        String sortOrder = buildSortOrder();
+        return new MergeCursorLoader(getActivity(), uris, getMessageListProjection(), selections,
+                selectionArgs, buildSortOrder(), getComparator(), limit, MESSAGES_PER_PAGE);
+    }
 
-        return new CursorLoader(getActivity(), uri, projection, selection, selectionArgs,
-                sortOrder);
+    private Uri getMessageListUri(String accountUuid) {
+        if (mThreadedList) {
+            return Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/messages/threaded");
+        } else {
+            return Uri.withAppendedPath(EmailProvider.CONTENT_URI, "account/" + accountUuid + "/messages");
+        }
+    }
+
+    private String[] getMessageListProjection() {
+        return (mThreadedList) ? THREADED_PROJECTION : PROJECTION;
+    }
+
+    private String buildSelection(String accountUuid, List<String> queryArgs) {
+        Account account = mPreferences.getAccount(accountUuid);
+
+        StringBuilder query = new StringBuilder();
+        boolean selectActive = mActiveMessage != null && mActiveMessage.accountUuid.equals(accountUuid);
+
+        if (selectActive) {
+            query.append("(" + MessageColumns.UID + " = ? AND " + SpecialColumns.FOLDER_NAME + " = ?) OR (");
+            queryArgs.add(mActiveMessage.uid);
+            queryArgs.add(mActiveMessage.folderName);
+        }
+
+        SqlQueryBuilder.buildWhereClause(account, mSearch.getConditions(), query, queryArgs);
+
+        if (selectActive) {
+            query.append(')');
+        }
+
+        return query.toString();
     }
 
     private String getThreadId(LocalSearch search) {
@@ -3431,13 +3574,13 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
         mCursors[loaderId] = data;
         mCursorValid[loaderId] = true;
 
-        Cursor cursor;
-        if (mCursors.length > 1) {
-            cursor = new MergeCursorWithUniqueId(mCursors, getComparator());
+        Cursor cursor = data;
+        if (data instanceof MergeCursor) {
             mUniqueIdColumn = cursor.getColumnIndex("_id");
+            mHasMoreMessages = ((MergeCursor) data).hasMoreRows();
         } else {
-            cursor = data;
             mUniqueIdColumn = ID_COLUMN;
+            mHasMoreMessages = false;
         }
 
         if (mIsThreadDisplay) {
@@ -3460,6 +3603,12 @@ public class MessageListFragment extends Fragment implements OnItemClickListener
 
         mAdapter.swapCursor(cursor);
 
+        // The selection always includes the active message, but it might not be in the pages
+        // loaded so far
+        if (mHasMoreMessages && mActiveMessage != null && getPosition(mActiveMessage) == -1) {
+            loadMoreMessages();
+        }
+
         resetActionMode();
         computeBatchDirection();
 
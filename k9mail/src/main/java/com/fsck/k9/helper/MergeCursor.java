@@ -30,6 +30,11 @@ import android.os.Bundle;
 
 /**
  * This class can be used to combine multiple {@link Cursor}s into one.
+ *
+ * <p>
+ * The merged order is calculated once, the first time the cursor is moved. Afterwards moving to
+ * any position only means moving the underlying cursor and doesn't use the comparator anymore.
+ * </p>
  */
 public class MergeCursor implements Cursor {
     /**
@@ -64,6 +69,25 @@ public class MergeCursor implements Cursor {
      */
     private final Comparator<Cursor> mComparator;
 
+    /**
+     * The maximum number of rows of the merged cursor, or {@code -1} if there's no limit.
+     */
+    private final int mLimit;
+
+    /**
+     * The index of the cursor in {@link #mCursors} providing the row at a given position.
+     *
+     * <p>
+     * {@code null} until the merged order has been calculated.
+     * </p>
+     */
+    private int[] mCursorIndexes;
+
+    /**
+     * The position in the cursor providing the row at a given position.
+     */
+    private int[] mRowIndexes;
+
 
     /**
      * Constructor
@@ -74,8 +98,24 @@ public class MergeCursor implements Cursor {
      *         A comparator that is used to decide in what order the individual cursors are merged.
      */
     public MergeCursor(Cursor[] cursors, Comparator<Cursor> comparator) {
+        this(cursors, comparator, -1);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cursors
+     *         The list of cursors this {@code MultiCursor} should combine.
+     * @param comparator
+     *         A comparator that is used to decide in what order the individual cursors are merged.
+     * @param limit
+     *         Only the first {@code limit} rows of the merged cursors are returned. {@code -1} to
+     *         return all rows.
+     */
+    public MergeCursor(Cursor[] cursors, Comparator<Cursor> comparator, int limit) {
         mCursors = cursors.clone();
         mComparator = comparator;
+        mLimit = limit;
 
         resetCursors();
     }
@@ -155,19 +195,49 @@ public class MergeCursor implements Cursor {
     public int getCount() {
         // CursorLoaders seem to call getCount() a lot. So we're caching the aggregated count.
         if (mCount == -1) {
-            int count = 0;
-            for (Cursor cursor : mCursors) {
-                if (cursor != null) {
-                    count += cursor.getCount();
-                }
-            }
-
-            mCount = count;
+            int count = getTotalCount();
+            mCount = (mLimit >= 0) ? Math.min(count, mLimit) : count;
         }
 
         return mCount;
     }
 
+    /**
+     * @return {@code true} if the cursors contain more rows than the limit passed to the
+     *         constructor.
+     */
+    public boolean hasMoreRows() {
+        return mLimit >= 0 && getTotalCount() > mLimit;
+    }
+
+    /**
+     * @return For each of the cursors passed to the constructor, the number of its rows that are
+     *         part of the merged cursor. With a limit these are the first rows of each cursor.
+     */
+    public int[] getRowCounts() {
+        if (mCursorIndexes == null) {
+            calculateMergedOrder();
+        }
+
+        int[] rowCounts = new int[mCursors.length];
+        for (int cursorIndex : mCursorIndexes) {
+            rowCounts[cursorIndex]++;
+        }
+
+        return rowCounts;
+    }
+
+    private int getTotalCount() {
+        int count = 0;
+        for (Cursor cursor : mCursors) {
+            if (cursor != null) {
+                count += cursor.getCount();
+            }
+        }
+
+        return count;
+    }
+
     @Override
     public double getDouble(int columnIndex) {
         return mActiveCursor.getDouble(columnIndex);
@@ -278,50 +348,7 @@ public class MergeCursor implements Cursor {
 
     @Override
     public boolean moveToNext() {
-        int count = getCount();
-        if (mPosition == count) {
-            return false;
-        }
-
-        if (mPosition == count - 1) {
-            mActiveCursor.moveToNext();
-            mPosition++;
-            return false;
-        }
-
-        int smallest = -1;
-        for (int i = 0, len = mCursors.length; i < len; i++) {
-            if (mCursors[i] == null || mCursors[i].getCount() == 0 || mCursors[i].isLast()) {
-                continue;
-            }
-
-            if (smallest == -1) {
-                smallest = i;
-                mCursors[smallest].moveToNext();
-                continue;
-            }
-
-            Cursor left = mCursors[smallest];
-            Cursor right = mCursors[i];
-
-            right.moveToNext();
-
-            int result = mComparator.compare(left, right);
-            if (result > 0) {
-                smallest = i;
-                left.moveToPrevious();
-            } else {
-                right.moveToPrevious();
-            }
-        }
-
-        mPosition++;
-        if (smallest != -1) {
-            mActiveCursorIndex = smallest;
-            mActiveCursor = mCursors[mActiveCursorIndex];
-        }
-
-        return true;
+        return moveToPosition(mPosition + 1);
     }
 
     @Override
@@ -344,76 +371,87 @@ public class MergeCursor implements Cursor {
             return true;
         }
 
-        if (position > mPosition) {
-            for (int i = 0, end = position - mPosition; i < end; i++) {
-                if (!moveToNext()) {
-                    return false;
-                }
-            }
-        } else {
-            for (int i = 0, end = mPosition - position; i < end; i++) {
-                if (!moveToPrevious()) {
-                    return false;
-                }
-            }
+        if (mCursorIndexes == null) {
+            calculateMergedOrder();
         }
 
+        mActiveCursorIndex = mCursorIndexes[position];
+        mActiveCursor = mCursors[mActiveCursorIndex];
+        mActiveCursor.moveToPosition(mRowIndexes[position]);
+        mPosition = position;
+
         return true;
     }
 
-    @Override
-    public boolean moveToPrevious() {
-        if (mPosition < 0) {
-            return false;
-        }
-
-        mActiveCursor.moveToPrevious();
+    /**
+     * Merges the cursors by repeatedly picking the smallest of the first rows not merged yet.
+     *
+     * <p>
+     * Every cursor stays on its first row not merged yet, so the comparator only has to look at
+     * each pair of rows once per merged row. If rows compare equal the row of the cursor that comes
+     * first in {@link #mCursors} is used.
+     * </p>
+     */
+    private void calculateMergedOrder() {
+        int count = getCount();
+        int[] cursorIndexes = new int[count];
+        int[] rowIndexes = new int[count];
 
-        if (mPosition == 0) {
-            mPosition = -1;
-            return false;
+        int len = mCursors.length;
+        int[] nextRows = new int[len];
+        for (int i = 0; i < len; i++) {
+            Cursor cursor = mCursors[i];
+            if (cursor != null) {
+                cursor.moveToFirst();
+            }
         }
 
-        int greatest = -1;
-        for (int i = 0, len = mCursors.length; i < len; i++) {
-            if (mCursors[i] == null || mCursors[i].isBeforeFirst()) {
-                continue;
-            }
+        for (int position = 0; position < count; position++) {
+            int smallest = -1;
+            for (int i = 0; i < len; i++) {
+                Cursor cursor = mCursors[i];
+                if (cursor == null || nextRows[i] >= cursor.getCount()) {
+                    continue;
+                }
 
-            if (greatest == -1) {
-                greatest = i;
-                continue;
+                if (smallest == -1 || mComparator.compare(mCursors[smallest], cursor) > 0) {
+                    smallest = i;
+                }
             }
 
-            Cursor left = mCursors[greatest];
-            Cursor right = mCursors[i];
-
-            int result = mComparator.compare(left, right);
-            if (result <= 0) {
-                greatest = i;
-            }
+            cursorIndexes[position] = smallest;
+            rowIndexes[position] = nextRows[smallest]++;
+            mCursors[smallest].moveToNext();
         }
 
-        mPosition--;
-        if (greatest != -1) {
-            mActiveCursorIndex = greatest;
-            mActiveCursor = mCursors[mActiveCursorIndex];
+        mCursorIndexes = cursorIndexes;
+        mRowIndexes = rowIndexes;
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        if (mPosition < 0) {
+            return false;
         }
 
-        return true;
+        return moveToPosition(mPosition - 1);
     }
 
     @Override
     public void registerContentObserver(ContentObserver observer) {
         for (Cursor cursor : mCursors) {
-            cursor.registerContentObserver(observer);
+            if (cursor != null) {
+                cursor.registerContentObserver(observer);
+            }
         }
     }
 
     @Override
     public void registerDataSetObserver(DataSetObserver observer) {
         for (Cursor cursor : mCursors) {
-            cursor.registerDataSetObserver(observer);
+            if (cursor != null) {
+                cursor.registerDataSetObserver(observer);
+            }
         }
     }
 
@@ -422,30 +460,44 @@ public class MergeCursor implements Cursor {
     public boolean requery() {
         boolean success = true;
         for (Cursor cursor : mCursors) {
-            success &= cursor.requery();
+            if (cursor != null) {
+                success &= cursor.requery();
+            }
         }
 
+        // The cursors might have changed, so the merged order has to be calculated again
+        mCount = -1;
+        mCursorIndexes = null;
+        mRowIndexes = null;
+        resetCursors();
+
         return success;
     }
 
     @Override
     public void setNotificationUri(ContentResolver cr, Uri uri) {
         for (Cursor cursor : mCursors) {
-            cursor.setNotificationUri(cr, uri);
+            if (cursor != null) {
+                cursor.setNotificationUri(cr, uri);
+            }
         }
     }
 
     @Override
     public void unregisterContentObserver(ContentObserver observer) {
         for (Cursor cursor : mCursors) {
-            cursor.unregisterContentObserver(observer);
+            if (cursor != null) {
+                cursor.unregisterContentObserver(observer);
+            }
         }
     }
 
     @Override
     public void unregisterDataSetObserver(DataSetObserver observer) {
         for (Cursor cursor : mCursors) {
-            cursor.unregisterDataSetObserver(observer);
+            if (cursor != null) {
+                cursor.unregisterDataSetObserver(observer);
+            }
         }
     }
 
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -25,7 +26,9 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.fsck.k9.Account;
@@ -41,6 +44,7 @@ import com.fsck.k9.mail.BodyPart;
 import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.FolderStatus;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.Part;
@@ -76,6 +80,14 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
     // mLastUid is used during syncs. It holds the highest UID within the local folder so we
     // know whether or not an unread message added to the local folder is actually "new" or not.
     private Integer mLastUid = null;
+    // UIDVALIDITY and HIGHESTMODSEQ of the remote folder as of the last successful sync. Used to
+    // only fetch flag changes since then if the server supports CONDSTORE.
+    private long mUidValidity = -1L;
+    private long mHighestModSeq = -1L;
+    // UIDNEXT and message count of the remote folder as of the last successful sync. Together with
+    // the values above used to find out whether the folder changed without opening it.
+    private long mUidNext = -1L;
+    private int mRemoteMessageCount = -1;
 
     public LocalFolder(LocalStore localStore, String name) {
         super();
@@ -185,6 +197,14 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         mPushClass = Folder.FolderClass.valueOf((pushClass == null) ? noClass : pushClass);
         String syncClass = cursor.getString(LocalStore.FOLDER_SYNC_CLASS_INDEX);
         mSyncClass = Folder.FolderClass.valueOf((syncClass == null) ? noClass : syncClass);
+        mUidValidity = cursor.isNull(LocalStore.FOLDER_UID_VALIDITY_INDEX) ?
+                -1L : cursor.getLong(LocalStore.FOLDER_UID_VALIDITY_INDEX);
+        mHighestModSeq = cursor.isNull(LocalStore.FOLDER_HIGHEST_MOD_SEQ_INDEX) ?
+                -1L : cursor.getLong(LocalStore.FOLDER_HIGHEST_MOD_SEQ_INDEX);
+        mUidNext = cursor.isNull(LocalStore.FOLDER_UID_NEXT_INDEX) ?
+                -1L : cursor.getLong(LocalStore.FOLDER_UID_NEXT_INDEX);
+        mRemoteMessageCount = cursor.isNull(LocalStore.FOLDER_REMOTE_MESSAGE_COUNT_INDEX) ?
+                -1 : cursor.getInt(LocalStore.FOLDER_REMOTE_MESSAGE_COUNT_INDEX);
     }
 
     @Override
@@ -257,68 +277,26 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         mFolderId = -1;
     }
 
+    /**
+     * @return The number of messages in this folder, not counting deleted messages and
+     *         placeholders. Read from the counters maintained by database triggers.
+     */
     @Override
     public int getMessageCount() throws MessagingException {
-        try {
-            return this.localStore.database.execute(false, new DbCallback<Integer>() {
-                @Override
-                public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    try {
-                        open(OPEN_MODE_RW);
-                    } catch (MessagingException e) {
-                        throw new WrappedException(e);
-                    }
-                    Cursor cursor = null;
-                    try {
-                        cursor = db.rawQuery("SELECT COUNT(id) FROM messages WHERE (empty IS NULL OR empty != 1) AND deleted = 0 and folder_id = ?",
-                                             new String[] {
-                                                 Long.toString(mFolderId)
-                                             });
-                        cursor.moveToFirst();
-                        return cursor.getInt(0);   //messagecount
-                    } finally {
-                        Utility.closeQuietly(cursor);
-                    }
-                }
-            });
-        } catch (WrappedException e) {
-            throw(MessagingException) e.getCause();
-        }
+        return getCounter("total_count");
     }
 
     @Override
     public int getUnreadMessageCount() throws MessagingException {
-        if (mFolderId == -1) {
-            open(OPEN_MODE_RW);
-        }
-
-        try {
-            return this.localStore.database.execute(false, new DbCallback<Integer>() {
-                @Override
-                public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int unreadMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND (empty IS NULL OR empty != 1) AND deleted = 0 AND read=0",
-                            new String[] { Long.toString(mFolderId) }, null, null, null);
-
-                    try {
-                        if (cursor.moveToFirst()) {
-                            unreadMessageCount = cursor.getInt(0);
-                        }
-                    } finally {
-                        cursor.close();
-                    }
-
-                    return unreadMessageCount;
-                }
-            });
-        } catch (WrappedException e) {
-            throw(MessagingException) e.getCause();
-        }
+        return getCounter("unread_count");
     }
 
     @Override
     public int getFlaggedMessageCount() throws MessagingException {
+        return getCounter("flagged_count");
+    }
+
+    private int getCounter(final String column) throws MessagingException {
         if (mFolderId == -1) {
             open(OPEN_MODE_RW);
         }
@@ -327,20 +305,13 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
             return this.localStore.database.execute(false, new DbCallback<Integer>() {
                 @Override
                 public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
-                    int flaggedMessageCount = 0;
-                    Cursor cursor = db.query("messages", new String[] { "COUNT(id)" },
-                            "folder_id = ? AND (empty IS NULL OR empty != 1) AND deleted = 0 AND flagged = 1",
-                            new String[] { Long.toString(mFolderId) }, null, null, null);
-
+                    Cursor cursor = db.rawQuery("SELECT IFNULL(" + column + ", 0) FROM folders WHERE id = ?",
+                            new String[] { Long.toString(mFolderId) });
                     try {
-                        if (cursor.moveToFirst()) {
-                            flaggedMessageCount = cursor.getInt(0);
-                        }
+                        return cursor.moveToFirst() ? cursor.getInt(0) : 0;
                     } finally {
-                        cursor.close();
+                        Utility.closeQuietly(cursor);
                     }
-
-                    return flaggedMessageCount;
                 }
             });
         } catch (WrappedException e) {
@@ -430,6 +401,73 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         return mPushState;
     }
 
+    @Override
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    @Override
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    @Override
+    public long getUidNext() {
+        return mUidNext;
+    }
+
+    public int getRemoteMessageCount() {
+        return mRemoteMessageCount;
+    }
+
+    /**
+     * Remember the message count, UIDNEXT, UIDVALIDITY and HIGHESTMODSEQ the remote folder
+     * reported when it was opened for the last successful sync.
+     */
+    public void setRemoteState(final int messageCount, final long uidNext, final long uidValidity,
+            final long highestModSeq) throws MessagingException {
+        try {
+            this.localStore.database.execute(false, new DbCallback<Void>() {
+                @Override
+                public Void doDbWork(final SQLiteDatabase db) throws WrappedException {
+                    try {
+                        open(OPEN_MODE_RW);
+                    } catch (MessagingException e) {
+                        throw new WrappedException(e);
+                    }
+                    db.execSQL("UPDATE folders SET remote_message_count = ?, uid_next = ?, " +
+                            "uid_validity = ?, highest_mod_seq = ? WHERE id = ?",
+                            new Object[] { messageCount, uidNext, uidValidity, highestModSeq, mFolderId });
+                    return null;
+                }
+            });
+        } catch (WrappedException e) {
+            throw(MessagingException) e.getCause();
+        }
+        mRemoteMessageCount = messageCount;
+        mUidNext = uidNext;
+        mUidValidity = uidValidity;
+        mHighestModSeq = highestModSeq;
+    }
+
+    /**
+     * Checks whether the remote folder changed since the last successful sync.
+     *
+     * <p>
+     * Without a HIGHESTMODSEQ changes to the flags of existing messages can't be detected, so
+     * folders of servers that don't support CONDSTORE always count as changed.
+     * </p>
+     *
+     * @return {@code true} if {@code status} matches the state of the remote folder as of the
+     *         last successful sync.
+     */
+    public boolean isUpToDate(FolderStatus status) {
+        return mHighestModSeq > 0 && status.getHighestModSeq() == mHighestModSeq &&
+                mUidValidity != -1L && status.getUidValidity() == mUidValidity &&
+                mUidNext != -1L && status.getUidNext() == mUidNext &&
+                mRemoteMessageCount != -1 && status.getMessageCount() == mRemoteMessageCount;
+    }
+
     @Override
     public FolderClass getDisplayClass() {
         return mDisplayClass;
@@ -983,9 +1021,10 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         if (uids == null) {
             return getMessages(listener);
         }
+        Map<String, LocalMessage> messagesByUid = getMessagesByUid(Arrays.asList(uids));
         List<LocalMessage> messages = new ArrayList<LocalMessage>();
         for (String uid : uids) {
-            LocalMessage message = getMessage(uid);
+            LocalMessage message = messagesByUid.get(uid);
             if (message != null) {
                 messages.add(message);
             }
@@ -993,6 +1032,131 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         return messages;
     }
 
+    /**
+     * Calls {@code visitor} with the UID and date of every (non-empty) message in this folder.
+     *
+     * <p>
+     * Only the two columns are read from the database and no {@link LocalMessage} objects are
+     * created, so this is cheap even for very large folders.
+     * </p>
+     */
+    public void visitMessageUids(final MessageUidVisitor visitor) throws MessagingException {
+        try {
+            this.localStore.database.execute(false, new DbCallback<Void>() {
+                @Override
+                public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    try {
+                        open(OPEN_MODE_RW);
+                    } catch (MessagingException e) {
+                        throw new WrappedException(e);
+                    }
+
+                    Cursor cursor = db.rawQuery("SELECT uid, date FROM messages " +
+                            "WHERE (empty IS NULL OR empty != 1) AND folder_id = ?",
+                            new String[] { Long.toString(mFolderId) });
+                    try {
+                        while (cursor.moveToNext()) {
+                            visitor.visit(cursor.getString(0), cursor.getLong(1));
+                        }
+                    } finally {
+                        Utility.closeQuietly(cursor);
+                    }
+                    return null;
+                }
+            });
+        } catch (WrappedException e) {
+            throw(MessagingException) e.getCause();
+        }
+    }
+
+    /**
+     * Receives the messages of a folder from {@link LocalFolder#visitMessageUids(MessageUidVisitor)}.
+     */
+    public interface MessageUidVisitor {
+        /**
+         * @param uid
+         *         The UID of the message.
+         * @param date
+         *         The date of the message in milliseconds since the epoch.
+         */
+        void visit(String uid, long date);
+    }
+
+    /**
+     * Loads the messages with the given UIDs.
+     *
+     * <p>
+     * Uses one query per {@link LocalStore#UID_CHECK_BATCH_SIZE} UIDs instead of one query per
+     * message.
+     * </p>
+     *
+     * @return The messages found in this folder, keyed by UID. UIDs that aren't known locally are
+     *         missing from the map.
+     */
+    public Map<String, LocalMessage> getMessagesByUid(final List<String> uids) throws MessagingException {
+        try {
+            return this.localStore.database.execute(false, new DbCallback<Map<String, LocalMessage>>() {
+                @Override
+                public Map<String, LocalMessage> doDbWork(final SQLiteDatabase db) throws WrappedException,
+                        UnavailableStorageException {
+                    try {
+                        open(OPEN_MODE_RW);
+
+                        Map<String, LocalMessage> messages = new HashMap<String, LocalMessage>(uids.size());
+                        List<String> selectionArgs = new ArrayList<String>();
+                        int start = 0;
+
+                        while (start < uids.size()) {
+                            StringBuilder query = new StringBuilder();
+                            query.append("SELECT ");
+                            query.append(LocalStore.GET_MESSAGES_COLS);
+                            query.append("FROM messages ");
+                            query.append("LEFT JOIN threads ON (threads.message_id = messages.id) ");
+                            query.append("WHERE folder_id = ? AND uid IN (");
+                            selectionArgs.add(Long.toString(mFolderId));
+
+                            int count = Math.min(uids.size() - start, LocalStore.UID_CHECK_BATCH_SIZE);
+
+                            for (int i = start, end = start + count; i < end; i++) {
+                                if (i > start) {
+                                    query.append(",?");
+                                } else {
+                                    query.append("?");
+                                }
+
+                                selectionArgs.add(uids.get(i));
+                            }
+
+                            query.append(")");
+
+                            Cursor cursor = db.rawQuery(query.toString(),
+                                    selectionArgs.toArray(LocalStore.EMPTY_STRING_ARRAY));
+                            try {
+                                while (cursor.moveToNext()) {
+                                    LocalMessage message = new LocalMessage(LocalFolder.this.localStore,
+                                            null, LocalFolder.this);
+                                    message.populateFromGetMessageCursor(cursor);
+                                    messages.put(message.getUid(), message);
+                                }
+                            } finally {
+                                Utility.closeQuietly(cursor);
+                            }
+
+                            selectionArgs.clear();
+                            start += count;
+                        }
+
+                        return messages;
+                    } catch (MessagingException e) {
+                        throw new WrappedException(e);
+                    }
+                }
+            });
+        } catch (WrappedException e) {
+            throw(MessagingException) e.getCause();
+        }
+    }
+
     @Override
     public Map<String, String> copyMessages(List<? extends Message> msgs, Folder folder) throws MessagingException {
         if (!(folder instanceof LocalFolder)) {
@@ -1110,6 +1274,13 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                             cv.put("message_id", newId);
                             db.update("threads", cv, "id = ?",
                                     new String[] { Long.toString(lMessage.getThreadId()) });
+
+                            // The message and the placeholder switched folders
+                            ThreadIndex threadIndex = LocalFolder.this.localStore.getThreadIndex();
+                            threadIndex.remove(mFolderId, messageId);
+                            threadIndex.remove(lDestFolder.getId(), messageId);
+                            threadIndex.removeMessage(msgId);
+                            threadIndex.removeMessage(newId);
                         }
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
@@ -1171,13 +1342,21 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
     }
 
     public void destroyMessages(final List<? extends Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
         try {
             this.localStore.database.execute(true, new DbCallback<Void>() {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     for (Message message : messages) {
                         try {
-                            message.destroy();
+                            if (message instanceof LocalMessage) {
+                                ((LocalMessage) message).destroy(db);
+                            } else {
+                                message.destroy();
+                            }
                         } catch (MessagingException e) {
                             throw new WrappedException(e);
                         }
@@ -1188,10 +1367,29 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         } catch (MessagingException e) {
             throw new WrappedException(e);
         }
+
+        this.localStore.notifyChange();
+    }
+
+    private ThreadInfo getThreadInfo(SQLiteDatabase db, AppendBatch batch, String messageId,
+            boolean onlyEmpty) {
+        if (batch != null && !batch.isKnownMessageId(messageId)) {
+            return null;
+        }
+        return getThreadInfo(db, messageId, onlyEmpty);
     }
 
     private ThreadInfo getThreadInfo(SQLiteDatabase db, String messageId, boolean onlyEmpty) {
-        String sql = "SELECT t.id, t.message_id, t.root, t.parent " +
+        ThreadIndex threadIndex = this.localStore.getThreadIndex();
+
+        // The index holds the message with the lowest id. If that one is empty, it's also the
+        // first empty one.
+        ThreadIndex.Entry entry = threadIndex.get(mFolderId, messageId);
+        if (entry != null && (!onlyEmpty || entry.empty)) {
+            return entry.threadInfo;
+        }
+
+        String sql = "SELECT t.id, t.message_id, t.root, t.parent, m.empty " +
                 "FROM messages m " +
                 "LEFT JOIN threads t ON (t.message_id = m.id) " +
                 "WHERE m.folder_id = ? AND m.message_id = ? " +
@@ -1208,8 +1406,14 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                     long msgId = cursor.getLong(1);
                     long rootId = (cursor.isNull(2)) ? -1 : cursor.getLong(2);
                     long parentId = (cursor.isNull(3)) ? -1 : cursor.getLong(3);
+                    boolean empty = (cursor.getInt(4) == 1);
+
+                    ThreadInfo threadInfo = new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
+                    if (!onlyEmpty) {
+                        threadIndex.put(mFolderId, threadInfo, empty);
+                    }
 
-                    return new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
+                    return threadInfo;
                 }
             } finally {
                 cursor.close();
@@ -1237,10 +1441,14 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         open(OPEN_MODE_RW);
         try {
             final Map<String, String> uidMap = new HashMap<String, String>();
+            long start = SystemClock.elapsedRealtime();
             this.localStore.database.execute(true, new DbCallback<Void>() {
                 @Override
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                    AppendBatch batch = null;
                     try {
+                        batch = new AppendBatch(db, messages, copy);
+
                         for (Message message : messages) {
                             long oldMessageId = -1;
                             String uid = message.getUid();
@@ -1265,13 +1473,12 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                 /*
                                  * Replace an existing message in the database
                                  */
-                                LocalMessage oldMessage = getMessage(uid);
+                                Long oldId = batch.getLocalId(uid);
 
-                                if (oldMessage != null) {
-                                    oldMessageId = oldMessage.getId();
+                                if (oldId != null) {
+                                    oldMessageId = oldId;
+                                    deleteAttachments(message.getUid());
                                 }
-
-                                deleteAttachments(message.getUid());
                             }
 
                             long rootId = -1;
@@ -1279,7 +1486,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
 
                             if (oldMessageId == -1) {
                                 // This is a new message. Do the message threading.
-                                ThreadInfo threadInfo = doMessageThreading(db, message);
+                                ThreadInfo threadInfo = doMessageThreading(db, message, batch);
                                 oldMessageId = threadInfo.msgId;
                                 rootId = threadInfo.rootId;
                                 parentId = threadInfo.parentId;
@@ -1312,13 +1519,18 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                             String preview = Message.calculateContentPreview(text);
 
                             try {
+                                // All headers are saved below, so the flag can be stored right away
+                                List<Flag> appendedFlags = new ArrayList<Flag>();
+                                appendedFlags.addAll(message.getFlags());
+                                appendedFlags.add(Flag.X_GOT_ALL_HEADERS);
+
                                 ContentValues cv = new ContentValues();
                                 cv.put("uid", uid);
                                 cv.put("subject", message.getSubject());
                                 cv.put("sender_list", Address.pack(message.getFrom()));
                                 cv.put("date", message.getSentDate() == null
                                        ? System.currentTimeMillis() : message.getSentDate().getTime());
-                                cv.put("flags", LocalFolder.this.localStore.serializeFlags(message.getFlags()));
+                                cv.put("flags", LocalFolder.this.localStore.serializeFlags(appendedFlags));
                                 cv.put("deleted", message.isSet(Flag.DELETED) ? 1 : 0);
                                 cv.put("read", message.isSet(Flag.SEEN) ? 1 : 0);
                                 cv.put("flagged", message.isSet(Flag.FLAGGED) ? 1 : 0);
@@ -1346,40 +1558,45 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                                 long msgId;
 
                                 if (oldMessageId == -1) {
-                                    msgId = db.insert("messages", "uid", cv);
+                                    msgId = batch.insertMessage(cv);
 
                                     // Create entry in 'threads' table
-                                    cv.clear();
-                                    cv.put("message_id", msgId);
-
-                                    if (rootId != -1) {
-                                        cv.put("root", rootId);
-                                    }
-                                    if (parentId != -1) {
-                                        cv.put("parent", parentId);
-                                    }
-
-                                    db.insert("threads", null, cv);
+                                    batch.insertThread(msgId, rootId, parentId);
                                 } else {
                                     db.update("messages", cv, "id = ?", new String[] { Long.toString(oldMessageId) });
                                     msgId = oldMessageId;
+                                    deleteHeaders(msgId);
+
+                                    // The Message-ID or the 'empty' state of the message changed
+                                    LocalFolder.this.localStore.getThreadIndex().removeMessage(msgId);
                                 }
+                                batch.messageStored(uid, msgId, messageId);
 
                                 for (Part attachment : attachments) {
                                     saveAttachment(msgId, attachment, copy);
                                 }
-                                saveHeaders(msgId, (MimeMessage)message);
+                                batch.insertHeaders(msgId, (MimeMessage) message);
                             } catch (Exception e) {
                                 throw new MessagingException("Error appending message", e);
                             }
                         }
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
+                    } finally {
+                        if (batch != null) {
+                            batch.close();
+                        }
                     }
                     return null;
                 }
             });
 
+            if (K9.DEBUG) {
+                long time = SystemClock.elapsedRealtime() - start;
+                Log.d(K9.LOG_TAG, "Stored " + messages.size() + " messages in folder " + mName +
+                        " in " + time + " ms");
+            }
+
             this.localStore.notifyChange();
 
             return uidMap;
@@ -1388,6 +1605,209 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         }
     }
 
+    /**
+     * State shared by all messages stored with one call to {@link #appendMessages(List, boolean)}.
+     *
+     * <p>
+     * The local ids of the UIDs and the Message-IDs already present in this folder are looked up
+     * with one query per {@link LocalStore#UID_CHECK_BATCH_SIZE} values instead of several queries
+     * per message. The statements used to insert messages, threads and headers are compiled once
+     * and reused for the whole batch.
+     * </p>
+     */
+    private class AppendBatch {
+        private static final String INSERT_MESSAGE = "INSERT INTO messages (" +
+                "uid, subject, sender_list, date, flags, deleted, read, flagged, answered, " +
+                "forwarded, folder_id, to_list, cc_list, bcc_list, html_content, text_content, " +
+                "preview, reply_to_list, attachment_count, internal_date, mime_type, empty, " +
+                "message_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        private static final String INSERT_THREAD =
+                "INSERT INTO threads (message_id, root, parent) VALUES (?, ?, ?)";
+        private static final String INSERT_HEADER =
+                "INSERT INTO headers (message_id, name, value) VALUES (?, ?, ?)";
+
+        private final Map<String, Long> mLocalIds = new HashMap<String, Long>();
+        private final Set<String> mKnownMessageIds = new HashSet<String>();
+        private final SQLiteStatement mInsertMessage;
+        private final SQLiteStatement mInsertThread;
+        private final SQLiteStatement mInsertHeader;
+
+
+        AppendBatch(SQLiteDatabase db, List<? extends Message> messages, boolean copy)
+                throws MessagingException {
+            List<String> uids = new ArrayList<String>();
+            Set<String> messageIds = new HashSet<String>();
+            for (Message message : messages) {
+                String uid = message.getUid();
+                if (uid != null && !copy) {
+                    uids.add(uid);
+                }
+
+                String messageId = message.getMessageId();
+                if (messageId != null) {
+                    messageIds.add(messageId);
+                }
+                List<String> references = getReferencedMessageIds(message);
+                if (references != null) {
+                    messageIds.addAll(references);
+                }
+            }
+
+            loadLocalIds(db, uids);
+            loadKnownMessageIds(db, new ArrayList<String>(messageIds));
+
+            mInsertMessage = db.compileStatement(INSERT_MESSAGE);
+            mInsertThread = db.compileStatement(INSERT_THREAD);
+            mInsertHeader = db.compileStatement(INSERT_HEADER);
+        }
+
+        /**
+         * @return The id of the message with the given UID or {@code null} if there's no such
+         *         message in this folder.
+         */
+        public Long getLocalId(String uid) {
+            return mLocalIds.get(uid);
+        }
+
+        /**
+         * @return {@code false} if there's definitely no message (or placeholder) with the given
+         *         Message-ID in this folder.
+         */
+        public boolean isKnownMessageId(String messageId) {
+            return mKnownMessageIds.contains(messageId);
+        }
+
+        public void placeholderStored(String messageId) {
+            mKnownMessageIds.add(messageId);
+        }
+
+        public void messageStored(String uid, long id, String messageId) {
+            mLocalIds.put(uid, id);
+            if (messageId != null) {
+                mKnownMessageIds.add(messageId);
+            }
+        }
+
+        public long insertMessage(ContentValues cv) {
+            SQLiteStatement statement = mInsertMessage;
+            statement.clearBindings();
+            bind(statement, 1, cv.getAsString("uid"));
+            bind(statement, 2, cv.getAsString("subject"));
+            bind(statement, 3, cv.getAsString("sender_list"));
+            statement.bindLong(4, cv.getAsLong("date"));
+            bind(statement, 5, cv.getAsString("flags"));
+            statement.bindLong(6, cv.getAsLong("deleted"));
+            statement.bindLong(7, cv.getAsLong("read"));
+            statement.bindLong(8, cv.getAsLong("flagged"));
+            statement.bindLong(9, cv.getAsLong("answered"));
+            statement.bindLong(10, cv.getAsLong("forwarded"));
+            statement.bindLong(11, cv.getAsLong("folder_id"));
+            bind(statement, 12, cv.getAsString("to_list"));
+            bind(statement, 13, cv.getAsString("cc_list"));
+            bind(statement, 14, cv.getAsString("bcc_list"));
+            bind(statement, 15, cv.getAsString("html_content"));
+            bind(statement, 16, cv.getAsString("text_content"));
+            bind(statement, 17, cv.getAsString("preview"));
+            bind(statement, 18, cv.getAsString("reply_to_list"));
+            statement.bindLong(19, cv.getAsLong("attachment_count"));
+            statement.bindLong(20, cv.getAsLong("internal_date"));
+            bind(statement, 21, cv.getAsString("mime_type"));
+            statement.bindLong(22, cv.getAsLong("empty"));
+            bind(statement, 23, cv.getAsString("message_id"));
+            return statement.executeInsert();
+        }
+
+        public void insertThread(long msgId, long rootId, long parentId) {
+            SQLiteStatement statement = mInsertThread;
+            statement.clearBindings();
+            statement.bindLong(1, msgId);
+            if (rootId != -1) {
+                statement.bindLong(2, rootId);
+            }
+            if (parentId != -1) {
+                statement.bindLong(3, parentId);
+            }
+            statement.executeInsert();
+        }
+
+        public void insertHeaders(long msgId, MimeMessage message) {
+            SQLiteStatement statement = mInsertHeader;
+            for (String name : message.getHeaderNames()) {
+                String[] values = message.getHeader(name);
+                for (String value : values) {
+                    statement.clearBindings();
+                    statement.bindLong(1, msgId);
+                    bind(statement, 2, name);
+                    bind(statement, 3, value);
+                    statement.executeInsert();
+                }
+            }
+        }
+
+        public void close() {
+            mInsertMessage.close();
+            mInsertThread.close();
+            mInsertHeader.close();
+        }
+
+        private void bind(SQLiteStatement statement, int index, String value) {
+            if (value == null) {
+                statement.bindNull(index);
+            } else {
+                statement.bindString(index, value);
+            }
+        }
+
+        private void loadLocalIds(SQLiteDatabase db, List<String> uids) {
+            // Duplicate UIDs are resolved to the oldest message, like getMessage(String) does
+            int start = 0;
+            while (start < uids.size()) {
+                int count = Math.min(uids.size() - start, LocalStore.UID_CHECK_BATCH_SIZE);
+                Cursor cursor = queryIn(db, "SELECT uid, id FROM messages WHERE folder_id = ? AND uid IN (",
+                        ") ORDER BY id DESC", uids.subList(start, start + count));
+                try {
+                    while (cursor.moveToNext()) {
+                        mLocalIds.put(cursor.getString(0), cursor.getLong(1));
+                    }
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+                start += count;
+            }
+        }
+
+        private void loadKnownMessageIds(SQLiteDatabase db, List<String> messageIds) {
+            int start = 0;
+            while (start < messageIds.size()) {
+                int count = Math.min(messageIds.size() - start, LocalStore.UID_CHECK_BATCH_SIZE);
+                Cursor cursor = queryIn(db,
+                        "SELECT DISTINCT message_id FROM messages WHERE folder_id = ? AND message_id IN (",
+                        ")", messageIds.subList(start, start + count));
+                try {
+                    while (cursor.moveToNext()) {
+                        mKnownMessageIds.add(cursor.getString(0));
+                    }
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+                start += count;
+            }
+        }
+
+        private Cursor queryIn(SQLiteDatabase db, String prefix, String suffix, List<String> values) {
+            StringBuilder query = new StringBuilder(prefix);
+            String[] selectionArgs = new String[values.size() + 1];
+            selectionArgs[0] = Long.toString(mFolderId);
+            for (int i = 0, end = values.size(); i < end; i++) {
+                query.append((i == 0) ? "?" : ",?");
+                selectionArgs[i + 1] = values.get(i);
+            }
+            query.append(suffix);
+
+            return db.rawQuery(query.toString(), selectionArgs);
+        }
+    }
+
     /**
      * Update the given message in the LocalStore without first deleting the existing
      * message (contrast with appendMessages). This method is used to store changes
@@ -1757,6 +2177,73 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         }
     }
 
+    /**
+     * Writes the flags of the given messages, as currently set on the {@link LocalMessage}
+     * objects, to the database.
+     *
+     * <p>
+     * All messages are updated in one transaction and observers are notified only once. This
+     * doesn't remove the content of messages marked as {@link Flag#DELETED}; use
+     * {@link #setFlags(List, Set, boolean)} for that.
+     * </p>
+     */
+    public void saveFlags(final List<LocalMessage> messages) throws MessagingException {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        open(OPEN_MODE_RW);
+
+        this.localStore.database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
+                for (LocalMessage message : messages) {
+                    message.saveFlags(db);
+                }
+                return null;
+            }
+        });
+
+        this.localStore.notifyChange();
+    }
+
+    /**
+     * Marks the given messages as {@link Flag#DELETED} and removes their content.
+     *
+     * <p>
+     * This does the same as {@code setFlags(messages, Collections.singleton(Flag.DELETED), true)}
+     * but uses one transaction for all messages and notifies observers only once.
+     * </p>
+     */
+    public void markMessagesDeleted(final List<LocalMessage> messages) throws MessagingException {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        open(OPEN_MODE_RW);
+
+        try {
+            this.localStore.database.execute(true, new DbCallback<Void>() {
+                @Override
+                public Void doDbWork(final SQLiteDatabase db) throws WrappedException,
+                        UnavailableStorageException {
+                    for (LocalMessage message : messages) {
+                        try {
+                            message.markDeleted(db);
+                        } catch (MessagingException e) {
+                            throw new WrappedException(e);
+                        }
+                    }
+                    return null;
+                }
+            });
+        } catch (WrappedException e) {
+            throw(MessagingException) e.getCause();
+        }
+
+        this.localStore.notifyChange();
+    }
+
     @Override
     public void setFlags(final Set<Flag> flags, boolean value)
     throws MessagingException {
@@ -1818,6 +2305,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                         }
 
                         // Delete entries in 'threads' and 'messages'
+                        LocalFolder.this.localStore.getThreadIndex().clear();
                         db.execSQL("DELETE FROM threads WHERE message_id IN " +
                                 "(SELECT id FROM messages WHERE folder_id = ?)", folderIdArg);
                         db.execSQL("DELETE FROM messages WHERE folder_id = ?", folderIdArg);
@@ -1835,6 +2323,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         this.localStore.notifyChange();
 
         setPushState(null);
+        setRemoteState(-1, -1L, -1L, -1L);
         setLastPush(0);
         setLastChecked(0);
         setVisibleLimit(getAccount().getDisplayCount());
@@ -1858,6 +2347,7 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                     }
                     db.execSQL("DELETE FROM folders WHERE id = ?", new Object[]
                                { Long.toString(mFolderId), });
+                    LocalFolder.this.localStore.getThreadIndex().clear();
                     return null;
                 }
             });
@@ -2028,37 +2518,140 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
         });
     }
 
-    private ThreadInfo doMessageThreading(SQLiteDatabase db, Message message)
-            throws MessagingException {
-        long rootId = -1;
-        long parentId = -1;
+    /**
+     * Rebuilds the thread structure of this folder from the Message-ID, References and
+     * In-Reply-To headers of the stored messages.
+     *
+     * <p>
+     * All placeholder messages are removed and every message starts out as its own thread. Then
+     * the messages are linked to the messages they reference, in the order they were stored. All
+     * of this happens in one transaction.
+     * </p>
+     */
+    public void rethreadMessages() throws MessagingException {
+        open(OPEN_MODE_RW);
+        this.localStore.database.execute(true, new DbCallback<Void>() {
+            @Override
+            public Void doDbWork(final SQLiteDatabase db) {
+                String[] folderIdArg = new String[] { Long.toString(mFolderId) };
+
+                // Collect the references of all messages before the placeholders are removed
+                List<Long> msgIds = new ArrayList<Long>();
+                List<List<String>> references = new ArrayList<List<String>>();
+                Cursor cursor = db.rawQuery("SELECT m.id, h.name, h.value " +
+                        "FROM messages m " +
+                        "LEFT JOIN headers h ON (h.message_id = m.id AND " +
+                        "h.name COLLATE NOCASE IN ('References', 'In-Reply-To')) " +
+                        "WHERE m.folder_id = ? AND (m.empty IS NULL OR m.empty != 1) " +
+                        "ORDER BY m.id, h.id", folderIdArg);
+                try {
+                    long currentId = -1;
+                    String referencesHeader = null;
+                    String inReplyToHeader = null;
+                    while (cursor.moveToNext()) {
+                        long msgId = cursor.getLong(0);
+                        if (msgId != currentId) {
+                            if (currentId != -1) {
+                                msgIds.add(currentId);
+                                references.add(getReferencedMessageIds(referencesHeader, inReplyToHeader));
+                            }
+                            currentId = msgId;
+                            referencesHeader = null;
+                            inReplyToHeader = null;
+                        }
+
+                        String name = cursor.getString(1);
+                        if ("References".equalsIgnoreCase(name) && referencesHeader == null) {
+                            referencesHeader = cursor.getString(2);
+                        } else if ("In-Reply-To".equalsIgnoreCase(name) && inReplyToHeader == null) {
+                            inReplyToHeader = cursor.getString(2);
+                        }
+                    }
+                    if (currentId != -1) {
+                        msgIds.add(currentId);
+                        references.add(getReferencedMessageIds(referencesHeader, inReplyToHeader));
+                    }
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
 
-        String messageId = message.getMessageId();
+                ThreadIndex threadIndex = LocalFolder.this.localStore.getThreadIndex();
+                threadIndex.clear();
 
-        // If there's already an empty message in the database, update that
-        ThreadInfo msgThreadInfo = getThreadInfo(db, messageId, true);
+                db.execSQL("DELETE FROM threads WHERE message_id IN " +
+                        "(SELECT id FROM messages WHERE folder_id = ?)", folderIdArg);
+                db.execSQL("DELETE FROM messages WHERE folder_id = ? AND empty = 1 AND uid IS NULL",
+                        folderIdArg);
 
-        // Get the message IDs from the "References" header line
-        String[] referencesArray = message.getHeader("References");
-        List<String> messageIds = null;
-        if (referencesArray != null && referencesArray.length > 0) {
-            messageIds = Utility.extractMessageIds(referencesArray[0]);
-        }
+                // The 'set_thread_root' trigger makes every message the root of its own thread
+                db.execSQL("INSERT INTO threads (message_id) " +
+                        "SELECT id FROM messages WHERE folder_id = ?", folderIdArg);
 
-        // Append the first message ID from the "In-Reply-To" header line
-        String[] inReplyToArray = message.getHeader("In-Reply-To");
-        String inReplyTo;
-        if (inReplyToArray != null && inReplyToArray.length > 0) {
-            inReplyTo = Utility.extractMessageId(inReplyToArray[0]);
-            if (inReplyTo != null) {
-                if (messageIds == null) {
-                    messageIds = new ArrayList<String>(1);
-                    messageIds.add(inReplyTo);
-                } else if (!messageIds.contains(inReplyTo)) {
-                    messageIds.add(inReplyTo);
+                Map<Long, Long> threadIds = new HashMap<Long, Long>();
+                cursor = db.rawQuery("SELECT t.message_id, t.id FROM threads t " +
+                        "JOIN messages m ON (m.id = t.message_id) WHERE m.folder_id = ?", folderIdArg);
+                try {
+                    while (cursor.moveToNext()) {
+                        threadIds.put(cursor.getLong(0), cursor.getLong(1));
+                    }
+                } finally {
+                    Utility.closeQuietly(cursor);
                 }
+
+                for (int i = 0, count = msgIds.size(); i < count; i++) {
+                    List<String> messageIds = references.get(i);
+                    if (messageIds == null || messageIds.isEmpty()) {
+                        continue;
+                    }
+
+                    long threadId = threadIds.get(msgIds.get(i));
+                    ThreadInfo path = threadReferences(db, messageIds, null);
+
+                    // Don't create loops when messages reference each other
+                    if (path.rootId == threadId || path.parentId == threadId) {
+                        continue;
+                    }
+
+                    // Move the messages that were already linked to this one to the new root
+                    ContentValues cv = new ContentValues();
+                    cv.put("root", path.rootId);
+                    db.update("threads", cv, "root = ?", new String[] { Long.toString(threadId) });
+
+                    cv.put("parent", path.parentId);
+                    db.update("threads", cv, "id = ?", new String[] { Long.toString(threadId) });
+
+                    threadIndex.reroot(threadId, path.rootId, path.parentId);
+                }
+
+                if (K9.DEBUG) {
+                    Log.d(K9.LOG_TAG, "Rethreaded " + msgIds.size() + " messages in folder " + mName);
+                }
+                return null;
             }
-        }
+        });
+
+        this.localStore.notifyChange();
+    }
+
+    private ThreadInfo doMessageThreading(SQLiteDatabase db, Message message)
+            throws MessagingException {
+        return doMessageThreading(db, message, null);
+    }
+
+    /**
+     * @param batch
+     *         If not {@code null}, used to skip the lookup of Message-IDs that are known not to
+     *         exist in this folder.
+     */
+    private ThreadInfo doMessageThreading(SQLiteDatabase db, Message message, AppendBatch batch)
+            throws MessagingException {
+        return doMessageThreading(db, message.getMessageId(), getReferencedMessageIds(message), batch);
+    }
+
+    private ThreadInfo doMessageThreading(SQLiteDatabase db, String messageId, List<String> messageIds,
+            AppendBatch batch) {
+        // If there's already an empty message in the database, update that
+        ThreadInfo msgThreadInfo = getThreadInfo(db, batch, messageId, true);
 
         if (messageIds == null) {
             // This is not a reply, nothing to do for us.
@@ -2066,8 +2659,36 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                     msgThreadInfo : new ThreadInfo(-1, -1, messageId, -1, -1);
         }
 
+        ThreadInfo path = threadReferences(db, messageIds, batch);
+
+        //TODO: set in-reply-to "link" even if one already exists
+
+        long threadId;
+        long msgId;
+        if (msgThreadInfo != null) {
+            threadId = msgThreadInfo.threadId;
+            msgId = msgThreadInfo.msgId;
+        } else {
+            threadId = -1;
+            msgId = -1;
+        }
+
+        return new ThreadInfo(threadId, msgId, messageId, path.rootId, path.parentId);
+    }
+
+    /**
+     * Makes sure there's a thread container for every referenced message and links them.
+     *
+     * @return The {@code rootId} and {@code parentId} for a message with the given references.
+     */
+    private ThreadInfo threadReferences(SQLiteDatabase db, List<String> messageIds, AppendBatch batch) {
+        long rootId = -1;
+        long parentId = -1;
+
+        ThreadIndex threadIndex = this.localStore.getThreadIndex();
+
         for (String reference : messageIds) {
-            ThreadInfo threadInfo = getThreadInfo(db, reference, false);
+            ThreadInfo threadInfo = getThreadInfo(db, batch, reference, false);
 
             if (threadInfo == null) {
                 // Create placeholder message in 'messages' table
@@ -2077,6 +2698,9 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                 cv.put("empty", 1);
 
                 long newMsgId = db.insert("messages", null, cv);
+                if (batch != null) {
+                    batch.placeholderStored(reference);
+                }
 
                 // Create entry in 'threads' table
                 cv.clear();
@@ -2088,7 +2712,11 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                     cv.put("parent", parentId);
                 }
 
-                parentId = db.insert("threads", null, cv);
+                long newThreadId = db.insert("threads", null, cv);
+                threadIndex.put(mFolderId, new ThreadInfo(newThreadId, newMsgId, reference,
+                        (rootId != -1) ? rootId : newThreadId, parentId), true);
+
+                parentId = newThreadId;
                 if (rootId == -1) {
                     rootId = parentId;
                 }
@@ -2108,6 +2736,8 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
                     cv.put("parent", parentId);
                     db.update("threads", cv, "id = ?",
                             new String[] { Long.toString(threadInfo.threadId) });
+
+                    threadIndex.reroot(threadInfo.threadId, rootId, parentId);
                 } else {
                     rootId = (threadInfo.rootId == -1) ?
                             threadInfo.threadId : threadInfo.rootId;
@@ -2116,19 +2746,44 @@ public class LocalFolder extends Folder<LocalMessage> implements Serializable {
             }
         }
 
-        //TODO: set in-reply-to "link" even if one already exists
+        return new ThreadInfo(-1, -1, null, rootId, parentId);
+    }
 
-        long threadId;
-        long msgId;
-        if (msgThreadInfo != null) {
-            threadId = msgThreadInfo.threadId;
-            msgId = msgThreadInfo.msgId;
-        } else {
-            threadId = -1;
-            msgId = -1;
+    /**
+     * Get the message IDs from the "References" header line and append the first message ID from
+     * the "In-Reply-To" header line.
+     *
+     * @return The referenced message IDs or {@code null} if the message is not a reply.
+     */
+    private static List<String> getReferencedMessageIds(Message message) throws MessagingException {
+        String[] referencesArray = message.getHeader("References");
+        String[] inReplyToArray = message.getHeader("In-Reply-To");
+
+        return getReferencedMessageIds(
+                (referencesArray != null && referencesArray.length > 0) ? referencesArray[0] : null,
+                (inReplyToArray != null && inReplyToArray.length > 0) ? inReplyToArray[0] : null);
+    }
+
+    private static List<String> getReferencedMessageIds(String references, String inReplyToHeader) {
+        List<String> messageIds = null;
+        if (references != null) {
+            messageIds = Utility.extractMessageIds(references);
+        }
+
+        String inReplyTo;
+        if (inReplyToHeader != null) {
+            inReplyTo = Utility.extractMessageId(inReplyToHeader);
+            if (inReplyTo != null) {
+                if (messageIds == null) {
+                    messageIds = new ArrayList<String>(1);
+                    messageIds.add(inReplyTo);
+                } else if (!messageIds.contains(inReplyTo)) {
+                    messageIds.add(inReplyTo);
+                }
+            }
         }
 
-        return new ThreadInfo(threadId, msgId, messageId, rootId, parentId);
+        return messageIds;
     }
 
     public List<Message> extractNewMessages(final List<Message> messages)
@@ -271,25 +271,15 @@ public class LocalMessage extends MimeMessage {
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException, UnavailableStorageException {
                     try {
                         if (flag == Flag.DELETED && set) {
-                            delete();
+                            delete(db);
                         }
 
                         LocalMessage.super.setFlag(flag, set);
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
                     }
-                    /*
-                     * Set the flags on the message.
-                     */
-                    ContentValues cv = new ContentValues();
-                    cv.put("flags", LocalMessage.this.localStore.serializeFlags(getFlags()));
-                    cv.put("read", isSet(Flag.SEEN) ? 1 : 0);
-                    cv.put("flagged", isSet(Flag.FLAGGED) ? 1 : 0);
-                    cv.put("answered", isSet(Flag.ANSWERED) ? 1 : 0);
-                    cv.put("forwarded", isSet(Flag.FORWARDED) ? 1 : 0);
-
-                    db.update("messages", cv, "id = ?", new String[] { Long.toString(mId) });
 
+                    saveFlags(db);
                     return null;
                 }
             });
@@ -300,61 +290,77 @@ public class LocalMessage extends MimeMessage {
         this.localStore.notifyChange();
     }
 
+    /**
+     * Writes the message's current flags to the database.
+     *
+     * <p>
+     * Doesn't notify observers. The caller is expected to do that once it's done.
+     * </p>
+     */
+    void saveFlags(SQLiteDatabase db) {
+        ContentValues cv = new ContentValues();
+        cv.put("flags", this.localStore.serializeFlags(getFlags()));
+        cv.put("read", isSet(Flag.SEEN) ? 1 : 0);
+        cv.put("flagged", isSet(Flag.FLAGGED) ? 1 : 0);
+        cv.put("answered", isSet(Flag.ANSWERED) ? 1 : 0);
+        cv.put("forwarded", isSet(Flag.FORWARDED) ? 1 : 0);
+
+        db.update("messages", cv, "id = ?", new String[] { Long.toString(mId) });
+    }
+
+    /**
+     * Marks the message as deleted and writes its flags to the database.
+     *
+     * <p>
+     * Doesn't notify observers. The caller is expected to do that once it's done.
+     * </p>
+     */
+    void markDeleted(SQLiteDatabase db) throws MessagingException {
+        delete(db);
+        super.setFlag(Flag.DELETED, true);
+        saveFlags(db);
+    }
+
     /*
      * If a message is being marked as deleted we want to clear out it's content
      * and attachments as well. Delete will not actually remove the row since we need
      * to retain the uid for synchronization purposes.
      */
-    private void delete() throws MessagingException
-
-    {
+    private void delete(SQLiteDatabase db) throws MessagingException {
         /*
          * Delete all of the message's content to save space.
          */
-        try {
-            this.localStore.database.execute(true, new DbCallback<Void>() {
-                @Override
-                public Void doDbWork(final SQLiteDatabase db) throws WrappedException,
-                        UnavailableStorageException {
-                    String[] idArg = new String[] { Long.toString(mId) };
-
-                    ContentValues cv = new ContentValues();
-                    cv.put("deleted", 1);
-                    cv.put("empty", 1);
-                    cv.putNull("subject");
-                    cv.putNull("sender_list");
-                    cv.putNull("date");
-                    cv.putNull("to_list");
-                    cv.putNull("cc_list");
-                    cv.putNull("bcc_list");
-                    cv.putNull("preview");
-                    cv.putNull("html_content");
-                    cv.putNull("text_content");
-                    cv.putNull("reply_to_list");
-
-                    db.update("messages", cv, "id = ?", idArg);
-
-                    /*
-                     * Delete all of the message's attachments to save space.
-                     * We do this explicit deletion here because we're not deleting the record
-                     * in messages, which means our ON DELETE trigger for messages won't cascade
-                     */
-                    try {
-                        ((LocalFolder) mFolder).deleteAttachments(mId);
-                    } catch (MessagingException e) {
-                        throw new WrappedException(e);
-                    }
+        String[] idArg = new String[] { Long.toString(mId) };
+
+        // The message becomes empty
+        localStore.getThreadIndex().remove(((LocalFolder) mFolder).getId(), mMessageId);
+
+        ContentValues cv = new ContentValues();
+        cv.put("deleted", 1);
+        cv.put("empty", 1);
+        cv.putNull("subject");
+        cv.putNull("sender_list");
+        cv.putNull("date");
+        cv.putNull("to_list");
+        cv.putNull("cc_list");
+        cv.putNull("bcc_list");
+        cv.putNull("preview");
+        cv.putNull("html_content");
+        cv.putNull("text_content");
+        cv.putNull("reply_to_list");
+
+        db.update("messages", cv, "id = ?", idArg);
 
-                    db.delete("attachments", "message_id = ?", idArg);
-                    return null;
-                }
-            });
-        } catch (WrappedException e) {
-            throw(MessagingException) e.getCause();
-        }
-        ((LocalFolder)mFolder).deleteHeaders(mId);
+        /*
+         * Delete all of the message's attachments to save space.
+         * We do this explicit deletion here because we're not deleting the record
+         * in messages, which means our ON DELETE trigger for messages won't cascade
+         */
+        ((LocalFolder) mFolder).deleteAttachments(mId);
 
-        this.localStore.notifyChange();
+        db.delete("attachments", "message_id = ?", idArg);
+
+        ((LocalFolder) mFolder).deleteHeaders(mId);
     }
 
     /*
@@ -370,51 +376,7 @@ public class LocalMessage extends MimeMessage {
                 public Void doDbWork(final SQLiteDatabase db) throws WrappedException,
                     UnavailableStorageException {
                     try {
-                        LocalFolder localFolder = (LocalFolder) mFolder;
-
-                        localFolder.deleteAttachments(mId);
-
-                        if (hasThreadChildren(db, mId)) {
-                            // This message has children in the thread structure so we need to
-                            // make it an empty message.
-                            ContentValues cv = new ContentValues();
-                            cv.put("id", mId);
-                            cv.put("folder_id", localFolder.getId());
-                            cv.put("deleted", 0);
-                            cv.put("message_id", getMessageId());
-                            cv.put("empty", 1);
-
-                            db.replace("messages", null, cv);
-
-                            // Nothing else to do
-                            return null;
-                        }
-
-                        // Get the message ID of the parent message if it's empty
-                        long currentId = getEmptyThreadParent(db, mId);
-
-                        // Delete the placeholder message
-                        deleteMessageRow(db, mId);
-
-                        /*
-                         * Walk the thread tree to delete all empty parents without children
-                         */
-
-                        while (currentId != -1) {
-                            if (hasThreadChildren(db, currentId)) {
-                                // We made sure there are no empty leaf nodes and can stop now.
-                                break;
-                            }
-
-                            // Get ID of the (empty) parent for the next iteration
-                            long newId = getEmptyThreadParent(db, currentId);
-
-                            // Delete the empty message
-                            deleteMessageRow(db, currentId);
-
-                            currentId = newId;
-                        }
-
+                        destroy(db);
                     } catch (MessagingException e) {
                         throw new WrappedException(e);
                     }
@@ -428,6 +390,65 @@ public class LocalMessage extends MimeMessage {
         this.localStore.notifyChange();
     }
 
+    /**
+     * Removes the message from the database.
+     *
+     * <p>
+     * Doesn't notify observers. The caller is expected to do that once it's done.
+     * </p>
+     */
+    void destroy(SQLiteDatabase db) throws MessagingException {
+        LocalFolder localFolder = (LocalFolder) mFolder;
+
+        localFolder.deleteAttachments(mId);
+        localStore.getThreadIndex().remove(localFolder.getId(), mMessageId);
+
+        if (hasThreadChildren(db, mId)) {
+            // This message has children in the thread structure so we need to
+            // make it an empty message.
+            ContentValues cv = new ContentValues();
+            cv.put("id", mId);
+            cv.put("folder_id", localFolder.getId());
+            cv.put("deleted", 0);
+            cv.put("message_id", getMessageId());
+            cv.put("empty", 1);
+
+            // Delete and insert instead of REPLACE, so the delete triggers that
+            // maintain the folder counters and the full-text index fire
+            db.delete("messages", "id = ?", new String[] { Long.toString(mId) });
+            db.insert("messages", null, cv);
+
+            // Nothing else to do
+            return;
+        }
+
+        // Get the message ID of the parent message if it's empty
+        long currentId = getEmptyThreadParent(db, mId);
+
+        // Delete the placeholder message
+        deleteMessageRow(db, mId);
+
+        /*
+         * Walk the thread tree to delete all empty parents without children
+         */
+
+        while (currentId != -1) {
+            if (hasThreadChildren(db, currentId)) {
+                // We made sure there are no empty leaf nodes and can stop now.
+                break;
+            }
+
+            // Get ID of the (empty) parent for the next iteration
+            long newId = getEmptyThreadParent(db, currentId);
+
+            // Delete the empty message
+            deleteMessageRow(db, currentId);
+            localStore.getThreadIndex().removeMessage(currentId);
+
+            currentId = newId;
+        }
+    }
+
     /**
      * Get ID of the the given message's parent if the parent is an empty message.
      *
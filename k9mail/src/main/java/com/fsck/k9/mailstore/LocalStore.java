@@ -80,7 +80,8 @@ public class LocalStore extends Store implements Serializable {
 
     static final String GET_FOLDER_COLS =
         "folders.id, name, visible_limit, last_updated, status, push_state, last_pushed, " +
-        "integrate, top_group, poll_class, push_class, display_class, notify_class";
+        "integrate, top_group, poll_class, push_class, display_class, notify_class, " +
+        "uid_validity, highest_mod_seq, uid_next, remote_message_count";
 
     static final int FOLDER_ID_INDEX = 0;
     static final int FOLDER_NAME_INDEX = 1;
@@ -95,6 +96,10 @@ public class LocalStore extends Store implements Serializable {
     static final int FOLDER_PUSH_CLASS_INDEX = 10;
     static final int FOLDER_DISPLAY_CLASS_INDEX = 11;
     static final int FOLDER_NOTIFY_CLASS_INDEX = 12;
+    static final int FOLDER_UID_VALIDITY_INDEX = 13;
+    static final int FOLDER_HIGHEST_MOD_SEQ_INDEX = 14;
+    static final int FOLDER_UID_NEXT_INDEX = 15;
+    static final int FOLDER_REMOTE_MESSAGE_COUNT_INDEX = 16;
 
     static final String[] UID_CHECK_PROJECTION = { "uid" };
 
@@ -119,7 +124,7 @@ public class LocalStore extends Store implements Serializable {
      */
     private static final int THREAD_FLAG_UPDATE_BATCH_SIZE = 500;
 
-    public static final int DB_VERSION = 50;
+    public static final int DB_VERSION = 58;
 
 
     public static String getColumnNameForFlag(Flag flag) {
@@ -151,6 +156,7 @@ public class LocalStore extends Store implements Serializable {
 
     private ContentResolver mContentResolver;
     private final Account mAccount;
+    private final ThreadIndex mThreadIndex = new ThreadIndex();
 
     /**
      * local://localhost/path/to/database/uuid.db
@@ -162,6 +168,13 @@ public class LocalStore extends Store implements Serializable {
     public LocalStore(final Account account, final Context context) throws MessagingException {
         mAccount = account;
         database = new LockableDatabase(context, account.getUuid(), new StoreSchemaDefinition(this));
+        database.setRollbackListener(new LockableDatabase.RollbackListener() {
+            @Override
+            public void onRollback() {
+                // The index might contain rows that were just rolled back
+                mThreadIndex.clear();
+            }
+        });
 
         this.context = context;
         mContentResolver = context.getContentResolver();
@@ -226,6 +239,10 @@ public class LocalStore extends Store implements Serializable {
         return mAccount;
     }
 
+    ThreadIndex getThreadIndex() {
+        return mThreadIndex;
+    }
+
     protected SharedPreferences getPreferences() {
         return Preferences.getPreferences(context).getPreferences();
     }
@@ -272,6 +289,49 @@ public class LocalStore extends Store implements Serializable {
     }
 
 
+    /**
+     * Checks the unread, flagged and total message counts of the folders against the messages
+     * table and recalculates them if they are off.
+     *
+     * <p>
+     * The counters are maintained by database triggers, so this only repairs damage done outside
+     * of them, e.g. by restoring an old copy of the database.
+     * </p>
+     *
+     * @return The number of folders whose counters had to be repaired.
+     */
+    public int repairFolderCounters() throws MessagingException {
+        int repaired = database.execute(true, new DbCallback<Integer>() {
+            @Override
+            public Integer doDbWork(final SQLiteDatabase db) throws WrappedException {
+                String visibleMessages = StoreSchemaDefinition.FOLDER_MESSAGES;
+                Cursor cursor = db.rawQuery("SELECT COUNT(id) FROM folders WHERE " +
+                        "IFNULL(total_count, 0) != (SELECT COUNT(id) " + visibleMessages + ") OR " +
+                        "IFNULL(unread_count, 0) != (SELECT COUNT(id) " + visibleMessages + " AND read = 0) OR " +
+                        "IFNULL(flagged_count, 0) != (SELECT COUNT(id) " + visibleMessages + " AND flagged = 1)",
+                        null);
+                int count;
+                try {
+                    count = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+                } finally {
+                    Utility.closeQuietly(cursor);
+                }
+
+                if (count > 0) {
+                    StoreSchemaDefinition.recalculateFolderCounters(db);
+                }
+                return count;
+            }
+        });
+
+        if (repaired > 0) {
+            Log.w(K9.LOG_TAG, "Repaired message counters of " + repaired + " folders of " +
+                    mAccount.getDescription());
+            notifyChange();
+        }
+        return repaired;
+    }
+
     public void clear() throws MessagingException {
         if (K9.DEBUG)
             Log.i(K9.LOG_TAG, "Before prune size = " + getSize());
@@ -291,6 +351,8 @@ public class LocalStore extends Store implements Serializable {
         database.execute(false, new DbCallback<Void>() {
             @Override
             public Void doDbWork(final SQLiteDatabase db) {
+                mThreadIndex.clear();
+
                 // Delete entries from 'threads' table
                 db.execSQL("DELETE FROM threads WHERE message_id IN " +
                         "(SELECT id FROM messages WHERE deleted = 0 AND uid NOT LIKE 'Local%')");
@@ -594,6 +656,13 @@ public class LocalStore extends Store implements Serializable {
         String where = SqlQueryBuilder.addPrefixToSelection(new String[] { "id" },
                 "messages.", query.toString());
 
+        // Messages matching the full-text conditions in more important fields come first
+        String ranking = SqlQueryBuilder.buildFullTextRanking(search.getConditions(), queryArgs);
+        String orderBy = (ranking != null) ?
+                SqlQueryBuilder.addPrefixToSelection(new String[] { "id" }, "messages.", ranking) +
+                        " DESC, date DESC" :
+                "date DESC";
+
         String[] selectionArgs = queryArgs.toArray(EMPTY_STRING_ARRAY);
 
         String sqlQuery = "SELECT " + GET_MESSAGES_COLS + "FROM messages " +
@@ -601,7 +670,7 @@ public class LocalStore extends Store implements Serializable {
                 "LEFT JOIN folders ON (folders.id = messages.folder_id) WHERE " +
                 "((empty IS NULL OR empty != 1) AND deleted = 0)" +
                 ((!TextUtils.isEmpty(where)) ? " AND (" + where + ")" : "") +
-                " ORDER BY date DESC";
+                " ORDER BY " + orderBy;
 
         if (K9.DEBUG) {
             Log.d(K9.LOG_TAG, "Query = " + sqlQuery);
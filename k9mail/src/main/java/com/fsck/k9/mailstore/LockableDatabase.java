@@ -47,6 +47,18 @@ public class LockableDatabase {
         void doDbUpgrade(SQLiteDatabase db);
     }
 
+    /**
+     * Callback interface for code that keeps state derived from the database in memory.
+     */
+    public static interface RollbackListener {
+        /**
+         * Called after a transaction started by {@link #execute(boolean, DbCallback)} was rolled
+         * back. Changes made to in-memory state while the transaction was running have to be
+         * discarded.
+         */
+        void onRollback();
+    }
+
     /**
      * Workaround exception wrapper used to keep the inner exception generated
      * in a {@link DbCallback}.
@@ -139,6 +151,8 @@ public class LockableDatabase {
 
     private SchemaDefinition mSchemaDefinition;
 
+    private volatile RollbackListener mRollbackListener;
+
     private String uUid;
 
     /**
@@ -155,6 +169,14 @@ public class LockableDatabase {
         this.mSchemaDefinition = schemaDefinition;
     }
 
+    /**
+     * @param rollbackListener
+     *         Notified when a transaction is rolled back. May be {@code null}.
+     */
+    public void setRollbackListener(RollbackListener rollbackListener) {
+        mRollbackListener = rollbackListener;
+    }
+
     public void setStorageProviderId(String mStorageProviderId) {
         this.mStorageProviderId = mStorageProviderId;
     }
@@ -279,11 +301,13 @@ public class LockableDatabase {
                 inTransaction.set(Boolean.TRUE);
                 mDb.beginTransaction();
             }
+            boolean successful = false;
             try {
                 final T result = callback.doDbWork(mDb);
                 if (doTransaction) {
                     mDb.setTransactionSuccessful();
                 }
+                successful = true;
                 return result;
             } finally {
                 if (doTransaction) {
@@ -294,7 +318,16 @@ public class LockableDatabase {
                         begin = 0l;
                     }
                     // not doing endTransaction in the same 'finally' block of unlockRead() because endTransaction() may throw an exception
-                    mDb.endTransaction();
+                    boolean committed = false;
+                    try {
+                        mDb.endTransaction();
+                        committed = successful;
+                    } finally {
+                        RollbackListener rollbackListener = mRollbackListener;
+                        if (!committed && rollbackListener != null) {
+                            rollbackListener.onRollback();
+                        }
+                    }
                     if (debug) {
                         Log.v(K9.LOG_TAG, "LockableDatabase: Transaction ended, took " + Long.toString(System.currentTimeMillis() - begin) + "ms / " + new Exception().getStackTrace()[1].toString());
                     }
@@ -7,6 +7,7 @@ import java.util.Locale;
 import android.content.ContentValues;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.util.Log;
@@ -21,6 +22,12 @@ import com.fsck.k9.mail.Message;
 import com.fsck.k9.provider.AttachmentProvider;
 
 class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
+    /**
+     * The messages counted by the folder counters, for use in subqueries on the folders table.
+     */
+    static final String FOLDER_MESSAGES = "FROM messages WHERE folder_id = folders.id AND " +
+            "deleted = 0 AND (empty IS NULL OR empty != 1)";
+
     /**
      * 
      */
@@ -63,9 +70,12 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
 
                 db.execSQL("DROP TABLE IF EXISTS folders");
                 db.execSQL("CREATE TABLE folders (id INTEGER PRIMARY KEY, name TEXT, "
-                           + "last_updated INTEGER, unread_count INTEGER, visible_limit INTEGER, status TEXT, "
+                           + "last_updated INTEGER, unread_count INTEGER default 0, visible_limit INTEGER, status TEXT, "
                            + "push_state TEXT, last_pushed INTEGER, flagged_count INTEGER default 0, "
-                           + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT, notify_class TEXT"
+                           + "total_count INTEGER default 0, "
+                           + "integrate INTEGER, top_group INTEGER, poll_class TEXT, push_class TEXT, display_class TEXT, notify_class TEXT, "
+                           + "uid_validity INTEGER default -1, highest_mod_seq INTEGER default -1, "
+                           + "uid_next INTEGER default -1, remote_message_count INTEGER default -1"
                            + ")");
 
                 db.execSQL("CREATE INDEX IF NOT EXISTS folder_name ON folders (name)");
@@ -103,6 +113,7 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
                 db.execSQL("CREATE INDEX IF NOT EXISTS header_folder ON headers (message_id)");
 
                 db.execSQL("CREATE INDEX IF NOT EXISTS msg_uid ON messages (uid, folder_id)");
+                db.execSQL("CREATE INDEX IF NOT EXISTS msg_message_id ON messages (message_id, folder_id)");
                 db.execSQL("DROP INDEX IF EXISTS msg_folder_id");
                 db.execSQL("DROP INDEX IF EXISTS msg_folder_id_date");
                 db.execSQL("CREATE INDEX IF NOT EXISTS msg_folder_id_deleted_date ON messages (folder_id,deleted,internal_date)");
@@ -160,6 +171,10 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
                 db.execSQL("DROP TRIGGER IF EXISTS delete_message");
                 db.execSQL("CREATE TRIGGER delete_message BEFORE DELETE ON messages BEGIN DELETE FROM attachments WHERE old.id = message_id; "
                            + "DELETE FROM headers where old.id = message_id; END;");
+
+                createFullTextIndex(db);
+                createFolderCounterTriggers(db);
+                createThreadSummary(db);
             } else {
                 // in the case that we're starting out at 29 or newer, run all the needed updates
 
@@ -541,6 +556,57 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
                     db.update("folders", cv, "name = ?",
                             new String[] { this.localStore.getAccount().getInboxFolderName() });
                 }
+                if (db.getVersion() < 51) {
+                    try {
+                        db.execSQL("ALTER TABLE folders ADD uid_validity INTEGER default -1");
+                        db.execSQL("ALTER TABLE folders ADD highest_mod_seq INTEGER default -1");
+                    } catch (SQLiteException e) {
+                        if (! e.getMessage().startsWith("duplicate column name:")) {
+                            throw e;
+                        }
+                    }
+                }
+                // Version 52 added the full-text index. It's (re)created by the upgrade to 57.
+                if (db.getVersion() < 53) {
+                    db.execSQL("CREATE INDEX IF NOT EXISTS msg_message_id ON messages (message_id, folder_id)");
+                }
+                if (db.getVersion() < 54) {
+                    try {
+                        db.execSQL("ALTER TABLE folders ADD uid_next INTEGER default -1");
+                        db.execSQL("ALTER TABLE folders ADD remote_message_count INTEGER default -1");
+                    } catch (SQLiteException e) {
+                        if (! e.getMessage().startsWith("duplicate column name:")) {
+                            throw e;
+                        }
+                    }
+                }
+                if (db.getVersion() < 55) {
+                    try {
+                        db.execSQL("ALTER TABLE folders ADD total_count INTEGER default 0");
+                    } catch (SQLiteException e) {
+                        if (! e.getMessage().startsWith("duplicate column name:")) {
+                            throw e;
+                        }
+                    }
+
+                    createFolderCounterTriggers(db);
+                    recalculateFolderCounters(db);
+                }
+                if (db.getVersion() < 56) {
+                    createThreadSummary(db);
+                    recalculateThreadSummary(db);
+                }
+                if (db.getVersion() < 57) {
+                    createFullTextIndex(db);
+
+                    db.execSQL("INSERT INTO messages_fulltext (docid, subject, sender_list, text_content) " +
+                            "SELECT id, subject, sender_list, text_content FROM messages " +
+                            "WHERE empty IS NULL OR empty != 1");
+                }
+                if (db.getVersion() < 58) {
+                    createThreadSummary(db);
+                    recalculateThreadSummary(db);
+                }
             }
 
             db.setVersion(LocalStore.DB_VERSION);
@@ -555,6 +621,264 @@ class StoreSchemaDefinition implements LockableDatabase.SchemaDefinition {
         }
     }
 
+    /**
+     * Creates the full-text index used to search subject, sender and message text.
+     *
+     * <p>
+     * The index is an external content FTS4 table on top of the messages table, so the text isn't
+     * stored twice; the {@code docid} of an entry is the {@code id} of its message. Empty
+     * placeholder messages aren't indexed. The index is kept up to date by triggers, so every
+     * code path that inserts, updates or deletes messages maintains it without having to know
+     * about it. Entries are removed before the message changes, because FTS4 reads the old text
+     * from the messages table to find the entries to remove.
+     * </p>
+     * <p>
+     * SQLite versions before 3.7.9 (Android 4.0) don't support external content tables. There
+     * the index keeps its own copy of the text.
+     * </p>
+     */
+    private static void createFullTextIndex(SQLiteDatabase db) {
+        String content = supportsExternalContent(db) ? "content=\"messages\", " : "";
+
+        db.execSQL("DROP TRIGGER IF EXISTS messages_fulltext_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS messages_fulltext_update");
+        db.execSQL("DROP TRIGGER IF EXISTS messages_fulltext_before_update");
+        db.execSQL("DROP TRIGGER IF EXISTS messages_fulltext_after_update");
+        db.execSQL("DROP TRIGGER IF EXISTS messages_fulltext_delete");
+
+        db.execSQL("DROP TABLE IF EXISTS messages_fulltext");
+        db.execSQL("CREATE VIRTUAL TABLE messages_fulltext USING fts4 (" + content +
+                "subject, sender_list, text_content)");
+
+        db.execSQL("CREATE TRIGGER messages_fulltext_insert AFTER INSERT ON messages " +
+                "WHEN new.empty IS NULL OR new.empty != 1 " +
+                "BEGIN " +
+                "INSERT INTO messages_fulltext (docid, subject, sender_list, text_content) " +
+                "VALUES (new.id, new.subject, new.sender_list, new.text_content); " +
+                "END");
+
+        db.execSQL("CREATE TRIGGER messages_fulltext_before_update " +
+                "BEFORE UPDATE OF subject, sender_list, text_content, empty ON messages " +
+                "WHEN old.empty IS NULL OR old.empty != 1 " +
+                "BEGIN " +
+                "DELETE FROM messages_fulltext WHERE docid = old.id; " +
+                "END");
+
+        db.execSQL("CREATE TRIGGER messages_fulltext_after_update " +
+                "AFTER UPDATE OF subject, sender_list, text_content, empty ON messages " +
+                "WHEN new.empty IS NULL OR new.empty != 1 " +
+                "BEGIN " +
+                "INSERT INTO messages_fulltext (docid, subject, sender_list, text_content) " +
+                "VALUES (new.id, new.subject, new.sender_list, new.text_content); " +
+                "END");
+
+        db.execSQL("CREATE TRIGGER messages_fulltext_delete BEFORE DELETE ON messages " +
+                "WHEN old.empty IS NULL OR old.empty != 1 " +
+                "BEGIN " +
+                "DELETE FROM messages_fulltext WHERE docid = old.id; " +
+                "END");
+    }
+
+    /**
+     * @return {@code true} if the SQLite library supports FTS4 tables with external content,
+     *         i.e. it's version 3.7.9 or newer.
+     */
+    private static boolean supportsExternalContent(SQLiteDatabase db) {
+        String version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null);
+        String[] parts = version.split("\\.");
+        int[] minimum = { 3, 7, 9 };
+        try {
+            for (int i = 0; i < minimum.length; i++) {
+                int part = (i < parts.length) ? Integer.parseInt(parts[i]) : 0;
+                if (part != minimum[i]) {
+                    return part > minimum[i];
+                }
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            Log.w(K9.LOG_TAG, "Unable to parse SQLite version " + version);
+            return false;
+        }
+    }
+
+    /**
+     * Creates the triggers that keep the {@code total_count}, {@code unread_count} and
+     * {@code flagged_count} columns of the folders up to date. Messages that are deleted or empty
+     * placeholders aren't counted.
+     *
+     * <p>
+     * Updates first take the old version of the message out of the counters of its folder and
+     * then add the new version, so moving a message to another folder is covered as well.
+     * </p>
+     */
+    private static void createFolderCounterTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counters_insert");
+        db.execSQL("CREATE TRIGGER folder_counters_insert AFTER INSERT ON messages " +
+                "BEGIN " +
+                updateFolderCounters("new", "+") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counters_update");
+        db.execSQL("CREATE TRIGGER folder_counters_update " +
+                "AFTER UPDATE OF folder_id, deleted, empty, read, flagged ON messages " +
+                "BEGIN " +
+                updateFolderCounters("old", "-") +
+                updateFolderCounters("new", "+") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS folder_counters_delete");
+        db.execSQL("CREATE TRIGGER folder_counters_delete AFTER DELETE ON messages " +
+                "BEGIN " +
+                updateFolderCounters("old", "-") +
+                "END");
+    }
+
+    private static String updateFolderCounters(String row, String operator) {
+        return "UPDATE folders SET " +
+                "total_count = IFNULL(total_count, 0) " + operator + " 1, " +
+                "unread_count = IFNULL(unread_count, 0) " + operator +
+                " (CASE WHEN " + row + ".read = 0 THEN 1 ELSE 0 END), " +
+                "flagged_count = IFNULL(flagged_count, 0) " + operator +
+                " (CASE WHEN " + row + ".flagged = 1 THEN 1 ELSE 0 END) " +
+                "WHERE id = " + row + ".folder_id AND " + row + ".deleted = 0 AND " +
+                "(" + row + ".empty IS NULL OR " + row + ".empty != 1); ";
+    }
+
+    /**
+     * Recalculates the message counters of all folders from the messages table.
+     */
+    static void recalculateFolderCounters(SQLiteDatabase db) {
+        db.execSQL("UPDATE folders SET " +
+                "total_count = (SELECT COUNT(id) " + FOLDER_MESSAGES + "), " +
+                "unread_count = (SELECT COUNT(id) " + FOLDER_MESSAGES + " AND read = 0), " +
+                "flagged_count = (SELECT COUNT(id) " + FOLDER_MESSAGES + " AND flagged = 1)");
+    }
+
+    /**
+     * Creates the {@code thread_summary} table holding the aggregated values of every thread with
+     * at least one visible message, and the triggers keeping it up to date.
+     *
+     * <p>
+     * There's one row per thread root and folder, aggregating only the messages of the thread
+     * that are in that folder. That way a folder selection can be applied to the rows before
+     * their values are combined.
+     * </p>
+     *
+     * <p>
+     * Whenever a message or its entry in the {@code threads} table changes, the rows of the
+     * affected thread roots are recalculated from the messages of these threads.
+     * </p>
+     */
+    private static void createThreadSummary(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS thread_summary");
+        db.execSQL("CREATE TABLE thread_summary (" +
+                "root INTEGER, " +
+                "folder_id INTEGER, " +
+                "message_id INTEGER, " +
+                "thread_count INTEGER, " +
+                "unread_count INTEGER, " +
+                "flagged_count INTEGER, " +
+                "date INTEGER, " +
+                "internal_date INTEGER, " +
+                "attachment_count INTEGER, " +
+                "read INTEGER, " +
+                "flagged INTEGER, " +
+                "answered INTEGER, " +
+                "forwarded INTEGER, " +
+                "PRIMARY KEY (root, folder_id)" +
+                ")");
+
+        db.execSQL("DROP INDEX IF EXISTS thread_summary_folder_date");
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_summary_folder_date " +
+                "ON thread_summary (folder_id, date)");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_thread_insert");
+        db.execSQL("CREATE TRIGGER thread_summary_thread_insert AFTER INSERT ON threads " +
+                "BEGIN " +
+                updateThreadSummary("SELECT root FROM threads WHERE id = new.id") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_thread_update");
+        db.execSQL("CREATE TRIGGER thread_summary_thread_update " +
+                "AFTER UPDATE OF root, message_id ON threads " +
+                "WHEN old.root IS NOT new.root OR old.message_id IS NOT new.message_id " +
+                "BEGIN " +
+                updateThreadSummary("old.root, new.root") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_thread_delete");
+        db.execSQL("CREATE TRIGGER thread_summary_thread_delete AFTER DELETE ON threads " +
+                "BEGIN " +
+                updateThreadSummary("old.root") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_message_insert");
+        db.execSQL("CREATE TRIGGER thread_summary_message_insert AFTER INSERT ON messages " +
+                "BEGIN " +
+                updateThreadSummary("SELECT root FROM threads WHERE message_id = new.id") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_message_update");
+        db.execSQL("CREATE TRIGGER thread_summary_message_update " +
+                "AFTER UPDATE OF folder_id, deleted, empty, date, internal_date, " +
+                "attachment_count, read, flagged, answered, forwarded ON messages " +
+                "WHEN old.folder_id IS NOT new.folder_id OR old.deleted IS NOT new.deleted OR " +
+                "old.empty IS NOT new.empty OR old.date IS NOT new.date OR " +
+                "old.internal_date IS NOT new.internal_date OR " +
+                "old.attachment_count IS NOT new.attachment_count OR " +
+                "old.read IS NOT new.read OR old.flagged IS NOT new.flagged OR " +
+                "old.answered IS NOT new.answered OR old.forwarded IS NOT new.forwarded " +
+                "BEGIN " +
+                updateThreadSummary("SELECT root FROM threads WHERE message_id = new.id") +
+                "END");
+
+        db.execSQL("DROP TRIGGER IF EXISTS thread_summary_message_delete");
+        db.execSQL("CREATE TRIGGER thread_summary_message_delete AFTER DELETE ON messages " +
+                "BEGIN " +
+                updateThreadSummary("SELECT root FROM threads WHERE message_id = old.id") +
+                "END");
+    }
+
+    private static String updateThreadSummary(String roots) {
+        return "DELETE FROM thread_summary WHERE root IN (" + roots + "); " +
+                selectThreadSummary("t.root IN (" + roots + ")") + "; ";
+    }
+
+    /**
+     * Returns the statement inserting the summaries of the threads matching
+     * {@code rootCondition}, one per folder containing visible messages of the thread. The latest
+     * message of a summary is the newest visible message of the thread in that folder.
+     */
+    private static String selectThreadSummary(String rootCondition) {
+        return "INSERT INTO thread_summary (root, folder_id, message_id, thread_count, " +
+                "unread_count, flagged_count, date, internal_date, attachment_count, read, " +
+                "flagged, answered, forwarded) " +
+                "SELECT t.root, m.folder_id, " +
+                "(SELECT m2.id FROM threads t2 " +
+                    "JOIN messages m2 ON (m2.id = t2.message_id) " +
+                    "WHERE t2.root = t.root AND m2.folder_id = m.folder_id AND " +
+                    "m2.deleted = 0 AND (m2.empty IS NULL OR m2.empty != 1) " +
+                    "ORDER BY m2.date DESC, m2.id DESC LIMIT 1), " +
+                "COUNT(m.id), " +
+                "SUM(CASE WHEN m.read = 0 THEN 1 ELSE 0 END), " +
+                "SUM(CASE WHEN m.flagged = 1 THEN 1 ELSE 0 END), " +
+                "MAX(m.date), MAX(m.internal_date), SUM(m.attachment_count), MIN(m.read), " +
+                "MAX(m.flagged), MIN(m.answered), MIN(m.forwarded) " +
+                "FROM threads t " +
+                "JOIN messages m ON (m.id = t.message_id) " +
+                "WHERE " + rootCondition + " AND m.deleted = 0 AND " +
+                "(m.empty IS NULL OR m.empty != 1) " +
+                "GROUP BY t.root, m.folder_id";
+    }
+
+    /**
+     * Recalculates the {@code thread_summary} table from the messages and threads tables.
+     */
+    static void recalculateThreadSummary(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM thread_summary");
+        db.execSQL(selectThreadSummary("t.root IS NOT NULL"));
+    }
+
     private void update41Metadata(final SQLiteDatabase  db, SharedPreferences prefs, int id, String name) {
 
 
@@ -0,0 +1,113 @@
+package com.fsck.k9.mailstore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * In-memory index of the thread information of recently seen Message-IDs of an account.
+ *
+ * <p>
+ * {@link LocalFolder} consults this index before querying the database when threading new
+ * messages. An entry always describes the message with the lowest id among those with the same
+ * Message-ID in a folder, i.e. the row {@code getThreadInfo()} would find without restricting the
+ * query to empty messages. The least recently used entries are evicted once the index is full.
+ * </p>
+ *
+ * <p>
+ * Code that changes a message outside of the threading code has to remove the entry for its
+ * Message-ID. Code that changes the thread structure of many messages at once has to call
+ * {@link #clear()}.
+ * </p>
+ *
+ * <p>
+ * Entries are added while the threading code's transaction is still open. {@link LocalStore}
+ * clears the index when a transaction is rolled back, so it never refers to rows that don't exist.
+ * </p>
+ */
+class ThreadIndex {
+    private static final int MAX_ENTRIES = 2000;
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+
+    /**
+     * @return The entry for the Message-ID or {@code null} if it's not in the index. This doesn't
+     *         mean there's no message with that Message-ID in the folder.
+     */
+    public synchronized Entry get(long folderId, String messageId) {
+        return mEntries.get(key(folderId, messageId));
+    }
+
+    public synchronized void put(long folderId, ThreadInfo threadInfo, boolean empty) {
+        mEntries.put(key(folderId, threadInfo.messageId), new Entry(threadInfo, empty));
+    }
+
+    /**
+     * Removes the entry for the Message-ID. Does nothing if {@code messageId} is {@code null}.
+     */
+    public synchronized void remove(long folderId, String messageId) {
+        if (messageId != null) {
+            mEntries.remove(key(folderId, messageId));
+        }
+    }
+
+    /**
+     * Removes the entries referring to the message with the given database id.
+     */
+    public synchronized void removeMessage(long msgId) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().threadInfo.msgId == msgId) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Updates the entries after the thread {@code threadId} was connected to {@code parentId} and
+     * all members of it were moved to the thread with the root {@code rootId}.
+     */
+    public synchronized void reroot(long threadId, long rootId, long parentId) {
+        for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            ThreadInfo info = entry.threadInfo;
+            if (info.threadId == threadId) {
+                mapEntry.setValue(new Entry(new ThreadInfo(info.threadId, info.msgId, info.messageId,
+                        rootId, parentId), entry.empty));
+            } else if (info.rootId == threadId) {
+                mapEntry.setValue(new Entry(new ThreadInfo(info.threadId, info.msgId, info.messageId,
+                        rootId, info.parentId), entry.empty));
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private static String key(long folderId, String messageId) {
+        return folderId + ":" + messageId;
+    }
+
+
+    static class Entry {
+        public final ThreadInfo threadInfo;
+        public final boolean empty;
+
+        Entry(ThreadInfo threadInfo, boolean empty) {
+            this.threadInfo = threadInfo;
+            this.empty = empty;
+        }
+    }
+}
@@ -48,6 +48,18 @@ public class AccountSettings {
         s.put("chipColor", Settings.versions(
                 new V(1, new ColorSetting(0xFF0000FF))
             ));
+        s.put("compressionLevel.MOBILE", Settings.versions(
+                new V(40, new IntegerRangeSetting(0, 9, Account.DEFAULT_COMPRESSION_LEVEL_MOBILE))
+            ));
+        s.put("compressionLevel.OTHER", Settings.versions(
+                new V(40, new IntegerRangeSetting(0, 9, Account.DEFAULT_COMPRESSION_LEVEL))
+            ));
+        s.put("compressionLevel.WIFI", Settings.versions(
+                new V(40, new IntegerRangeSetting(0, 9, Account.DEFAULT_COMPRESSION_LEVEL))
+            ));
+        s.put("connectionAcquireTimeout", Settings.versions(
+                new V(41, new IntegerRangeSetting(0, 300, Account.DEFAULT_CONNECTION_ACQUIRE_TIMEOUT))
+            ));
         s.put("cryptoApp", Settings.versions(
                 new V(1, new StringSetting("apg")),
                 new V(36, new StringSetting(Account.NO_OPENPGP_PROVIDER))
@@ -102,6 +114,9 @@ public class AccountSettings {
         s.put("markMessageAsReadOnView", Settings.versions(
                 new V(7, new BooleanSetting(true))
             ));
+        s.put("maxConnections", Settings.versions(
+                new V(39, new IntegerRangeSetting(1, 10, Account.DEFAULT_MAX_CONNECTIONS))
+            ));
         s.put("maxPushFolders", Settings.versions(
                 new V(1, new IntegerRangeSetting(0, 100, 10))
             ));
@@ -1,9 +1,15 @@
 package com.fsck.k9.provider;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.fsck.k9.Account;
 import com.fsck.k9.Preferences;
@@ -47,6 +53,17 @@ public class EmailProvider extends ContentProvider {
 
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Query parameter limiting the number of rows returned for the message list URIs.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Query parameter skipping the first rows of the message list URIs. Only used together with
+     * {@link #QUERY_PARAMETER_LIMIT}.
+     */
+    public static final String QUERY_PARAMETER_OFFSET = "offset";
+
 
     /*
      * Constants that are used for the URI matching.
@@ -58,6 +75,7 @@ public class EmailProvider extends ContentProvider {
 
     private static final int STATS_BASE = 100;
     private static final int STATS = STATS_BASE;
+    private static final int FOLDER_STATS = STATS_BASE + 1;
 
 
     private static final String MESSAGES_TABLE = "messages";
@@ -103,11 +121,27 @@ public class EmailProvider extends ContentProvider {
         FolderColumns.TOP_GROUP,
         FolderColumns.POLL_CLASS,
         FolderColumns.PUSH_CLASS,
-        FolderColumns.DISPLAY_CLASS
+        FolderColumns.DISPLAY_CLASS,
+        FolderColumns.TOTAL_COUNT
     };
 
+    /**
+     * Words that may appear in a selection besides column names.
+     */
+    private static final Set<String> SQL_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "AND", "OR", "NOT", "IN", "IS", "NULL", "LIKE", "ESCAPE", "BETWEEN"));
+
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+
+    /**
+     * Matches SQL string literals like {@code 'it''s'}.
+     */
+    private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("'(?:[^']|'')*'");
+
     private static final String THREADS_TABLE = "threads";
 
+    private static final String THREAD_SUMMARY_TABLE = "thread_summary";
+
     static {
         UriMatcher matcher = sUriMatcher;
 
@@ -116,6 +150,7 @@ public class EmailProvider extends ContentProvider {
         matcher.addURI(AUTHORITY, "account/*/thread/#", MESSAGES_THREAD);
 
         matcher.addURI(AUTHORITY, "account/*/stats", STATS);
+        matcher.addURI(AUTHORITY, "account/*/stats/folders", FOLDER_STATS);
     }
 
     public interface SpecialColumns {
@@ -172,6 +207,7 @@ public class EmailProvider extends ContentProvider {
         public static final String POLL_CLASS = "poll_class";
         public static final String PUSH_CLASS = "push_class";
         public static final String DISPLAY_CLASS = "display_class";
+        public static final String TOTAL_COUNT = "total_count";
     }
 
     public interface ThreadColumns {
@@ -184,6 +220,7 @@ public class EmailProvider extends ContentProvider {
     public interface StatsColumns {
         public static final String UNREAD_COUNT = "unread_count";
         public static final String FLAGGED_COUNT = "flagged_count";
+        public static final String TOTAL_COUNT = "total_count";
     }
 
     private static final String[] STATS_DEFAULT_PROJECTION = {
@@ -191,6 +228,13 @@ public class EmailProvider extends ContentProvider {
             StatsColumns.FLAGGED_COUNT
     };
 
+    private static final String[] FOLDER_STATS_DEFAULT_PROJECTION = {
+            FolderColumns.NAME,
+            FolderColumns.UNREAD_COUNT,
+            FolderColumns.FLAGGED_COUNT,
+            FolderColumns.TOTAL_COUNT
+    };
+
 
     private Preferences mPreferences;
 
@@ -234,13 +278,14 @@ public class EmailProvider extends ContentProvider {
                 }
 
                 String[] dbProjection = dbColumnNames.toArray(new String[0]);
+                String limit = getLimit(uri);
 
                 if (match == MESSAGES) {
                     cursor = getMessages(accountUuid, dbProjection, selection, selectionArgs,
-                            sortOrder);
+                            sortOrder, limit);
                 } else if (match == MESSAGES_THREADED) {
                     cursor = getThreadedMessages(accountUuid, dbProjection, selection,
-                            selectionArgs, sortOrder);
+                            selectionArgs, sortOrder, limit);
                 } else if (match == MESSAGES_THREAD) {
                     String threadId = segments.get(3);
                     cursor = getThread(accountUuid, dbProjection, threadId, sortOrder);
@@ -264,6 +309,19 @@ public class EmailProvider extends ContentProvider {
 
                 cursor = getAccountStats(accountUuid, projection, selection, selectionArgs);
 
+                Uri notificationUri = Uri.withAppendedPath(CONTENT_URI, "account/" + accountUuid +
+                        "/messages");
+
+                cursor.setNotificationUri(contentResolver, notificationUri);
+                break;
+            }
+            case FOLDER_STATS: {
+                List<String> segments = uri.getPathSegments();
+                String accountUuid = segments.get(1);
+
+                cursor = getFolderStats(accountUuid, projection, selection, selectionArgs,
+                        sortOrder);
+
                 Uri notificationUri = Uri.withAppendedPath(CONTENT_URI, "account/" + accountUuid +
                         "/messages");
 
@@ -290,8 +348,44 @@ public class EmailProvider extends ContentProvider {
         throw new RuntimeException("not implemented yet");
     }
 
+    /**
+     * @return The {@code LIMIT} clause for the {@link #QUERY_PARAMETER_LIMIT} and
+     *         {@link #QUERY_PARAMETER_OFFSET} parameters of {@code uri}, i.e. {@code "limit"} or
+     *         {@code "offset,limit"}, or {@code null} if there's no limit.
+     */
+    static String getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        String offset = uri.getQueryParameter(QUERY_PARAMETER_OFFSET);
+        if (limit == null) {
+            if (offset != null) {
+                throw new IllegalArgumentException("Offset without limit: " + offset);
+            }
+            return null;
+        }
+
+        String limitClause = Integer.toString(parseNonNegative("limit", limit));
+        if (offset == null) {
+            return limitClause;
+        }
+
+        return parseNonNegative("offset", offset) + "," + limitClause;
+    }
+
+    private static int parseNonNegative(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 0) {
+                throw new IllegalArgumentException("Invalid " + name + ": " + value);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value, e);
+        }
+    }
+
     protected Cursor getMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final String limit) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -345,11 +439,15 @@ public class EmailProvider extends ContentProvider {
                         query.append(" ORDER BY ");
                         query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS,
                                 "m.", sortOrder));
+                        if (limit != null) {
+                            query.append(" LIMIT ");
+                            query.append(limit);
+                        }
 
                         cursor = db.rawQuery(query.toString(), selectionArgs);
                     } else {
                         cursor = db.query(MESSAGES_TABLE, projection, where, selectionArgs, null,
-                                null, sortOrder);
+                                null, sortOrder, limit);
                     }
 
                     return cursor;
@@ -363,7 +461,8 @@ public class EmailProvider extends ContentProvider {
     }
 
     protected Cursor getThreadedMessages(String accountUuid, final String[] projection,
-            final String selection, final String[] selectionArgs, final String sortOrder) {
+            final String selection, final String[] selectionArgs, final String sortOrder,
+            final String limit) {
 
         Account account = getAccount(accountUuid);
         LockableDatabase database = getDatabase(account);
@@ -374,6 +473,25 @@ public class EmailProvider extends ContentProvider {
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
 
+                    // Selections that only restrict the folders can be answered from the
+                    // precomputed thread aggregates
+                    if (isFolderSelection(selection)) {
+                        String query = createThreadSummaryQuery(projection, selection, sortOrder);
+                        if (limit != null) {
+                            query += " LIMIT " + limit;
+                        }
+
+                        // The selection is used twice by the query
+                        String[] args = selectionArgs;
+                        if (!TextUtils.isEmpty(selection) && selectionArgs != null) {
+                            args = new String[selectionArgs.length * 2];
+                            System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+                            System.arraycopy(selectionArgs, 0, args, selectionArgs.length,
+                                    selectionArgs.length);
+                        }
+                        return db.rawQuery(query, args);
+                    }
+
                     StringBuilder query = new StringBuilder();
 
                     query.append("SELECT ");
@@ -423,6 +541,10 @@ public class EmailProvider extends ContentProvider {
                         query.append(SqlQueryBuilder.addPrefixToSelection(
                                 FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
                     }
+                    if (limit != null) {
+                        query.append(" LIMIT ");
+                        query.append(limit);
+                    }
 
                     return db.rawQuery(query.toString(), selectionArgs);
                 }
@@ -434,6 +556,107 @@ public class EmailProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Creates a query returning the latest message of every thread together with the aggregated
+     * values of the thread that are stored in the {@code thread_summary} table.
+     *
+     * <p>
+     * The table has a row per thread and folder. The rows of the selected folders are combined
+     * into one per thread, and the latest message is taken from the row with the newest message.
+     * Because of that the selection appears twice in the query.
+     * </p>
+     */
+    private static String createThreadSummaryQuery(String[] projection, String selection,
+            String sortOrder) {
+
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT ");
+        boolean first = true;
+        for (String columnName : projection) {
+            if (!first) {
+                query.append(",");
+            } else {
+                first = false;
+            }
+
+            if (MessageColumns.ID.equals(columnName)) {
+                query.append("m." + MessageColumns.ID);
+            } else if (THREAD_AGGREGATION_FUNCS.containsKey(columnName) ||
+                    SpecialColumns.THREAD_COUNT.equals(columnName) ||
+                    ThreadColumns.ROOT.equals(columnName)) {
+                query.append("a.");
+                query.append(columnName);
+            } else if (MessageColumns.FOLDER_ID.equals(columnName)) {
+                query.append("s.");
+                query.append(columnName);
+            } else if (Arrays.asList(FOLDERS_COLUMNS).contains(columnName)) {
+                query.append("f.");
+                query.append(columnName);
+            } else {
+                query.append("m.");
+                query.append(columnName);
+            }
+            query.append(" AS ");
+            query.append(columnName);
+        }
+
+        // e.g. "SUM(s.thread_count) AS thread_count, MAX(s.date) AS date, ..."
+        query.append(" FROM (SELECT s." + ThreadColumns.ROOT + " AS " + ThreadColumns.ROOT +
+                ", SUM(s." + SpecialColumns.THREAD_COUNT + ") AS " + SpecialColumns.THREAD_COUNT);
+        for (Map.Entry<String, String> aggregation : THREAD_AGGREGATION_FUNCS.entrySet()) {
+            String columnName = aggregation.getKey();
+            query.append(",");
+            query.append(aggregation.getValue());
+            query.append("(s.");
+            query.append(columnName);
+            query.append(") AS ");
+            query.append(columnName);
+        }
+        query.append(" FROM " + THREAD_SUMMARY_TABLE + " s " +
+                "LEFT JOIN " + FOLDERS_TABLE + " f " +
+                "ON (f." + FolderColumns.ID + " = s." + MessageColumns.FOLDER_ID + ")");
+        if (!TextUtils.isEmpty(selection)) {
+            query.append(" WHERE ");
+            query.append(addThreadSummaryPrefixes(selection, "s.", "f."));
+        }
+        query.append(" GROUP BY s." + ThreadColumns.ROOT + ") a ");
+
+        query.append("JOIN " + THREAD_SUMMARY_TABLE + " s " +
+                "ON (s." + ThreadColumns.ROOT + " = a." + ThreadColumns.ROOT + " AND " +
+                "s." + ThreadColumns.MESSAGE_ID + " = (" +
+                "SELECT s2." + ThreadColumns.MESSAGE_ID + " FROM " + THREAD_SUMMARY_TABLE + " s2 " +
+                "LEFT JOIN " + FOLDERS_TABLE + " f2 " +
+                "ON (f2." + FolderColumns.ID + " = s2." + MessageColumns.FOLDER_ID + ") " +
+                "WHERE s2." + ThreadColumns.ROOT + " = a." + ThreadColumns.ROOT);
+        if (!TextUtils.isEmpty(selection)) {
+            query.append(" AND (");
+            query.append(addThreadSummaryPrefixes(selection, "s2.", "f2."));
+            query.append(")");
+        }
+        query.append(" ORDER BY s2." + MessageColumns.DATE + " DESC, " +
+                "s2." + ThreadColumns.MESSAGE_ID + " DESC LIMIT 1)) " +
+                "JOIN " + MESSAGES_TABLE + " m " +
+                "ON (m." + MessageColumns.ID + " = s." + ThreadColumns.MESSAGE_ID + ") " +
+                "LEFT JOIN " + FOLDERS_TABLE + " f " +
+                "ON (f." + FolderColumns.ID + " = s." + MessageColumns.FOLDER_ID + ")");
+
+        if (!TextUtils.isEmpty(sortOrder)) {
+            query.append(" ORDER BY ");
+            query.append(SqlQueryBuilder.addPrefixToSelection(
+                    FIXUP_AGGREGATED_MESSAGES_COLUMNS, "a.", sortOrder));
+        }
+
+        return query.toString();
+    }
+
+    private static String addThreadSummaryPrefixes(String selection, String summaryPrefix,
+            String folderPrefix) {
+        String result = SqlQueryBuilder.addPrefixToSelection(
+                new String[] { MessageColumns.FOLDER_ID }, summaryPrefix, selection);
+        return SqlQueryBuilder.addPrefixToSelection(FOLDERS_COLUMNS, folderPrefix, result);
+    }
+
     private void createThreadedSubQuery(String[] projection, String selection,
             String[] selectionArgs, StringBuilder query) {
 
@@ -475,7 +698,8 @@ public class EmailProvider extends ContentProvider {
 
         if (!TextUtils.isEmpty(selection)) {
             query.append(" AND (");
-            query.append(selection);
+            query.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS, "m.",
+                    selection));
             query.append(")");
         }
 
@@ -551,8 +775,41 @@ public class EmailProvider extends ContentProvider {
         // Use default projection if none was given
         String[] sourceProjection = (columns == null) ? STATS_DEFAULT_PROJECTION : columns;
 
-        // Create SQL query string
+        // As long as the selection only restricts the folders, the message counters of the
+        // folders can be summed up instead of counting the messages.
         final StringBuilder sql = new StringBuilder();
+        if (isFolderSelection(selection)) {
+            sql.append("SELECT ");
+
+            // e.g. "SUM(unread_count) AS unread_count, SUM(flagged_count) AS flagged_count"
+            boolean first = true;
+            for (String columnName : sourceProjection) {
+                if (!first) {
+                    sql.append(',');
+                } else {
+                    first = false;
+                }
+
+                if (StatsColumns.UNREAD_COUNT.equals(columnName) ||
+                        StatsColumns.FLAGGED_COUNT.equals(columnName) ||
+                        StatsColumns.TOTAL_COUNT.equals(columnName)) {
+                    sql.append("SUM(" + columnName + ") AS " + columnName);
+                } else {
+                    throw new IllegalArgumentException("Column name not allowed: " + columnName);
+                }
+            }
+
+            sql.append(" FROM folders");
+            if (!TextUtils.isEmpty(selection)) {
+                sql.append(" WHERE (");
+                sql.append(selection.replaceAll("\\b" + MessageColumns.FOLDER_ID + "\\b", "folders.id"));
+                sql.append(")");
+            }
+
+            return rawQuery(database, sql.toString(), selectionArgs);
+        }
+
+        // Create SQL query string
         sql.append("SELECT ");
 
         // Append projection for the database query
@@ -569,6 +826,8 @@ public class EmailProvider extends ContentProvider {
                 sql.append("SUM(" + MessageColumns.READ + "=0) AS " + StatsColumns.UNREAD_COUNT);
             } else if (StatsColumns.FLAGGED_COUNT.equals(columnName)) {
                 sql.append("SUM(" + MessageColumns.FLAGGED + ") AS " + StatsColumns.FLAGGED_COUNT);
+            } else if (StatsColumns.TOTAL_COUNT.equals(columnName)) {
+                sql.append("COUNT(messages.id) AS " + StatsColumns.TOTAL_COUNT);
             } else {
                 throw new IllegalArgumentException("Column name not allowed: " + columnName);
             }
@@ -585,18 +844,56 @@ public class EmailProvider extends ContentProvider {
         sql.append(" WHERE (deleted=0 AND (empty IS NULL OR empty!=1))");
         if (!TextUtils.isEmpty(selection)) {
             sql.append(" AND (");
-            sql.append(selection);
+            sql.append(SqlQueryBuilder.addPrefixToSelection(FIXUP_MESSAGES_COLUMNS, "messages.",
+                    selection));
             sql.append(")");
         }
 
-        // Query the database and return the result cursor
+        return rawQuery(database, sql.toString(), selectionArgs);
+    }
+
+    /**
+     * Returns the unread, flagged and total message counts of the folders of an account.
+     */
+    private Cursor getFolderStats(String accountUuid, String[] columns,
+            final String selection, final String[] selectionArgs, final String sortOrder) {
+
+        Account account = getAccount(accountUuid);
+        LockableDatabase database = getDatabase(account);
+
+        final String[] projection = (columns == null) ? FOLDER_STATS_DEFAULT_PROJECTION : columns;
+        for (String columnName : projection) {
+            if (!Arrays.asList(FOLDERS_COLUMNS).contains(columnName)) {
+                throw new IllegalArgumentException("Column name not allowed: " + columnName);
+            }
+        }
+
+        try {
+            return database.execute(false, new DbCallback<Cursor>() {
+                @Override
+                public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
+                        UnavailableStorageException {
+
+                    return db.query(FOLDERS_TABLE, projection, selection, selectionArgs, null,
+                            null, sortOrder);
+                }
+            });
+        } catch (UnavailableStorageException e) {
+            throw new RuntimeException("Storage not available", e);
+        } catch (MessagingException e) {
+            throw new RuntimeException("messaging exception", e);
+        }
+    }
+
+    private Cursor rawQuery(LockableDatabase database, final String sql,
+            final String[] selectionArgs) {
         try {
             return database.execute(false, new DbCallback<Cursor>() {
                 @Override
                 public Cursor doDbWork(SQLiteDatabase db) throws WrappedException,
                         UnavailableStorageException {
 
-                    return db.rawQuery(sql.toString(), selectionArgs);
+                    return db.rawQuery(sql, selectionArgs);
                 }
             });
         }  catch (UnavailableStorageException e) {
@@ -604,7 +901,35 @@ public class EmailProvider extends ContentProvider {
         } catch (MessagingException e) {
             throw new RuntimeException("messaging exception", e);
         }
+    }
 
+    /**
+     * @return {@code true} if the selection only refers to columns of the folders table (or the
+     *         folder ID of messages), i.e. it only restricts the folders. Words inside string
+     *         literals are not column names and are ignored.
+     */
+    static boolean isFolderSelection(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return true;
+        }
+
+        String withoutLiterals = STRING_LITERAL_PATTERN.matcher(selection).replaceAll("''");
+        Matcher matcher = IDENTIFIER_PATTERN.matcher(withoutLiterals);
+        while (matcher.find()) {
+            String identifier = matcher.group();
+            if (SQL_KEYWORDS.contains(identifier.toUpperCase(Locale.US)) ||
+                    MessageColumns.FOLDER_ID.equals(identifier)) {
+                continue;
+            }
+
+            // "id" would refer to the message ID
+            if (FolderColumns.ID.equals(identifier) ||
+                    !Arrays.asList(FOLDERS_COLUMNS).contains(identifier)) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     private Account getAccount(String accountUuid) {
@@ -1,6 +1,7 @@
 package com.fsck.k9.search;
 
 import java.util.List;
+import java.util.regex.Pattern;
 
 import com.fsck.k9.Account;
 import com.fsck.k9.mail.MessagingException;
@@ -13,6 +14,20 @@ import com.fsck.k9.search.SearchSpecification.Searchfield;
 
 
 public class SqlQueryBuilder {
+    /**
+     * Matches the characters that SQLite's "simple" full-text tokenizer treats as separators,
+     * i.e. all ASCII characters that are neither letters nor digits.
+     */
+    private static final Pattern FULL_TEXT_SEPARATORS =
+            Pattern.compile("[\\x00-\\x2F\\x3A-\\x40\\x5B-\\x60\\x7B-\\x7F]+");
+
+    /**
+     * Weights used to rank full-text matches, see {@link #buildFullTextRanking(ConditionsTreeNode, List)}.
+     */
+    private static final int SUBJECT_MATCH_WEIGHT = 4;
+    private static final int SENDER_MATCH_WEIGHT = 2;
+    private static final int CONTENTS_MATCH_WEIGHT = 1;
+
     public static void buildWhereClause(Account account, ConditionsTreeNode node,
             StringBuilder query, List<String> selectionArgs) {
         buildWhereClauseInternal(account, node, query, selectionArgs);
@@ -89,10 +104,150 @@ public class SqlQueryBuilder {
 
     private static void appendCondition(SearchCondition condition, StringBuilder query,
             List<String> selectionArgs) {
+        if (appendFullTextCondition(condition, query, selectionArgs)) {
+            return;
+        }
+
         query.append(getColumnName(condition));
         appendExprRight(condition, query, selectionArgs);
     }
 
+    /**
+     * Uses the full-text index for (NOT) CONTAINS conditions on the subject, the sender and the
+     * message text.
+     *
+     * <p>
+     * The index matches words starting with the given terms rather than arbitrary substrings.
+     * If the search value doesn't contain any indexable terms this falls back to {@code LIKE}.
+     * </p>
+     *
+     * @return {@code true} if the condition was appended to {@code query}.
+     */
+    private static boolean appendFullTextCondition(SearchCondition condition, StringBuilder query,
+            List<String> selectionArgs) {
+        if (condition.attribute != Attribute.CONTAINS &&
+                condition.attribute != Attribute.NOT_CONTAINS) {
+            return false;
+        }
+
+        String columnName = getFullTextColumnName(condition.field);
+        String match = buildFullTextQuery(condition.value);
+        if (columnName == null || match == null) {
+            return false;
+        }
+
+        query.append("id ");
+        if (condition.attribute == Attribute.NOT_CONTAINS) {
+            query.append("NOT ");
+        }
+        query.append("IN (SELECT docid FROM messages_fulltext WHERE ");
+        query.append(columnName);
+        query.append(" MATCH ?)");
+        selectionArgs.add(match);
+        return true;
+    }
+
+    /**
+     * Builds an expression that ranks messages by where they match the full-text conditions of
+     * a search. Matches in the subject count more than matches of the sender, which count more
+     * than matches in the message text.
+     *
+     * @return The expression to sort by (descending) or {@code null} if the search doesn't
+     *         contain any full-text conditions.
+     */
+    public static String buildFullTextRanking(ConditionsTreeNode node, List<String> selectionArgs) {
+        if (node == null) {
+            return null;
+        }
+
+        StringBuilder ranking = new StringBuilder();
+        for (ConditionsTreeNode leaf : node.getLeafSet()) {
+            SearchCondition condition = leaf.mCondition;
+            if (condition.attribute != Attribute.CONTAINS) {
+                continue;
+            }
+
+            String columnName = getFullTextColumnName(condition.field);
+            String match = buildFullTextQuery(condition.value);
+            if (columnName == null || match == null) {
+                continue;
+            }
+
+            int weight;
+            switch (condition.field) {
+                case SUBJECT: {
+                    weight = SUBJECT_MATCH_WEIGHT;
+                    break;
+                }
+                case SENDER: {
+                    weight = SENDER_MATCH_WEIGHT;
+                    break;
+                }
+                default: {
+                    weight = CONTENTS_MATCH_WEIGHT;
+                    break;
+                }
+            }
+
+            if (ranking.length() > 0) {
+                ranking.append(" + ");
+            }
+            ranking.append("(id IN (SELECT docid FROM messages_fulltext WHERE ");
+            ranking.append(columnName);
+            ranking.append(" MATCH ?)) * ");
+            ranking.append(weight);
+            selectionArgs.add(match);
+        }
+
+        return (ranking.length() > 0) ? ranking.toString() : null;
+    }
+
+    private static String getFullTextColumnName(Searchfield field) {
+        switch (field) {
+            case SUBJECT: {
+                return "subject";
+            }
+            case SENDER: {
+                return "sender_list";
+            }
+            case MESSAGE_CONTENTS: {
+                return "text_content";
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Turns a search value into a full-text query that matches the value's terms as a phrase,
+     * each term being a prefix, e.g. {@code "john@exa"} becomes {@code "john* exa*"}.
+     *
+     * @return The query or {@code null} if the value doesn't contain any terms.
+     */
+    static String buildFullTextQuery(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String term : FULL_TEXT_SEPARATORS.split(value)) {
+            if (term.length() == 0) {
+                continue;
+            }
+            match.append(match.length() == 0 ? "\"" : " ");
+            match.append(term);
+            match.append('*');
+        }
+
+        if (match.length() == 0) {
+            return null;
+        }
+
+        match.append('"');
+        return match.toString();
+    }
+
     private static long getFolderId(Account account, String folderName) {
         long folderId = 0;
         try {
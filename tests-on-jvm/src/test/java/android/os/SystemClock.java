@@ -0,0 +1,5 @@
+package android.os;
+
+public class SystemClock {
+    public static long elapsedRealtime() { return System.nanoTime() / 1000000; }
+}
@@ -2,10 +2,14 @@ package android.util;
 
 public class Log {
     public static int v(String tag, String message) { return 0; }
+    public static int v(String tag, String message, Throwable throwable) { return 0; }
     public static int d(String tag, String message) { return 0; }
     public static int d(String tag, String message, Throwable throwable) { return 0; }
     public static int i(String tag, String message) { return 0; }
+    public static int i(String tag, String message, Throwable throwable) { return 0; }
     public static int w(String tag, String message) { return 0; }
+    public static int w(String tag, String message, Throwable throwable) { return 0; }
+    public static int w(String tag, Throwable throwable) { return 0; }
     public static int e(String tag, String message) { return 0; }
     public static int e(String tag, String message, Throwable th) { return 0; }
 }
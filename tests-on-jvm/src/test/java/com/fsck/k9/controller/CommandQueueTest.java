@@ -0,0 +1,251 @@
+package com.fsck.k9.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.fsck.k9.controller.CommandQueue.Command;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class CommandQueueTest {
+    private ManualExecutor mExecutor;
+    private RecordingRunner mRunner;
+    private CommandQueue mQueue;
+
+
+    @Before
+    public void setUp() {
+        mExecutor = new ManualExecutor();
+        mRunner = new RecordingRunner();
+        mQueue = new CommandQueue("test", mExecutor, mRunner);
+    }
+
+    @Test
+    public void testForegroundCommandsRunBeforeBackgroundCommands() {
+        mQueue.put(createCommand("background 1", false));
+        mQueue.put(createCommand("foreground 1", true));
+        mQueue.put(createCommand("background 2", false));
+        mQueue.put(createCommand("foreground 2", true));
+
+        mExecutor.runAll();
+
+        assertEquals(Arrays.asList("foreground 1", "foreground 2", "background 1", "background 2"),
+                mRunner.getExecuted());
+    }
+
+    @Test
+    public void testQueueIsScheduledOnlyOnceWhileCommandsArePending() {
+        mQueue.put(createCommand("first", true));
+        mQueue.put(createCommand("second", true));
+
+        assertEquals(1, mExecutor.getPendingCount());
+        assertTrue(mQueue.hasPendingCommands());
+    }
+
+    @Test
+    public void testQueueIsScheduledAgainAfterItRanEmpty() {
+        mQueue.put(createCommand("first", true));
+        mExecutor.runAll();
+        assertFalse(mQueue.hasPendingCommands());
+
+        mQueue.put(createCommand("second", true));
+
+        assertEquals(1, mExecutor.getPendingCount());
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("first", "second"), mRunner.getExecuted());
+    }
+
+    @Test
+    public void testCommandsAddedWhileRunningAreRunWithoutScheduling() {
+        mRunner.mOnRun = new Runnable() {
+            @Override
+            public void run() {
+                if (mRunner.getExecuted().size() == 1) {
+                    mQueue.put(createCommand("added", false));
+                }
+            }
+        };
+        mQueue.put(createCommand("first", true));
+        mQueue.put(createCommand("second", false));
+
+        mExecutor.runNext();
+
+        assertEquals(Arrays.asList("first", "second", "added"), mRunner.getExecuted());
+        assertEquals(0, mExecutor.getPendingCount());
+    }
+
+    @Test
+    public void testFailingCommandDoesNotStopTheQueue() {
+        mRunner.mFailing = "second";
+        mQueue.put(createCommand("first", true));
+        mQueue.put(createCommand("second", true));
+        mQueue.put(createCommand("third", true));
+
+        mExecutor.runAll();
+
+        assertEquals(Arrays.asList("first", "second", "third"), mRunner.getExecuted());
+        assertFalse(mQueue.isBusy());
+        assertFalse(mQueue.hasPendingCommands());
+    }
+
+    @Test
+    public void testRejectedCommandIsDroppedAndQueueCanBeScheduledAgain() {
+        mExecutor.mRejecting = true;
+        try {
+            mQueue.put(createCommand("rejected", true));
+            fail("Expected RejectedExecutionException");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertFalse(mQueue.hasPendingCommands());
+
+        mExecutor.mRejecting = false;
+        mQueue.put(createCommand("accepted", true));
+        mExecutor.runAll();
+
+        assertEquals(Arrays.asList("accepted"), mRunner.getExecuted());
+    }
+
+    @Test
+    public void testStats() {
+        mQueue.put(createCommand("first", true));
+        mQueue.put(createCommand("second", false));
+
+        CommandQueueStats before = mQueue.getStats();
+        mExecutor.runAll();
+        CommandQueueStats after = mQueue.getStats();
+
+        assertEquals(2, before.pendingCommands);
+        assertEquals(0, before.executedCommands);
+        assertEquals(0, after.pendingCommands);
+        assertEquals(2, after.executedCommands);
+        assertFalse(after.busy);
+        assertTrue(after.maxWaitTime >= after.averageWaitTime);
+    }
+
+    @Test
+    public void testSlowQueueDoesNotBlockOtherQueue() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            final CountDownLatch slowStarted = new CountDownLatch(1);
+            final CountDownLatch fastDone = new CountDownLatch(1);
+            final List<String> slowExecuted = Collections.synchronizedList(new ArrayList<String>());
+
+            CommandQueue slowQueue = new CommandQueue("slow", executor, new CommandQueue.CommandRunner() {
+                @Override
+                public void runCommand(CommandQueue queue, Command command) {
+                    slowStarted.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    slowExecuted.add(command.description);
+                }
+            });
+            CommandQueue fastQueue = new CommandQueue("fast", executor, new CommandQueue.CommandRunner() {
+                @Override
+                public void runCommand(CommandQueue queue, Command command) {
+                    fastDone.countDown();
+                }
+            });
+
+            slowQueue.put(createCommand("slow 1", true));
+            slowQueue.put(createCommand("slow 2", true));
+            assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+            fastQueue.put(createCommand("fast", true));
+
+            assertTrue(fastDone.await(5, TimeUnit.SECONDS));
+            assertTrue(slowQueue.isBusy());
+            assertTrue(slowExecuted.isEmpty());
+
+            release.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("slow 1", "slow 2"), slowExecuted);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    private static Command createCommand(String description, boolean isForeground) {
+        Command command = new Command();
+        command.description = description;
+        command.isForeground = isForeground;
+        return command;
+    }
+
+
+    /**
+     * Runs the submitted tasks on the test thread when asked to.
+     */
+    static class ManualExecutor implements Executor {
+        private final List<Runnable> mPending = new ArrayList<Runnable>();
+        boolean mRejecting;
+
+
+        @Override
+        public void execute(Runnable runnable) {
+            if (mRejecting) {
+                throw new RejectedExecutionException();
+            }
+            mPending.add(runnable);
+        }
+
+        int getPendingCount() {
+            return mPending.size();
+        }
+
+        void runNext() {
+            mPending.remove(0).run();
+        }
+
+        void runAll() {
+            while (!mPending.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+
+    /**
+     * Records the description of every command it runs.
+     */
+    static class RecordingRunner implements CommandQueue.CommandRunner {
+        private final List<String> mExecuted = new ArrayList<String>();
+        String mFailing;
+        Runnable mOnRun;
+
+
+        @Override
+        public void runCommand(CommandQueue queue, Command command) {
+            queue.recordWaitTime(command);
+            mExecuted.add(command.description);
+            if (mOnRun != null) {
+                mOnRun.run();
+            }
+            if (command.description.equals(mFailing)) {
+                throw new RuntimeException("failed");
+            }
+        }
+
+        List<String> getExecuted() {
+            return mExecuted;
+        }
+    }
+}
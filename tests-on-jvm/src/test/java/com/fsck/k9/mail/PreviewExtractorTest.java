@@ -0,0 +1,184 @@
+package com.fsck.k9.mail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class PreviewExtractorTest {
+    private static final String[] FRAGMENTS = {
+            "a", "b", "Z", "0", "_", ":", "#", ">", "-", "=", " ", "\t", "\u000B", "\f", "\r", "\n",
+            "\r\n", "\u0085", "\u2028", "\u2029", "\u0001", "\u00a0", "\ud83d\ude00", "\ud83d", "\ude00",
+            "-- ", "----", "On ", "wrote", "http://", "https://", "http:/", "https",
+            "------------------------------", "==============================",
+            "______________________________", "-----------------------------",
+            "foo.example.com/path?q=1", "hello world", "Subject:", "schrieb:",
+            "Andr\u00e9", "e\u0301", "\u0661", "\u216b", "\u24b6", "\u200c", "\u00b2", "\u2003",
+            "\u3000", "\ud835\udc00",
+    };
+
+    private static final String LINE_TERMINATORS = "\\n\\u000B\\f\\r\\u0085\\u2028\\u2029";
+    private static final String BOL = "(?:\\A|(?<=[" + LINE_TERMINATORS + "])(?!(?<=\\r)\\n)(?!\\z))";
+    private static final String EOL = "(?=[" + LINE_TERMINATORS + "]|\\z)";
+    private static final String DOT = "[^" + LINE_TERMINATORS + "]";
+
+    private final PreviewExtractor extractor = new PreviewExtractor();
+
+
+    @Test
+    public void testNull() {
+        assertNull(extractor.extract(null));
+    }
+
+    @Test
+    public void testSimpleText() {
+        assertEquals("Hello world, how are you?", extractor.extract("  Hello world,\r\nhow are you?\r\n"));
+    }
+
+    @Test
+    public void testSignatureIsRemoved() {
+        assertEquals("Text", extractor.extract("Text\r\n-- \r\nSignature\r\nmore"));
+    }
+
+    @Test
+    public void testQuotedTextAndQuoteHeaderAreRemoved() {
+        String text = "Reply\r\n" +
+                "On Mon, Sep 1, 2014 at 12:00 PM, John Doe <john@example.com> wrote:\r\n" +
+                "> quoted\r\n" +
+                "# also quoted\r\n" +
+                "----- Original Message -----\r\n" +
+                "Max Mustermann schrieb:\r\n" +
+                "End";
+
+        assertEquals("Reply End", extractor.extract(text));
+    }
+
+    @Test
+    public void testUrlsAndRulesAreReplaced() {
+        String text = "See http://example.com/some/path and\r\n" +
+                "==============================\r\n" +
+                "https://example.org/";
+
+        assertEquals("See ... and ...", extractor.extract(text));
+    }
+
+    @Test
+    public void testUrlEndsAtHorizontalRule() {
+        assertEquals("x... y", extractor.extract("xhttp://a" + repeat('-', 35) + "y"));
+    }
+
+    @Test
+    public void testNoBreakSpaceIsWhitespace() {
+        assertEquals("Hello world", extractor.extract("\u00a0Hello\u00a0\u00a0world\u00a0"));
+    }
+
+    @Test
+    public void testVerticalTabAndFormFeedEndLines() {
+        assertEquals("Text more", extractor.extract("Text\u000B> quoted\u000Bmore"));
+        assertEquals("Text more", extractor.extract("Text\f# quoted\fmore"));
+    }
+
+    @Test
+    public void testQuoteHeaderEndingInNonAsciiLetter() {
+        String text = "Reply\r\n" +
+                "Am Montag schrieb Andr\u00e9:\r\n" +
+                "> quoted\r\n" +
+                "End";
+
+        assertEquals("Reply End", extractor.extract(text));
+    }
+
+    @Test
+    public void testQuoteHeaderWithNonAsciiSender() {
+        assertEquals("Reply", extractor.extract("Reply\r\nOn Monday Andr\u00e9 M\u00fcller wrote:\r\n> q"));
+    }
+
+    @Test
+    public void testPreviewIsTruncated() {
+        String preview = extractor.extract(repeat('a', 10000));
+
+        assertEquals(repeat('a', 512), preview);
+    }
+
+    @Test
+    public void testSameResultAsRegularExpressions() {
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            String text = randomText(random, 1 + random.nextInt(40));
+            assertEquals("Input: " + escape(text), legacyPreview(text), extractor.extract(text));
+        }
+    }
+
+    @Test
+    public void testSameResultAsRegularExpressionsForLongText() {
+        Random random = new Random(4711);
+        for (int i = 0; i < 500; i++) {
+            String text = randomText(random, 500 + random.nextInt(2000));
+            assertEquals("Input: " + escape(text), legacyPreview(text), extractor.extract(text));
+        }
+    }
+
+    private static String randomText(Random random, int fragments) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fragments; i++) {
+            sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String text) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x20 || c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The regular expression based implementation {@link PreviewExtractor} replaces.
+     *
+     * <p>
+     * Android's {@link java.util.regex.Pattern} is based on ICU. So {@code \s} and {@code \w} are
+     * the Unicode versions, and vertical tab and form feed are line terminators, too. This is
+     * emulated with {@code (?U)} and explicit versions of {@code ^}, {@code $} and {@code .}.
+     * </p>
+     */
+    static String legacyPreview(String text) {
+        if (text == null) {
+            return null;
+        }
+
+        if (text.length() > 8192) {
+            text = text.substring(0, 8192);
+        }
+
+        text = text.replaceAll(BOL + "-- [\\r\\n]+(?s:.*)", "");
+        text = text.replaceAll(BOL + "----" + DOT + "*?" + EOL, "");
+        text = text.replaceAll(BOL + "[#>]" + DOT + "*" + EOL, "");
+        text = text.replaceAll(BOL + "On " + DOT + "*wrote" + DOT + "?" + EOL, "");
+        text = text.replaceAll("(?U)" + BOL + DOT + "*\\w+:" + EOL, "");
+        text = text.replaceAll("(?U)\\s*([-=_]{30,}+)\\s*", " ");
+        text = text.replaceAll("(?U)https?://\\S+", "...");
+        text = text.replaceAll("(\\r|\\n)+", " ");
+        text = text.replaceAll("(?U)\\s+", " ");
+        text = text.trim();
+
+        return (text.length() <= 512) ? text : text.substring(0, 512);
+    }
+}
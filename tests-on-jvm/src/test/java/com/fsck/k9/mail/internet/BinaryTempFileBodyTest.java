@@ -0,0 +1,111 @@
+package com.fsck.k9.mail.internet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.apache.james.mime4j.util.MimeUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class BinaryTempFileBodyTest {
+    private static final int THRESHOLD = 1024;
+
+
+    @Before
+    public void setup() {
+        BinaryTempFileBody.setTempDirectory(new File(System.getProperty("java.io.tmpdir")));
+        BinaryTempFileBody.setMemoryThreshold(THRESHOLD);
+    }
+
+    @After
+    public void tearDown() {
+        BinaryTempFileBody.setMemoryThreshold(BinaryTempFileBody.DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    @Test
+    public void testSmallBodyStaysInMemory() throws Exception {
+        long inMemory = BinaryTempFileBody.getInMemoryBodyCount();
+        long spilled = BinaryTempFileBody.getSpilledBodyCount();
+        byte[] data = createData(THRESHOLD);
+
+        BinaryTempFileBody body = createBody(data);
+
+        assertArrayEquals(data, readBody(body));
+        assertEquals(inMemory + 1, BinaryTempFileBody.getInMemoryBodyCount());
+        assertEquals(spilled, BinaryTempFileBody.getSpilledBodyCount());
+    }
+
+    @Test
+    public void testLargeBodySpillsToFile() throws Exception {
+        long inMemory = BinaryTempFileBody.getInMemoryBodyCount();
+        long spilled = BinaryTempFileBody.getSpilledBodyCount();
+        byte[] data = createData(THRESHOLD * 3 + 17);
+
+        BinaryTempFileBody body = createBody(data);
+
+        assertArrayEquals(data, readBody(body));
+        assertEquals(inMemory, BinaryTempFileBody.getInMemoryBodyCount());
+        assertEquals(spilled + 1, BinaryTempFileBody.getSpilledBodyCount());
+    }
+
+    @Test
+    public void testSingleByteWrites() throws Exception {
+        byte[] data = createData(THRESHOLD + 1);
+
+        BinaryTempFileBody body = new BinaryTempFileBody();
+        OutputStream out = body.getOutputStream();
+        for (byte b : data) {
+            out.write(b);
+        }
+        out.close();
+
+        assertArrayEquals(data, readBody(body));
+    }
+
+    @Test
+    public void testWriteToWithBase64() throws Exception {
+        BinaryTempFileBody body = createBody("Hello".getBytes("US-ASCII"));
+        body.setEncoding(MimeUtil.ENC_BASE64);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+
+        assertEquals("SGVsbG8=\r\n", new String(out.toByteArray(), "US-ASCII"));
+    }
+
+    private static BinaryTempFileBody createBody(byte[] data) throws Exception {
+        BinaryTempFileBody body = new BinaryTempFileBody();
+        OutputStream out = body.getOutputStream();
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return body;
+    }
+
+    private static byte[] readBody(BinaryTempFileBody body) throws Exception {
+        InputStream in = body.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
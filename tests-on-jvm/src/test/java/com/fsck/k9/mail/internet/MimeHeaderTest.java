@@ -0,0 +1,100 @@
+package com.fsck.k9.mail.internet;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class MimeHeaderTest {
+
+    @Test
+    public void testCaseInsensitiveLookup() {
+        MimeHeader header = new MimeHeader();
+        header.addHeader("Received", "one");
+        header.addHeader("Subject", "Hello");
+        header.addHeader("RECEIVED", "two");
+
+        assertArrayEquals(new String[] { "one", "two" }, header.getHeader("received"));
+        assertEquals("Hello", header.getFirstHeader("SUBJECT"));
+        assertNull(header.getHeader("To"));
+    }
+
+    @Test
+    public void testSetHeaderKeepsOrderOfOtherFields() throws Exception {
+        MimeHeader header = new MimeHeader();
+        header.addHeader("From", "a@example.com");
+        header.addHeader("Subject", "old");
+        header.addHeader("To", "b@example.com");
+
+        header.setHeader("subject", "new");
+
+        assertEquals("From: a@example.com\r\nTo: b@example.com\r\nsubject: new\r\n", write(header));
+        assertArrayEquals(new String[] { "new" }, header.getHeader("Subject"));
+    }
+
+    @Test
+    public void testRemoveHeader() throws Exception {
+        MimeHeader header = new MimeHeader();
+        header.addHeader("Received", "one");
+        header.addHeader("From", "a@example.com");
+        header.addHeader("received", "two");
+
+        header.removeHeader("RECEIVED");
+
+        assertNull(header.getHeader("Received"));
+        assertEquals("From: a@example.com\r\n", write(header));
+    }
+
+    @Test
+    public void testValuesUpdatedAfterAdd() {
+        MimeHeader header = new MimeHeader();
+        header.addHeader("References", "<1@example.com>");
+        assertArrayEquals(new String[] { "<1@example.com>" }, header.getHeader("References"));
+
+        header.addHeader("References", "<2@example.com>");
+
+        assertArrayEquals(new String[] { "<1@example.com>", "<2@example.com>" },
+                header.getHeader("References"));
+    }
+
+    @Test
+    public void testCloneIsIndependent() {
+        MimeHeader header = new MimeHeader();
+        header.addHeader("Subject", "Hello");
+
+        MimeHeader clone = header.clone();
+        clone.addHeader("Subject", "Again");
+        header.removeHeader("Subject");
+
+        assertNull(header.getHeader("Subject"));
+        assertArrayEquals(new String[] { "Hello", "Again" }, clone.getHeader("Subject"));
+    }
+
+    @Test
+    public void testUnfoldedAndDecodedValues() {
+        MimeHeader header = new MimeHeader();
+        header.addHeader("Subject", "=?UTF-8?Q?Gr=C3=BC=C3=9Fe?=\r\n and more");
+
+        assertEquals("=?UTF-8?Q?Gr=C3=BC=C3=9Fe?= and more", header.getFirstHeaderUnfolded("subject"));
+        assertEquals("Gr\u00FC\u00DFe and more", header.getFirstHeaderDecoded("subject", null));
+    }
+
+    @Test
+    public void testStoreDataIsNotWritten() throws Exception {
+        MimeHeader header = new MimeHeader();
+        header.addHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "1.2");
+        header.addHeader("Content-Type", "text/plain");
+
+        assertEquals("Content-Type: text/plain\r\n", write(header));
+    }
+
+    private static String write(MimeHeader header) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        header.writeTo(out);
+        return new String(out.toByteArray(), "US-ASCII");
+    }
+}
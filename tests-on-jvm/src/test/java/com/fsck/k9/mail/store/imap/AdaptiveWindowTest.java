@@ -0,0 +1,66 @@
+package com.fsck.k9.mail.store.imap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class AdaptiveWindowTest {
+    private static final long TARGET_MILLIS = 1000;
+    private static final long TARGET_BYTES = 100000;
+
+    @Test
+    public void testGrowsAtMostTwofoldForCheapBatches() {
+        AdaptiveWindow window = new AdaptiveWindow(100, 10, 1000, TARGET_MILLIS, TARGET_BYTES);
+
+        window.update(100, 10, 1000);
+
+        assertEquals(200, window.getSize());
+    }
+
+    @Test
+    public void testDoesNotGrowBeyondMaximum() {
+        AdaptiveWindow window = new AdaptiveWindow(800, 10, 1000, TARGET_MILLIS, TARGET_BYTES);
+
+        window.update(800, 10, 1000);
+
+        assertEquals(1000, window.getSize());
+    }
+
+    @Test
+    public void testDoesNotGrowAfterPartialBatch() {
+        AdaptiveWindow window = new AdaptiveWindow(100, 10, 1000, TARGET_MILLIS, TARGET_BYTES);
+
+        window.update(20, 10, 1000);
+
+        assertEquals(100, window.getSize());
+    }
+
+    @Test
+    public void testShrinksForSlowBatches() {
+        AdaptiveWindow window = new AdaptiveWindow(100, 10, 1000, TARGET_MILLIS, TARGET_BYTES);
+
+        // 1.6s for 100 messages -> 62 messages fit into the target time
+        window.update(100, 1600, 1000);
+
+        assertEquals(62, window.getSize());
+    }
+
+    @Test
+    public void testShrinksAtMostByHalfForLargeBatches() {
+        AdaptiveWindow window = new AdaptiveWindow(100, 10, 1000, TARGET_MILLIS, TARGET_BYTES);
+
+        window.update(100, 10, 10000000);
+
+        assertEquals(50, window.getSize());
+    }
+
+    @Test
+    public void testDoesNotShrinkBelowMinimum() {
+        AdaptiveWindow window = new AdaptiveWindow(15, 10, 1000, TARGET_MILLIS, TARGET_BYTES);
+
+        window.update(15, 100000, 1000);
+
+        assertEquals(10, window.getSize());
+    }
+}
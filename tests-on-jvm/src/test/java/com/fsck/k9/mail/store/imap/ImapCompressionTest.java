@@ -0,0 +1,159 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fsck.k9.mail.filter.CountingOutputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Sends an IMAP session through the {@code COMPRESS=DEFLATE} streams used by
+ * {@link ImapConnection} at different compression levels.
+ *
+ * <p>
+ * The time spent per level is measured by {@code ImapCompressionBenchmark} in
+ * benchmarks-on-jvm.
+ * </p>
+ */
+public class ImapCompressionTest {
+    private static final int[] LEVELS = { 1, 6, 9 };
+    private static final int MIN_COMPRESSION_RATIO = 4;
+
+
+    @Test
+    public void testCommandsSurviveCompression() throws Exception {
+        List<byte[]> commands = createClientCommands();
+
+        for (int level : LEVELS) {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            CountingOutputStream plainOut = new CountingOutputStream(
+                    ImapConnection.createDeflaterOutputStream(wire, level));
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+            for (byte[] command : commands) {
+                plainOut.write(command);
+                plainOut.flush();
+                expected.write(command);
+
+                // Each command must be decodable as soon as it has been flushed
+                assertArrayEquals(expected.toByteArray(), inflate(wire.toByteArray(), expected.size()));
+            }
+
+            assertEquals(expected.size(), plainOut.getCount());
+        }
+    }
+
+    @Test
+    public void testServerResponsesCompress() throws Exception {
+        List<byte[]> responses = createServerResponses();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (byte[] response : responses) {
+            expected.write(response);
+        }
+        int uncompressedSize = expected.size();
+
+        int previousCompressedSize = Integer.MAX_VALUE;
+        for (int level : LEVELS) {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            OutputStream out = ImapConnection.createDeflaterOutputStream(wire, level);
+            for (byte[] response : responses) {
+                out.write(response);
+                out.flush();
+            }
+            byte[] compressed = wire.toByteArray();
+
+            assertArrayEquals(expected.toByteArray(), inflate(compressed, uncompressedSize));
+
+            // Header fetches are very repetitive; even the fastest level has to save most of the data
+            assertTrue("level " + level + ": " + compressed.length + " of " + uncompressedSize + " bytes",
+                    compressed.length * MIN_COMPRESSION_RATIO < uncompressedSize);
+            assertTrue(compressed.length <= previousCompressedSize);
+            previousCompressedSize = compressed.length;
+        }
+    }
+
+    /**
+     * Decompresses the first {@code length} bytes. The data doesn't end with the end of the
+     * deflate stream, so we can't just read until EOF.
+     */
+    private static byte[] inflate(byte[] compressed, int length) throws Exception {
+        InputStream in = ImapConnection.createInflaterInputStream(
+                new ByteArrayInputStream(compressed), 1024);
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(data, offset, length - offset);
+            if (read == -1) {
+                break;
+            }
+            offset += read;
+        }
+        assertEquals(length, offset);
+        return data;
+    }
+
+    private static List<byte[]> createClientCommands() {
+        List<byte[]> commands = new ArrayList<byte[]>();
+        commands.add(ascii("1 SELECT \"INBOX\" (CONDSTORE)\r\n"));
+        commands.add(ascii("2 UID SEARCH 1:* NOT DELETED\r\n"));
+        commands.add(ascii("3 UID FETCH 101:200 (UID FLAGS INTERNALDATE RFC822.SIZE " +
+                "BODY.PEEK[HEADER.FIELDS (date subject from content-type to cc reply-to " +
+                "message-id references in-reply-to X-K9mail-Identity)])\r\n"));
+        commands.add(ascii("4 UID STORE 101,105:110 +FLAGS.SILENT (\\Seen)\r\n"));
+        commands.add(ascii("5 IDLE\r\n"));
+        commands.add(ascii("DONE\r\n"));
+        return commands;
+    }
+
+    /**
+     * Creates the server side of a typical header sync: a SELECT followed by header FETCH
+     * responses for 200 messages.
+     */
+    private static List<byte[]> createServerResponses() {
+        List<byte[]> responses = new ArrayList<byte[]>();
+        responses.add(ascii("* FLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft $Forwarded)\r\n" +
+                "* OK [PERMANENTFLAGS (\\Answered \\Flagged \\Deleted \\Seen \\Draft $Forwarded \\*)]\r\n" +
+                "* 200 EXISTS\r\n* 0 RECENT\r\n* OK [UIDVALIDITY 1412345678] UIDs valid\r\n" +
+                "* OK [UIDNEXT 301] Predicted next UID\r\n* OK [HIGHESTMODSEQ 4711] Highest\r\n" +
+                "1 OK [READ-WRITE] Select completed.\r\n"));
+
+        for (int i = 1; i <= 200; i++) {
+            String header = "Date: Mon, " + (i % 28 + 1) + " Sep 2014 12:" + (10 + i % 50) + ":00 +0200\r\n" +
+                    "Subject: Re: [k9mail] Weekly report number " + i + "\r\n" +
+                    "From: \"Sender " + (i % 7) + "\" <sender" + (i % 7) + "@example.com>\r\n" +
+                    "Content-Type: multipart/alternative; boundary=\"----=_Part_" + i + "_" + (i * 31) + "\"\r\n" +
+                    "To: k9mail@googlegroups.com\r\n" +
+                    "Message-ID: <" + (1000000 + i * 7919) + "." + i + ".JavaMail@mail.example.com>\r\n" +
+                    "References: <" + (1000000 + (i - 1) * 7919) + "." + (i - 1) + ".JavaMail@mail.example.com>\r\n" +
+                    "In-Reply-To: <" + (1000000 + (i - 1) * 7919) + "." + (i - 1) + ".JavaMail@mail.example.com>\r\n" +
+                    "\r\n";
+            responses.add(ascii("* " + i + " FETCH (UID " + (100 + i) + " RFC822.SIZE " + (2000 + i * 13) +
+                    " INTERNALDATE \"" + (i % 28 + 1) + "-Sep-2014 12:00:00 +0200\" FLAGS (" +
+                    ((i % 3 == 0) ? "\\Seen" : "") + ") MODSEQ (" + (4000 + i) + ") " +
+                    "BODY[HEADER.FIELDS (DATE SUBJECT FROM CONTENT-TYPE TO CC REPLY-TO MESSAGE-ID " +
+                    "REFERENCES IN-REPLY-TO X-K9MAIL-IDENTITY)] {" + header.length() + "}\r\n" +
+                    header + ")\r\n"));
+        }
+
+        responses.add(ascii("3 OK Fetch completed.\r\n"));
+        return responses;
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
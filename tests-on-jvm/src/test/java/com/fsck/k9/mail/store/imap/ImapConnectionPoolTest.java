@@ -0,0 +1,208 @@
+package com.fsck.k9.mail.store.imap;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.fsck.k9.mail.MessagingException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class ImapConnectionPoolTest {
+    private TestPool mPool;
+
+    @Before
+    public void setUp() {
+        mPool = new TestPool(2);
+    }
+
+    @Test
+    public void testReleasedConnectionIsReused() throws Exception {
+        TestConnection first = (TestConnection) mPool.acquire();
+        first.open = true;
+        mPool.release(first);
+
+        assertSame(first, mPool.acquire());
+        assertEquals(0, first.noopCount);
+    }
+
+    @Test
+    public void testMostRecentlyReleasedConnectionIsReusedFirst() throws Exception {
+        TestConnection first = (TestConnection) mPool.acquire();
+        TestConnection second = (TestConnection) mPool.acquire();
+        first.open = true;
+        second.open = true;
+        mPool.release(first);
+        mPool.time += 10;
+        mPool.release(second);
+
+        assertSame(second, mPool.acquire());
+    }
+
+    @Test
+    public void testIdleConnectionIsValidatedWithNoop() throws Exception {
+        TestConnection connection = (TestConnection) mPool.acquire();
+        connection.open = true;
+        mPool.release(connection);
+        mPool.time += ImapConnectionPool.IDLE_VALIDATION_THRESHOLD;
+
+        assertSame(connection, mPool.acquire());
+        assertEquals(1, connection.noopCount);
+    }
+
+    @Test
+    public void testStaleConnectionIsReplaced() throws Exception {
+        TestConnection connection = (TestConnection) mPool.acquire();
+        connection.open = true;
+        mPool.release(connection);
+        mPool.time += ImapConnectionPool.IDLE_VALIDATION_THRESHOLD;
+        connection.failNoop = true;
+
+        ImapConnection replacement = mPool.acquire();
+
+        assertNotSame(connection, replacement);
+        assertFalse(connection.open);
+        assertEquals(1, mPool.getLeasedCount());
+        assertEquals(0, mPool.getIdleCount());
+    }
+
+    @Test
+    public void testClosedConnectionIsNotPooled() throws Exception {
+        TestConnection connection = (TestConnection) mPool.acquire();
+        mPool.release(connection);
+
+        assertEquals(0, mPool.getIdleCount());
+        assertEquals(0, mPool.getLeasedCount());
+    }
+
+    @Test
+    public void testSurplusConnectionIsClosed() throws Exception {
+        TestConnection first = (TestConnection) mPool.acquire();
+        TestConnection second = (TestConnection) mPool.acquire();
+        first.open = true;
+        second.open = true;
+        TestConnection foreign = new TestConnection();
+        foreign.open = true;
+
+        mPool.release(first);
+        mPool.release(second);
+        mPool.release(foreign);
+
+        assertEquals(2, mPool.getIdleCount());
+        assertFalse(first.open);
+        assertTrue(foreign.open);
+    }
+
+    @Test
+    public void testDetachedConnectionDoesNotCountTowardsLimit() throws Exception {
+        ImapConnection first = mPool.acquire();
+        mPool.acquire();
+        mPool.detach(first);
+
+        assertEquals(1, mPool.getLeasedCount());
+    }
+
+    @Test(timeout = 5000)
+    public void testAcquireWaitsForRelease() throws Exception {
+        final TestConnection first = (TestConnection) mPool.acquire();
+        mPool.acquire();
+        first.open = true;
+
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+                mPool.release(first);
+            }
+        };
+        releaser.start();
+
+        assertSame(first, mPool.acquire());
+        releaser.join();
+    }
+
+    @Test(timeout = 5000)
+    public void testAcquireWithoutTimeoutExceedsLimitRightAway() throws Exception {
+        mPool.acquireTimeout = 0;
+        ImapConnection first = mPool.acquire();
+        ImapConnection second = mPool.acquire();
+
+        ImapConnection third = mPool.acquire();
+
+        assertNotSame(first, third);
+        assertNotSame(second, third);
+        assertEquals(3, mPool.getLeasedCount());
+    }
+
+
+    static class TestPool extends ImapConnectionPool {
+        private final int mMaxConnections;
+        long time = 1000000;
+        long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+
+        TestPool(int maxConnections) {
+            mMaxConnections = maxConnections;
+        }
+
+        @Override
+        protected ImapConnection createConnection() {
+            return new TestConnection();
+        }
+
+        @Override
+        protected int getMaxConnections() {
+            return mMaxConnections;
+        }
+
+        @Override
+        protected long getAcquireTimeout() {
+            return acquireTimeout;
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    static class TestConnection extends ImapConnection {
+        boolean open;
+        boolean failNoop;
+        int noopCount;
+
+        TestConnection() {
+            super(null, null, null);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public List<ImapResponse> executeSimpleCommand(String command) throws IOException,
+                MessagingException {
+            noopCount++;
+            if (failNoop) {
+                throw new IOException("connection reset");
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.fsck.k9.mail.store.imap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class ImapPushMetricsTest {
+
+    @Test
+    public void testNoEvents() {
+        ImapPushMetrics metrics = new ImapPushMetrics();
+
+        assertEquals(0, metrics.getEventCount());
+        assertEquals(0, metrics.getAverageLatency());
+        assertEquals(0, metrics.getMaxLatency());
+    }
+
+    @Test
+    public void testLatency() {
+        ImapPushMetrics metrics = new ImapPushMetrics();
+        metrics.recordEvent(100);
+        metrics.recordEvent(300);
+        metrics.recordEvent(200);
+
+        assertEquals(3, metrics.getEventCount());
+        assertEquals(200, metrics.getAverageLatency());
+        assertEquals(300, metrics.getMaxLatency());
+    }
+
+    @Test
+    public void testReconnects() {
+        ImapPushMetrics metrics = new ImapPushMetrics();
+        metrics.recordReconnect();
+        metrics.recordReconnect();
+
+        assertEquals(2, metrics.getReconnectCount());
+    }
+}
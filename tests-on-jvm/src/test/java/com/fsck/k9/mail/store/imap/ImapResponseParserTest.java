@@ -1,5 +1,7 @@
 package com.fsck.k9.mail.store.imap;
 
+import com.fsck.k9.mail.FolderStatus;
+import com.fsck.k9.mail.filter.FixedLengthInputStream;
 import com.fsck.k9.mail.filter.PeekableInputStream;
 
 import org.junit.Test;
@@ -13,7 +15,9 @@ import java.util.Set;
 import static com.fsck.k9.mail.store.imap.ImapResponseParser.parseCapabilities;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ImapResponseParserTest  {
@@ -100,6 +104,172 @@ public class ImapResponseParserTest  {
         assertTrue(parseCapabilities(Arrays.asList(capabilityResponse)).isEmpty());
     }
 
+    @Test public void testCommonAtomsAreShared() throws IOException {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 23 FLAGS (\\Seen))\r\n" +
+                "* 2 FETCH (UID 24 FLAGS (\\Seen))\r\n");
+        ImapResponse first = parser.readResponse();
+        ImapResponse second = parser.readResponse();
+
+        assertSame(first.get(1), second.get(1));
+        assertSame(first.getList(2).getKeyedList("FLAGS").get(0),
+                second.getList(2).getKeyedList("FLAGS").get(0));
+        assertEquals("\\Seen", second.getList(2).getKeyedList("FLAGS").get(0));
+    }
+
+    @Test public void testLiteralWithCallback() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (BODY[] {5}\r\nabcde)\r\nTAG OK\r\n");
+        ImapResponse response = parser.readResponse(new ImapResponseCallback() {
+            @Override
+            public Object foundLiteral(ImapResponse response, FixedLengthInputStream literal) throws Exception {
+                byte[] data = new byte[3];
+                assertEquals(3, literal.read(data));
+                return new String(data, "US-ASCII");
+            }
+        });
+
+        ImapList fetchList = response.getList(2);
+        assertEquals("abc", fetchList.get(2));
+        assertEquals("OK", parser.readResponse().get(0));
+    }
+
+    @Test public void testLiteralSkippedByCallback() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (BODY[] {5}\r\nabcde UID 7)\r\nTAG OK\r\n");
+        ImapResponse response = parser.readResponse(new ImapResponseCallback() {
+            @Override
+            public Object foundLiteral(ImapResponse response, FixedLengthInputStream literal) throws Exception {
+                return 1;
+            }
+        });
+
+        ImapList fetchList = response.getList(2);
+        assertEquals(1, fetchList.get(2));
+        assertEquals("7", fetchList.getKeyedString("UID"));
+        assertEquals("OK", parser.readResponse().get(0));
+    }
+
+    @Test public void testPullFetchResponse() throws IOException {
+        ImapResponseParser parser = createParser(
+                "* 12 FETCH (UID 1234 FLAGS (\\Seen $Forwarded) BODY[HEADER] {3}\r\nabc)\r\n" +
+                "TAG OK FETCH completed\r\n");
+
+        assertTrue(parser.startPull("FETCH"));
+        assertEquals(12, parser.getPullNumber());
+        assertEquals(ImapResponseParser.TOKEN_LIST_START, parser.nextToken());
+
+        assertEquals(ImapResponseParser.TOKEN_ATOM, parser.nextToken());
+        assertTrue(parser.tokenEqualsIgnoreCase("uid"));
+        assertEquals(ImapResponseParser.TOKEN_ATOM, parser.nextToken());
+        assertEquals(1234, parser.getTokenNumber());
+
+        assertEquals(ImapResponseParser.TOKEN_ATOM, parser.nextToken());
+        assertTrue(parser.tokenEqualsIgnoreCase("FLAGS"));
+        parser.skipValue();
+
+        assertEquals(ImapResponseParser.TOKEN_ATOM, parser.nextToken());
+        assertEquals("BODY", parser.getTokenString());
+        assertEquals(ImapResponseParser.TOKEN_SEQUENCE_START, parser.nextToken());
+        assertEquals(ImapResponseParser.TOKEN_ATOM, parser.nextToken());
+        assertEquals(ImapResponseParser.TOKEN_SEQUENCE_END, parser.nextToken());
+        assertEquals(ImapResponseParser.TOKEN_LITERAL, parser.nextToken());
+        assertEquals("abc", parser.getTokenString());
+        assertEquals(ImapResponseParser.TOKEN_LIST_END, parser.nextToken());
+        assertEquals(ImapResponseParser.TOKEN_END, parser.nextToken());
+
+        assertFalse(parser.startPull("FETCH"));
+        ImapResponse response = parser.getLastResponse();
+        assertEquals("TAG", response.getTag());
+        assertEquals(asList("OK", "FETCH completed"), response);
+    }
+
+    @Test public void testPullOtherResponse() throws IOException {
+        ImapResponseParser parser = createParser("* 23 EXISTS\r\n* OK [UIDNEXT 57] Predicted\r\n" +
+                "* 1 FETCH (FLAGS ())\r\n* 2 FETCH (FLAGS ())\r\n");
+
+        assertFalse(parser.startPull("FETCH"));
+        assertEquals(asList("23", "EXISTS"), parser.getLastResponse());
+
+        assertFalse(parser.startPull("FETCH"));
+        assertEquals("OK", parser.getLastResponse().get(0));
+        assertEquals("Predicted", parser.getLastResponse().get(2));
+
+        assertTrue(parser.startPull("FETCH"));
+        parser.skipPulledResponse();
+        assertTrue(parser.startPull("FETCH"));
+        assertEquals(2, parser.getPullNumber());
+    }
+
+    @Test public void testHighestModSeqResponseCode() throws IOException {
+        ImapResponseParser parser = createParser("* OK [HIGHESTMODSEQ 715194045007] Highest\r\n");
+        ImapResponse response = parser.readResponse();
+
+        assertEquals(715194045007L, ImapUtility.getHighestModSeq(response.getList(1)));
+    }
+
+    @Test public void testNoModSeqResponseCode() throws IOException {
+        ImapResponseParser parser = createParser("* OK [NOMODSEQ] Sorry, this mailbox format " +
+                "doesn't support modsequences\r\n");
+        ImapResponse response = parser.readResponse();
+
+        assertEquals("NOMODSEQ", response.getList(1).getString(0));
+        assertEquals(-1L, ImapUtility.getHighestModSeq(response.getList(1)));
+    }
+
+    @Test public void testInvalidHighestModSeqResponseCode() throws IOException {
+        ImapResponseParser parser = createParser("* OK [HIGHESTMODSEQ 12x] Highest\r\n" +
+                "* OK [HIGHESTMODSEQ (1)] Highest\r\n* OK [HIGHESTMODSEQ] Highest\r\n");
+
+        assertEquals(-1L, ImapUtility.getHighestModSeq(parser.readResponse().getList(1)));
+        assertEquals(-1L, ImapUtility.getHighestModSeq(parser.readResponse().getList(1)));
+        assertEquals(-1L, ImapUtility.getHighestModSeq(parser.readResponse().getList(1)));
+    }
+
+    @Test public void testStatusResponseWithHighestModSeq() throws IOException {
+        ImapResponseParser parser = createParser("* STATUS INBOX (MESSAGES 231 UIDNEXT 44292 " +
+                "HIGHESTMODSEQ 7011231777)\r\n");
+        ImapResponse response = parser.readResponse();
+
+        FolderStatus status = ImapUtility.getFolderStatus("INBOX", response.getList(2));
+        assertEquals(7011231777L, status.getHighestModSeq());
+    }
+
+    @Test public void testVanishedResponse() throws IOException {
+        ImapResponseParser parser = createParser("* VANISHED 405,407:409\r\n");
+        ImapResponse response = parser.readResponse();
+
+        assertTrue(ImapUtility.isVanishedResponse(response));
+        assertFalse(ImapUtility.isEarlierVanishedResponse(response));
+        assertEquals(asList("405", "407", "408", "409"), ImapUtility.getVanishedUids(response));
+    }
+
+    @Test public void testEarlierVanishedResponse() throws IOException {
+        ImapResponseParser parser = createParser("* VANISHED (EARLIER) 41,43:45\r\n");
+        ImapResponse response = parser.readResponse();
+
+        assertTrue(ImapUtility.isVanishedResponse(response));
+        assertTrue(ImapUtility.isEarlierVanishedResponse(response));
+        assertEquals(asList("41", "43", "44", "45"), ImapUtility.getVanishedUids(response));
+    }
+
+    @Test public void testExpungeIsNotVanishedResponse() throws IOException {
+        ImapResponseParser parser = createParser("* 3 EXPUNGE\r\nA1 OK VANISHED\r\n");
+
+        assertFalse(ImapUtility.isVanishedResponse(parser.readResponse()));
+        // Tagged responses never report vanished messages
+        assertFalse(ImapUtility.isVanishedResponse(parser.readResponse()));
+    }
+
+    @Test public void testFetchResponseWithModSeq() throws IOException {
+        ImapResponseParser parser = createParser("* 5 FETCH (UID 41 MODSEQ (12121231000) " +
+                "FLAGS (\\Seen \\Flagged))\r\n");
+        ImapResponse response = parser.readResponse();
+
+        assertEquals("FETCH", response.get(1));
+        ImapList fetchList = (ImapList) response.getKeyedValue("FETCH");
+        assertEquals("41", fetchList.getKeyedString("UID"));
+        assertEquals(12121231000L, fetchList.getKeyedList("MODSEQ").getLong(0));
+        assertEquals(asList("\\Seen", "\\Flagged"), fetchList.getKeyedList("FLAGS"));
+    }
+
     private ImapResponseParser createParser(String response) {
         ByteArrayInputStream in = new ByteArrayInputStream(response.getBytes());
         PeekableInputStream pin = new PeekableInputStream(in);
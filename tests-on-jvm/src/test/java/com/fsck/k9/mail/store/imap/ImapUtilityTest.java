@@ -17,11 +17,16 @@
 
 package com.fsck.k9.mail.store.imap;
 
+import com.fsck.k9.mail.FolderStatus;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 
 public class ImapUtilityTest  {
@@ -142,4 +147,48 @@ public class ImapUtilityTest  {
         actual = ImapUtility.getImapRangeValues("1:*");
         assertArrayEquals(expected, actual.toArray());
     }
+
+    @Test public void testCreateSequenceSet() {
+        assertEquals("1:3,7,9:10",
+                ImapUtility.createSequenceSet(Arrays.asList("7", "1", "2", "3", "9", "10")));
+        assertEquals("5", ImapUtility.createSequenceSet(Arrays.asList("5", "5")));
+        assertEquals("4294967294:4294967295",
+                ImapUtility.createSequenceSet(Arrays.asList("4294967295", "4294967294")));
+        assertEquals("1,3,x", ImapUtility.createSequenceSet(Arrays.asList("x", "3", "1")));
+        assertEquals("", ImapUtility.createSequenceSet(Collections.<String>emptyList()));
+    }
+
+    @Test public void testSortUids() {
+        List<String> uids = new ArrayList<String>(Arrays.asList("10", "x", "9", "100", "1"));
+
+        ImapUtility.sortUids(uids);
+
+        assertEquals(Arrays.asList("1", "9", "10", "100", "x"), uids);
+    }
+
+    @Test public void testGetFolderStatus() {
+        ImapList attributes = new ImapList();
+        attributes.addAll(Arrays.asList("MESSAGES", "231", "uidnext", "44292", "UIDVALIDITY", "1",
+                "HIGHESTMODSEQ", "7011231777", "UNSEEN", "x"));
+
+        FolderStatus status = ImapUtility.getFolderStatus("INBOX", attributes);
+
+        assertEquals("INBOX", status.getName());
+        assertEquals(231, status.getMessageCount());
+        assertEquals(44292L, status.getUidNext());
+        assertEquals(1L, status.getUidValidity());
+        assertEquals(7011231777L, status.getHighestModSeq());
+    }
+
+    @Test public void testGetFolderStatusWithMissingValues() {
+        ImapList attributes = new ImapList();
+        attributes.addAll(Arrays.asList("MESSAGES", "0", "UIDNEXT"));
+
+        FolderStatus status = ImapUtility.getFolderStatus("Trash", attributes);
+
+        assertEquals(0, status.getMessageCount());
+        assertEquals(-1L, status.getUidNext());
+        assertEquals(-1L, status.getUidValidity());
+        assertEquals(-1L, status.getHighestModSeq());
+    }
 }
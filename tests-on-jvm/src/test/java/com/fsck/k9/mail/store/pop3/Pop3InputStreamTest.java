@@ -0,0 +1,82 @@
+package com.fsck.k9.mail.store.pop3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class Pop3InputStreamTest {
+
+    @Test
+    public void testReadLines() throws Exception {
+        Pop3InputStream in = createStream("+OK ready\r\n1 abc\r\n.\r\n", 4);
+
+        assertEquals("+OK ready", in.readLine());
+        assertEquals("1 abc", in.readLine());
+        assertEquals(".", in.readLine());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testBareLineFeedAndStrayCarriageReturn() throws Exception {
+        Pop3InputStream in = createStream("a\rb\nc\n", 1024);
+
+        assertEquals("ab", in.readLine());
+        assertEquals("c", in.readLine());
+    }
+
+    @Test
+    public void testLongLine() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        Pop3InputStream in = createStream(sb + "\r\nnext\r\n", 16);
+
+        assertEquals(sb.toString(), in.readLine());
+        assertEquals("next", in.readLine());
+    }
+
+    @Test
+    public void testPartialLineAtEndOfStream() throws Exception {
+        Pop3InputStream in = createStream("+OK", 1024);
+
+        assertEquals("+OK", in.readLine());
+    }
+
+    @Test(expected = IOException.class)
+    public void testEndOfStream() throws Exception {
+        Pop3InputStream in = createStream("", 1024);
+
+        in.readLine();
+    }
+
+    @Test
+    public void testEightBitData() throws Exception {
+        byte[] data = { '+', 'O', 'K', ' ', (byte) 0xE4, '\r', '\n' };
+        Pop3InputStream in = new Pop3InputStream(new ByteArrayInputStream(data), 1024);
+
+        assertEquals("+OK \u00E4", in.readLine());
+    }
+
+    @Test
+    public void testReadAfterReadLine() throws Exception {
+        Pop3InputStream in = createStream("+OK\r\nbody", 3);
+
+        assertEquals("+OK", in.readLine());
+        byte[] buffer = new byte[10];
+        int count = 0;
+        int read;
+        while ((read = in.read(buffer, count, buffer.length - count)) != -1) {
+            count += read;
+        }
+        assertEquals("body", new String(buffer, 0, count, "US-ASCII"));
+    }
+
+    private static Pop3InputStream createStream(String data, int bufferSize) throws Exception {
+        return new Pop3InputStream(new ByteArrayInputStream(data.getBytes("ISO-8859-1")), bufferSize);
+    }
+}
@@ -0,0 +1,79 @@
+package com.fsck.k9.mail.store.pop3;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+public class Pop3UidlIndexTest {
+    private File mFile;
+
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("pop3_uidl", null);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testMissingFile() {
+        Pop3UidlIndex index = new Pop3UidlIndex(mFile);
+
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        new Pop3UidlIndex(mFile).setUids(Arrays.asList("uid1", "uid2", "uid3"));
+
+        Pop3UidlIndex index = new Pop3UidlIndex(mFile);
+        assertEquals(Arrays.asList("uid1", "uid2", "uid3"), index.getUids());
+    }
+
+    @Test
+    public void testTruncate() {
+        new Pop3UidlIndex(mFile).setUids(Arrays.asList("uid1", "uid2", "uid3"));
+        new Pop3UidlIndex(mFile).truncate(1);
+
+        assertEquals(Collections.singletonList("uid1"), new Pop3UidlIndex(mFile).getUids());
+    }
+
+    @Test
+    public void testClear() {
+        new Pop3UidlIndex(mFile).setUids(Arrays.asList("uid1", "uid2"));
+        new Pop3UidlIndex(mFile).clear();
+
+        assertEquals(0, new Pop3UidlIndex(mFile).size());
+    }
+
+    @Test
+    public void testDelete() {
+        Pop3UidlIndex index = new Pop3UidlIndex(mFile);
+        index.setUids(Arrays.asList("uid1", "uid2"));
+
+        index.delete();
+
+        assertFalse(mFile.exists());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testWithoutFile() {
+        Pop3UidlIndex index = new Pop3UidlIndex(null);
+        index.setUids(Arrays.asList("uid1", "uid2"));
+
+        assertEquals(2, index.size());
+    }
+}
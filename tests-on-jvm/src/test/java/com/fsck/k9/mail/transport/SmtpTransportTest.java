@@ -0,0 +1,477 @@
+package com.fsck.k9.mail.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.BinaryTempFileBody;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.ssl.TrustedSocketFactory;
+import com.fsck.k9.mail.store.StoreConfig;
+import com.fsck.k9.mail.transport.SmtpTransport.NegativeSmtpReplyException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class SmtpTransportTest {
+    private static final int BDAT_CHUNK_SIZE = 64 * 1024;
+
+    private FakeSmtpServer mServer;
+
+
+    @Before
+    public void setUp() {
+        BinaryTempFileBody.setTempDirectory(new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLargeMessageIsSentInBdatChunks() throws Exception {
+        mServer = new FakeSmtpServer("PIPELINING", "CHUNKING");
+        String body = createLongBody();
+
+        sendMessage(createMessage(body));
+
+        assertEquals(Arrays.asList(
+                "MAIL FROM:<alice@example.org>",
+                "RCPT TO:<bob@example.org>",
+                "BDAT " + BDAT_CHUNK_SIZE,
+                "BDAT " + (mServer.getData().length() - BDAT_CHUNK_SIZE) + " LAST",
+                "QUIT"), mServer.getCommands());
+        // No dot-stuffing with BDAT
+        assertEndsWith("\r\n\r\n" + body, mServer.getData());
+    }
+
+    @Test(timeout = 10000)
+    public void testBinaryMimeMessageIsSentUnchanged() throws Exception {
+        mServer = new FakeSmtpServer("CHUNKING", "BINARYMIME");
+        String longLine = createLongLine();
+
+        sendMessage(createMessage(longLine + "\r\n"));
+
+        assertEquals("MAIL FROM:<alice@example.org> BODY=BINARYMIME", mServer.getCommands().get(0));
+        assertEndsWith("\r\n\r\n" + longLine + "\r\n", mServer.getData());
+    }
+
+    @Test(timeout = 10000)
+    public void testLongLinesAreWrappedWithoutBinaryMime() throws Exception {
+        mServer = new FakeSmtpServer("CHUNKING");
+        String longLine = createLongLine();
+
+        sendMessage(createMessage(longLine + "\r\n"));
+
+        assertEquals("MAIL FROM:<alice@example.org>", mServer.getCommands().get(0));
+        assertEndsWith("\r\n\r\n" + longLine.substring(0, 998) + "\r\n" + longLine.substring(998) + "\r\n",
+                mServer.getData());
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectedChunkIsReported() throws Exception {
+        mServer = new FakeSmtpServer("CHUNKING");
+        mServer.mBdatReply = "552 5.3.4 Message too big";
+
+        try {
+            sendMessage(createMessage(createLongBody()));
+            fail("Expected MessagingException");
+        } catch (MessagingException e) {
+            NegativeSmtpReplyException reply = (NegativeSmtpReplyException) e.getCause();
+            assertEquals(552, reply.getReplyCode());
+        }
+
+        assertEquals(Arrays.asList(
+                "MAIL FROM:<alice@example.org>",
+                "RCPT TO:<bob@example.org>",
+                "BDAT " + BDAT_CHUNK_SIZE,
+                "QUIT"), mServer.getCommands());
+    }
+
+    @Test(timeout = 10000)
+    public void testPipelinedRecipientRejectionStopsBeforeBdat() throws Exception {
+        mServer = new FakeSmtpServer("PIPELINING", "CHUNKING");
+        mServer.mRejectedRecipients.add("bob@example.org");
+
+        try {
+            sendMessage(createMessage("text\r\n"));
+            fail("Expected MessagingException");
+        } catch (MessagingException e) {
+            NegativeSmtpReplyException reply = (NegativeSmtpReplyException) e.getCause();
+            assertEquals(550, reply.getReplyCode());
+        }
+
+        assertEquals(Arrays.asList(
+                "MAIL FROM:<alice@example.org>",
+                "RCPT TO:<bob@example.org>",
+                "QUIT"), mServer.getCommands());
+    }
+
+    @Test(timeout = 10000)
+    public void testDataIsUsedWithoutChunking() throws Exception {
+        mServer = new FakeSmtpServer("PIPELINING", "8BITMIME");
+
+        sendMessage(createMessage("text\r\n.starts with a dot\r\n"));
+
+        assertEquals(Arrays.asList(
+                "MAIL FROM:<alice@example.org> BODY=8BITMIME",
+                "RCPT TO:<bob@example.org>",
+                "DATA",
+                "QUIT"), mServer.getCommands());
+        assertTrue(mServer.getData().contains("\r\n\r\ntext\r\n..starts with a dot\r\n"));
+    }
+
+
+    @Test(timeout = 10000)
+    public void testSessionIsReusedWithRset() throws Exception {
+        mServer = new FakeSmtpServer("PIPELINING");
+        mServer.start();
+
+        SmtpTransport transport = createTransport("smtp://127.0.0.1:" + mServer.getPort());
+        try {
+            transport.sendMessage(createMessage("first\r\n"));
+            transport.sendMessage(createMessage("second\r\n"));
+        } finally {
+            transport.close();
+            mServer.join();
+        }
+
+        assertEquals(Arrays.asList(
+                "MAIL FROM:<alice@example.org>",
+                "RCPT TO:<bob@example.org>",
+                "DATA",
+                "RSET",
+                "MAIL FROM:<alice@example.org>",
+                "RCPT TO:<bob@example.org>",
+                "DATA",
+                "QUIT"), mServer.getCommands());
+        assertEquals(1, mServer.getSessionCount());
+        assertTrue(mServer.getData().contains("\r\n\r\nfirst\r\n"));
+        assertTrue(mServer.getData().contains("\r\n\r\nsecond\r\n"));
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedSendReconnectsForNextMessage() throws Exception {
+        mServer = new FakeSmtpServer("PIPELINING");
+        mServer.mSessions = 2;
+        mServer.mFirstDataReply = "451 4.3.0 Try again later";
+        mServer.start();
+
+        SmtpTransport transport = createTransport("smtp://127.0.0.1:" + mServer.getPort());
+        try {
+            try {
+                transport.sendMessage(createMessage("first\r\n"));
+                fail("Expected MessagingException");
+            } catch (MessagingException e) {
+                NegativeSmtpReplyException reply = (NegativeSmtpReplyException) e.getCause();
+                assertEquals(451, reply.getReplyCode());
+            }
+
+            transport.sendMessage(createMessage("second\r\n"));
+        } finally {
+            transport.close();
+            mServer.join();
+        }
+
+        assertEquals(Arrays.asList(
+                "MAIL FROM:<alice@example.org>",
+                "RCPT TO:<bob@example.org>",
+                "DATA",
+                "QUIT",
+                "MAIL FROM:<alice@example.org>",
+                "RCPT TO:<bob@example.org>",
+                "DATA",
+                "QUIT"), mServer.getCommands());
+        assertEquals(2, mServer.getSessionCount());
+        assertTrue(mServer.getData().contains("\r\n\r\nsecond\r\n"));
+    }
+
+
+    @Test(timeout = 10000)
+    public void testExtensionsBeforeStartTlsAreIgnored() throws Exception {
+        mServer = new FakeSmtpServer("STARTTLS", "PIPELINING", "CHUNKING", "BINARYMIME");
+        mServer.mExtensionsAfterStartTls = Arrays.asList("8BITMIME");
+
+        sendMessage("smtp+tls+://127.0.0.1:" + mServer.getPort(), createMessage("text\r\n"));
+
+        assertEquals(Arrays.asList(
+                "STARTTLS",
+                "MAIL FROM:<alice@example.org> BODY=8BITMIME",
+                "RCPT TO:<bob@example.org>",
+                "DATA",
+                "QUIT"), mServer.getCommands());
+    }
+
+    @Test(timeout = 10000)
+    public void testExtensionsAfterStartTlsAreUsed() throws Exception {
+        mServer = new FakeSmtpServer("STARTTLS");
+        mServer.mExtensionsAfterStartTls = Arrays.asList("PIPELINING", "CHUNKING", "BINARYMIME");
+
+        sendMessage("smtp+tls+://127.0.0.1:" + mServer.getPort(), createMessage("text\r\n"));
+
+        assertEquals(Arrays.asList(
+                "STARTTLS",
+                "MAIL FROM:<alice@example.org> BODY=BINARYMIME",
+                "RCPT TO:<bob@example.org>",
+                "BDAT " + (mServer.getData().length()) + " LAST",
+                "QUIT"), mServer.getCommands());
+    }
+
+
+    private static void assertEndsWith(String expected, String actual) {
+        int start = Math.max(0, actual.length() - expected.length());
+        assertEquals(expected, actual.substring(start));
+    }
+
+    private void sendMessage(MimeMessage message) throws Exception {
+        sendMessage("smtp://127.0.0.1:" + mServer.getPort(), message);
+    }
+
+    private void sendMessage(String transportUri, MimeMessage message) throws Exception {
+        mServer.start();
+
+        SmtpTransport transport = createTransport(transportUri);
+        try {
+            transport.sendMessage(message);
+        } finally {
+            transport.close();
+            mServer.join();
+        }
+    }
+
+    private static SmtpTransport createTransport(String transportUri) throws MessagingException {
+        return new SmtpTransport(createStoreConfig(transportUri), new TrustedSocketFactory() {
+            @Override
+            public Socket createSocket(Socket socket, String host, int port,
+                    String clientCertificateAlias) {
+                // The scripted server doesn't speak TLS, so STARTTLS keeps the plain connection
+                return socket;
+            }
+        });
+    }
+
+    private static String createLongBody() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; body.length() < BDAT_CHUNK_SIZE * 3 / 2; i++) {
+            body.append("Line ").append(i).append(" of a message that doesn't fit into one chunk\r\n");
+        }
+        body.append(".starts with a dot\r\n");
+        return body.toString();
+    }
+
+    private static String createLongLine() {
+        StringBuilder line = new StringBuilder();
+        while (line.length() < 1500) {
+            line.append("0123456789");
+        }
+        return line.toString();
+    }
+
+    private static MimeMessage createMessage(String body) throws Exception {
+        String message = "From: <alice@example.org>\r\n" +
+                "To: <bob@example.org>\r\n" +
+                "Subject: Test\r\n" +
+                "MIME-Version: 1.0\r\n" +
+                "Content-Type: text/plain; charset=us-ascii\r\n" +
+                "Content-Transfer-Encoding: 7bit\r\n" +
+                "\r\n" +
+                body;
+        return new MimeMessage(new ByteArrayInputStream(message.getBytes("US-ASCII")), true);
+    }
+
+    private static StoreConfig createStoreConfig(final String transportUri) {
+        return (StoreConfig) Proxy.newProxyInstance(StoreConfig.class.getClassLoader(),
+                new Class<?>[] { StoreConfig.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getTransportUri")) {
+                            return transportUri;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+
+    /**
+     * Serves {@link #mSessions} SMTP sessions one after the other and records the commands and
+     * message data they received.
+     */
+    static class FakeSmtpServer extends Thread {
+        private final ServerSocket mServerSocket;
+        private List<String> mExtensions;
+        private final List<String> mCommands = Collections.synchronizedList(new ArrayList<String>());
+        private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        final Set<String> mRejectedRecipients = new HashSet<String>();
+        String mBdatReply;
+        int mSessions = 1;
+
+        /**
+         * The reply to the end of the data of the first message, instead of {@code 250}.
+         */
+        String mFirstDataReply;
+
+        /**
+         * The extensions announced after {@code STARTTLS}. The server doesn't actually switch to
+         * TLS.
+         */
+        List<String> mExtensionsAfterStartTls;
+
+        private volatile int mSessionCount;
+
+        FakeSmtpServer(String... extensions) throws IOException {
+            mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            mExtensions = Arrays.asList(extensions);
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        /**
+         * @return The commands received, except for {@code EHLO}.
+         */
+        List<String> getCommands() {
+            List<String> commands = new ArrayList<String>();
+            synchronized (mCommands) {
+                for (String command : mCommands) {
+                    if (!command.toUpperCase(Locale.US).startsWith("EHLO ")) {
+                        commands.add(command);
+                    }
+                }
+            }
+            return commands;
+        }
+
+        int getSessionCount() {
+            return mSessionCount;
+        }
+
+        synchronized String getData() throws IOException {
+            return mData.toString("US-ASCII");
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < mSessions; i++) {
+                    Socket socket = mServerSocket.accept();
+                    mSessionCount++;
+                    try {
+                        serve(socket.getInputStream(), socket.getOutputStream());
+                    } finally {
+                        socket.close();
+                    }
+                }
+            } catch (IOException e) {
+                // The client hung up
+            }
+        }
+
+        private void serve(InputStream in, OutputStream out) throws IOException {
+            writeLine(out, "220 localhost ESMTP");
+
+            String line;
+            while ((line = readLine(in)) != null) {
+                mCommands.add(line);
+                String command = line.toUpperCase(Locale.US);
+
+                if (command.startsWith("EHLO ")) {
+                    StringBuilder reply = new StringBuilder("250-localhost");
+                    for (int i = 0; i < mExtensions.size(); i++) {
+                        reply.append(i == mExtensions.size() - 1 ? "\r\n250 " : "\r\n250-");
+                        reply.append(mExtensions.get(i));
+                    }
+                    writeLine(out, mExtensions.isEmpty() ? "250 localhost" : reply.toString());
+                } else if (command.startsWith("RCPT TO:")) {
+                    String address = line.substring(line.indexOf('<') + 1, line.indexOf('>'));
+                    writeLine(out, mRejectedRecipients.contains(address) ?
+                            "550 5.1.1 No such user" : "250 OK");
+                } else if (command.equals("DATA")) {
+                    writeLine(out, "354 Go ahead");
+                    String dataLine;
+                    while ((dataLine = readLine(in)) != null && !dataLine.equals(".")) {
+                        appendData((dataLine + "\r\n").getBytes("US-ASCII"));
+                    }
+                    String reply = (mFirstDataReply != null) ? mFirstDataReply : "250 OK";
+                    mFirstDataReply = null;
+                    writeLine(out, reply);
+                } else if (command.startsWith("BDAT ")) {
+                    byte[] chunk = new byte[Integer.parseInt(line.split(" ")[1])];
+                    readFully(in, chunk);
+                    appendData(chunk);
+                    writeLine(out, mBdatReply != null ? mBdatReply : "250 OK");
+                } else if (command.equals("STARTTLS")) {
+                    writeLine(out, "220 Ready to start TLS");
+                    mExtensions = mExtensionsAfterStartTls;
+                } else if (command.equals("QUIT")) {
+                    writeLine(out, "221 Bye");
+                    return;
+                } else {
+                    writeLine(out, "250 OK");
+                }
+            }
+        }
+
+        private synchronized void appendData(byte[] data) {
+            mData.write(data, 0, data.length);
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return (c == -1 && line.length() == 0) ? null : line.toString();
+        }
+
+        private static void readFully(InputStream in, byte[] buffer) throws IOException {
+            int offset = 0;
+            while (offset < buffer.length) {
+                int read = in.read(buffer, offset, buffer.length - offset);
+                if (read == -1) {
+                    throw new IOException("Unexpected end of stream");
+                }
+                offset += read;
+            }
+        }
+
+        private static void writeLine(OutputStream out, String line) throws IOException {
+            out.write((line + "\r\n").getBytes("US-ASCII"));
+            out.flush();
+        }
+    }
+}
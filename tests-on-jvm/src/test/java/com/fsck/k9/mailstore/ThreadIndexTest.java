@@ -0,0 +1,137 @@
+package com.fsck.k9.mailstore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class ThreadIndexTest {
+    private static final int MAX_ENTRIES = 2000;
+
+    private ThreadIndex mIndex;
+
+
+    @Before
+    public void setUp() {
+        mIndex = new ThreadIndex();
+    }
+
+    @Test
+    public void testPutAndGet() {
+        ThreadInfo info = new ThreadInfo(10, 100, "<a@example.org>", 10, -1);
+        mIndex.put(1, info, false);
+
+        ThreadIndex.Entry entry = mIndex.get(1, "<a@example.org>");
+
+        assertNotNull(entry);
+        assertSame(info, entry.threadInfo);
+        assertFalse(entry.empty);
+    }
+
+    @Test
+    public void testEntriesAreKeptPerFolder() {
+        mIndex.put(1, new ThreadInfo(10, 100, "<a@example.org>", 10, -1), false);
+
+        assertNull(mIndex.get(2, "<a@example.org>"));
+    }
+
+    @Test
+    public void testPutKeepsEmptyState() {
+        mIndex.put(1, new ThreadInfo(10, 100, "<a@example.org>", 10, -1), true);
+
+        assertTrue(mIndex.get(1, "<a@example.org>").empty);
+    }
+
+    @Test
+    public void testPutReplacesEntryForSameMessageId() {
+        mIndex.put(1, new ThreadInfo(10, 100, "<a@example.org>", 10, -1), true);
+        mIndex.put(1, new ThreadInfo(11, 101, "<a@example.org>", 10, 10), false);
+
+        ThreadIndex.Entry entry = mIndex.get(1, "<a@example.org>");
+        assertEquals(101, entry.threadInfo.msgId);
+        assertFalse(entry.empty);
+        assertEquals(1, mIndex.size());
+    }
+
+    @Test
+    public void testRemove() {
+        mIndex.put(1, new ThreadInfo(10, 100, "<a@example.org>", 10, -1), false);
+        mIndex.put(2, new ThreadInfo(20, 200, "<a@example.org>", 20, -1), false);
+
+        mIndex.remove(1, "<a@example.org>");
+
+        assertNull(mIndex.get(1, "<a@example.org>"));
+        assertNotNull(mIndex.get(2, "<a@example.org>"));
+    }
+
+    @Test
+    public void testRemoveWithoutMessageId() {
+        mIndex.put(1, new ThreadInfo(10, 100, "<a@example.org>", 10, -1), false);
+
+        mIndex.remove(1, null);
+
+        assertEquals(1, mIndex.size());
+    }
+
+    @Test
+    public void testRemoveMessage() {
+        mIndex.put(1, new ThreadInfo(10, 100, "<a@example.org>", 10, -1), false);
+        mIndex.put(1, new ThreadInfo(11, 101, "<b@example.org>", 10, 10), false);
+
+        mIndex.removeMessage(100);
+
+        assertNull(mIndex.get(1, "<a@example.org>"));
+        assertNotNull(mIndex.get(1, "<b@example.org>"));
+    }
+
+    @Test
+    public void testReroot() {
+        mIndex.put(1, new ThreadInfo(10, 100, "<a@example.org>", 10, -1), false);
+        mIndex.put(1, new ThreadInfo(11, 101, "<b@example.org>", 10, 10), false);
+        mIndex.put(1, new ThreadInfo(12, 102, "<c@example.org>", 12, -1), false);
+
+        mIndex.reroot(10, 12, 12);
+
+        ThreadInfo a = mIndex.get(1, "<a@example.org>").threadInfo;
+        assertEquals(12, a.rootId);
+        assertEquals(12, a.parentId);
+        ThreadInfo b = mIndex.get(1, "<b@example.org>").threadInfo;
+        assertEquals(12, b.rootId);
+        assertEquals(10, b.parentId);
+        ThreadInfo c = mIndex.get(1, "<c@example.org>").threadInfo;
+        assertEquals(12, c.rootId);
+        assertEquals(-1, c.parentId);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            mIndex.put(1, new ThreadInfo(i, i, "<" + i + "@example.org>", i, -1), false);
+        }
+
+        // Using the oldest entry keeps it in the index
+        assertNotNull(mIndex.get(1, "<0@example.org>"));
+        mIndex.put(1, new ThreadInfo(MAX_ENTRIES, MAX_ENTRIES, "<new@example.org>", MAX_ENTRIES, -1), false);
+
+        assertEquals(MAX_ENTRIES, mIndex.size());
+        assertNotNull(mIndex.get(1, "<0@example.org>"));
+        assertNull(mIndex.get(1, "<1@example.org>"));
+        assertNotNull(mIndex.get(1, "<new@example.org>"));
+    }
+
+    @Test
+    public void testClear() {
+        mIndex.put(1, new ThreadInfo(10, 100, "<a@example.org>", 10, -1), false);
+
+        mIndex.clear();
+
+        assertEquals(0, mIndex.size());
+        assertNull(mIndex.get(1, "<a@example.org>"));
+    }
+}
@@ -0,0 +1,87 @@
+package com.fsck.k9.provider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class EmailProviderFolderSelectionTest {
+    /**
+     * The selection {@code Account.excludeSpecialFolders()} builds for Trash, Drafts, Spam,
+     * Outbox, Sent and the error folder, plus the Inbox.
+     */
+    private static final String SPECIAL_FOLDERS_EXCLUDED =
+            "((((((folder_id != ?) AND (folder_id != ?)) AND (folder_id != ?)) AND " +
+            "(folder_id != ?)) AND (folder_id != ?)) AND (folder_id != ?)) OR (folder_id = ?)";
+
+
+    @Test
+    public void testEmptySelection() {
+        assertTrue(EmailProvider.isFolderSelection(null));
+        assertTrue(EmailProvider.isFolderSelection(""));
+    }
+
+    @Test
+    public void testStatsSelectionForAllFolders() {
+        assertTrue(EmailProvider.isFolderSelection(SPECIAL_FOLDERS_EXCLUDED));
+    }
+
+    @Test
+    public void testStatsSelectionForFirstClassFolders() {
+        assertTrue(EmailProvider.isFolderSelection(
+                "(" + SPECIAL_FOLDERS_EXCLUDED + ") AND (display_class LIKE ?)"));
+    }
+
+    @Test
+    public void testStatsSelectionForFirstAndSecondClassFolders() {
+        assertTrue(EmailProvider.isFolderSelection("(" + SPECIAL_FOLDERS_EXCLUDED + ") AND " +
+                "((display_class LIKE ?) OR (display_class LIKE ?))"));
+    }
+
+    @Test
+    public void testStatsSelectionForNotSecondClassFolders() {
+        assertTrue(EmailProvider.isFolderSelection(
+                "(" + SPECIAL_FOLDERS_EXCLUDED + ") AND (display_class NOT LIKE ?)"));
+    }
+
+    @Test
+    public void testMessageColumnsAreNotFolderSelections() {
+        assertFalse(EmailProvider.isFolderSelection("(folder_id = ?) AND (read = 0)"));
+        assertFalse(EmailProvider.isFolderSelection("flagged = 1"));
+        assertFalse(EmailProvider.isFolderSelection("subject LIKE ?"));
+    }
+
+    @Test
+    public void testIdIsTheMessageId() {
+        assertFalse(EmailProvider.isFolderSelection("id = ?"));
+    }
+
+    @Test
+    public void testFullTextConditionIsNotFolderSelection() {
+        assertFalse(EmailProvider.isFolderSelection(
+                "(folder_id = ?) AND (id IN (SELECT docid FROM messages_fulltext WHERE subject MATCH ?))"));
+    }
+
+    @Test
+    public void testWordsInStringLiteralsAreIgnored() {
+        assertTrue(EmailProvider.isFolderSelection("display_class = 'FIRST_CLASS'"));
+        assertTrue(EmailProvider.isFolderSelection("name = 'read' OR name = 'it''s flagged'"));
+    }
+
+    @Test
+    public void testColumnsAfterStringLiteralsAreChecked() {
+        assertFalse(EmailProvider.isFolderSelection("name = 'it''s' AND read = 0"));
+        assertFalse(EmailProvider.isFolderSelection("name = 'Inbox' OR flagged = 1"));
+    }
+
+    @Test
+    public void testUnterminatedLiteralIsNotFolderSelection() {
+        assertFalse(EmailProvider.isFolderSelection("name = 'read"));
+    }
+
+    @Test
+    public void testQuotedIdentifierIsChecked() {
+        assertFalse(EmailProvider.isFolderSelection("\"read\" = 0"));
+    }
+}
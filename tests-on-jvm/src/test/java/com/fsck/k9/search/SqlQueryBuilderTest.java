@@ -0,0 +1,53 @@
+package com.fsck.k9.search;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class SqlQueryBuilderTest {
+    @Test
+    public void testSingleTermIsPrefix() {
+        assertEquals("\"john*\"", SqlQueryBuilder.buildFullTextQuery("john"));
+    }
+
+    @Test
+    public void testMultipleTermsArePhrase() {
+        assertEquals("\"john* exa*\"", SqlQueryBuilder.buildFullTextQuery("john@exa"));
+        assertEquals("\"weekly* report*\"", SqlQueryBuilder.buildFullTextQuery("  weekly   report "));
+    }
+
+    @Test
+    public void testQuotesAreRemoved() {
+        assertEquals("\"say* hello*\"", SqlQueryBuilder.buildFullTextQuery("say \"hello\""));
+        assertEquals("\"it* s*\"", SqlQueryBuilder.buildFullTextQuery("it's"));
+    }
+
+    @Test
+    public void testAsteriskIsRemoved() {
+        assertEquals("\"foo* bar*\"", SqlQueryBuilder.buildFullTextQuery("foo* *bar"));
+    }
+
+    @Test
+    public void testOperatorsAreTermsOfThePhrase() {
+        // Inside a phrase OR and NEAR are ordinary words
+        assertEquals("\"cats* OR* dogs*\"", SqlQueryBuilder.buildFullTextQuery("cats OR dogs"));
+        assertEquals("\"cats* NEAR* 2* dogs*\"", SqlQueryBuilder.buildFullTextQuery("cats NEAR/2 dogs"));
+        assertEquals("\"cats* dogs*\"", SqlQueryBuilder.buildFullTextQuery("cats -dogs"));
+        assertEquals("\"subject* cats*\"", SqlQueryBuilder.buildFullTextQuery("subject:cats"));
+        assertEquals("\"cats* AND* dogs*\"", SqlQueryBuilder.buildFullTextQuery("(cats) AND (dogs)"));
+    }
+
+    @Test
+    public void testNonAsciiCharactersArePartOfTerms() {
+        assertEquals("\"andré* müller*\"", SqlQueryBuilder.buildFullTextQuery("andré müller"));
+    }
+
+    @Test
+    public void testValueWithoutTerms() {
+        assertNull(SqlQueryBuilder.buildFullTextQuery(null));
+        assertNull(SqlQueryBuilder.buildFullTextQuery(""));
+        assertNull(SqlQueryBuilder.buildFullTextQuery("\"*\" - ()"));
+    }
+}